@@ -21,6 +21,7 @@ package org.apache.hadoop.fs;
 import java.io.*;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
@@ -43,7 +44,7 @@ import org.apache.hadoop.util.StringUtils;
 @InterfaceAudience.Public
 @InterfaceStability.Stable
 public abstract class ChecksumFileSystem extends FilterFileSystem {
-  private static final byte[] CHECKSUM_VERSION = new byte[] {'c', 'r', 'c', 0};
+  static final byte[] CHECKSUM_VERSION = new byte[] {'c', 'r', 'c', 0};
   private int bytesPerChecksum = 512;
   private boolean verifyChecksum = true;
 
@@ -123,6 +124,12 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
     
     private int bytesPerSum = 1;
     private long fileLen = -1L;
+
+    /** Checkers of earlier positional reads, kept open for the next ones */
+    private static final int MAX_IDLE_CHECKERS = 4;
+    private final LinkedList<ChecksumFSInputChecker> idleCheckers =
+      new LinkedList<ChecksumFSInputChecker>();
+    private boolean closed = false;
     
     public ChecksumFSInputChecker(ChecksumFileSystem fs, Path file)
       throws IOException {
@@ -182,14 +189,42 @@ public abstract class ChecksumFileSystem extends FilterFileSystem {
             "Parameter position can not to be negative");
       }
 
-      ChecksumFSInputChecker checker = new ChecksumFSInputChecker(fs, file);
-      checker.seek(position);
-      int nread = checker.read(b, off, len);
-      checker.close();
-      return nread;
+      ChecksumFSInputChecker checker;
+      synchronized (idleCheckers) {
+        checker = idleCheckers.poll();
+      }
+      if (checker == null) {
+        checker = new ChecksumFSInputChecker(fs, file);
+      }
+      boolean succeeded = false;
+      try {
+        checker.seek(position);
+        int nread = checker.read(b, off, len);
+        succeeded = true;
+        return nread;
+      } finally {
+        if (succeeded) {
+          synchronized (idleCheckers) {
+            if (!closed && idleCheckers.size() < MAX_IDLE_CHECKERS) {
+              idleCheckers.add(checker);
+              checker = null;
+            }
+          }
+        }
+        if (checker != null) {
+          checker.close();
+        }
+      }
     }
     
     public void close() throws IOException {
+      synchronized (idleCheckers) {
+        closed = true;
+        for (ChecksumFSInputChecker checker : idleCheckers) {
+          checker.close();
+        }
+        idleCheckers.clear();
+      }
       datas.close();
       if( sums != null ) {
         sums.close();
@@ -85,5 +85,18 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
    */
   public static final String  NET_TOPOLOGY_CONFIGURED_NODE_MAPPING_KEY =
     "net.topology.configured.node.mapping";
-}
 
+  /** Local file the netgroup cache is persisted to, empty to disable */
+  public static final String  HADOOP_SECURITY_NETGROUP_SNAPSHOT_FILE_KEY =
+    "hadoop.security.netgroup.snapshot.file";
+  /** Default value for HADOOP_SECURITY_NETGROUP_SNAPSHOT_FILE_KEY */
+  public static final String  HADOOP_SECURITY_NETGROUP_SNAPSHOT_FILE_DEFAULT =
+    "";
+
+  /** Number of principal to short name translations to remember */
+  public static final String  HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_KEY =
+    "hadoop.security.auth_to_local.cache.size";
+  /** Default value for HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_KEY */
+  public static final int     HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_DEFAULT =
+    10000;
+}
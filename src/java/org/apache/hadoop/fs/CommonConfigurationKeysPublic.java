@@ -100,6 +100,16 @@ public class CommonConfigurationKeysPublic {
     "io.mapfile.bloom.error.rate" ;
   /** Default value for IO_MAPFILE_BLOOM_ERROR_RATE_KEY */
   public static final float   IO_MAPFILE_BLOOM_ERROR_RATE_DEFAULT = 0.005f;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_MAPFILE_BLOOM_TYPE_KEY =
+    "io.mapfile.bloom.type";
+  /** Default value for IO_MAPFILE_BLOOM_TYPE_KEY */
+  public static final String  IO_MAPFILE_BLOOM_TYPE_DEFAULT = "dynamic";
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_MAPFILE_BLOOM_MMAP_KEY =
+    "io.mapfile.bloom.mmap";
+  /** Default value for IO_MAPFILE_BLOOM_MMAP_KEY */
+  public static final boolean IO_MAPFILE_BLOOM_MMAP_DEFAULT = true;
   /** Codec class that implements Lzo compression algorithm */
   public static final String  IO_COMPRESSION_CODEC_LZO_CLASS_KEY =
     "io.compression.codec.lzo.class";
@@ -113,11 +123,60 @@ public class CommonConfigurationKeysPublic {
   /** Default value for IO_MAP_INDEX_SKIP_KEY */
   public static final int     IO_MAP_INDEX_SKIP_DEFAULT = 0;
   /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_MAP_INDEX_SHARED_KEY = "io.map.index.shared";
+  /** Default value for IO_MAP_INDEX_SHARED_KEY */
+  public static final boolean IO_MAP_INDEX_SHARED_DEFAULT = false;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_MAP_READER_CACHE_SIZE_KEY =
+    "io.map.reader.cache.size";
+  /** Default value for IO_MAP_READER_CACHE_SIZE_KEY */
+  public static final int     IO_MAP_READER_CACHE_SIZE_DEFAULT = 1000;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_MAP_READER_CACHE_IDLE_KEY =
+    "io.map.reader.cache.idle.ms";
+  /** Default value for IO_MAP_READER_CACHE_IDLE_KEY */
+  public static final long    IO_MAP_READER_CACHE_IDLE_DEFAULT = 10 * 60 * 1000;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
   public static final String  IO_SEQFILE_COMPRESS_BLOCKSIZE_KEY =
     "io.seqfile.compress.blocksize";
   /** Default value for IO_SEQFILE_COMPRESS_BLOCKSIZE_KEY */
   public static final int     IO_SEQFILE_COMPRESS_BLOCKSIZE_DEFAULT = 1000000;
   /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_READ_AHEAD_BLOCKS_KEY =
+    "io.seqfile.read.ahead.blocks";
+  /** Default value for IO_SEQFILE_READ_AHEAD_BLOCKS_KEY */
+  public static final int     IO_SEQFILE_READ_AHEAD_BLOCKS_DEFAULT = 0;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_COMPRESS_PIPELINE_BLOCKS_KEY =
+    "io.seqfile.compress.pipeline.blocks";
+  /** Default value for IO_SEQFILE_COMPRESS_PIPELINE_BLOCKS_KEY */
+  public static final int     IO_SEQFILE_COMPRESS_PIPELINE_BLOCKS_DEFAULT = 0;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_SYNC_INDEX_KEY =
+    "io.seqfile.sync.index";
+  /** Default value for IO_SEQFILE_SYNC_INDEX_KEY */
+  public static final boolean IO_SEQFILE_SYNC_INDEX_DEFAULT = false;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_CONCURRENT_APPEND_KEY =
+    "io.seqfile.concurrent.append";
+  /** Default value for IO_SEQFILE_CONCURRENT_APPEND_KEY */
+  public static final boolean IO_SEQFILE_CONCURRENT_APPEND_DEFAULT = false;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_LOCAL_MMAP_KEY =
+    "io.seqfile.local.mmap";
+  /** Default value for IO_SEQFILE_LOCAL_MMAP_KEY */
+  public static final boolean IO_SEQFILE_LOCAL_MMAP_DEFAULT = false;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_SORT_THREADS_KEY =
+    "io.seqfile.sort.threads";
+  /** Default value for IO_SEQFILE_SORT_THREADS_KEY */
+  public static final int     IO_SEQFILE_SORT_THREADS_DEFAULT = 1;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  IO_SEQFILE_MERGE_THREADS_KEY =
+    "io.seqfile.merge.threads";
+  /** Default value for IO_SEQFILE_MERGE_THREADS_KEY */
+  public static final int     IO_SEQFILE_MERGE_THREADS_DEFAULT = 1;
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
   public static final String  IO_SKIP_CHECKSUM_ERRORS_KEY =
     "io.skip.checksum.errors";
   /** Default value for IO_SKIP_CHECKSUM_ERRORS_KEY */
@@ -216,5 +275,10 @@ public class CommonConfigurationKeysPublic {
   /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
   public static final String  HADOOP_SECURITY_SERVICE_USER_NAME_KEY =
     "hadoop.security.service.user.name.key";
+  /** See <a href="{@docRoot}/../core-default.html">core-default.xml</a> */
+  public static final String  HADOOP_RPC_SASL_MAX_BUFFER_KEY =
+    "hadoop.rpc.sasl.max.buffer";
+  /** Default value for HADOOP_RPC_SASL_MAX_BUFFER_KEY */
+  public static final int     HADOOP_RPC_SASL_MAX_BUFFER_DEFAULT = 64*1024;
 }
 
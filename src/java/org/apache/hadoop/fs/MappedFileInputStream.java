@@ -0,0 +1,330 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.util.PureJavaCrc32;
+
+/****************************************************************
+ * An input stream over a memory mapped local file. The file is mapped in
+ * windows, so files larger than 2GB can be read, and the windows overlap
+ * so data that starts near the end of one window can still be handed out
+ * as a slice of it with {@link #skipMapped(int)}.
+ *
+ * <p>If the file was written through a {@link ChecksumFileSystem}, its
+ * checksums are verified a run of chunks at a time, the first time any
+ * byte of the run is read.
+ *****************************************************************/
+@InterfaceAudience.Private
+@InterfaceStability.Unstable
+public class MappedFileInputStream extends FSInputStream {
+  /** The distance between the starts of the windows */
+  public static final int DEFAULT_WINDOW_SIZE = 256 * 1024 * 1024;
+  /** How far a window reaches into the next one */
+  public static final int DEFAULT_WINDOW_OVERLAP = 1024 * 1024;
+  /** How many chunks of checksummed data are verified at once */
+  private static final int CHUNKS_PER_VERIFY = 128;
+
+  private final String name;
+  private final FileChannel channel;
+  private final long length;
+  private final int windowSize;
+  private final int windowOverlap;
+
+  private ByteBuffer window = null;
+  private long windowStart = -1;
+  private long pos = 0;
+
+  /** The checksums of the file, null if there are none */
+  private FileChannel sums = null;
+  private int bytesPerSum;
+  private int verifySize;
+  private BitSet verified;
+  private PureJavaCrc32 crc;
+  private byte[] chunk;
+  private ByteBuffer sumBuffer;
+
+  /**
+   * Open a file of the local file system, mapped.
+   * @param fs the file system of the file
+   * @param file the file
+   * @return the stream, or null if the file system is not local
+   * @throws IOException
+   */
+  public static MappedFileInputStream open(FileSystem fs, Path file)
+    throws IOException {
+    return open(fs, file, DEFAULT_WINDOW_SIZE, DEFAULT_WINDOW_OVERLAP);
+  }
+
+  /**
+   * Open a file of the local file system, mapped in windows of the given
+   * size.
+   * @param fs the file system of the file
+   * @param file the file
+   * @param windowSize the distance between the starts of the windows
+   * @param windowOverlap how far each window reaches into the next one
+   * @return the stream, or null if the file system is not local
+   * @throws IOException
+   */
+  public static MappedFileInputStream open(FileSystem fs, Path file,
+      int windowSize, int windowOverlap) throws IOException {
+    ChecksumFileSystem checksums = null;
+    FileSystem raw = fs;
+    if (fs instanceof ChecksumFileSystem) {
+      checksums = (ChecksumFileSystem) fs;
+      raw = checksums.getRawFileSystem();
+    }
+    if (!(raw instanceof RawLocalFileSystem)) {
+      return null;
+    }
+    RawLocalFileSystem local = (RawLocalFileSystem) raw;
+    File sumFile = null;
+    if (checksums != null) {
+      sumFile = local.pathToFile(checksums.getChecksumFile(file));
+      if (!sumFile.exists()) {
+        sumFile = null;
+      }
+    }
+    return new MappedFileInputStream(local.pathToFile(file), sumFile,
+                                     windowSize, windowOverlap);
+  }
+
+  MappedFileInputStream(File file, File sumFile, int windowSize,
+                        int windowOverlap) throws IOException {
+    if (windowSize <= 0 || windowOverlap < 0 ||
+        (long) windowSize + windowOverlap > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Bad window size " + windowSize +
+                                         " and overlap " + windowOverlap);
+    }
+    this.name = file.toString();
+    this.windowSize = windowSize;
+    this.windowOverlap = windowOverlap;
+    this.channel = new FileInputStream(file).getChannel();
+    boolean succeeded = false;
+    try {
+      this.length = channel.size();
+      if (sumFile != null) {
+        openSums(sumFile);
+      }
+      succeeded = true;
+    } finally {
+      if (!succeeded) {
+        close();
+      }
+    }
+  }
+
+  private void openSums(File sumFile) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(sumFile, "r");
+    sums = in.getChannel();
+    byte[] version = new byte[ChecksumFileSystem.CHECKSUM_VERSION.length];
+    in.readFully(version);
+    if (!Arrays.equals(version, ChecksumFileSystem.CHECKSUM_VERSION)) {
+      throw new IOException("Not a checksum file: " + sumFile);
+    }
+    bytesPerSum = in.readInt();
+    if (bytesPerSum <= 0) {
+      throw new IOException("Bad bytes per checksum " + bytesPerSum +
+                            " in " + sumFile);
+    }
+    verifySize = bytesPerSum * CHUNKS_PER_VERIFY;
+    verified = new BitSet((int) ((length + verifySize - 1) / verifySize));
+    crc = new PureJavaCrc32();
+    chunk = new byte[bytesPerSum];
+    sumBuffer = ByteBuffer.allocate(4 * CHUNKS_PER_VERIFY);
+  }
+
+  /** The length of the file. */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Make the window holding the bytes [pos, pos + n) current, if there is
+   * one, and verify them.
+   * @return the number of bytes from pos in the window, at most n
+   */
+  private int map(int n) throws IOException {
+    if (pos >= length) {
+      return 0;
+    }
+    if (window == null || pos < windowStart ||
+        pos + n > windowStart + window.limit()) {
+      long start = pos - pos % windowSize;
+      if (start != windowStart || window == null) {
+        long size = Math.min((long) windowSize + windowOverlap,
+                             length - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+      }
+    }
+    n = (int) Math.min(n, windowStart + window.limit() - pos);
+    if (sums != null) {
+      verify(pos, n);
+    }
+    return n;
+  }
+
+  /** Verify the checksums of the bytes [from, from + n) of the window. */
+  private void verify(long from, int n) throws IOException {
+    int first = (int) (from / verifySize);
+    int last = (int) ((from + n - 1) / verifySize);
+    for (int run = verified.nextClearBit(first); run <= last;
+         run = verified.nextClearBit(run + 1)) {
+      long start = (long) run * verifySize;
+      int runLength = (int) Math.min(verifySize, length - start);
+      int chunks = (runLength + bytesPerSum - 1) / bytesPerSum;
+      sumBuffer.clear();
+      sumBuffer.limit(4 * chunks);
+      long sumPos = ChecksumFileSystem.CHECKSUM_VERSION.length + 4 +
+        4L * (start / bytesPerSum);
+      while (sumBuffer.hasRemaining()) {
+        if (sums.read(sumBuffer, sumPos + sumBuffer.position()) < 0) {
+          throw new ChecksumException("Checksum file ends before " + name,
+                                      start);
+        }
+      }
+      // a run reaching outside the window gets a mapping of its own
+      ByteBuffer data;
+      if (start >= windowStart &&
+          start + runLength <= windowStart + window.limit()) {
+        data = window.duplicate();
+        data.position((int) (start - windowStart));
+      } else {
+        data = channel.map(FileChannel.MapMode.READ_ONLY, start, runLength);
+      }
+      for (int i = 0; i < chunks; i++) {
+        int chunkLength = Math.min(bytesPerSum, runLength - i * bytesPerSum);
+        data.get(chunk, 0, chunkLength);
+        crc.reset();
+        crc.update(chunk, 0, chunkLength);
+        if ((int) crc.getValue() != sumBuffer.getInt(4 * i)) {
+          throw new ChecksumException("Checksum error: " + name + " at " +
+                                      (start + (long) i * bytesPerSum),
+                                      start + (long) i * bytesPerSum);
+        }
+      }
+      verified.set(run);
+    }
+  }
+
+  /**
+   * Skip over the next bytes of the file without copying them, if they
+   * are in one window.
+   * @param n the number of bytes
+   * @return where the bytes start in {@link #getWindow()}, or -1 if they
+   *         are not all mapped in one window. The position is unchanged
+   *         then.
+   * @throws IOException if the bytes are not all in the file or fail
+   *         their checksums
+   */
+  public int skipMapped(int n) throws IOException {
+    if (pos + n > length) {
+      throw new EOFException("Can't skip " + n + " bytes at " + pos +
+                             " of " + name);
+    }
+    if (n == 0) {
+      return 0;
+    }
+    if (map(n) < n) {
+      return -1;
+    }
+    int offset = (int) (pos - windowStart);
+    pos += n;
+    return offset;
+  }
+
+  /**
+   * The window the offsets returned by {@link #skipMapped(int)} are in.
+   * Read only, and valid even after the stream moved to another window.
+   */
+  public ByteBuffer getWindow() {
+    return window;
+  }
+
+  public int read() throws IOException {
+    if (map(1) < 1) {
+      return -1;
+    }
+    return window.get((int) (pos++ - windowStart)) & 0xff;
+  }
+
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int n = map(len);
+    if (n <= 0) {
+      return -1;
+    }
+    ByteBuffer data = window.duplicate();
+    data.position((int) (pos - windowStart));
+    data.get(b, off, n);
+    pos += n;
+    return n;
+  }
+
+  public long skip(long n) throws IOException {
+    long skipped = Math.max(0, Math.min(n, length - pos));
+    pos += skipped;
+    return skipped;
+  }
+
+  public int available() throws IOException {
+    return (int) Math.min(Integer.MAX_VALUE, length - pos);
+  }
+
+  public void seek(long target) throws IOException {
+    if (target < 0 || target > length) {
+      throw new EOFException("Can't seek to " + target + " in " + name +
+                             " of length " + length);
+    }
+    pos = target;
+  }
+
+  public long getPos() throws IOException {
+    return pos;
+  }
+
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  public void close() throws IOException {
+    window = null;
+    try {
+      channel.close();
+    } finally {
+      if (sums != null) {
+        sums.close();
+      }
+    }
+  }
+}
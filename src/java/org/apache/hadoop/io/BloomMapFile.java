@@ -18,21 +18,29 @@
 
 package org.apache.hadoop.io;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.util.Options;
 import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.bloom.BlockedBloomFilter;
 import org.apache.hadoop.util.bloom.DynamicBloomFilter;
 import org.apache.hadoop.util.bloom.Filter;
 import org.apache.hadoop.util.bloom.Key;
@@ -44,12 +52,22 @@ import org.apache.hadoop.util.hash.Hash;
  * quick membership test for keys, and it offers a fast version of 
  * {@link Reader#get(WritableComparable, Writable)} operation, especially in
  * case of sparsely populated MapFile-s.
+ *
+ * <p>The filter is a {@link DynamicBloomFilter} by default, or with
+ * <code>io.mapfile.bloom.type</code> set to "blocked", a
+ * {@link BlockedBloomFilter}, which is kept in a file of its own.  That file
+ * holds the filter in its mapped form, which readers of maps on the local
+ * file system memory map and probe in place, unless
+ * <code>io.mapfile.bloom.mmap</code> is false: opening a reader does not read
+ * the filter, and the processes reading a map share the pages of its filter.
+ * A mapped filter is not checked against the checksums of its file.
  */
 @InterfaceAudience.Public
 @InterfaceStability.Stable
 public class BloomMapFile {
   private static final Log LOG = LogFactory.getLog(BloomMapFile.class);
   public static final String BLOOM_FILE_NAME = "bloom";
+  public static final String BLOCKED_BLOOM_FILE_NAME = "bloom.blocked";
   public static final int HASH_COUNT = 5;
   
   public static void delete(FileSystem fs, String name) throws IOException {
@@ -57,10 +75,12 @@ public class BloomMapFile {
     Path data = new Path(dir, MapFile.DATA_FILE_NAME);
     Path index = new Path(dir, MapFile.INDEX_FILE_NAME);
     Path bloom = new Path(dir, BLOOM_FILE_NAME);
+    Path blockedBloom = new Path(dir, BLOCKED_BLOOM_FILE_NAME);
 
     fs.delete(data, true);
     fs.delete(index, true);
     fs.delete(bloom, true);
+    fs.delete(blockedBloom, true);
     fs.delete(dir, true);
   }
 
@@ -75,7 +95,7 @@ public class BloomMapFile {
   }
   
   public static class Writer extends MapFile.Writer {
-    private DynamicBloomFilter bloomFilter;
+    private Filter bloomFilter;
     private int numKeys;
     private int vectorSize;
     private Key bloomKey = new Key();
@@ -167,6 +187,15 @@ public class BloomMapFile {
       // max. error rate.
       // Our desired error rate is by default 0.005, i.e. 0.5%
       float errorRate = conf.getFloat("io.mapfile.bloom.error.rate", 0.005f);
+      String type =
+        conf.get(CommonConfigurationKeysPublic.IO_MAPFILE_BLOOM_TYPE_KEY,
+          CommonConfigurationKeysPublic.IO_MAPFILE_BLOOM_TYPE_DEFAULT);
+      if ("blocked".equals(type)) {
+        bloomFilter = BlockedBloomFilter.create(numKeys, errorRate);
+        return;
+      } else if (!"dynamic".equals(type)) {
+        throw new IllegalArgumentException("Unknown Bloom filter type " + type);
+      }
       vectorSize = (int)Math.ceil((double)(-HASH_COUNT * numKeys) /
           Math.log(1.0 - Math.pow(errorRate, 1.0/HASH_COUNT)));
       bloomFilter = new DynamicBloomFilter(vectorSize, HASH_COUNT,
@@ -179,6 +208,11 @@ public class BloomMapFile {
       super.append(key, val);
       buf.reset();
       key.write(buf);
+      if (bloomFilter instanceof BlockedBloomFilter) {
+        ((BlockedBloomFilter) bloomFilter).add(buf.getData(), 0,
+            buf.getLength());
+        return;
+      }
       bloomKey.set(byteArrayForBloomKey(buf), 1.0);
       bloomFilter.add(bloomKey);
     }
@@ -186,8 +220,20 @@ public class BloomMapFile {
     @Override
     public synchronized void close() throws IOException {
       super.close();
-      DataOutputStream out = fs.create(new Path(dir, BLOOM_FILE_NAME), true);
-      bloomFilter.write(out);
+      boolean blocked = bloomFilter instanceof BlockedBloomFilter;
+      // remove a filter of the other kind left by an earlier map
+      Path other =
+        new Path(dir, blocked ? BLOOM_FILE_NAME : BLOCKED_BLOOM_FILE_NAME);
+      if (fs.exists(other)) {
+        fs.delete(other, false);
+      }
+      DataOutputStream out = fs.create(new Path(dir,
+          blocked ? BLOCKED_BLOOM_FILE_NAME : BLOOM_FILE_NAME), true);
+      if (blocked) {
+        ((BlockedBloomFilter) bloomFilter).writeMapped(out);
+      } else {
+        bloomFilter.write(out);
+      }
       out.flush();
       out.close();
     }
@@ -195,7 +241,7 @@ public class BloomMapFile {
   }
   
   public static class Reader extends MapFile.Reader {
-    private DynamicBloomFilter bloomFilter;
+    private Filter bloomFilter;
     private DataOutputBuffer buf = new DataOutputBuffer();
     private Key bloomKey = new Key();
 
@@ -227,16 +273,86 @@ public class BloomMapFile {
                                  Configuration conf) {
       try {
         FileSystem fs = dirName.getFileSystem(conf);
-        DataInputStream in = fs.open(new Path(dirName, BLOOM_FILE_NAME));
-        bloomFilter = new DynamicBloomFilter();
-        bloomFilter.readFields(in);
-        in.close();
+        boolean mmap =
+          conf.getBoolean(CommonConfigurationKeysPublic.IO_MAPFILE_BLOOM_MMAP_KEY,
+            CommonConfigurationKeysPublic.IO_MAPFILE_BLOOM_MMAP_DEFAULT);
+        // look for the kind of filter this process writes first, maps of
+        // the other kind cost a failed open
+        boolean blockedFirst = "blocked".equals(
+          conf.get(CommonConfigurationKeysPublic.IO_MAPFILE_BLOOM_TYPE_KEY,
+            CommonConfigurationKeysPublic.IO_MAPFILE_BLOOM_TYPE_DEFAULT));
+        try {
+          bloomFilter = blockedFirst ? readBlockedFilter(fs, dirName, mmap)
+                                     : readDynamicFilter(fs, dirName);
+        } catch (FileNotFoundException e) {
+          bloomFilter = blockedFirst ? readDynamicFilter(fs, dirName)
+                                     : readBlockedFilter(fs, dirName, mmap);
+        }
       } catch (IOException ioe) {
         LOG.warn("Can't open BloomFilter: " + ioe + " - fallback to MapFile.");
         bloomFilter = null;
       }
     }
+
+    private static Filter readDynamicFilter(FileSystem fs, Path dirName)
+        throws IOException {
+      FSDataInputStream in = fs.open(new Path(dirName, BLOOM_FILE_NAME));
+      try {
+        Filter filter = new DynamicBloomFilter();
+        filter.readFields(in);
+        return filter;
+      } finally {
+        in.close();
+      }
+    }
+
+    private static Filter readBlockedFilter(FileSystem fs, Path dirName,
+        boolean mmap) throws IOException {
+      Path blocked = new Path(dirName, BLOCKED_BLOOM_FILE_NAME);
+      ByteBuffer buffer = mmap ? mapLocalFile(fs, blocked) : null;
+      if (buffer == null) {
+        buffer = readFile(fs, blocked);
+      }
+      return BlockedBloomFilter.map(buffer);
+    }
     
+    /**
+     * Map a file read-only, if it is on the local file system.
+     * @return the mapping, or null if the file is not local
+     */
+    private static ByteBuffer mapLocalFile(FileSystem fs, Path file)
+        throws IOException {
+      FileSystem raw = fs instanceof ChecksumFileSystem
+        ? ((ChecksumFileSystem) fs).getRawFileSystem() : fs;
+      if (!(raw instanceof RawLocalFileSystem)) {
+        return null;
+      }
+      FileChannel channel = new FileInputStream(
+          ((RawLocalFileSystem) raw).pathToFile(file)).getChannel();
+      try {
+        // the mapping stays valid once the channel is closed
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        channel.close();
+      }
+    }
+
+    private static ByteBuffer readFile(FileSystem fs, Path file)
+        throws IOException {
+      long length = fs.getFileStatus(file).getLen();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Bloom filter too large: " + length + " bytes");
+      }
+      byte[] bytes = new byte[(int) length];
+      FSDataInputStream in = fs.open(file);
+      try {
+        in.readFully(bytes);
+      } finally {
+        in.close();
+      }
+      return ByteBuffer.wrap(bytes);
+    }
+
     /**
      * Checks if this MapFile has the indicated key. The membership test is
      * performed using a Bloom filter, so the result has always non-zero
@@ -251,6 +367,10 @@ public class BloomMapFile {
       }
       buf.reset();
       key.write(buf);
+      if (bloomFilter instanceof BlockedBloomFilter) {
+        return ((BlockedBloomFilter) bloomFilter).membershipTest(
+            buf.getData(), 0, buf.getLength());
+      }
       bloomKey.set(byteArrayForBloomKey(buf), 1.0);
       return bloomFilter.membershipTest(bloomKey);
     }
@@ -270,6 +390,33 @@ public class BloomMapFile {
       }
       return super.get(key, val);
     }
+
+    /**
+     * Fast version of the
+     * {@link MapFile.Reader#lookup(WritableComparable, Writable)} method,
+     * which checks the Bloom filter first, as
+     * {@link #get(WritableComparable, Writable)} does.
+     */
+    @Override
+    public Writable lookup(WritableComparable key, Writable val)
+        throws IOException {
+      if (bloomFilter != null) {
+        DataOutputBuffer rawKey = new DataOutputBuffer();
+        key.write(rawKey);
+        boolean found;
+        if (bloomFilter instanceof BlockedBloomFilter) {
+          found = ((BlockedBloomFilter) bloomFilter).membershipTest(
+              rawKey.getData(), 0, rawKey.getLength());
+        } else {
+          found = bloomFilter.membershipTest(
+              new Key(byteArrayForBloomKey(rawKey), 1.0));
+        }
+        if (!found) {
+          return null;
+        }
+      }
+      return super.lookup(key, val);
+    }
     
     /**
      * Retrieve the Bloom filter used by this instance of the Reader.
@@ -206,7 +206,8 @@ public class BytesWritable extends BinaryComparable
   }
 
   /** A Comparator optimized for BytesWritable. */ 
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+    implements NormalizedKeyComparator {
     public Comparator() {
       super(BytesWritable.class);
     }
@@ -219,6 +220,13 @@ public class BytesWritable extends BinaryComparable
       return compareBytes(b1, s1+LENGTH_BYTES, l1-LENGTH_BYTES, 
                           b2, s2+LENGTH_BYTES, l2-LENGTH_BYTES);
     }
+
+    /**
+     * The first bytes of the buffer in serialized form.
+     */
+    public long getNormalizedKeyPrefix(byte[] b, int s, int l) {
+      return normalizedBytesPrefix(b, s+LENGTH_BYTES, l-LENGTH_BYTES);
+    }
   }
   
   static {                                        // register this comparator
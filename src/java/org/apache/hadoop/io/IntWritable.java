@@ -71,7 +71,8 @@ public class IntWritable implements WritableComparable {
   }
 
   /** A Comparator optimized for IntWritable. */ 
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+    implements NormalizedKeyComparator {
     public Comparator() {
       super(IntWritable.class);
     }
@@ -82,6 +83,10 @@ public class IntWritable implements WritableComparable {
       int thatValue = readInt(b2, s2);
       return (thisValue<thatValue ? -1 : (thisValue==thatValue ? 0 : 1));
     }
+
+    public long getNormalizedKeyPrefix(byte[] b, int s, int l) {
+      return readInt(b, s);
+    }
   }
 
   static {                                        // register this comparator
@@ -71,7 +71,8 @@ public class LongWritable implements WritableComparable {
   }
 
   /** A Comparator optimized for LongWritable. */ 
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+    implements NormalizedKeyComparator {
     public Comparator() {
       super(LongWritable.class);
     }
@@ -82,6 +83,10 @@ public class LongWritable implements WritableComparable {
       long thatValue = readLong(b2, s2);
       return (thisValue<thatValue ? -1 : (thisValue==thatValue ? 0 : 1));
     }
+
+    public long getNormalizedKeyPrefix(byte[] b, int s, int l) {
+      return readLong(b, s);
+    }
   }
 
   /** A decreasing Comparator optimized for LongWritable. */ 
@@ -92,6 +97,9 @@ public class LongWritable implements WritableComparable {
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
       return -super.compare(b1, s1, l1, b2, s2, l2);
     }
+    public long getNormalizedKeyPrefix(byte[] b, int s, int l) {
+      return ~super.getNormalizedKeyPrefix(b, s, l);
+    }
   }
 
   static {                                       // register default comparator
@@ -18,8 +18,12 @@
 
 package org.apache.hadoop.io;
 
-import java.util.ArrayList;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.io.*;
 
 import org.apache.commons.logging.Log;
@@ -29,6 +33,7 @@ import org.apache.hadoop.fs.*;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.*;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
@@ -44,8 +49,10 @@ import org.apache.hadoop.io.compress.DefaultCodec;
  * file, containing a fraction of the keys.  The fraction is determined by
  * {@link Writer#getIndexInterval()}.
  *
- * <p>The index file is read entirely into memory.  Thus key implementations
- * should try to keep themselves small.
+ * <p>The index file is read entirely into memory, with the keys kept
+ * serialized.  Thus key implementations should try to keep themselves small,
+ * and should have a {@link RawComparator} to be looked up quickly.  Readers
+ * of the same map may share the index, see <code>io.map.index.shared</code>.
  *
  * <p>Map files are created by adding entries in-order.  To maintain a large
  * database, perform updates by copying the previous version of a database and
@@ -338,6 +345,95 @@ public class MapFile {
 
   }
   
+  /**
+   * The index of a map, in memory.  The keys are kept serialized, one after
+   * the other in a single array, and looked up with the raw comparator of
+   * the map, so the index takes a few objects whatever its size.  It is never
+   * changed once built, and may be shared by any number of readers.
+   */
+  static class Index {
+    final int count;
+    // the keys, serialized, and where each of them starts, then the end
+    private final byte[] keyBytes;
+    private final int[] keyOffsets;
+    // the positions of the keys in the data file
+    final long[] positions;
+
+    private Index(int count, byte[] keyBytes, int[] keyOffsets,
+                  long[] positions) {
+      this.count = count;
+      this.keyBytes = keyBytes;
+      this.keyOffsets = keyOffsets;
+      this.positions = positions;
+    }
+
+    /** Builds an index from its keys and positions, in order. */
+    static class Builder {
+      int count = 0;
+      private final DataOutputBuffer keyBytes = new DataOutputBuffer();
+      private int[] keyOffsets = new int[1025];
+      private long[] positions = new long[1024];
+
+      void add(byte[] key, int length, long position) throws IOException {
+        if (count == positions.length) {
+          positions = Arrays.copyOf(positions, positions.length * 2);
+          keyOffsets = Arrays.copyOf(keyOffsets, positions.length + 1);
+        }
+        keyBytes.write(key, 0, length);
+        positions[count] = position;
+        keyOffsets[++count] = keyBytes.getLength();
+      }
+
+      Index build() {
+        return new Index(count,
+                         Arrays.copyOf(keyBytes.getData(), keyBytes.getLength()),
+                         Arrays.copyOf(keyOffsets, count + 1),
+                         Arrays.copyOf(positions, count));
+      }
+    }
+
+    /** Compares the key at <code>i</code> with a serialized key. */
+    int compareTo(int i, DataOutputBuffer key, RawComparator comparator) {
+      return comparator.compare(keyBytes, keyOffsets[i],
+                                keyOffsets[i + 1] - keyOffsets[i],
+                                key.getData(), 0, key.getLength());
+    }
+
+    /**
+     * Finds a serialized key in the index.
+     * @return the index of the key, or if it is not in the index, 
+     * <code>(-(insertion point) - 1)</code>, as in
+     * {@link Arrays#binarySearch(long[], long)}.
+     */
+    int binarySearch(DataOutputBuffer key, RawComparator comparator) {
+      int low = 0;
+      int high = count-1;
+
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compareTo(mid, key, comparator);
+
+        if (cmp < 0)
+          low = mid + 1;
+        else if (cmp > 0)
+          high = mid - 1;
+        else
+          return mid;                             // key found
+      }
+      return -(low + 1);                          // key not found.
+    }
+
+    /** Deserializes the key at <code>i</code>. */
+    WritableComparable getKey(int i, WritableComparator comparator)
+      throws IOException {
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(keyBytes, keyOffsets[i], keyOffsets[i + 1] - keyOffsets[i]);
+      WritableComparable key = comparator.newKey();
+      key.readFields(in);
+      return key;
+    }
+  }
+
   /** Provide access to an existing map. */
   public static class Reader implements java.io.Closeable {
       
@@ -360,10 +456,27 @@ public class MapFile {
     // whether the index Reader was closed
     private boolean indexClosed = false;
 
-    // the index, in memory
-    private int count = -1;
-    private WritableComparable[] keys;
-    private long[] positions;
+    // the index, in memory, read by lookups without locking
+    private volatile Index keys;
+    // the key of the index in the shared indexes, if it is shared
+    private String sharedIndexKey = null;
+    // the key seeked to, serialized to be compared with the index keys
+    private final DataOutputBuffer seekKey = new DataOutputBuffer();
+
+    // lookups: how to open the data file, and the idle data file readers
+    private Path dataFile;
+    private Configuration conf;
+    private SequenceFile.Reader.Option[] options;
+    private final ConcurrentLinkedQueue<SequenceFile.Reader> lookupReaders =
+      new ConcurrentLinkedQueue<SequenceFile.Reader>();
+    // the idle copies of a generic comparator, one per lookup at once
+    private final ConcurrentLinkedQueue<WritableComparator> lookupComparators =
+      new ConcurrentLinkedQueue<WritableComparator>();
+    private volatile boolean closed = false;
+
+    /** The indexes shared by the readers of the same maps. */
+    private static final Map<String, WeakReference<Index>> sharedIndexes =
+      new HashMap<String, WeakReference<Index>>();
 
     /** Returns the class of keys in this file. */
     public Class<?> getKeyClass() { return data.getKeyClass(); }
@@ -425,6 +538,9 @@ public class MapFile {
 
       // open the data
       this.data = createDataFileReader(dataFile, conf, options);
+      this.dataFile = dataFile;
+      this.conf = conf;
+      this.options = options;
       this.firstPosition = data.getPosition();
 
       if (comparator == null)
@@ -433,11 +549,29 @@ public class MapFile {
                                    asSubclass(WritableComparable.class));
       else
         this.comparator = comparator;
+      if (this.comparator.getClass() == WritableComparator.class) {
+        // the index is searched with raw comparisons, and the generic
+        // comparator deserializes the keys into instances of its own, which
+        // the readers of other threads must not share
+        this.comparator =
+          new WritableComparator(this.comparator.getKeyClass(), true);
+      }
 
       // open the index
       SequenceFile.Reader.Option[] indexOptions =
         Options.prependOptions(options, SequenceFile.Reader.file(indexFile));
       this.index = new SequenceFile.Reader(conf, indexOptions);
+
+      if (conf.getBoolean(CommonConfigurationKeysPublic.IO_MAP_INDEX_SHARED_KEY,
+          CommonConfigurationKeysPublic.IO_MAP_INDEX_SHARED_DEFAULT)) {
+        // a changed index file or a different way to read it is another index
+        FileSystem fs = indexFile.getFileSystem(conf);
+        FileStatus status = fs.getFileStatus(indexFile);
+        sharedIndexKey = status.getPath() + "@" + status.getModificationTime()
+          + ":" + status.getLen() + ":" + INDEX_SKIP + ":"
+          + this.comparator.getClass().getName() + ":"
+          + getKeyClass().getName();
+      }
     }
 
     /**
@@ -457,25 +591,46 @@ public class MapFile {
       // read the index entirely into memory
       if (this.keys != null)
         return;
-      this.count = 0;
-      this.positions = new long[1024];
+      if (sharedIndexKey != null) {
+        synchronized (sharedIndexes) {
+          WeakReference<Index> shared = sharedIndexes.get(sharedIndexKey);
+          this.keys = shared == null ? null : shared.get();
+        }
+        if (this.keys != null) {
+          indexClosed = true;
+          index.close();
+          return;
+        }
+      }
 
+      Index.Builder builder = new Index.Builder();
       try {
         int skip = INDEX_SKIP;
+        DataOutputBuffer key = new DataOutputBuffer();
+        DataOutputBuffer lastKey = null;
+        SequenceFile.ValueBytes rawPosition = index.createValueBytes();
+        DataOutputBuffer positionBuffer = new DataOutputBuffer();
+        DataInputBuffer positionIn = new DataInputBuffer();
         LongWritable position = new LongWritable();
-        WritableComparable lastKey = null;
         long lastIndex = -1;
-        ArrayList<WritableComparable> keyBuilder = new ArrayList<WritableComparable>(1024);
         while (true) {
-          WritableComparable k = comparator.newKey();
-
-          if (!index.next(k, position))
+          key.reset();
+          if (index.nextRaw(key, rawPosition) < 0)
             break;
+          positionBuffer.reset();
+          rawPosition.writeUncompressedBytes(positionBuffer);
+          positionIn.reset(positionBuffer.getData(), positionBuffer.getLength());
+          position.readFields(positionIn);
 
           // check order to make sure comparator is compatible
-          if (lastKey != null && comparator.compare(lastKey, k) > 0)
-            throw new IOException("key out of order: "+k+" after "+lastKey);
-          lastKey = k;
+          if (lastKey != null && comparator.compare(lastKey.getData(), 0,
+                lastKey.getLength(), key.getData(), 0, key.getLength()) > 0)
+            throw new IOException("key out of order: " + getKey(key) +
+                                  " after " + getKey(lastKey));
+          DataOutputBuffer tmp = lastKey == null ? new DataOutputBuffer() :
+            lastKey;
+          lastKey = key;
+          key = tmp;
           if (skip > 0) {
             skip--;
             continue;                             // skip this entry
@@ -483,30 +638,59 @@ public class MapFile {
             skip = INDEX_SKIP;                    // reset skip
           }
 
-	  // don't read an index that is the same as the previous one. Block
-	  // compressed map files used to do this (multiple entries would point
-	  // at the same block)
-	  if (position.get() == lastIndex)
-	    continue;
-
-          if (count == positions.length) {
-	    positions = Arrays.copyOf(positions, positions.length * 2);
-          }
+          // don't read an index that is the same as the previous one. Block
+          // compressed map files used to do this (multiple entries would
+          // point at the same block)
+          if (position.get() == lastIndex)
+            continue;
+          lastIndex = position.get();
 
-          keyBuilder.add(k);
-          positions[count] = position.get();
-          count++;
+          builder.add(lastKey.getData(), lastKey.getLength(), position.get());
         }
-
-        this.keys = keyBuilder.toArray(new WritableComparable[count]);
-        positions = Arrays.copyOf(positions, count);
       } catch (EOFException e) {
         LOG.warn("Unexpected EOF reading " + index +
-                              " at entry #" + count + ".  Ignoring.");
+                              " at entry #" + builder.count + ".  Ignoring.");
       } finally {
-	indexClosed = true;
+        indexClosed = true;
         index.close();
       }
+      this.keys = builder.build();
+
+      if (sharedIndexKey != null) {
+        synchronized (sharedIndexes) {
+          WeakReference<Index> shared = sharedIndexes.get(sharedIndexKey);
+          Index other = shared == null ? null : shared.get();
+          if (other != null) {
+            // another reader read it first
+            this.keys = other;
+          } else {
+            // forget the indexes no reader uses any more
+            Iterator<WeakReference<Index>> i =
+              sharedIndexes.values().iterator();
+            while (i.hasNext()) {
+              if (i.next().get() == null) {
+                i.remove();
+              }
+            }
+            sharedIndexes.put(sharedIndexKey, new WeakReference<Index>(keys));
+          }
+        }
+      }
+    }
+
+    /** Deserializes a key of the index. */
+    private WritableComparable getKey(DataOutputBuffer key) throws IOException {
+      DataInputBuffer in = new DataInputBuffer();
+      in.reset(key.getData(), key.getLength());
+      WritableComparable k = comparator.newKey();
+      k.readFields(in);
+      return k;
+    }
+
+    /** The in-memory index, for tests. */
+    Index getIndex() throws IOException {
+      readIndex();
+      return keys;
     }
 
     /** Re-positions the reader before its first key. */
@@ -520,11 +704,11 @@ public class MapFile {
     public synchronized WritableComparable midKey() throws IOException {
 
       readIndex();
-      if (count == 0) {
+      if (keys.count == 0) {
         return null;
       }
     
-      return keys[(count - 1) / 2];
+      return keys.getKey((keys.count - 1) / 2, comparator);
     }
     
     /** Reads the final key from the file.
@@ -537,8 +721,8 @@ public class MapFile {
       long originalPosition = data.getPosition(); // save position
       try {
         readIndex();                              // make sure index is valid
-        if (count > 0) {
-          data.seek(positions[count-1]);          // skip to last indexed entry
+        if (keys.count > 0) {
+          data.seek(keys.positions[keys.count-1]); // skip to last indexed entry
         } else {
           reset();                                // start at the beginning
         }
@@ -586,22 +770,24 @@ public class MapFile {
         final boolean before)
       throws IOException {
       readIndex();                                // make sure index is read
+      seekKey.reset();
+      key.write(seekKey);                         // compare it serialized
 
       if (seekIndex != -1                         // seeked before
-          && seekIndex+1 < count           
-          && comparator.compare(key, keys[seekIndex+1])<0 // before next indexed
+          && seekIndex+1 < keys.count
+          && keys.compareTo(seekIndex+1, seekKey, comparator)>0 // before next
           && comparator.compare(key, nextKey)
           >= 0) {                                 // but after last seeked
         // do nothing
       } else {
-        seekIndex = binarySearch(key);
+        seekIndex = keys.binarySearch(seekKey, comparator);
         if (seekIndex < 0)                        // decode insertion point
           seekIndex = -seekIndex-2;
 
         if (seekIndex == -1)                      // belongs before first entry
           seekPosition = firstPosition;           // use beginning of file
         else
-          seekPosition = positions[seekIndex];    // else use index
+          seekPosition = keys.positions[seekIndex]; // else use index
       }
       data.seek(seekPosition);
       
@@ -643,25 +829,6 @@ public class MapFile {
       return 1;
     }
 
-    private int binarySearch(WritableComparable key) {
-      int low = 0;
-      int high = count-1;
-
-      while (low <= high) {
-        int mid = (low + high) >>> 1;
-        WritableComparable midVal = keys[mid];
-        int cmp = comparator.compare(midVal, key);
-
-        if (cmp < 0)
-          low = mid + 1;
-        else if (cmp > 0)
-          high = mid - 1;
-        else
-          return mid;                             // key found
-      }
-      return -(low + 1);                          // key not found.
-    }
-
     /** Read the next key/value pair in the map into <code>key</code> and
      * <code>val</code>.  Returns true if such a pair exists and false when at
      * the end of the map */
@@ -680,6 +847,95 @@ public class MapFile {
         return null;
     }
 
+    /**
+     * The comparator for a lookup to search the index with: the comparator
+     * of the map, or, as the generic one deserializes the keys into instances
+     * of its own, an idle copy of it.
+     */
+    private WritableComparator takeLookupComparator() {
+      if (comparator.getClass() != WritableComparator.class) {
+        return comparator;
+      }
+      WritableComparator copy = lookupComparators.poll();
+      return copy != null ? copy
+        : new WritableComparator(comparator.getKeyClass(), true);
+    }
+
+    private void releaseLookupComparator(WritableComparator copy) {
+      if (copy != comparator) {
+        lookupComparators.add(copy);
+      }
+    }
+
+    /**
+     * Return the value for the named key, or null if none exists, like
+     * {@link #get(WritableComparable, Writable)}, but without moving this
+     * reader.  Any number of threads may look up keys at once: the index is
+     * searched without locking, and each lookup reads the data file with a
+     * reader of its own, taken from the idle ones, so that the data file is
+     * open as many times as there have been lookups at once.  The comparator
+     * of the map must be thread-safe, as the ones of the
+     * {@link WritableComparable}s that define a raw comparator are; lookups
+     * with the generic comparator take a copy of it each.
+     */
+    public Writable lookup(WritableComparable key, Writable val)
+      throws IOException {
+      Index index = keys;
+      if (index == null) {
+        synchronized (this) {
+          readIndex();
+          index = keys;
+        }
+      }
+      DataOutputBuffer rawKey = new DataOutputBuffer();
+      key.write(rawKey);
+      WritableComparator searchComparator = takeLookupComparator();
+      int i;
+      try {
+        i = index.binarySearch(rawKey, searchComparator);
+      } finally {
+        releaseLookupComparator(searchComparator);
+      }
+      if (i < 0)                                  // decode insertion point
+        i = -i-2;
+      long position = i == -1 ? firstPosition : index.positions[i];
+
+      SequenceFile.Reader reader = lookupReaders.poll();
+      if (reader == null) {
+        if (closed) {
+          throw new IOException("Reader of " + dataFile + " closed");
+        }
+        reader = createDataFileReader(dataFile, conf, options);
+      }
+      try {
+        reader.seek(position);
+        WritableComparable k = comparator.newKey();
+        while (reader.next(k)) {
+          int c = comparator.compare(key, k);
+          if (c <= 0) {                           // at or beyond desired
+            if (c != 0) {
+              return null;
+            }
+            reader.getCurrentValue(val);
+            return val;
+          }
+        }
+        return null;
+      } finally {
+        lookupReaders.add(reader);
+        if (closed) {
+          closeLookupReaders();
+        }
+      }
+    }
+
+    private void closeLookupReaders() throws IOException {
+      SequenceFile.Reader reader;
+      while ((reader = lookupReaders.poll()) != null) {
+        reader.close();
+      }
+    }
+
     /** 
      * Finds the record that is the closest match to the specified key.
      * Returns <code>key</code> or if it does not exist, at the first entry
@@ -725,10 +981,12 @@ public class MapFile {
 
     /** Close the map. */
     public synchronized void close() throws IOException {
+      closed = true;
       if (!indexClosed) {
         index.close();
       }
       data.close();
+      closeLookupReaders();
     }
 
   }
@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A cache of open {@link MapFile.Reader}s, one per map directory, to be
+ * shared by the threads of a process.  Readers are taken with
+ * {@link #open(Path)} and handed back with {@link #release(MapFile.Reader)};
+ * between the two, threads look keys up with
+ * {@link MapFile.Reader#lookup(WritableComparable, Writable)}, which any
+ * number of them may call at once.
+ *
+ * <p>Readers no thread holds are closed once they have been idle for the
+ * idle time of the cache, and the least recently used of them once the cache
+ * holds more readers than its capacity.  Readers being held are never closed,
+ * so the cache may go over its capacity while they are.  A daemon thread of
+ * the cache looks for idle readers every half of the idle time.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class MapFileReaderCache implements Closeable {
+  private static final Log LOG = LogFactory.getLog(MapFileReaderCache.class);
+
+  private static MapFileReaderCache instance = null;
+
+  private final Configuration conf;
+  private final int capacity;
+  private final long idleTime;
+
+  // access ordered, so the first reader is the least recently used
+  private final LinkedHashMap<Path, Entry> entries =
+    new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+  private final Map<MapFile.Reader, Entry> readers =
+    new IdentityHashMap<MapFile.Reader, Entry>();
+  private final Timer evictionTimer;
+  private boolean closed = false;
+
+  /** The reader of a map, and the threads holding it. */
+  private static class Entry {
+    MapFile.Reader reader = null;
+    int refCount = 0;
+    long lastUsed;
+  }
+
+  /**
+   * Get the cache of the process, created the first time with the capacity
+   * and idle time of <code>io.map.reader.cache.size</code> and
+   * <code>io.map.reader.cache.idle.ms</code>.
+   */
+  public static synchronized MapFileReaderCache get(Configuration conf) {
+    if (instance == null) {
+      instance = new MapFileReaderCache(conf,
+        conf.getInt(CommonConfigurationKeysPublic.IO_MAP_READER_CACHE_SIZE_KEY,
+          CommonConfigurationKeysPublic.IO_MAP_READER_CACHE_SIZE_DEFAULT),
+        conf.getLong(CommonConfigurationKeysPublic.IO_MAP_READER_CACHE_IDLE_KEY,
+          CommonConfigurationKeysPublic.IO_MAP_READER_CACHE_IDLE_DEFAULT));
+    }
+    return instance;
+  }
+
+  /**
+   * Create a cache.
+   * @param conf the configuration to open the readers with
+   * @param capacity the number of readers nobody holds to keep open
+   * @param idleTime the time, in ms, to keep readers nobody holds open
+   */
+  public MapFileReaderCache(Configuration conf, int capacity, long idleTime) {
+    this.conf = conf;
+    this.capacity = capacity;
+    this.idleTime = idleTime;
+    this.evictionTimer = new Timer("MapFileReaderCache eviction", true);
+    long period = Math.max(1, idleTime / 2);
+    evictionTimer.schedule(new TimerTask() {
+      public void run() {
+        try {
+          evictIdle();
+        } catch (IOException e) {
+          // logged as the readers were closed
+        }
+      }
+    }, period, period);
+  }
+
+  /**
+   * Get the reader of a map, opening it unless it is already open.  It must
+   * be handed back with {@link #release(MapFile.Reader)}, and not closed.
+   * @param dir the directory of the map
+   * @return the reader
+   * @throws IOException if the map cannot be opened
+   */
+  public MapFile.Reader open(Path dir) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("MapFile reader cache closed");
+      }
+      entry = entries.get(dir);
+      if (entry == null) {
+        entry = new Entry();
+        entries.put(dir, entry);
+      }
+      entry.refCount++;
+    }
+
+    // threads opening other maps do not wait for this one
+    synchronized (entry) {
+      if (entry.reader == null) {
+        try {
+          MapFile.Reader reader = new MapFile.Reader(dir, conf);
+          synchronized (this) {
+            if (!closed) {
+              readers.put(reader, entry);
+              entry.reader = reader;
+            }
+          }
+          if (entry.reader == null) {
+            reader.close();
+            throw new IOException("MapFile reader cache closed");
+          }
+        } catch (IOException e) {
+          synchronized (this) {
+            if (--entry.refCount == 0 && entries.get(dir) == entry) {
+              entries.remove(dir);
+            }
+          }
+          throw e;
+        }
+      }
+      return entry.reader;
+    }
+  }
+
+  /**
+   * Hand a reader back, once done with it.
+   * @param reader a reader got from {@link #open(Path)}
+   * @throws IOException if closing the readers to evict fails
+   */
+  public void release(MapFile.Reader reader) throws IOException {
+    List<MapFile.Reader> evicted = new ArrayList<MapFile.Reader>();
+    synchronized (this) {
+      Entry entry = readers.get(reader);
+      if (entry == null || entry.refCount == 0) {
+        throw new IllegalArgumentException("Reader not held from the cache");
+      }
+      entry.refCount--;
+      entry.lastUsed = System.currentTimeMillis();
+      evict(evicted);
+    }
+    close(evicted);
+  }
+
+  /**
+   * Close the readers nobody holds that have been idle for long enough.
+   * Readers are also evicted whenever one is released, and periodically by
+   * the cache, so this only needs calling to close idle readers at once.
+   * @throws IOException if closing the readers fails
+   */
+  public void evictIdle() throws IOException {
+    List<MapFile.Reader> evicted = new ArrayList<MapFile.Reader>();
+    synchronized (this) {
+      evict(evicted);
+    }
+    close(evicted);
+  }
+
+  /** Remove the readers to close from the cache. */
+  private void evict(List<MapFile.Reader> evicted) {
+    long idleSince = System.currentTimeMillis() - idleTime;
+    int unused = 0;
+    for (Entry entry : entries.values()) {
+      if (entry.refCount == 0) {
+        unused++;
+      }
+    }
+    Iterator<Entry> i = entries.values().iterator();
+    while (i.hasNext()) {
+      Entry entry = i.next();
+      if (entry.refCount > 0) {
+        continue;
+      }
+      if (unused > capacity || entry.lastUsed <= idleSince) {
+        i.remove();
+        readers.remove(entry.reader);
+        evicted.add(entry.reader);
+        unused--;
+      }
+    }
+  }
+
+  private void close(List<MapFile.Reader> evicted) throws IOException {
+    IOException error = null;
+    for (MapFile.Reader reader : evicted) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close a MapFile reader", e);
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /** Returns the number of open readers in the cache. */
+  public synchronized int size() {
+    return readers.size();
+  }
+
+  /**
+   * Close all of the readers, including the ones being held.
+   */
+  public void close() throws IOException {
+    List<MapFile.Reader> evicted;
+    evictionTimer.cancel();
+    synchronized (this) {
+      closed = true;
+      evicted = new ArrayList<MapFile.Reader>(readers.keySet());
+      readers.clear();
+      entries.clear();
+    }
+    close(evicted);
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * <p>
+ * A {@link RawComparator} that can also reduce a serialized key to a fixed
+ * length prefix of a normalized form of the key, whose order agrees with
+ * the comparator's.
+ * </p>
+ * <p>
+ * Sorts compute the prefix of each key once and compare the prefixes
+ * first, which is a single comparison of two longs. Only keys with equal
+ * prefixes are compared in full with
+ * {@link #compare(byte[],int,int,byte[],int,int)}.
+ * </p>
+ * @param <T>
+ * @see WritableComparator#normalizedBytesPrefix(byte[],int,int)
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public interface NormalizedKeyComparator<T> extends RawComparator<T> {
+
+  /**
+   * Compute the prefix of the normalized form of a serialized key.
+   * b[s:l] is the key. The prefixes of two keys are compared as signed
+   * longs: if the prefix of one key is less than the prefix of another,
+   * {@link #compare(byte[],int,int,byte[],int,int)} must find it less too.
+   * Equal prefixes tell nothing about the keys.
+   * 
+   * @param b The byte array.
+   * @param s The position index in b. The key's starting index.
+   * @param l The length of the key in b.
+   * @return The prefix of the normalized key.
+   */
+  public long getNormalizedKeyPrefix(byte[] b, int s, int l);
+
+}
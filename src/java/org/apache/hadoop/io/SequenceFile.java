@@ -21,7 +21,22 @@ package org.apache.hadoop.io;
 import java.io.*;
 import java.util.*;
 import java.rmi.server.UID;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.commons.logging.*;
 import org.apache.hadoop.util.Options;
 import org.apache.hadoop.fs.*;
@@ -45,7 +60,6 @@ import org.apache.hadoop.util.Progress;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.NativeCodeLoader;
 import org.apache.hadoop.util.MergeSort;
-import org.apache.hadoop.util.PriorityQueue;
 
 /** 
  * <code>SequenceFile</code>s are flat files consisting of binary key/value 
@@ -544,6 +558,9 @@ public class SequenceFile {
   private static class UncompressedBytes implements ValueBytes {
     private int dataSize;
     private byte[] data;
+    /** The window of a mapped file the bytes are in, if they are mapped */
+    private ByteBuffer source = null;
+    private ByteBuffer mapped = null;
     
     private UncompressedBytes() {
       data = null;
@@ -551,6 +568,7 @@ public class SequenceFile {
     }
     
     private void reset(DataInputStream in, int length) throws IOException {
+      mapped = null;
       if (data == null) {
         data = new byte[length];
       } else if (length > data.length) {
@@ -560,6 +578,18 @@ public class SequenceFile {
       in.readFully(data, 0, length);
       dataSize = length;
     }
+
+    /** Point at bytes of a mapped file, without copying them. */
+    private void reset(ByteBuffer window, int offset, int length) {
+      if (window != source) {
+        source = window;
+        mapped = window.duplicate();
+      } else if (mapped == null) {
+        mapped = source.duplicate();
+      }
+      mapped.limit(offset + length).position(offset);
+      dataSize = length;
+    }
     
     public int getSize() {
       return dataSize;
@@ -567,7 +597,20 @@ public class SequenceFile {
     
     public void writeUncompressedBytes(DataOutputStream outStream)
       throws IOException {
-      outStream.write(data, 0, dataSize);
+      if (mapped == null) {
+        outStream.write(data, 0, dataSize);
+        return;
+      }
+      if (data == null) {
+        data = new byte[Math.min(dataSize, 64 * 1024)];
+      }
+      int start = mapped.position();
+      while (mapped.hasRemaining()) {
+        int n = Math.min(mapped.remaining(), data.length);
+        mapped.get(data, 0, n);
+        outStream.write(data, 0, n);
+      }
+      mapped.position(start);
     }
 
     public void writeCompressedBytes(DataOutputStream outStream) 
@@ -630,6 +673,116 @@ public class SequenceFile {
 
   } // CompressedBytes
   
+  /**
+   * A batch of raw records, filled by {@link Reader#nextBatch(RecordBatch)}.
+   * The serialized keys of the batch are stored one after the other in one
+   * array, and so are the uncompressed serialized values; record <i>i</i>'s
+   * key is the bytes [<code>getKeyOffsets()[i]</code>,
+   * <code>getKeyOffsets()[i + 1]</code>) of {@link #getKeyData()}, and
+   * likewise for its value. A batch is reused from call to call, so the
+   * arrays are only valid until the next one.
+   */
+  public static class RecordBatch {
+    private final int capacity;
+    private int size = 0;
+    private final int[] keyOffsets;
+    private final int[] valueOffsets;
+    private final DataOutputBuffer keys = new DataOutputBuffer();
+    private final DataOutputBuffer values = new DataOutputBuffer();
+    /** Compressed values of record compressed files */
+    private DataOutputBuffer rawValue = null;
+    private byte[] copyBuffer = null;
+
+    /**
+     * Create a batch.
+     * @param capacity the most records a batch holds
+     */
+    public RecordBatch(int capacity) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("Bad batch capacity " + capacity);
+      }
+      this.capacity = capacity;
+      keyOffsets = new int[capacity + 1];
+      valueOffsets = new int[capacity + 1];
+    }
+
+    /** The most records the batch holds. */
+    public int getCapacity() {
+      return capacity;
+    }
+
+    /** The number of records in the batch. */
+    public int size() {
+      return size;
+    }
+
+    /** Empty the batch. */
+    public void clear() {
+      size = 0;
+      keys.reset();
+      values.reset();
+    }
+
+    /** The serialized keys of the records, one after the other. */
+    public byte[] getKeyData() {
+      return keys.getData();
+    }
+
+    /**
+     * Where the keys start in {@link #getKeyData()}. Entry {@link #size()}
+     * is where the last key ends.
+     */
+    public int[] getKeyOffsets() {
+      return keyOffsets;
+    }
+
+    /** The serialized, uncompressed values of the records. */
+    public byte[] getValueData() {
+      return values.getData();
+    }
+
+    /**
+     * Where the values start in {@link #getValueData()}. Entry
+     * {@link #size()} is where the last value ends.
+     */
+    public int[] getValueOffsets() {
+      return valueOffsets;
+    }
+
+    /** The length of the key of a record. */
+    public int getKeyLength(int record) {
+      return keyOffsets[record + 1] - keyOffsets[record];
+    }
+
+    /** The length of the value of a record. */
+    public int getValueLength(int record) {
+      return valueOffsets[record + 1] - valueOffsets[record];
+    }
+
+    /** Whether there is room for another record. */
+    private boolean isFull() {
+      return size == capacity;
+    }
+
+    /** Close the record whose key and value were just appended. */
+    private void add() {
+      size++;
+      keyOffsets[size] = keys.getLength();
+      valueOffsets[size] = values.getLength();
+    }
+
+    /** Append all of a stream to the values. */
+    private void copyValue(InputStream in) throws IOException {
+      if (copyBuffer == null) {
+        copyBuffer = new byte[8192];
+      }
+      int n;
+      while ((n = in.read(copyBuffer, 0, copyBuffer.length)) != -1) {
+        values.write(copyBuffer, 0, n);
+      }
+    }
+  } // RecordBatch
+  
   /**
    * The class encapsulating with the metadata of a file.
    * The metadata of a file is a list of attribute name/value
@@ -743,6 +896,174 @@ public class SequenceFile {
     }
   }
   
+  /**
+   * The positions of the sync marks in a file, each with the number of
+   * records that precede it. A {@link Writer} created with
+   * {@link Writer#syncIndex(boolean)} saves it in a hidden file next to the
+   * data, so that block boundaries can be listed and records found by their
+   * ordinal without scanning the file.
+   *
+   * <p>Block-compressed files have every block indexed. Other files have a
+   * sync mark every {@link #SYNC_INTERVAL} bytes, so only one every
+   * {@link #INTERVAL} bytes or so is kept.</p>
+   *
+   * <p>Indexed files are marked with {@link #METADATA_KEY} in their header,
+   * so readers of other files never look for an index.</p>
+   */
+  public static class SyncIndex {
+    private static final byte[] MAGIC = new byte[] {
+      (byte)'S', (byte)'I', (byte)'X', (byte)1
+    };
+
+    /** The metadata entry of the files saved with an index */
+    public static final Text METADATA_KEY =
+      new Text("hadoop.seqfile.sync.index");
+
+    /** The least number of bytes between sync marks in a partial index */
+    public static final int INTERVAL = 64 * 1024;
+
+    private final byte[] sync;
+    private final boolean complete;
+    private long length;
+    private long records;
+    private int size = 0;
+    private long[] positions = new long[16];
+    private long[] ordinals = new long[16];
+
+    SyncIndex(byte[] sync, boolean complete) {
+      this.sync = sync;
+      this.complete = complete;
+    }
+
+    /** Get the path of the index of a file. */
+    public static Path getIndexPath(Path file) {
+      // hidden, so the index isn't picked up as input with the file
+      return new Path(file.getParent(), "." + file.getName() + ".syncidx");
+    }
+
+    /** Record a sync mark written before the given number of records. */
+    void add(long position, long ordinal) {
+      if (!complete && size > 0 && position - positions[size-1] < INTERVAL) {
+        return;
+      }
+      if (size == positions.length) {
+        positions = Arrays.copyOf(positions, size * 2);
+        ordinals = Arrays.copyOf(ordinals, size * 2);
+      }
+      positions[size] = position;
+      ordinals[size] = ordinal;
+      size++;
+    }
+
+    void write(DataOutput out, long length, long records) throws IOException {
+      out.write(MAGIC);
+      out.write(sync);
+      out.writeBoolean(complete);
+      WritableUtils.writeVLong(out, length);
+      WritableUtils.writeVLong(out, records);
+      WritableUtils.writeVInt(out, size);
+      long lastPosition = 0;
+      long lastOrdinal = 0;
+      for (int i = 0; i < size; i++) {
+        WritableUtils.writeVLong(out, positions[i] - lastPosition);
+        WritableUtils.writeVLong(out, ordinals[i] - lastOrdinal);
+        lastPosition = positions[i];
+        lastOrdinal = ordinals[i];
+      }
+    }
+
+    /**
+     * Read the index of a file.
+     * @return the index, or null if there is none or it belongs to an
+     *         earlier version of the file
+     */
+    static SyncIndex read(FileSystem fs, Path file,
+                          byte[] sync) throws IOException {
+      Path indexPath = getIndexPath(file);
+      FSDataInputStream in;
+      try {
+        in = fs.open(indexPath);
+      } catch (FileNotFoundException fnfe) {
+        return null;
+      }
+      try {
+        byte[] magic = new byte[MAGIC.length];
+        byte[] indexSync = new byte[SYNC_HASH_SIZE];
+        in.readFully(magic);
+        in.readFully(indexSync);
+        if (!Arrays.equals(MAGIC, magic) || !Arrays.equals(sync, indexSync)) {
+          LOG.warn("Ignoring " + indexPath + ", it is not the index of " + file);
+          return null;
+        }
+        SyncIndex index = new SyncIndex(sync, in.readBoolean());
+        index.length = WritableUtils.readVLong(in);
+        index.records = WritableUtils.readVLong(in);
+        if (index.length != fs.getFileStatus(file).getLen()) {
+          LOG.warn("Ignoring " + indexPath + ", it is not the index of " + file);
+          return null;
+        }
+        index.size = WritableUtils.readVInt(in);
+        index.positions = new long[index.size];
+        index.ordinals = new long[index.size];
+        long position = 0;
+        long ordinal = 0;
+        for (int i = 0; i < index.size; i++) {
+          position += WritableUtils.readVLong(in);
+          ordinal += WritableUtils.readVLong(in);
+          index.positions[i] = position;
+          index.ordinals[i] = ordinal;
+        }
+        return index;
+      } finally {
+        in.close();
+      }
+    }
+
+    /** Returns true if every sync mark of the file is in the index. */
+    public boolean isComplete() { return complete; }
+
+    /** Returns the number of sync marks in the index. */
+    public int size() { return size; }
+
+    /** Returns the position of the i'th sync mark in the index. */
+    public long getPosition(int i) { return positions[i]; }
+
+    /** Returns the ordinal of the first record after the i'th sync mark. */
+    public long getRecord(int i) { return ordinals[i]; }
+
+    /** Returns the number of records in the file. */
+    public long getRecordCount() { return records; }
+
+    /** Returns the length of the file. */
+    public long getFileLength() { return length; }
+
+    /**
+     * Find the first sync mark in the index at or after a position.
+     * @return its index, or size() if there is none
+     */
+    public int findPosition(long position) {
+      int i = Arrays.binarySearch(positions, 0, size, position);
+      return i >= 0 ? i : -(i + 1);
+    }
+
+    /**
+     * Find the last sync mark in the index before a record.
+     * @param record the ordinal of the record
+     * @return its index, or -1 if the record is before the first one
+     */
+    public int findRecord(long record) {
+      int i = Arrays.binarySearch(ordinals, 0, size, record);
+      if (i < 0) {
+        return -(i + 1) - 1;
+      }
+      // several marks may precede the same record, take the last
+      while (i + 1 < size && ordinals[i + 1] == record) {
+        i++;
+      }
+      return i;
+    }
+  }
+
   /** Write key/value pairs to a sequence-format file. */
   public static class Writer implements java.io.Closeable {
     private Configuration conf;
@@ -769,6 +1090,13 @@ public class SequenceFile {
     // starts and ends by scanning for this value.
     long lastSyncPos;                     // position of last sync
     byte[] sync;                          // 16 random bytes
+
+    long records = 0;                     // records before out.getPos()
+    SyncIndex syncIndex = null;           // the sync marks written so far
+    private FileSystem syncIndexFs = null;
+    private Path syncIndexFile = null;
+    /** Serializes records on the appending threads, if enabled */
+    private ConcurrentAppender appender = null;
     {
       try {                                       
         MessageDigest digester = MessageDigest.getInstance("MD5");
@@ -861,6 +1189,27 @@ public class SequenceFile {
       }
     }
 
+    static class SyncIndexOption extends Options.BooleanOption
+                                 implements Option {
+      SyncIndexOption(boolean value) {
+        super(value);
+      }
+    }
+
+    static class PipelineBlocksOption extends Options.IntegerOption
+                                      implements Option {
+      PipelineBlocksOption(int value) {
+        super(value);
+      }
+    }
+
+    static class ConcurrentAppendOption extends Options.BooleanOption
+                                        implements Option {
+      ConcurrentAppendOption(boolean value) {
+        super(value);
+      }
+    }
+
     private static class CompressionOption implements Option {
       private final CompressionType value;
       private final CompressionCodec codec;
@@ -934,6 +1283,43 @@ public class SequenceFile {
         CompressionCodec codec) {
       return new CompressionOption(value, codec);
     }
+
+    /**
+     * Create an option with the number of blocks of a block-compressed file
+     * that may be compressed in the background while more records are
+     * appended. Overrides io.seqfile.compress.pipeline.blocks.
+     * @param value the number of blocks, 0 to compress on the writing thread
+     * @return a new option
+     */
+    public static Option pipelineBlocks(int value) {
+      return new PipelineBlocksOption(value);
+    }
+
+    /**
+     * Create an option to save the positions of the sync marks next to the
+     * file, see {@link SyncIndex}. Only applies when writing to a file.
+     * Overrides io.seqfile.sync.index.
+     * @param value whether to save the index
+     * @return a new option
+     */
+    public static Option syncIndex(boolean value) {
+      return new SyncIndexOption(value);
+    }
+
+    /**
+     * Create an option to let several threads append at once. Each thread
+     * then serializes, and for record compressed files compresses, its
+     * records into a buffer of its own, and a commit thread writes the
+     * buffers to the file in the order they fill up. The records of one
+     * thread stay in the order they were appended in. Overrides
+     * io.seqfile.concurrent.append.
+     * @param value whether to append concurrently
+     * @return a new option
+     * @see Writer#commitAppends()
+     */
+    public static Option concurrentAppend(boolean value) {
+      return new ConcurrentAppendOption(value);
+    }
     
     /**
      * Construct a uncompressed writer from a set of options.
@@ -962,6 +1348,10 @@ public class SequenceFile {
         Options.getOption(MetadataOption.class, opts);
       CompressionOption compressionTypeOption =
         Options.getOption(CompressionOption.class, opts);
+      SyncIndexOption syncIndexOption =
+        Options.getOption(SyncIndexOption.class, opts);
+      ConcurrentAppendOption concurrentOption =
+        Options.getOption(ConcurrentAppendOption.class, opts);
       // check consistency of options
       if ((fileOption == null) == (streamOption == null)) {
         throw new IllegalArgumentException("file or stream must be specified");
@@ -994,6 +1384,13 @@ public class SequenceFile {
         Progressable progress = progressOption == null ? null :
           progressOption.getValue();
         out = fs.create(p, true, bufferSize, replication, blockSize, progress);
+        boolean indexed = syncIndexOption != null ? syncIndexOption.getValue() :
+          conf.getBoolean(CommonConfigurationKeysPublic.IO_SEQFILE_SYNC_INDEX_KEY,
+              CommonConfigurationKeysPublic.IO_SEQFILE_SYNC_INDEX_DEFAULT);
+        if (indexed) {
+          syncIndexFs = fs;
+          syncIndexFile = p;
+        }
       } else {
         out = streamOption.getValue();
       }
@@ -1003,6 +1400,11 @@ public class SequenceFile {
           Object.class : valueClassOption.getValue();
       Metadata metadata = metadataOption == null ?
           new Metadata() : metadataOption.getValue();
+      if (syncIndexFile != null) {
+        // a copy, the caller's metadata may be shared with other files
+        metadata = new Metadata(metadata.getMetadata());
+        metadata.set(SyncIndex.METADATA_KEY, new Text("true"));
+      }
       this.compress = compressionTypeOption.getValue();
       final CompressionCodec codec = compressionTypeOption.getCodec();
       if (codec != null &&
@@ -1014,6 +1416,16 @@ public class SequenceFile {
                                            "code!");
       }
       init(conf, out, ownStream, keyClass, valueClass, codec, metadata);
+      if (syncIndexFile != null) {
+        syncIndex = new SyncIndex(sync, compress == CompressionType.BLOCK);
+      }
+      boolean concurrent = concurrentOption != null ?
+        concurrentOption.getValue() :
+        conf.getBoolean(CommonConfigurationKeysPublic.IO_SEQFILE_CONCURRENT_APPEND_KEY,
+            CommonConfigurationKeysPublic.IO_SEQFILE_CONCURRENT_APPEND_DEFAULT);
+      if (concurrent) {
+        appender = new ConcurrentAppender(this);
+      }
     }
 
     /** Create the named file.
@@ -1122,6 +1534,9 @@ public class SequenceFile {
     /** create a sync point */
     public void sync() throws IOException {
       if (sync != null && lastSyncPos != out.getPos()) {
+        if (syncIndex != null) {
+          syncIndex.add(out.getPos(), records);
+        }
         out.writeInt(SYNC_ESCAPE);                // mark the start of the sync
         out.write(sync);                          // write sync
         lastSyncPos = out.getPos();               // update lastSyncPos
@@ -1132,7 +1547,30 @@ public class SequenceFile {
     Configuration getConf() { return conf; }
     
     /** Close the file. */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
+      try {
+        if (appender != null) {
+          appender.close();
+        }
+      } finally {
+        closeFile();
+      }
+    }
+
+    /**
+     * Write out the records appended so far by all threads, when appending
+     * concurrently, and wait for them to be written. Does nothing
+     * otherwise.
+     * @throws IOException
+     */
+    public void commitAppends() throws IOException {
+      if (appender != null) {
+        appender.commit();
+      }
+    }
+
+    /** Write out the buffered records and close the file. */
+    synchronized void closeFile() throws IOException {
       keySerializer.close();
       uncompressedValSerializer.close();
       if (compressedValSerializer != null) {
@@ -1143,6 +1581,7 @@ public class SequenceFile {
       compressor = null;
       
       if (out != null) {
+        long length = out.getPos();
         
         // Close the underlying stream iff we own it...
         if (ownOutputStream) {
@@ -1151,6 +1590,16 @@ public class SequenceFile {
           out.flush();
         }
         out = null;
+
+        if (syncIndex != null) {
+          FSDataOutputStream indexOut =
+            syncIndexFs.create(SyncIndex.getIndexPath(syncIndexFile), true);
+          try {
+            syncIndex.write(indexOut, length, records);
+          } finally {
+            indexOut.close();
+          }
+        }
       }
     }
 
@@ -1168,8 +1617,18 @@ public class SequenceFile {
     }
 
     /** Append a key/value pair. */
+    public void append(Object key, Object val)
+      throws IOException {
+      if (appender != null) {
+        appender.append(key, val);
+      } else {
+        appendRecord(key, val);
+      }
+    }
+
+    /** Serialize a key/value pair and write it out. */
     @SuppressWarnings("unchecked")
-    public synchronized void append(Object key, Object val)
+    synchronized void appendRecord(Object key, Object val)
       throws IOException {
       if (key.getClass() != keyClass)
         throw new IOException("wrong key class: "+key.getClass().getName()
@@ -1201,6 +1660,7 @@ public class SequenceFile {
       out.writeInt(buffer.getLength());                   // total record length
       out.writeInt(keyLength);                            // key portion length
       out.write(buffer.getData(), 0, buffer.getLength()); // data
+      records++;
     }
 
     public synchronized void appendRaw(byte[] keyData, int keyOffset,
@@ -1216,6 +1676,7 @@ public class SequenceFile {
       out.writeInt(keyLength);                    // key portion length
       out.write(keyData, keyOffset, keyLength);   // key
       val.writeUncompressedBytes(out);            // value
+      records++;
     }
 
     /** Returns the current length of the output file.
@@ -1225,12 +1686,298 @@ public class SequenceFile {
      * returned by this method, {@link SequenceFile.Reader#next(Writable)} may be called.  However
      * the key may be earlier in the file than key last written when this
      * method was called (e.g., with block-compression, it may be the first key
-     * in the block that was being written when this method was called).
+     * in the block that was being written when this method was called, or
+     * of an earlier block that is still being compressed in the background).
      */
     public synchronized long getLength() throws IOException {
       return out.getPos();
     }
 
+    /** Raw value bytes staged by a {@link ConcurrentAppender}. */
+    private static class StagedValue implements ValueBytes {
+      private byte[] data;
+      private int offset;
+      private int length;
+
+      void reset(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+      }
+
+      /** The bytes, which are compressed for record compressed files. */
+      public void writeUncompressedBytes(DataOutputStream outStream)
+        throws IOException {
+        outStream.write(data, offset, length);
+      }
+
+      public void writeCompressedBytes(DataOutputStream outStream)
+        throws IOException {
+        outStream.write(data, offset, length);
+      }
+
+      public int getSize() {
+        return length;
+      }
+    }
+
+    /** Records serialized by one thread, waiting to be written out. */
+    private static class StagedRecords {
+      private byte[] data = new byte[0];
+      private int dataLength = 0;
+      private int[] keyLengths = new int[0];
+      private int[] valueLengths = new int[0];
+      private int count = 0;
+      /** Set on the marker a committing thread waits for */
+      private final CountDownLatch committed;
+
+      StagedRecords(CountDownLatch committed) {
+        this.committed = committed;
+      }
+    }
+
+    /**
+     * Lets several threads append to a writer at once. Each thread
+     * serializes its records into a stage of its own, and hands the stage
+     * to the commit thread when it fills up, which writes the records with
+     * {@link Writer#appendRaw(byte[], int, int, ValueBytes)}.
+     */
+    private static class ConcurrentAppender {
+      /** How many bytes a thread stages before handing them over */
+      private static final int STAGE_SIZE = 64 * 1024;
+
+      private final Writer writer;
+      private final BlockingQueue<StagedRecords> committing;
+      /** Record arrays written out, to be reused */
+      private final ConcurrentLinkedQueue<StagedRecords> free =
+        new ConcurrentLinkedQueue<StagedRecords>();
+      private final List<Stage> stages = new ArrayList<Stage>();
+      private final ThreadLocal<Stage> threadStage = new ThreadLocal<Stage>();
+      private final Thread committer;
+      private volatile IOException failure = null;
+      private volatile boolean closed = false;
+
+      /** The records one thread has serialized since it last handed over. */
+      private class Stage {
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private final Serializer keySerializer;
+        private final Serializer valSerializer;
+        private Compressor compressor = null;
+        private CompressionOutputStream deflateFilter = null;
+        private DataOutputStream deflateOut = null;
+        private int[] keyLengths = new int[64];
+        private int[] valueLengths = new int[64];
+        private int count = 0;
+
+        @SuppressWarnings("unchecked")
+        Stage() throws IOException {
+          SerializationFactory serializationFactory =
+            new SerializationFactory(writer.conf);
+          keySerializer = serializationFactory.getSerializer(writer.keyClass);
+          keySerializer.open(buffer);
+          valSerializer = serializationFactory.getSerializer(writer.valClass);
+          if (writer.compress == CompressionType.RECORD) {
+            compressor = CodecPool.getCompressor(writer.codec);
+            deflateFilter = writer.codec.createOutputStream(buffer, compressor);
+            deflateOut =
+              new DataOutputStream(new BufferedOutputStream(deflateFilter));
+            valSerializer.open(deflateOut);
+          } else {
+            valSerializer.open(buffer);
+          }
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized void append(Object key, Object val) throws IOException {
+          if (key.getClass() != writer.keyClass)
+            throw new IOException("wrong key class: "+key.getClass().getName()
+                                  +" is not "+writer.keyClass);
+          if (val.getClass() != writer.valClass)
+            throw new IOException("wrong value class: "+val.getClass().getName()
+                                  +" is not "+writer.valClass);
+          int start = buffer.getLength();
+          keySerializer.serialize(key);
+          int keyStart = buffer.getLength();
+          if (deflateFilter != null) {
+            deflateFilter.resetState();
+            valSerializer.serialize(val);
+            deflateOut.flush();
+            deflateFilter.finish();
+          } else {
+            valSerializer.serialize(val);
+          }
+          if (count == keyLengths.length) {
+            keyLengths = Arrays.copyOf(keyLengths, count * 2);
+            valueLengths = Arrays.copyOf(valueLengths, count * 2);
+          }
+          keyLengths[count] = keyStart - start;
+          valueLengths[count] = buffer.getLength() - keyStart;
+          count++;
+          if (buffer.getLength() >= STAGE_SIZE) {
+            handOver();
+          }
+        }
+
+        /** Queue the staged records to be written out. */
+        synchronized void handOver() throws IOException {
+          if (count == 0) {
+            return;
+          }
+          StagedRecords records = free.poll();
+          if (records == null) {
+            records = new StagedRecords(null);
+          }
+          if (records.data.length < buffer.getLength()) {
+            records.data = new byte[buffer.getLength()];
+          }
+          System.arraycopy(buffer.getData(), 0, records.data, 0,
+                           buffer.getLength());
+          records.dataLength = buffer.getLength();
+          if (records.keyLengths.length < count) {
+            records.keyLengths = new int[keyLengths.length];
+            records.valueLengths = new int[keyLengths.length];
+          }
+          System.arraycopy(keyLengths, 0, records.keyLengths, 0, count);
+          System.arraycopy(valueLengths, 0, records.valueLengths, 0, count);
+          records.count = count;
+          buffer.reset();
+          count = 0;
+          enqueue(records);
+        }
+
+        synchronized void close() {
+          CodecPool.returnCompressor(compressor);
+          compressor = null;
+        }
+      }
+
+      ConcurrentAppender(Writer writer) {
+        this.writer = writer;
+        committing = new ArrayBlockingQueue<StagedRecords>(
+          Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        committer = new Thread(new Runnable() {
+            public void run() {
+              commitLoop();
+            }
+          }, "SequenceFile append commit");
+        committer.setDaemon(true);
+        committer.start();
+      }
+
+      void append(Object key, Object val) throws IOException {
+        checkFailure();
+        Stage stage = threadStage.get();
+        if (stage == null) {
+          stage = new Stage();
+          synchronized (stages) {
+            if (closed) {
+              stage.close();
+              throw new IOException("Writer closed");
+            }
+            stages.add(stage);
+          }
+          threadStage.set(stage);
+        }
+        stage.append(key, val);
+      }
+
+      /** Hand over all stages and wait for them to be written out. */
+      void commit() throws IOException {
+        checkFailure();
+        List<Stage> toCommit;
+        synchronized (stages) {
+          toCommit = new ArrayList<Stage>(stages);
+        }
+        for (Stage stage : toCommit) {
+          stage.handOver();
+        }
+        StagedRecords marker = new StagedRecords(new CountDownLatch(1));
+        enqueue(marker);
+        try {
+          marker.committed.await();
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted committing records")
+              .initCause(ie);
+        }
+        checkFailure();
+      }
+
+      void close() throws IOException {
+        try {
+          if (!closed) {
+            commit();
+          }
+        } finally {
+          List<Stage> toClose;
+          synchronized (stages) {
+            closed = true;
+            toClose = new ArrayList<Stage>(stages);
+            stages.clear();
+          }
+          for (Stage stage : toClose) {
+            stage.close();
+          }
+          committer.interrupt();
+        }
+      }
+
+      private void enqueue(StagedRecords records) throws IOException {
+        try {
+          committing.put(records);
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted appending records")
+              .initCause(ie);
+        }
+      }
+
+      private void checkFailure() throws IOException {
+        if (failure != null) {
+          throw new IOException("Failed to write appended records", failure);
+        }
+        if (closed) {
+          throw new IOException("Writer closed");
+        }
+      }
+
+      /** Write out the handed over records, in the order they came in. */
+      private void commitLoop() {
+        StagedValue value = new StagedValue();
+        while (true) {
+          StagedRecords records;
+          try {
+            records = committing.take();
+          } catch (InterruptedException ie) {
+            return;
+          }
+          if (records.committed != null) {
+            records.committed.countDown();
+            continue;
+          }
+          if (failure == null) {
+            try {
+              synchronized (writer) {
+                int offset = 0;
+                for (int i = 0; i < records.count; i++) {
+                  int keyLength = records.keyLengths[i];
+                  value.reset(records.data, offset + keyLength,
+                              records.valueLengths[i]);
+                  writer.appendRaw(records.data, offset, keyLength, value);
+                  offset += keyLength + records.valueLengths[i];
+                }
+              }
+            } catch (IOException ioe) {
+              failure = ioe;
+            } catch (RuntimeException re) {
+              failure = new IOException(re);
+            }
+          }
+          free.offer(records);
+        }
+      }
+    }
+
   } // class Writer
 
   /** Write key/compressed-value pairs to a sequence-format file. */
@@ -1243,7 +1990,7 @@ public class SequenceFile {
 
     /** Append a key/value pair. */
     @SuppressWarnings("unchecked")
-    public synchronized void append(Object key, Object val)
+    synchronized void appendRecord(Object key, Object val)
       throws IOException {
       if (key.getClass() != keyClass)
         throw new IOException("wrong key class: "+key.getClass().getName()
@@ -1271,6 +2018,7 @@ public class SequenceFile {
       out.writeInt(buffer.getLength());                   // total record length
       out.writeInt(keyLength);                            // key portion length
       out.write(buffer.getData(), 0, buffer.getLength()); // data
+      records++;
     }
 
     /** Append a key/value pair. */
@@ -1287,6 +2035,7 @@ public class SequenceFile {
       out.writeInt(keyLength);                    // key portion length
       out.write(keyData, keyOffset, keyLength);   // 'key' data
       val.writeCompressedBytes(out);              // 'value' data
+      records++;
     }
     
   } // RecordCompressionWriter
@@ -1303,18 +2052,135 @@ public class SequenceFile {
     private DataOutputBuffer valBuffer = new DataOutputBuffer();
 
     private final int compressionBlockSize;
+
+    /** How many blocks may be compressed in the background, 0 for none */
+    private final int pipelineBlocks;
+    /** Blocks handed to the compression threads, in file order */
+    private LinkedList<PipelinedBlock> pipeline = null;
+    private ExecutorService compressionPool = null;
     
     BlockCompressWriter(Configuration conf,
                         Option... options) throws IOException {
       super(conf, options);
       compressionBlockSize = 
         conf.getInt("io.seqfile.compress.blocksize", 1000000);
+      PipelineBlocksOption pipelineOption =
+        Options.getOption(PipelineBlocksOption.class, options);
+      pipelineBlocks = pipelineOption != null ? pipelineOption.getValue() :
+        conf.getInt(
+          CommonConfigurationKeysPublic.IO_SEQFILE_COMPRESS_PIPELINE_BLOCKS_KEY,
+          CommonConfigurationKeysPublic.IO_SEQFILE_COMPRESS_PIPELINE_BLOCKS_DEFAULT);
+      if (pipelineBlocks > 0) {
+        pipeline = new LinkedList<PipelinedBlock>();
+        int threads = Math.min(pipelineBlocks,
+                               Runtime.getRuntime().availableProcessors());
+        compressionPool = Executors.newFixedThreadPool(threads,
+          new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "SequenceFile block compression");
+              t.setDaemon(true);
+              return t;
+            }
+          });
+      }
       keySerializer.close();
       keySerializer.open(keyBuffer);
       uncompressedValSerializer.close();
       uncompressedValSerializer.open(valBuffer);
     }
 
+    /** A block handed to the compression threads. */
+    private static class PipelinedBlock {
+      private final int records;
+      /** The key lengths, keys, value lengths and values, compressed */
+      private final Future<byte[][]> compressed;
+
+      PipelinedBlock(int records, Future<byte[][]> compressed) {
+        this.records = records;
+        this.compressed = compressed;
+      }
+
+      byte[][] getCompressed() throws IOException {
+        try {
+          return compressed.get();
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted compressing block")
+              .initCause(ie);
+        } catch (ExecutionException ee) {
+          if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+          }
+          throw new IOException("Failed to compress block", ee.getCause());
+        }
+      }
+    }
+
+    /** Compress the buffers of a block on a compression thread. */
+    private byte[][] compressBlock(byte[][] uncompressed) throws IOException {
+      Compressor blockCompressor = CodecPool.getCompressor(codec);
+      try {
+        DataOutputBuffer compressedOut = new DataOutputBuffer();
+        CompressionOutputStream filter =
+          codec.createOutputStream(compressedOut, blockCompressor);
+        byte[][] result = new byte[uncompressed.length][];
+        for (int i = 0; i < uncompressed.length; i++) {
+          filter.resetState();
+          compressedOut.reset();
+          filter.write(uncompressed[i], 0, uncompressed[i].length);
+          filter.flush();
+          filter.finish();
+          result[i] = Arrays.copyOf(compressedOut.getData(),
+                                    compressedOut.getLength());
+        }
+        return result;
+      } finally {
+        CodecPool.returnCompressor(blockCompressor);
+      }
+    }
+
+    /**
+     * Write out the blocks at the head of the pipeline, waiting for them to
+     * be compressed until no more than maxPending are left.
+     */
+    private void writePipelinedBlocks(int maxPending) throws IOException {
+      while (!pipeline.isEmpty() &&
+             (pipeline.size() > maxPending ||
+              pipeline.getFirst().compressed.isDone())) {
+        PipelinedBlock block = pipeline.getFirst();
+        byte[][] compressed = block.getCompressed();
+        pipeline.removeFirst();
+
+        super.sync();
+        WritableUtils.writeVInt(out, block.records);
+        for (byte[] buf : compressed) {
+          WritableUtils.writeVInt(out, buf.length);
+          out.write(buf, 0, buf.length);
+        }
+        out.flush();
+        records += block.records;
+      }
+    }
+
+    /** Hand the buffered records to the compression threads */
+    private void pipelineBlock() throws IOException {
+      // bound the memory held by blocks waiting to be written
+      writePipelinedBlocks(pipelineBlocks - 1);
+      final byte[][] uncompressed = new byte[][] {
+        Arrays.copyOf(keyLenBuffer.getData(), keyLenBuffer.getLength()),
+        Arrays.copyOf(keyBuffer.getData(), keyBuffer.getLength()),
+        Arrays.copyOf(valLenBuffer.getData(), valLenBuffer.getLength()),
+        Arrays.copyOf(valBuffer.getData(), valBuffer.getLength())
+      };
+      pipeline.add(new PipelinedBlock(noBufferedRecords,
+        compressionPool.submit(new Callable<byte[][]>() {
+          public byte[][] call() throws IOException {
+            return compressBlock(uncompressed);
+          }
+        })));
+      writePipelinedBlocks(pipelineBlocks);
+    }
+
     /** Workhorse to check and write out compressed data/lengths */
     private synchronized 
       void writeBuffer(DataOutputBuffer uncompressedDataBuffer) 
@@ -1330,8 +2196,31 @@ public class SequenceFile {
       out.write(buffer.getData(), 0, buffer.getLength());
     }
     
+    /**
+     * End the current block once it is full. When pipelining, the block is
+     * handed to the compression threads and written out later.
+     */
+    private void endBlock() throws IOException {
+      if (pipeline == null) {
+        sync();
+      } else if (noBufferedRecords > 0) {
+        pipelineBlock();
+        keyLenBuffer.reset();
+        keyBuffer.reset();
+        valLenBuffer.reset();
+        valBuffer.reset();
+        noBufferedRecords = 0;
+      }
+    }
+
     /** Compress and flush contents to dfs */
     public synchronized void sync() throws IOException {
+      if (pipeline != null) {
+        // wait for the blocks being compressed, the current one included
+        endBlock();
+        writePipelinedBlocks(0);
+        return;
+      }
       if (noBufferedRecords > 0) {
         super.sync();
         
@@ -1348,6 +2237,7 @@ public class SequenceFile {
         
         // Flush the file-stream
         out.flush();
+        records += noBufferedRecords;
         
         // Reset internal states
         keyLenBuffer.reset();
@@ -1359,17 +2249,23 @@ public class SequenceFile {
       
     }
     
-    /** Close the file. */
-    public synchronized void close() throws IOException {
-      if (out != null) {
-        sync();
+    /** Write out the buffered records and close the file. */
+    synchronized void closeFile() throws IOException {
+      try {
+        if (out != null) {
+          sync();
+        }
+      } finally {
+        if (compressionPool != null) {
+          compressionPool.shutdownNow();
+        }
       }
-      super.close();
+      super.closeFile();
     }
 
     /** Append a key/value pair. */
     @SuppressWarnings("unchecked")
-    public synchronized void append(Object key, Object val)
+    synchronized void appendRecord(Object key, Object val)
       throws IOException {
       if (key.getClass() != keyClass)
         throw new IOException("wrong key class: "+key+" is not "+keyClass);
@@ -1395,7 +2291,7 @@ public class SequenceFile {
       // Compress and flush?
       int currentBlockSize = keyBuffer.getLength() + valBuffer.getLength();
       if (currentBlockSize >= compressionBlockSize) {
-        sync();
+        endBlock();
       }
     }
     
@@ -1420,7 +2316,7 @@ public class SequenceFile {
       // Compress and flush?
       int currentBlockSize = keyBuffer.getLength() + valBuffer.getLength(); 
       if (currentBlockSize >= compressionBlockSize) {
-        sync();
+        endBlock();
       }
     }
   
@@ -1467,6 +2363,20 @@ public class SequenceFile {
     
     private int noBufferedKeys = 0;
     private int noBufferedValues = 0;
+    /** Where each value of the block starts in the value buffer */
+    private int[] valueOffsets = new int[0];
+    private boolean valueOffsetsRead = false;
+
+    /** Whether to leave values unread until they are asked for */
+    private boolean keysOnly;
+    /** Where the value of the current record starts if it was skipped */
+    private long skippedValue = -1;
+    private int skippedValueLength;
+
+    /** Whether to map uncompressed local files into memory */
+    private boolean mmap;
+    /** The mapped file, if it is, which is then also read by {@link #in} */
+    private MappedFileInputStream mappedIn = null;
     
     private DataInputBuffer keyLenBuffer = null;
     private CompressionInputStream keyLenInFilter = null;
@@ -1489,6 +2399,18 @@ public class SequenceFile {
     private Deserializer keyDeserializer;
     private Deserializer valDeserializer;
 
+    /** How many blocks to decompress ahead of the caller, 0 to disable */
+    private int readAheadBlocks;
+    /** Blocks read from the file but not yet handed out, in file order */
+    private LinkedList<ReadAheadBlock> readAheadQueue = null;
+    private ExecutorService readAheadPool = null;
+
+    /** The file and its file system, if the reader opened it */
+    private FileSystem fs = null;
+    private Path file = null;
+    private SyncIndex syncIndex = null;
+    private boolean syncIndexRead = false;
+
     /**
      * A tag interface for all of the Reader options
      */
@@ -1539,6 +2461,41 @@ public class SequenceFile {
       return new BufferSizeOption(value);
     }
 
+    /**
+     * Create an option with the number of blocks of a block-compressed file
+     * to decompress in the background ahead of the records being read.
+     * Overrides io.seqfile.read.ahead.blocks.
+     * @param value the number of blocks, 0 to decompress on demand
+     * @return a new option
+     */
+    public static Option readAhead(int value) {
+      return new ReadAheadOption(value);
+    }
+
+    /**
+     * Create an option for scans that read the values of few records. Values
+     * are then only read or decompressed when they are asked for: the read
+     * ahead threads decompress just the keys of each block, and the values
+     * of uncompressed and record compressed files are skipped over.
+     * @param value whether to read the values only on demand
+     * @return a new option
+     */
+    public static Option keysOnly(boolean value) {
+      return new KeysOnlyOption(value);
+    }
+
+    /**
+     * Create an option to map an uncompressed file of the local file system
+     * into memory. The raw values returned by {@link #nextRaw} and
+     * {@link #nextRawValue} are then slices of the mapping rather than
+     * copies. Overrides io.seqfile.local.mmap.
+     * @param value whether to map the file
+     * @return a new option
+     */
+    public static Option mmap(boolean value) {
+      return new MmapOption(value);
+    }
+
     private static class FileOption extends Options.PathOption 
                                     implements Option {
       private FileOption(Path value) {
@@ -1575,6 +2532,27 @@ public class SequenceFile {
       }
     }
 
+    private static class ReadAheadOption extends Options.IntegerOption
+                                         implements Option {
+      private ReadAheadOption(int value) {
+        super(value);
+      }
+    }
+
+    private static class KeysOnlyOption extends Options.BooleanOption
+                                        implements Option {
+      private KeysOnlyOption(boolean value) {
+        super(value);
+      }
+    }
+
+    private static class MmapOption extends Options.BooleanOption
+                                    implements Option {
+      private MmapOption(boolean value) {
+        super(value);
+      }
+    }
+
     // only used directly
     private static class OnlyHeaderOption extends Options.BooleanOption 
                                           implements Option {
@@ -1593,6 +2571,11 @@ public class SequenceFile {
       BufferSizeOption bufOpt = Options.getOption(BufferSizeOption.class,opts);
       OnlyHeaderOption headerOnly = 
         Options.getOption(OnlyHeaderOption.class, opts);
+      ReadAheadOption readAheadOpt =
+        Options.getOption(ReadAheadOption.class, opts);
+      KeysOnlyOption keysOnlyOpt =
+        Options.getOption(KeysOnlyOption.class, opts);
+      MmapOption mmapOpt = Options.getOption(MmapOption.class, opts);
       // check for consistency
       if ((fileOpt == null) == (streamOpt == null)) {
         throw new 
@@ -1609,6 +2592,8 @@ public class SequenceFile {
       if (fileOpt != null) {
         filename = fileOpt.getValue();
         FileSystem fs = filename.getFileSystem(conf);
+        this.fs = fs;
+        this.file = filename;
         int bufSize = bufOpt == null ? getBufferSize(conf): bufOpt.getValue();
         len = null == lenOpt
           ? fs.getFileStatus(filename).getLen()
@@ -1619,6 +2604,13 @@ public class SequenceFile {
         file = streamOpt.getValue();
       }
       long start = startOpt == null ? 0 : startOpt.getValue();
+      readAheadBlocks = readAheadOpt != null ? readAheadOpt.getValue() :
+        conf.getInt(CommonConfigurationKeysPublic.IO_SEQFILE_READ_AHEAD_BLOCKS_KEY,
+            CommonConfigurationKeysPublic.IO_SEQFILE_READ_AHEAD_BLOCKS_DEFAULT);
+      keysOnly = keysOnlyOpt != null && keysOnlyOpt.getValue();
+      mmap = mmapOpt != null ? mmapOpt.getValue() :
+        conf.getBoolean(CommonConfigurationKeysPublic.IO_SEQFILE_LOCAL_MMAP_KEY,
+            CommonConfigurationKeysPublic.IO_SEQFILE_LOCAL_MMAP_DEFAULT);
       // really set up
       initialize(filename, file, start, len, conf, headerOnly != null);
     }
@@ -1772,9 +2764,36 @@ public class SequenceFile {
         in.readFully(sync);                       // read sync bytes
         headerEnd = in.getPos();                  // record end of header
       }
+
+      if (!tempReader && mmap && !decompress && file != null) {
+        mapFile();
+      }
       
       // Initialize... *not* if this we are constructing a temporary Reader
-      if (!tempReader) {
+      if (!tempReader && blockCompressed && readAheadBlocks > 0) {
+        // the read ahead threads decompress whole blocks, so the record
+        // streams read the uncompressed bytes directly
+        keyLenBuffer = new DataInputBuffer();
+        keyBuffer = new DataInputBuffer();
+        valLenBuffer = new DataInputBuffer();
+        valBuffer = new DataInputBuffer();
+        keyLenIn = keyLenBuffer;
+        keyIn = keyBuffer;
+        if (keysOnly) {
+          // except for the values, which are decompressed as they are read
+          valLenDecompressor = CodecPool.getDecompressor(codec);
+          valLenInFilter = codec.createInputStream(valLenBuffer, 
+                                                   valLenDecompressor);
+          valLenIn = new DataInputStream(valLenInFilter);
+          valDecompressor = CodecPool.getDecompressor(codec);
+          valInFilter = codec.createInputStream(valBuffer, valDecompressor);
+          valIn = new DataInputStream(valInFilter);
+        } else {
+          valLenIn = valLenBuffer;
+          valIn = valBuffer;
+        }
+        startReadAhead();
+      } else if (!tempReader) {
         valBuffer = new DataInputBuffer();
         if (decompress) {
           valDecompressor = CodecPool.getDecompressor(codec);
@@ -1803,7 +2822,9 @@ public class SequenceFile {
                                                    valLenDecompressor);
           valLenIn = new DataInputStream(valLenInFilter);
         }
-        
+      }
+
+      if (!tempReader) {
         SerializationFactory serializationFactory =
           new SerializationFactory(conf);
         this.keyDeserializer =
@@ -1819,6 +2840,38 @@ public class SequenceFile {
       }
     }
     
+    /**
+     * Switch to reading the file through a mapping of it, if it is on the
+     * local file system.
+     */
+    private void mapFile() throws IOException {
+      MappedFileInputStream mapped = MappedFileInputStream.open(fs, file);
+      if (mapped == null) {
+        return;
+      }
+      FSDataInputStream mappedStream = new FSDataInputStream(mapped);
+      try {
+        mappedStream.seek(in.getPos());
+      } catch (IOException e) {
+        mappedStream.close();
+        throw e;
+      }
+      in.close();
+      in = mappedStream;
+      mappedIn = mapped;
+    }
+
+    /** Read the next raw value of an uncompressed file. */
+    private void readRawValue(UncompressedBytes value,
+                              int valLength) throws IOException {
+      int offset = mappedIn == null ? -1 : mappedIn.skipMapped(valLength);
+      if (offset >= 0) {
+        value.reset(mappedIn.getWindow(), offset, valLength);
+      } else {
+        value.reset(in, valLength);
+      }
+    }
+    
     @SuppressWarnings("unchecked")
     private Deserializer getDeserializer(SerializationFactory sf, Class c) {
       return sf.getDeserializer(c);
@@ -1833,6 +2886,10 @@ public class SequenceFile {
       CodecPool.returnDecompressor(valDecompressor);
       keyLenDecompressor = keyDecompressor = null;
       valLenDecompressor = valDecompressor = null;
+      if (readAheadPool != null) {
+        clearReadAhead();
+        readAheadPool.shutdownNow();
+      }
       
       if (keyDeserializer != null) {
     	keyDeserializer.close();
@@ -1928,8 +2985,193 @@ public class SequenceFile {
       filter.resetState();
     }
     
+    /** A block read ahead of the caller and its decompression. */
+    private static class ReadAheadBlock {
+      /** The offset of the sync marker that starts the block */
+      private final long start;
+      private int records;
+      /**
+       * The key lengths, keys, value lengths and values, uncompressed. Just
+       * the key lengths and keys in keys only mode
+       */
+      private Future<DataOutputBuffer[]> buffers;
+      /** The compressed value lengths and values in keys only mode */
+      private byte[][] compressedValues;
+      /** The error reading the block, to be reported when it's reached */
+      private IOException error;
+
+      ReadAheadBlock(long start) {
+        this.start = start;
+      }
+
+      DataOutputBuffer[] getBuffers() throws IOException {
+        if (error != null) {
+          throw error;
+        }
+        try {
+          return buffers.get();
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted waiting for block at " +
+                                       start).initCause(ie);
+        } catch (ExecutionException ee) {
+          if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+          }
+          throw new IOException("Failed to decompress block at " + start,
+                                ee.getCause());
+        }
+      }
+    }
+
+    private void startReadAhead() {
+      readAheadQueue = new LinkedList<ReadAheadBlock>();
+      int threads = Math.min(readAheadBlocks,
+                             Runtime.getRuntime().availableProcessors());
+      final String name = "SequenceFile read ahead for " + filename;
+      readAheadPool = Executors.newFixedThreadPool(threads,
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    }
+
+    /** Drop the blocks read ahead, e.g. because the reader was moved. */
+    private void clearReadAhead() {
+      if (readAheadQueue != null) {
+        for (ReadAheadBlock block : readAheadQueue) {
+          if (block.buffers != null) {
+            block.buffers.cancel(false);
+          }
+        }
+        readAheadQueue.clear();
+      }
+    }
+
+    /**
+     * Read the raw bytes of the following blocks and queue them for
+     * decompression until readAheadBlocks are outstanding. Past the end of
+     * the range being read, blocks are only read as they are asked for.
+     */
+    private void fillReadAhead() {
+      while (readAheadQueue.size() < readAheadBlocks) {
+        ReadAheadBlock last = readAheadQueue.isEmpty() ? null :
+          readAheadQueue.getLast();
+        if (last != null && (last.error != null || last.start >= end)) {
+          return;
+        }
+        ReadAheadBlock block;
+        try {
+          block = new ReadAheadBlock(in.getPos());
+        } catch (IOException ioe) {
+          block = new ReadAheadBlock(-1);
+          block.error = ioe;
+          readAheadQueue.add(block);
+          return;
+        }
+        try {
+          if (sync != null) {
+            in.readInt();
+            in.readFully(syncCheck);                // read syncCheck
+            if (!Arrays.equals(sync, syncCheck))    // check it
+              throw new IOException("File is corrupt!");
+          }
+          block.records = WritableUtils.readVInt(in);
+          byte[][] buffers = new byte[4][];
+          for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new byte[WritableUtils.readVInt(in)];
+            in.readFully(buffers[i]);
+          }
+          final byte[][] compressed;
+          if (keysOnly) {
+            // the values wait for the caller to ask for one
+            compressed = new byte[][] { buffers[0], buffers[1] };
+            block.compressedValues = new byte[][] { buffers[2], buffers[3] };
+          } else {
+            compressed = buffers;
+          }
+          block.buffers = readAheadPool.submit(
+            new Callable<DataOutputBuffer[]>() {
+              public DataOutputBuffer[] call() throws IOException {
+                return decompressBlock(compressed);
+              }
+            });
+        } catch (IOException ioe) {
+          block.error = ioe;
+        }
+        readAheadQueue.add(block);
+      }
+    }
+
+    /** Decompress the buffers of a block on a read ahead thread. */
+    private DataOutputBuffer[] decompressBlock(byte[][] compressed)
+      throws IOException {
+      Decompressor decompressor = CodecPool.getDecompressor(codec);
+      try {
+        DataInputBuffer compressedIn = new DataInputBuffer();
+        CompressionInputStream filter =
+          codec.createInputStream(compressedIn, decompressor);
+        DataOutputBuffer[] result = new DataOutputBuffer[compressed.length];
+        byte[] buf = new byte[64 * 1024];
+        for (int i = 0; i < compressed.length; i++) {
+          compressedIn.reset(compressed[i], compressed[i].length);
+          filter.resetState();
+          result[i] = new DataOutputBuffer();
+          int n;
+          while ((n = filter.read(buf, 0, buf.length)) > 0) {
+            result[i].write(buf, 0, n);
+          }
+        }
+        return result;
+      } finally {
+        CodecPool.returnDecompressor(decompressor);
+      }
+    }
+
+    /** Hand out the next block decompressed by the read ahead threads */
+    private void nextReadAheadBlock() throws IOException {
+      noBufferedKeys = 0; noBufferedValues = 0; noBufferedRecords = 0;
+      valuesDecompressed = true;
+      valueOffsetsRead = false;
+
+      fillReadAhead();
+      if (readAheadQueue.isEmpty()) {
+        throw new EOFException();
+      }
+      ReadAheadBlock block = readAheadQueue.removeFirst();
+      // keep the threads busy while the caller works through this block
+      fillReadAhead();
+      DataOutputBuffer[] buffers = block.getBuffers();
+      syncSeen = true;
+
+      keyLenBuffer.reset(buffers[0].getData(), buffers[0].getLength());
+      keyBuffer.reset(buffers[1].getData(), buffers[1].getLength());
+      if (block.compressedValues != null) {
+        // decompressed only as far as the values are read
+        byte[][] values = block.compressedValues;
+        valLenBuffer.reset(values[0], values[0].length);
+        valBuffer.reset(values[1], values[1].length);
+        valLenInFilter.resetState();
+        valInFilter.resetState();
+      } else {
+        valLenBuffer.reset(buffers[2].getData(), buffers[2].getLength());
+        valBuffer.reset(buffers[3].getData(), buffers[3].getLength());
+      }
+      noBufferedRecords = block.records;
+      noBufferedKeys = noBufferedRecords;
+      noBufferedValues = noBufferedRecords;
+    }
+
     /** Read the next 'compressed' block */
     private synchronized void readBlock() throws IOException {
+      if (readAheadQueue != null) {
+        nextReadAheadBlock();
+        return;
+      }
+
       // Check if we need to throw away a whole block of 
       // 'values' due to 'lazy decompression' 
       if (lazyDecompress && !valuesDecompressed) {
@@ -1940,6 +3182,7 @@ public class SequenceFile {
       // Reset internal states
       noBufferedKeys = 0; noBufferedValues = 0; noBufferedRecords = 0;
       valuesDecompressed = false;
+      valueOffsetsRead = false;
 
       //Process sync
       if (sync != null) {
@@ -1973,6 +3216,9 @@ public class SequenceFile {
      */
     private synchronized void seekToCurrentValue() throws IOException {
       if (!blockCompressed) {
+        if (skippedValue >= 0) {
+          readSkippedValue();
+        }
         if (decompress) {
           valInFilter.resetState();
         }
@@ -1986,15 +3232,20 @@ public class SequenceFile {
           noBufferedValues = noBufferedRecords;
           valuesDecompressed = true;
         }
+        if (!valueOffsetsRead) {
+          readValueOffsets();
+        }
         
         // Calculate the no. of bytes to skip
         // Note: 'current' key has already been read!
-        int skipValBytes = 0;
-        int currentKey = noBufferedKeys + 1;          
-        for (int i=noBufferedValues; i > currentKey; --i) {
-          skipValBytes += WritableUtils.readVInt(valLenIn);
-          --noBufferedValues;
+        int currentKey = noBufferedRecords - noBufferedKeys - 1;
+        int nextValue = noBufferedRecords - noBufferedValues;
+        if (currentKey < nextValue) {
+          throw new IOException("The value of the " + currentKey +
+                                "(th) record of the block was already read");
         }
+        int skipValBytes = valueOffsets[currentKey] - valueOffsets[nextValue];
+        noBufferedValues = noBufferedRecords - currentKey;
         
         // Skip to the 'val' corresponding to 'current' key
         if (skipValBytes > 0) {
@@ -2006,6 +3257,62 @@ public class SequenceFile {
       }
     }
 
+    /**
+     * Turn the value lengths of the block into the offsets of the values,
+     * so values can be skipped without reading their lengths one by one.
+     */
+    private void readValueOffsets() throws IOException {
+      if (valueOffsets.length <= noBufferedRecords) {
+        valueOffsets = new int[noBufferedRecords + 1];
+      }
+      valueOffsets[0] = 0;
+      for (int i = 0; i < noBufferedRecords; i++) {
+        valueOffsets[i + 1] = valueOffsets[i] + WritableUtils.readVInt(valLenIn);
+      }
+      valueOffsetsRead = true;
+    }
+
+    /** The length of the value valIn is positioned at. */
+    private int currentValueLength() {
+      int value = noBufferedRecords - noBufferedValues;
+      return valueOffsets[value + 1] - valueOffsets[value];
+    }
+
+    /**
+     * Read the key of the next record into <code>buffer</code> and skip its
+     * value, remembering where it is.
+     * @return the length of the key read, or -1 if at end of file
+     */
+    private synchronized int nextKeySkippingValue(DataOutputBuffer buffer)
+      throws IOException {
+      try {
+        int length = readRecordLength();
+        if (length == -1) {
+          return -1;
+        }
+        int keyLength = in.readInt();
+        buffer.write(in, keyLength);
+        skippedValue = in.getPos();
+        skippedValueLength = length - keyLength;
+        in.seek(skippedValue + skippedValueLength);
+        return keyLength;
+      } catch (ChecksumException e) {             // checksum failure
+        handleChecksumException(e);
+        return nextKeySkippingValue(buffer);
+      }
+    }
+
+    /** Read the value skipped by the last call to nextKeySkippingValue. */
+    private void readSkippedValue() throws IOException {
+      long pos = in.getPos();
+      in.seek(skippedValue);
+      skippedValue = -1;
+      outBuf.write(in, skippedValueLength);
+      in.seek(pos);
+      valBuffer.reset(outBuf.getData(), keyLength, skippedValueLength);
+      valBuffer.mark(0);
+    }
+
     /**
      * Get the 'value' corresponding to the last read 'key'.
      * @param val : The 'value' to be read.
@@ -2031,7 +3338,7 @@ public class SequenceFile {
         }
       } else {
         // Get the value
-        int valLength = WritableUtils.readVInt(valLenIn);
+        int valLength = currentValueLength();
         val.readFields(valIn);
         
         // Read another compressed 'value'
@@ -2070,7 +3377,7 @@ public class SequenceFile {
         }
       } else {
         // Get the value
-        int valLength = WritableUtils.readVInt(valLenIn);
+        int valLength = currentValueLength();
         val = deserializeValue(val);
         
         // Read another compressed 'value'
@@ -2100,7 +3407,8 @@ public class SequenceFile {
       if (!blockCompressed) {
         outBuf.reset();
         
-        keyLength = next(outBuf);
+        skippedValue = -1;
+        keyLength = keysOnly ? nextKeySkippingValue(outBuf) : next(outBuf);
         if (keyLength < 0)
           return false;
         
@@ -2240,8 +3548,7 @@ public class SequenceFile {
           CompressedBytes value = (CompressedBytes)val;
           value.reset(in, valLength);
         } else {
-          UncompressedBytes value = (UncompressedBytes)val;
-          value.reset(in, valLength);
+          readRawValue((UncompressedBytes)val, valLength);
         }
         
         return length;
@@ -2251,7 +3558,7 @@ public class SequenceFile {
         
         // Read 'key'
         if (noBufferedKeys == 0) {
-          if (in.getPos() >= end) 
+          if (getPosition() >= end) 
             return -1;
 
           try { 
@@ -2269,14 +3576,85 @@ public class SequenceFile {
         
         // Read raw 'value'
         seekToCurrentValue();
-        int valLength = WritableUtils.readVInt(valLenIn);
+        int valLength = currentValueLength();
         UncompressedBytes rawValue = (UncompressedBytes)val;
         rawValue.reset(valIn, valLength);
         --noBufferedValues;
         
         return (keyLength+valLength);
       }
-      
+      
+    }
+
+    /**
+     * Read the next records into a batch, as many as fit. Unlike
+     * {@link #next(Writable, Writable)} this takes the lock of the reader
+     * once for all of the records and creates no objects per record, and
+     * values of record compressed files are decompressed into the batch.
+     * @param batch the batch to replace the records of
+     * @return the number of records read, or -1 for end of file
+     * @throws IOException
+     */
+    public synchronized int nextBatch(RecordBatch batch) throws IOException {
+      batch.clear();
+      skippedValue = -1;
+      if (blockCompressed) {
+        // sync marks are only seen between blocks
+        syncSeen = false;
+      }
+      while (!batch.isFull() && nextBatchRecord(batch)) {
+        batch.add();
+      }
+      return batch.size() == 0 ? -1 : batch.size();
+    }
+
+    /** Append the key and value of the next record to a batch. */
+    private boolean nextBatchRecord(RecordBatch batch) throws IOException {
+      if (!blockCompressed) {
+        int length = readRecordLength();
+        if (length == -1) {
+          return false;
+        }
+        int keyLength = in.readInt();
+        int valLength = length - keyLength;
+        batch.keys.write(in, keyLength);
+        if (decompress) {
+          if (batch.rawValue == null) {
+            batch.rawValue = new DataOutputBuffer();
+          }
+          batch.rawValue.reset();
+          batch.rawValue.write(in, valLength);
+          valBuffer.reset(batch.rawValue.getData(), valLength);
+          valInFilter.resetState();
+          batch.copyValue(valInFilter);
+        } else {
+          batch.values.write(in, valLength);
+        }
+        return true;
+      } else {
+        if (noBufferedKeys == 0) {
+          if (getPosition() >= end) 
+            return false;
+
+          try { 
+            readBlock();
+          } catch (EOFException eof) {
+            return false;
+          }
+        }
+        int keyLength = WritableUtils.readVInt(keyLenIn);
+        if (keyLength < 0) {
+          throw new IOException("zero length key found!");
+        }
+        batch.keys.write(keyIn, keyLength);
+        --noBufferedKeys;
+
+        seekToCurrentValue();
+        int valLength = currentValueLength();
+        batch.values.write(valIn, valLength);
+        --noBufferedValues;
+        return true;
+      }
     }
 
     /**
@@ -2301,7 +3679,7 @@ public class SequenceFile {
         
         // Read 'key'
         if (noBufferedKeys == 0) {
-          if (in.getPos() >= end) 
+          if (getPosition() >= end) 
             return -1;
 
           try { 
@@ -2333,7 +3711,8 @@ public class SequenceFile {
       if (!blockCompressed) {
         outBuf.reset();
         
-        keyLength = next(outBuf);
+        skippedValue = -1;
+        keyLength = keysOnly ? nextKeySkippingValue(outBuf) : next(outBuf);
         if (keyLength < 0)
           return null;
         
@@ -2394,13 +3773,12 @@ public class SequenceFile {
           CompressedBytes value = (CompressedBytes)val;
           value.reset(in, valLength);
         } else {
-          UncompressedBytes value = (UncompressedBytes)val;
-          value.reset(in, valLength);
+          readRawValue((UncompressedBytes)val, valLength);
         }
          
         return valLength;
       } else {
-        int valLength = WritableUtils.readVInt(valLenIn);
+        int valLength = currentValueLength();
         UncompressedBytes rawValue = (UncompressedBytes)val;
         rawValue.reset(valIn, valLength);
         --noBufferedValues;
@@ -2431,6 +3809,7 @@ public class SequenceFile {
      * position, use {@link SequenceFile.Reader#sync(long)}.
      */
     public synchronized void seek(long position) throws IOException {
+      clearReadAhead();
       in.seek(position);
       if (blockCompressed) {                      // trigger block read
         noBufferedKeys = 0;
@@ -2438,6 +3817,79 @@ public class SequenceFile {
       }
     }
 
+    /**
+     * Get the index of the sync marks saved with the file, if there is one.
+     * Only files whose header marks them as indexed are looked up.
+     * @return the index, or null if the file has none or the reader was
+     *         created from a stream
+     * @throws IOException
+     */
+    public synchronized SyncIndex getSyncIndex() throws IOException {
+      if (!syncIndexRead) {
+        syncIndexRead = true;
+        if (file != null && sync != null && version > 1 &&
+            metadata.get(SyncIndex.METADATA_KEY) != null) {
+          syncIndex = SyncIndex.read(fs, file, sync);
+        }
+      }
+      return syncIndex;
+    }
+
+    /**
+     * Position the reader so that the next record read is the one with the
+     * given ordinal, counting from 0. Uses the {@link SyncIndex} of the file
+     * if it has one, otherwise counts records from the start of the file.
+     * @param record the ordinal of the record
+     * @return false if the file ends before the record
+     * @throws IOException
+     */
+    public synchronized boolean seekToRecord(long record) throws IOException {
+      SyncIndex index = getSyncIndex();
+      int i = index == null ? -1 : index.findRecord(record);
+      long skip = record;
+      if (i >= 0) {
+        seek(index.getPosition(i));
+        skip -= index.getRecord(i);
+      } else {
+        seek(headerEnd);
+      }
+      syncSeen = false;
+      while (skip > 0) {
+        if (!blockCompressed) {
+          int length = readRecordLength();
+          if (length == -1) {
+            return false;
+          }
+          in.readInt();                           // key length
+          in.seek(in.getPos() + length);
+          skip--;
+        } else {
+          if (noBufferedKeys == 0) {
+            try {
+              readBlock();
+            } catch (EOFException eof) {
+              return false;
+            }
+          }
+          if (skip >= noBufferedKeys) {
+            // none of the keys of this block are needed
+            skip -= noBufferedKeys;
+            noBufferedKeys = 0;
+          } else {
+            for (; skip > 0; skip--) {
+              int keyLength = WritableUtils.readVInt(keyLenIn);
+              if (keyIn.skipBytes(keyLength) != keyLength) {
+                throw new IOException("Failed to skip key of " + keyLength +
+                                      " bytes");
+              }
+              --noBufferedKeys;
+            }
+          }
+        }
+      }
+      return true;
+    }
+
     /** Seek to the next sync mark past a given position.*/
     public synchronized void sync(long position) throws IOException {
       if (position+SYNC_SIZE >= end) {
@@ -2447,12 +3899,21 @@ public class SequenceFile {
 
       if (position < headerEnd) {
         // seek directly to first record
+        clearReadAhead();
         in.seek(headerEnd);
         // note the sync marker "seen" in the header
         syncSeen = true;
         return;
       }
 
+      SyncIndex index = getSyncIndex();
+      if (index != null && index.isComplete()) {
+        int i = index.findPosition(position);
+        seek(i < index.size() ? Math.min(index.getPosition(i), end) :
+                                Math.min(index.getFileLength(), end));
+        return;
+      }
+
       try {
         seek(position+4);                         // skip escape
         in.readFully(syncCheck);
@@ -2479,6 +3940,10 @@ public class SequenceFile {
 
     /** Return the current byte position in the input file. */
     public synchronized long getPosition() throws IOException {
+      // blocks read ahead haven't been handed out yet
+      if (readAheadQueue != null && !readAheadQueue.isEmpty()) {
+        return readAheadQueue.getFirst().start;
+      }
       return in.getPos();
     }
 
@@ -2498,6 +3963,8 @@ public class SequenceFile {
   public static class Sorter {
 
     private RawComparator comparator;
+    /** The comparator, if it has prefixes of normalized keys */
+    private NormalizedKeyComparator prefixComparator;
 
     private MergeSort mergeSort; //the implementation of merge sort
     
@@ -2507,6 +3974,11 @@ public class SequenceFile {
 
     private int memory; // bytes
     private int factor; // merged per pass
+    private int sortThreads; // threads sorting each buffer
+    private int mergeThreads; // threads prefetching and merging segments
+    private ExecutorService prefetchPool = null;
+    private ExecutorService mergePool = null;
+    private int mergePoolUsers = 0; // the merges using the pools
 
     private FileSystem fs = null;
 
@@ -2535,10 +4007,18 @@ public class SequenceFile {
                   Class valClass, Configuration conf, Metadata metadata) {
       this.fs = fs;
       this.comparator = comparator;
+      this.prefixComparator =
+        WritableComparator.getNormalizedKeyComparator(comparator);
       this.keyClass = keyClass;
       this.valClass = valClass;
       this.memory = conf.getInt("io.sort.mb", 100) * 1024 * 1024;
       this.factor = conf.getInt("io.sort.factor", 100);
+      this.sortThreads = conf.getInt(
+          CommonConfigurationKeysPublic.IO_SEQFILE_SORT_THREADS_KEY,
+          CommonConfigurationKeysPublic.IO_SEQFILE_SORT_THREADS_DEFAULT);
+      this.mergeThreads = conf.getInt(
+          CommonConfigurationKeysPublic.IO_SEQFILE_MERGE_THREADS_KEY,
+          CommonConfigurationKeysPublic.IO_SEQFILE_MERGE_THREADS_DEFAULT);
       this.conf = conf;
       this.metadata = metadata;
     }
@@ -2555,6 +4035,98 @@ public class SequenceFile {
     /** Get the total amount of buffer memory, in bytes.*/
     public int getMemory() { return memory; }
 
+    /**
+     * Set the number of threads that sort each buffer of records. More than
+     * one requires a comparator that can be re-created with its no-argument
+     * constructor, so each thread can have its own.
+     */
+    public void setSortThreads(int sortThreads) {
+      this.sortThreads = sortThreads;
+    }
+
+    /** Get the number of threads that sort each buffer of records. */
+    public int getSortThreads() { return sortThreads; }
+
+    /**
+     * Set the number of threads that merge. More than one prefetches the
+     * input of each segment and runs that many intermediate merges at once,
+     * each with its own comparator, as {@link #setSortThreads(int)} requires.
+     * It applies to the merges started once no merge of this sorter is
+     * running.
+     */
+    public void setMergeThreads(int mergeThreads) {
+      this.mergeThreads = mergeThreads;
+    }
+
+    /** Get the number of threads that merge. */
+    public int getMergeThreads() { return mergeThreads; }
+
+    /**
+     * Create a comparator for a thread of its own: raw comparators may keep
+     * state while comparing, like the deserialized keys of the generic
+     * WritableComparator.
+     * @throws RuntimeException if the comparator can't be re-created
+     */
+    private RawComparator newComparator() {
+      if (comparator.getClass() == WritableComparator.class) {
+        return new WritableComparator(
+          ((WritableComparator) comparator).getKeyClass(), true);
+      }
+      return ReflectionUtils.newInstance(comparator.getClass(), conf);
+    }
+
+    /**
+     * Start the merge threads, unless a running merge already did.
+     * @return false if the merge runs on one thread
+     */
+    private synchronized boolean startMergeThreads() {
+      if (mergeThreads <= 1) {
+        return false;
+      }
+      if (mergePool == null) {
+        try {
+          newComparator();
+        } catch (RuntimeException e) {
+          LOG.warn("Merging on one thread, can't create another " +
+                   comparator.getClass().getName() + ": " + e);
+          return false;
+        }
+        prefetchPool = newMergePool("SequenceFile merge prefetch");
+        mergePool = newMergePool("SequenceFile merge");
+      }
+      mergePoolUsers++;
+      return true;
+    }
+
+    /** Shut the merge threads down once the last merge using them is done. */
+    private synchronized void stopMergeThreads() {
+      if (--mergePoolUsers == 0) {
+        prefetchPool.shutdown();
+        mergePool.shutdown();
+        prefetchPool = mergePool = null;
+      }
+    }
+
+    /**
+     * The iterator of the final merge is drained after merge returns, and the
+     * threads are shut down once it is exhausted or closed; idle threads also
+     * time out, for iterators that are neither.
+     */
+    private ExecutorService newMergePool(final String name) {
+      ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(mergeThreads, mergeThreads, 10, TimeUnit.SECONDS,
+                               new LinkedBlockingQueue<Runnable>(),
+                               new ThreadFactory() {
+                                 public Thread newThread(Runnable r) {
+                                   Thread t = new Thread(r, name);
+                                   t.setDaemon(true);
+                                   return t;
+                                 }
+                               });
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+
     /** Set the progressable object in order to report progress. */
     public void setProgressable(Progressable progressable) {
       this.progressable = progressable;
@@ -2634,8 +4206,15 @@ public class SequenceFile {
     }
 
     private class SortPass {
+      /** Buffers with fewer records are always sorted on one thread */
+      private static final int MIN_PARALLEL_SORT = 8192;
+
       private int memoryLimit = memory/4;
       private int recordLimit = 1000000;
+
+      /** A comparator for each sort thread, null if sorting on one */
+      private RawComparator[] comparators = null;
+      private ExecutorService sortPool = null;
       
       private DataOutputBuffer rawKeys = new DataOutputBuffer();
       private byte[] rawBuffer;
@@ -2645,6 +4224,9 @@ public class SequenceFile {
       private int[] pointersCopy = new int[keyOffsets.length];
       private int[] keyLengths = new int[keyOffsets.length];
       private ValueBytes[] rawValues = new ValueBytes[keyOffsets.length];
+      /** The prefixes of the keys, if the comparator has them */
+      private long[] keyPrefixes =
+        prefixComparator == null ? null : new long[keyOffsets.length];
       
       private ArrayList segmentLengths = new ArrayList();
       
@@ -2714,6 +4296,10 @@ public class SequenceFile {
             pointers[count] = count;
             keyLengths[count] = keyLength;
             rawValues[count] = rawValue;
+            if (keyPrefixes != null) {
+              keyPrefixes[count] = prefixComparator.getNormalizedKeyPrefix(
+                rawKeys.getData(), keyOffset, keyLength);
+            }
 
             bytesProcessed += recordLength; 
             count++;
@@ -2737,6 +4323,9 @@ public class SequenceFile {
       }
 
       public void close() throws IOException {
+        if (sortPool != null) {
+          sortPool.shutdownNow();
+        }
         if (in != null) {
           in.close();
         }
@@ -2755,6 +4344,11 @@ public class SequenceFile {
         pointersCopy = new int[newLength];
         keyLengths = grow(keyLengths, newLength);
         rawValues = grow(rawValues, newLength);
+        if (keyPrefixes != null) {
+          long[] result = new long[newLength];
+          System.arraycopy(keyPrefixes, 0, result, 0, keyPrefixes.length);
+          keyPrefixes = result;
+        }
       }
 
       private int[] grow(int[] old, int newLength) {
@@ -2808,15 +4402,169 @@ public class SequenceFile {
         }
       }
 
-      private void sort(int count) {
+      private void sort(int count) throws IOException {
+        if (count >= MIN_PARALLEL_SORT && startSortThreads()) {
+          parallelSort(count);
+          return;
+        }
         System.arraycopy(pointers, 0, pointersCopy, 0, count);
         mergeSort.mergeSort(pointersCopy, pointers, 0, count);
       }
+
+      /**
+       * Set up the threads and their comparators the first time they are
+       * needed.
+       * @return false if the buffers have to be sorted on one thread
+       */
+      private boolean startSortThreads() {
+        if (sortThreads <= 1) {
+          return false;
+        }
+        if (comparators == null) {
+          RawComparator[] result = new RawComparator[sortThreads];
+          try {
+            for (int i = 0; i < result.length; i++) {
+              result[i] = newComparator();
+            }
+          } catch (RuntimeException e) {
+            LOG.warn("Sorting on one thread, can't create another " +
+                     comparator.getClass().getName() + ": " + e);
+            sortThreads = 1;
+            return false;
+          }
+          comparators = result;
+          sortPool = Executors.newFixedThreadPool(sortThreads,
+            new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SequenceFile sort");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+        }
+        return true;
+      }
+
+      /**
+       * Sort a slice of the records on each thread, then merge the slices
+       * pairwise, also in parallel. Like the single threaded merge sort,
+       * records with equal keys keep their input order.
+       */
+      private void parallelSort(int count) throws IOException {
+        int runs = comparators.length;
+        int[] bounds = new int[runs + 1];
+        for (int i = 0; i <= runs; i++) {
+          bounds[i] = (int) ((long) count * i / runs);
+        }
+        System.arraycopy(pointers, 0, pointersCopy, 0, count);
+        List<Future<?>> tasks = new ArrayList<Future<?>>(runs);
+        for (int i = 0; i < runs; i++) {
+          final int low = bounds[i];
+          final int high = bounds[i + 1];
+          final MergeSort sorter =
+            new MergeSort(new SeqFileComparator(comparators[i]));
+          tasks.add(sortPool.submit(new Runnable() {
+            public void run() {
+              sorter.mergeSort(pointersCopy, pointers, low, high);
+            }
+          }));
+        }
+        waitFor(tasks);
+
+        int[] src = pointers;
+        int[] dest = pointersCopy;
+        while (runs > 1) {
+          tasks.clear();
+          int merged = (runs + 1) / 2;
+          int[] mergedBounds = new int[merged + 1];
+          for (int i = 0; i < merged; i++) {
+            final int low = bounds[2 * i];
+            final int mid = bounds[Math.min(2 * i + 1, runs)];
+            final int high = bounds[Math.min(2 * i + 2, runs)];
+            final int[] from = src;
+            final int[] to = dest;
+            final RawComparator c = comparators[i];
+            mergedBounds[i] = low;
+            tasks.add(sortPool.submit(new Runnable() {
+              public void run() {
+                merge(c, from, to, low, mid, high);
+              }
+            }));
+          }
+          mergedBounds[merged] = count;
+          waitFor(tasks);
+          int[] tmp = src;
+          src = dest;
+          dest = tmp;
+          runs = merged;
+          bounds = mergedBounds;
+        }
+        if (src != pointers) {
+          System.arraycopy(src, 0, pointers, 0, count);
+        }
+      }
+
+      /** Merge the sorted runs from[low, mid) and from[mid, high) into to. */
+      private void merge(RawComparator c, int[] from, int[] to,
+                         int low, int mid, int high) {
+        int p = low;
+        int q = mid;
+        for (int i = low; i < high; i++) {
+          if (q >= high ||
+              (p < mid && compareKeys(c, from[p], from[q]) <= 0)) {
+            to[i] = from[p++];
+          } else {
+            to[i] = from[q++];
+          }
+        }
+      }
+
+      private void waitFor(List<Future<?>> tasks) throws IOException {
+        try {
+          for (Future<?> task : tasks) {
+            task.get();
+          }
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted sorting").initCause(ie);
+        } catch (ExecutionException ee) {
+          Throwable cause = ee.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          throw new IOException("Failed to sort", cause);
+        }
+      }
+
+      /**
+       * Compare two keys of the buffer by their prefixes, if they have them,
+       * and if those are equal by their bytes.
+       */
+      private int compareKeys(RawComparator c, int i, int j) {
+        if (keyPrefixes != null) {
+          long prefixI = keyPrefixes[i];
+          long prefixJ = keyPrefixes[j];
+          if (prefixI != prefixJ) {
+            return prefixI < prefixJ ? -1 : 1;
+          }
+        }
+        return c.compare(rawBuffer, keyOffsets[i], keyLengths[i],
+                         rawBuffer, keyOffsets[j], keyLengths[j]);
+      }
+
       class SeqFileComparator implements Comparator<IntWritable> {
+        private final RawComparator rawComparator;
+
+        SeqFileComparator() {
+          this(comparator);
+        }
+
+        SeqFileComparator(RawComparator rawComparator) {
+          this.rawComparator = rawComparator;
+        }
+
         public int compare(IntWritable I, IntWritable J) {
-          return comparator.compare(rawBuffer, keyOffsets[I.get()], 
-                                    keyLengths[I.get()], rawBuffer, 
-                                    keyOffsets[J.get()], keyLengths[J.get()]);
+          return compareKeys(rawComparator, I.get(), J.get());
         }
       }
       
@@ -3041,8 +4789,7 @@ public class SequenceFile {
     }
     
     /** This class implements the core of the merge logic */
-    private class MergeQueue extends PriorityQueue 
-      implements RawKeyValueIterator {
+    private class MergeQueue implements RawKeyValueIterator {
       private boolean compress;
       private boolean blockCompress;
       private DataOutputBuffer rawKey = new DataOutputBuffer();
@@ -3053,24 +4800,95 @@ public class SequenceFile {
       private Path tmpDir;
       private Progressable progress = null; //handle to the progress reporting object
       private SegmentDescriptor minSegment;
+      private final RawComparator comparator;
+      //whether this merge holds the merge threads of the sorter
+      private boolean mergeThreadsHeld = false;
+
+      //the segments being merged, null once exhausted
+      private SegmentDescriptor[] segments = new SegmentDescriptor[0];
+      //a loser tree over the segments: tree[0] is the segment with the
+      //smallest key, tree[1..n-1] the losers of the matches at the inner
+      //nodes. Replacing the smallest key replays only its path to the root,
+      //one comparison per level
+      private int[] tree = new int[1];
+      private int live = 0; //the number of segments not exhausted
       
       //a TreeMap used to store the segments sorted by size (segment offset and
       //segment path name is used to break ties between segments of same sizes)
       private Map<SegmentDescriptor, Void> sortedSegmentSizes =
         new TreeMap<SegmentDescriptor, Void>();
             
-      @SuppressWarnings("unchecked")
-      public void put(SegmentDescriptor stream) throws IOException {
-        if (size() == 0) {
-          compress = stream.in.isCompressed();
-          blockCompress = stream.in.isBlockCompressed();
-        } else if (compress != stream.in.isCompressed() || 
-                   blockCompress != stream.in.isBlockCompressed()) {
-          throw new IOException("All merged files must be compressed or not.");
-        } 
-        super.put(stream);
+      /**
+       * Set up the loser tree over the segments to merge in this pass. Each
+       * segment must have read its first key.
+       */
+      public void setSegments(List<SegmentDescriptor> streams)
+        throws IOException {
+        for (int i = 0; i < streams.size(); i++) {
+          SegmentDescriptor stream = streams.get(i);
+          if (i == 0) {
+            compress = stream.in.isCompressed();
+            blockCompress = stream.in.isBlockCompressed();
+          } else if (compress != stream.in.isCompressed() || 
+                     blockCompress != stream.in.isBlockCompressed()) {
+            throw new IOException("All merged files must be compressed or not.");
+          }
+        }
+        segments = streams.toArray(new SegmentDescriptor[streams.size()]);
+        tree = new int[Math.max(segments.length, 1)];
+        live = segments.length;
+        minSegment = null;
+        if (live > 0) {
+          tree[0] = play(1);
+        }
       }
-      
+
+      /**
+       * Play the matches below a node of the loser tree, storing the losers.
+       * @return the index of the winning segment
+       */
+      private int play(int node) {
+        if (node >= segments.length) {
+          return node - segments.length;
+        }
+        int left = play(2 * node);
+        int right = play(2 * node + 1);
+        if (beats(left, right)) {
+          tree[node] = right;
+          return left;
+        }
+        tree[node] = left;
+        return right;
+      }
+
+      /** Replay the matches of the winner after its key changed. */
+      private void replay() {
+        int winner = tree[0];
+        for (int node = (winner + segments.length) >>> 1; node > 0;
+             node >>>= 1) {
+          if (beats(tree[node], winner)) {
+            int loser = winner;
+            winner = tree[node];
+            tree[node] = loser;
+          }
+        }
+        tree[0] = winner;
+      }
+
+      /** Exhausted segments lose, equal keys go to the first segment. */
+      private boolean beats(int a, int b) {
+        if (segments[b] == null) {
+          return segments[a] != null || a < b;
+        }
+        if (segments[a] == null) {
+          return false;
+        }
+        if (lessThan(segments[a], segments[b])) {
+          return true;
+        }
+        return a < b && !lessThan(segments[b], segments[a]);
+      }
+
       /**
        * A queue of file segments to merge
        * @param segments the file segments to merge
@@ -3079,6 +4897,15 @@ public class SequenceFile {
        */
       public MergeQueue(List <SegmentDescriptor> segments,
           Path tmpDir, Progressable progress) {
+        this(segments, tmpDir, progress, Sorter.this.comparator);
+      }
+
+      /**
+       * A queue of file segments to merge with a comparator of its own.
+       */
+      private MergeQueue(List <SegmentDescriptor> segments,
+          Path tmpDir, Progressable progress, RawComparator comparator) {
+        this.comparator = comparator;
         int size = segments.size();
         for (int i = 0; i < size; i++) {
           sortedSegmentSizes.put(segments.get(i), null);
@@ -3086,24 +4913,39 @@ public class SequenceFile {
         this.tmpDir = tmpDir;
         this.progress = progress;
       }
-      protected boolean lessThan(Object a, Object b) {
+      private boolean lessThan(SegmentDescriptor msa, SegmentDescriptor msb) {
         // indicate we're making progress
         if (progress != null) {
           progress.progress();
         }
-        SegmentDescriptor msa = (SegmentDescriptor)a;
-        SegmentDescriptor msb = (SegmentDescriptor)b;
+        if (prefixComparator != null && msa.keyPrefix != msb.keyPrefix) {
+          return msa.keyPrefix < msb.keyPrefix;
+        }
         return comparator.compare(msa.getKey().getData(), 0, 
                                   msa.getKey().getLength(), msb.getKey().getData(), 0, 
                                   msb.getKey().getLength()) < 0;
       }
       public void close() throws IOException {
-        SegmentDescriptor ms;                           // close inputs
-        while ((ms = (SegmentDescriptor)pop()) != null) {
-          ms.cleanup();
+        for (int i = 0; i < segments.length; i++) {   // close inputs
+          SegmentDescriptor ms = segments[i];
+          if (ms != null) {
+            segments[i] = null;
+            ms.cleanup();
+          }
         }
+        live = 0;
         minSegment = null;
+        releaseMergeThreads();
+      }
+
+      /** Let the sorter shut the merge threads down, once merged. */
+      private void releaseMergeThreads() {
+        if (mergeThreadsHeld) {
+          mergeThreadsHeld = false;
+          stopMergeThreads();
+        }
       }
+
       public DataOutputBuffer getKey() throws IOException {
         return rawKey;
       }
@@ -3111,19 +4953,22 @@ public class SequenceFile {
         return rawValue;
       }
       public boolean next() throws IOException {
-        if (size() == 0)
+        if (live == 0) {
+          releaseMergeThreads();
           return false;
+        }
         if (minSegment != null) {
           //minSegment is non-null for all invocations of next except the first
-          //one. For the first invocation, the priority queue is ready for use
-          //but for the subsequent invocations, first adjust the queue 
-          adjustPriorityQueue(minSegment);
-          if (size() == 0) {
+          //one. For the first invocation, the loser tree is ready for use
+          //but for the subsequent invocations, first replay the winner's path
+          adjustLoserTree(minSegment);
+          if (live == 0) {
             minSegment = null;
+            releaseMergeThreads();
             return false;
           }
         }
-        minSegment = (SegmentDescriptor)top();
+        minSegment = segments[tree[0]];
         long startPos = minSegment.in.getPosition(); // Current position in stream
         //save the raw key reference
         rawKey = minSegment.getKey();
@@ -3141,17 +4986,17 @@ public class SequenceFile {
         return mergeProgress; 
       }
 
-      private void adjustPriorityQueue(SegmentDescriptor ms) throws IOException{
+      private void adjustLoserTree(SegmentDescriptor ms) throws IOException{
         long startPos = ms.in.getPosition(); // Current position in stream
         boolean hasNext = ms.nextRawKey();
         long endPos = ms.in.getPosition(); // End position after reading key
         updateProgress(endPos - startPos);
-        if (hasNext) {
-          adjustTop();
-        } else {
-          pop();
+        if (!hasNext) {
+          segments[tree[0]] = null;
+          live--;
           ms.cleanup();
         }
+        replay();
       }
 
       private void updateProgress(long bytesProcessed) {
@@ -3162,110 +5007,209 @@ public class SequenceFile {
       }
       
       /** This is the single level merge that is called multiple times 
-       * depending on the factor size and the number of segments
+       * depending on the factor size and the number of segments. With more
+       * than one merge thread, the intermediate merges of disjoint sets of
+       * segments run at the same time.
        * @return RawKeyValueIterator
        * @throws IOException
        */
       public RawKeyValueIterator merge() throws IOException {
         //create the MergeStreams from the sorted map created in the constructor
         //and dump the final output to a file
-        int numSegments = sortedSegmentSizes.size();
         int origFactor = factor;
         int passNo = 1;
         LocalDirAllocator lDirAlloc = new LocalDirAllocator("io.seqfile.local.dir");
-        do {
-          //get the factor for this pass of merge
-          factor = getPassFactor(passNo, numSegments);
-          List<SegmentDescriptor> segmentsToMerge =
-            new ArrayList<SegmentDescriptor>();
-          int segmentsConsidered = 0;
-          int numSegmentsToConsider = factor;
-          while (true) {
-            //extract the smallest 'factor' number of segment pointers from the 
-            //TreeMap. Call cleanup on the empty segments (no key/value data)
-            SegmentDescriptor[] mStream = 
-              getSegmentDescriptors(numSegmentsToConsider);
-            for (int i = 0; i < mStream.length; i++) {
-              if (mStream[i].nextRawKey()) {
-                segmentsToMerge.add(mStream[i]);
-                segmentsConsidered++;
-                // Count the fact that we read some bytes in calling nextRawKey()
-                updateProgress(mStream[i].in.getPosition());
+        mergeThreadsHeld = startMergeThreads();
+        LinkedList<Future<IntermediateMerge>> running =
+          new LinkedList<Future<IntermediateMerge>>();
+        boolean merged = false;
+        try {
+          do {
+            int numSegments = sortedSegmentSizes.size() + running.size();
+            //get the factor for this pass of merge
+            factor = getPassFactor(passNo, numSegments);
+            //a pass can't start before the ones writing its input are done;
+            //the last pass reads every segment left
+            if (!running.isEmpty() &&
+                (running.size() >= mergeThreads || numSegments <= factor ||
+                 sortedSegmentSizes.size() < factor)) {
+              finishIntermediate(running.removeFirst());
+              factor = origFactor;
+              continue;
+            }
+            List<SegmentDescriptor> segmentsToMerge =
+              new ArrayList<SegmentDescriptor>();
+            int segmentsConsidered = 0;
+            int numSegmentsToConsider = factor;
+            while (true) {
+              //extract the smallest 'factor' number of segment pointers from the 
+              //TreeMap. Call cleanup on the empty segments (no key/value data)
+              SegmentDescriptor[] mStream = 
+                getSegmentDescriptors(numSegmentsToConsider);
+              for (int i = 0; i < mStream.length; i++) {
+                if (mStream[i].nextRawKey()) {
+                  segmentsToMerge.add(mStream[i]);
+                  segmentsConsidered++;
+                  // Count the fact that we read some bytes in calling nextRawKey()
+                  updateProgress(mStream[i].in.getPosition());
+                }
+                else {
+                  mStream[i].cleanup();
+                  numSegments--; //we ignore this segment for the merge
+                }
               }
-              else {
-                mStream[i].cleanup();
-                numSegments--; //we ignore this segment for the merge
+              //if we have the desired number of segments
+              //or looked at all available segments, we break
+              if (segmentsConsidered == factor || 
+                  sortedSegmentSizes.size() == 0) {
+                break;
               }
+                
+              numSegmentsToConsider = factor - segmentsConsidered;
             }
-            //if we have the desired number of segments
-            //or looked at all available segments, we break
-            if (segmentsConsidered == factor || 
-                sortedSegmentSizes.size() == 0) {
-              break;
-            }
-              
-            numSegmentsToConsider = factor - segmentsConsidered;
-          }
-          //feed the streams to the priority queue
-          initialize(segmentsToMerge.size()); clear();
-          for (int i = 0; i < segmentsToMerge.size(); i++) {
-            put(segmentsToMerge.get(i));
-          }
-          //if we have lesser number of segments remaining, then just return the
-          //iterator, else do another single level merge
-          if (numSegments <= factor) {
-            //calculate the length of the remaining segments. Required for 
-            //calculating the merge progress
-            long totalBytes = 0;
-            for (int i = 0; i < segmentsToMerge.size(); i++) {
-              totalBytes += segmentsToMerge.get(i).segmentLength;
+            //if we have lesser number of segments remaining, then just return the
+            //iterator, else do another single level merge
+            if (numSegments <= factor && running.isEmpty()) {
+              //feed the streams to the loser tree
+              setSegments(segmentsToMerge);
+              //calculate the length of the remaining segments. Required for 
+              //calculating the merge progress
+              long totalBytes = 0;
+              for (int i = 0; i < segmentsToMerge.size(); i++) {
+                totalBytes += segmentsToMerge.get(i).segmentLength;
+              }
+              if (totalBytes != 0) //being paranoid
+                progPerByte = 1.0f / (float)totalBytes;
+              //reset factor to what it originally was
+              factor = origFactor;
+              merged = true;
+              return this;
+            } else if (!segmentsToMerge.isEmpty()) {
+              //we want to spread the creation of temp files on multiple disks if 
+              //available under the space constraints
+              long approxOutputSize = 0; 
+              for (SegmentDescriptor s : segmentsToMerge) {
+                approxOutputSize += s.segmentLength + 
+                                    ChecksumFileSystem.getApproxChkSumLength(
+                                    s.segmentLength);
+              }
+              Path tmpFilename = 
+                new Path(tmpDir, "intermediate").suffix("." + passNo);
+
+              Path outputFile =  lDirAlloc.getLocalPathForWrite(
+                                                  tmpFilename.toString(),
+                                                  approxOutputSize, conf);
+              if (!mergeThreadsHeld) {
+                finishIntermediate(writeIntermediate(segmentsToMerge,
+                                                     outputFile, progress,
+                                                     comparator));
+              } else {
+                running.add(submitIntermediate(segmentsToMerge, outputFile));
+              }
+              passNo++;
             }
-            if (totalBytes != 0) //being paranoid
-              progPerByte = 1.0f / (float)totalBytes;
-            //reset factor to what it originally was
+            //we are worried about only the first pass merge factor. So reset the 
+            //factor to what it originally was
             factor = origFactor;
-            return this;
-          } else {
-            //we want to spread the creation of temp files on multiple disks if 
-            //available under the space constraints
-            long approxOutputSize = 0; 
-            for (SegmentDescriptor s : segmentsToMerge) {
-              approxOutputSize += s.segmentLength + 
-                                  ChecksumFileSystem.getApproxChkSumLength(
-                                  s.segmentLength);
+          } while(true);
+        } finally {
+          factor = origFactor;
+          //if a pass failed, let the others finish before the caller cleans up
+          for (Future<IntermediateMerge> pass : running) {
+            try {
+              pass.get();
+            } catch (Exception e) {
+              LOG.debug("Abandoned intermediate merge failed", e);
             }
-            Path tmpFilename = 
-              new Path(tmpDir, "intermediate").suffix("." + passNo);
-
-            Path outputFile =  lDirAlloc.getLocalPathForWrite(
-                                                tmpFilename.toString(),
-                                                approxOutputSize, conf);
-            if(LOG.isDebugEnabled()) { 
-              LOG.debug("writing intermediate results to " + outputFile);
+          }
+          if (!merged) {
+            releaseMergeThreads();
+          }
+        }
+      }
+
+      /**
+       * Merge a set of segments into an intermediate file.
+       * @return the merged data
+       */
+      private IntermediateMerge writeIntermediate(
+          List<SegmentDescriptor> segmentsToMerge, Path outputFile,
+          Progressable passProgress, RawComparator passComparator)
+          throws IOException {
+        if(LOG.isDebugEnabled()) { 
+          LOG.debug("writing intermediate results to " + outputFile);
+        }
+        MergeQueue pass = new MergeQueue(
+          Collections.<SegmentDescriptor>emptyList(), tmpDir, passProgress,
+          passComparator);
+        try {
+          pass.setSegments(segmentsToMerge);
+          Writer writer = cloneFileAttributes(
+                                              fs.makeQualified(segmentsToMerge.get(0).segmentPathName), 
+                                              fs.makeQualified(outputFile), null);
+          writer.sync = null; //disable sync for temp files
+          writeFile(pass, writer);
+          writer.close();
+        } finally {
+          //we finished one single level merge; now clean up the loser tree
+          pass.close();
+        }
+        return new IntermediateMerge(outputFile, pass.totalBytesProcessed);
+      }
+
+      /**
+       * Run an intermediate merge on a merge thread, with a comparator of its
+       * own, as the other merges run at the same time.
+       */
+      private Future<IntermediateMerge> submitIntermediate(
+          final List<SegmentDescriptor> segmentsToMerge,
+          final Path outputFile) {
+        final RawComparator passComparator = newComparator();
+        return mergePool.submit(new Callable<IntermediateMerge>() {
+          public IntermediateMerge call() throws IOException {
+            return writeIntermediate(segmentsToMerge, outputFile, null,
+                                     passComparator);
+          }
+        });
+      }
+
+      /** Put the output of an intermediate merge back in the TreeMap. */
+      private void finishIntermediate(IntermediateMerge merged)
+        throws IOException {
+        updateProgress(merged.bytesProcessed);
+        SegmentDescriptor tempSegment = 
+          new SegmentDescriptor(0,
+              fs.getFileStatus(merged.file).getLen(), merged.file);
+        sortedSegmentSizes.put(tempSegment, null);
+      }
+
+      /**
+       * Wait for an intermediate merge on a merge thread, reporting progress
+       * meanwhile.
+       */
+      private void finishIntermediate(Future<IntermediateMerge> pass)
+        throws IOException {
+        IntermediateMerge merged = null;
+        try {
+          while (merged == null) {
+            try {
+              merged = pass.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException te) {
+              if (progress != null) {
+                progress.progress();
+              }
             }
-            Writer writer = cloneFileAttributes(
-                                                fs.makeQualified(segmentsToMerge.get(0).segmentPathName), 
-                                                fs.makeQualified(outputFile), null);
-            writer.sync = null; //disable sync for temp files
-            writeFile(this, writer);
-            writer.close();
-            
-            //we finished one single level merge; now clean up the priority 
-            //queue
-            this.close();
-            
-            SegmentDescriptor tempSegment = 
-              new SegmentDescriptor(0,
-                  fs.getFileStatus(outputFile).getLen(), outputFile);
-            //put the segment back in the TreeMap
-            sortedSegmentSizes.put(tempSegment, null);
-            numSegments = sortedSegmentSizes.size();
-            passNo++;
           }
-          //we are worried about only the first pass merge factor. So reset the 
-          //factor to what it originally was
-          factor = origFactor;
-        } while(true);
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted merging").initCause(ie);
+        } catch (ExecutionException ee) {
+          if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+          }
+          throw new IOException("Intermediate merge failed", ee.getCause());
+        }
+        finishIntermediate(merged);
       }
   
       //Hadoop-591
@@ -3296,6 +5240,186 @@ public class SequenceFile {
       }
     } // SequenceFile.Sorter.MergeQueue
 
+    /** The file written by an intermediate merge. */
+    private static class IntermediateMerge {
+      private final Path file;
+      /** The input read by the merge, for the progress of the whole merge */
+      private final long bytesProcessed;
+
+      IntermediateMerge(Path file, long bytesProcessed) {
+        this.file = file;
+        this.bytesProcessed = bytesProcessed;
+      }
+    }
+
+    /**
+     * A stream over a segment that reads the next chunk of the file on a
+     * prefetch thread while the merge works through the current one. Past
+     * the end of the segment it reads the file directly.
+     */
+    private static class PrefetchInputStream extends FSInputStream {
+      private static final int CHUNK_SIZE = 64 * 1024;
+      private static final byte[] EMPTY = new byte[0];
+
+      private final FSDataInputStream in;
+      private final ExecutorService pool;
+      /** Where prefetching stops */
+      private long limit;
+      /** The position of the file once the pending read is done */
+      private long fetchPos;
+      private Future<byte[]> pending = null;
+      private int pendingLength;
+      private byte[] chunk = EMPTY;
+      private int chunkOff = 0;
+      private long pos;
+
+      PrefetchInputStream(FSDataInputStream in, long limit,
+                          ExecutorService pool) throws IOException {
+        this.in = in;
+        this.limit = limit;
+        this.pool = pool;
+        this.pos = this.fetchPos = in.getPos();
+      }
+
+      private void prefetch() {
+        if (pending != null || fetchPos >= limit) {
+          return;
+        }
+        final int length = (int) Math.min(CHUNK_SIZE, limit - fetchPos);
+        pending = pool.submit(new Callable<byte[]>() {
+          public byte[] call() throws IOException {
+            byte[] buf = new byte[length];
+            int n = 0;
+            while (n < length) {
+              int read = in.read(buf, n, length - n);
+              if (read < 0) {
+                return Arrays.copyOf(buf, n);
+              }
+              n += read;
+            }
+            return buf;
+          }
+        });
+        pendingLength = length;
+        fetchPos += length;
+      }
+
+      /** Wait for the pending read to be done with the file. */
+      private byte[] finishPending() throws IOException {
+        Future<byte[]> read = pending;
+        pending = null;
+        byte[] result;
+        try {
+          result = read.get();
+        } catch (InterruptedException ie) {
+          throw (IOException)
+            new InterruptedIOException("Interrupted reading ahead").initCause(ie);
+        } catch (ExecutionException ee) {
+          if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+          }
+          throw new IOException("Failed to read ahead", ee.getCause());
+        }
+        if (result.length < pendingLength) {
+          // end of file
+          fetchPos -= pendingLength - result.length;
+          limit = fetchPos;
+        }
+        return result;
+      }
+
+      /**
+       * Make sure the current chunk has data at pos.
+       * @return false if pos is past the data read ahead
+       */
+      private boolean fill() throws IOException {
+        if (chunkOff < chunk.length) {
+          return true;
+        }
+        prefetch();
+        if (pending == null) {
+          return false;
+        }
+        chunk = finishPending();
+        chunkOff = 0;
+        // read on while the caller works through this chunk
+        prefetch();
+        return chunk.length > 0;
+      }
+
+      public int read() throws IOException {
+        if (fill()) {
+          pos++;
+          return chunk[chunkOff++] & 0xff;
+        }
+        int b = in.read();
+        if (b >= 0) {
+          pos++;
+          fetchPos++;
+        }
+        return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        if (fill()) {
+          int n = Math.min(len, chunk.length - chunkOff);
+          System.arraycopy(chunk, chunkOff, b, off, n);
+          chunkOff += n;
+          pos += n;
+          return n;
+        }
+        int n = in.read(b, off, len);
+        if (n > 0) {
+          pos += n;
+          fetchPos += n;
+        }
+        return n;
+      }
+
+      public void seek(long target) throws IOException {
+        long chunkStart = pos - chunkOff;
+        if (target >= chunkStart && target < chunkStart + chunk.length) {
+          chunkOff = (int) (target - chunkStart);
+          pos = target;
+          return;
+        }
+        if (pending != null) {
+          try {
+            finishPending();
+          } catch (InterruptedIOException iie) {
+            throw iie;
+          } catch (IOException ioe) {
+            // the data isn't wanted anyway
+          }
+        }
+        in.seek(target);
+        pos = fetchPos = target;
+        chunk = EMPTY;
+        chunkOff = 0;
+      }
+
+      public long getPos() throws IOException {
+        return pos;
+      }
+
+      public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+      }
+
+      public void close() throws IOException {
+        try {
+          if (pending != null) {
+            finishPending();
+          }
+        } finally {
+          in.close();
+        }
+      }
+    } // SequenceFile.Sorter.PrefetchInputStream
+
     /** This class defines a merge segment. This class can be subclassed to 
      * provide a customized cleanup method implementation. In this 
      * implementation, cleanup closes the file handle and deletes the file 
@@ -3308,6 +5432,7 @@ public class SequenceFile {
       boolean ignoreSync = true; //set to true for temp files
       private Reader in = null; 
       private DataOutputBuffer rawKey = null; //this will hold the current key
+      private long keyPrefix; //the prefix of the current key, if any
       private boolean preserveInput = false; //delete input segment files?
       
       /** Constructs a segment
@@ -3371,11 +5496,25 @@ public class SequenceFile {
       public boolean nextRawKey() throws IOException {
         if (in == null) {
           int bufferSize = getBufferSize(conf); 
-          Reader reader = new Reader(conf,
-                                     Reader.file(segmentPathName), 
-                                     Reader.bufferSize(bufferSize),
-                                     Reader.start(segmentOffset), 
-                                     Reader.length(segmentLength));
+          Reader reader;
+          if (prefetchPool == null) {
+            reader = new Reader(conf,
+                                Reader.file(segmentPathName), 
+                                Reader.bufferSize(bufferSize),
+                                Reader.start(segmentOffset), 
+                                Reader.length(segmentLength));
+          } else {
+            FileSystem segmentFs = segmentPathName.getFileSystem(conf);
+            FSDataInputStream segmentIn = new FSDataInputStream(
+              new PrefetchInputStream(segmentFs.open(segmentPathName,
+                                                     bufferSize),
+                                      segmentOffset + segmentLength,
+                                      prefetchPool));
+            reader = new Reader(conf,
+                                Reader.stream(segmentIn),
+                                Reader.start(segmentOffset),
+                                Reader.length(segmentLength));
+          }
         
           //sometimes we ignore syncs especially for temp merge files
           if (ignoreSync) reader.ignoreSync();
@@ -3392,6 +5531,10 @@ public class SequenceFile {
         rawKey.reset();
         int keyLength = 
           in.nextRawKey(rawKey);
+        if (keyLength >= 0 && prefixComparator != null) {
+          keyPrefix = prefixComparator.getNormalizedKeyPrefix(
+            rawKey.getData(), 0, keyLength);
+        }
         return (keyLength >= 0);
       }
 
@@ -3496,7 +5639,7 @@ public class SequenceFile {
       public List <SegmentDescriptor> getSegmentList() {
         return segments;
       }
-      public void cleanup() throws IOException {
+      public synchronized void cleanup() throws IOException {
         numSegmentsCleanedUp++;
         if (numSegmentsCleanedUp == numSegmentsContained) {
           fs.delete(inName, true);
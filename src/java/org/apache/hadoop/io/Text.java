@@ -310,7 +310,8 @@ public class Text extends BinaryComparable
   }
 
   /** A WritableComparator optimized for Text keys. */
-  public static class Comparator extends WritableComparator {
+  public static class Comparator extends WritableComparator
+    implements NormalizedKeyComparator {
     public Comparator() {
       super(Text.class);
     }
@@ -321,6 +322,11 @@ public class Text extends BinaryComparable
       int n2 = WritableUtils.decodeVIntSize(b2[s2]);
       return compareBytes(b1, s1+n1, l1-n1, b2, s2+n2, l2-n2);
     }
+
+    public long getNormalizedKeyPrefix(byte[] b, int s, int l) {
+      int n = WritableUtils.decodeVIntSize(b[s]);
+      return normalizedBytesPrefix(b, s+n, l-n);
+    }
   }
 
   static {
@@ -148,6 +148,32 @@ public class WritableComparator implements RawComparator {
     return compare((WritableComparable)a, (WritableComparable)b);
   }
 
+  /**
+   * Get a comparator's prefixes of normalized keys.
+   * @return the comparator as a {@link NormalizedKeyComparator}, or null if
+   *         it is not one or if a subclass overrode the order of raw keys
+   *         but not their prefixes
+   */
+  public static NormalizedKeyComparator getNormalizedKeyComparator(
+      RawComparator comparator) {
+    if (!(comparator instanceof NormalizedKeyComparator)) {
+      return null;
+    }
+    try {
+      Class<?> c = comparator.getClass();
+      Class<?> compareClass = c.getMethod("compare", byte[].class, int.class,
+          int.class, byte[].class, int.class, int.class).getDeclaringClass();
+      Class<?> prefixClass = c.getMethod("getNormalizedKeyPrefix",
+          byte[].class, int.class, int.class).getDeclaringClass();
+      if (!compareClass.isAssignableFrom(prefixClass)) {
+        return null;
+      }
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+    return (NormalizedKeyComparator) comparator;
+  }
+
   /** Lexicographic order of binary data. */
   public static int compareBytes(byte[] b1, int s1, int l1,
                                  byte[] b2, int s2, int l2) {
@@ -163,6 +189,22 @@ public class WritableComparator implements RawComparator {
     return l1 - l2;
   }
 
+  /**
+   * The first eight bytes of binary data as a prefix for a
+   * {@link NormalizedKeyComparator}, padded with zeros. Comparing the
+   * prefixes as signed longs agrees with {@link #compareBytes}.
+   */
+  public static long normalizedBytesPrefix(byte[] bytes, int start,
+                                           int length) {
+    long prefix = 0;
+    int n = Math.min(length, 8);
+    for (int i = 0; i < n; i++) {
+      prefix = (prefix << 8) | (bytes[start + i] & 0xff);
+    }
+    // unsigned to signed order
+    return (prefix << (8 * (8 - n))) ^ Long.MIN_VALUE;
+  }
+
   /** Compute hash for binary data. */
   public static int hashBytes(byte[] bytes, int offset, int length) {
     int hash = 1;
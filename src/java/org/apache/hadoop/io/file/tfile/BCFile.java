@@ -25,6 +25,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
@@ -36,6 +37,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.file.tfile.CompareUtils.Scalar;
@@ -434,6 +436,64 @@ final class BCFile {
       return ba;
     }
 
+    /**
+     * Compress the data of a Data Block with the compression algorithm of the
+     * data blocks, for {@link #appendCompressedDataBlock}. Unlike the other
+     * methods of the Writer, it may be called from several threads at once.
+     * 
+     * @param data
+     *          The uncompressed data.
+     * @param length
+     *          The length of the data.
+     * @param compressed
+     *          The buffer to append the compressed data to.
+     * @throws IOException
+     */
+    public void compressDataBlock(byte[] data, int length,
+        DataOutputBuffer compressed) throws IOException {
+      Algorithm compressAlgo = getDefaultCompressionAlgorithm();
+      Compressor compressor = compressAlgo.getCompressor();
+      try {
+        OutputStream os =
+            compressAlgo.createCompressionStream(compressed, compressor, 0);
+        os.write(data, 0, length);
+        // finishes the compression.
+        os.flush();
+      } finally {
+        compressAlgo.returnCompressor(compressor);
+      }
+    }
+
+    /**
+     * Add a Data Block compressed by {@link #compressDataBlock}. Data Blocks
+     * may not be added while a BlockAppender stream is active, nor after the
+     * first Meta Blocks.
+     * 
+     * @param compressed
+     *          The compressed data of the block.
+     * @param length
+     *          The length of the compressed data.
+     * @param rawSize
+     *          The length of the uncompressed data.
+     * @throws IOException
+     */
+    public void appendCompressedDataBlock(byte[] compressed, int length,
+        long rawSize) throws IOException {
+      if (blkInProgress == true) {
+        throw new IllegalStateException(
+            "Cannot add Data Block until previous block is closed.");
+      }
+
+      if (metaBlkSeen == true) {
+        throw new IllegalStateException(
+            "Cannot add Data Block after Meta Blocks.");
+      }
+
+      long begin = out.getPos();
+      out.write(compressed, 0, length);
+      dataIndex.addBlockRegion(new BlockRegion(begin, length, rawSize));
+    }
+
     /**
      * Callback to make sure a meta block is added to the internal list when its
      * stream is closed.
@@ -479,6 +539,9 @@ final class BCFile {
     // Index for meta blocks
     final MetaIndex metaIndex;
     final Version version;
+    // Cache of decompressed data blocks, and the name of the file in it
+    private final BlockCache cache;
+    private final String cacheName;
 
     /**
      * Intermediate class that maintain the state of a Readable Compression
@@ -509,6 +572,17 @@ final class BCFile {
         }
       }
 
+      /**
+       * State of a block read from the block cache.
+       */
+      public RBlockState(Algorithm compressionAlgo, BlockRegion region,
+          ByteBuffer block) {
+        this.compressAlgo = compressionAlgo;
+        this.region = region;
+        this.decompressor = null;
+        this.in = new CachedBlockInputStream(block);
+      }
+
       /**
        * Get the output stream for BlockAppender's consumption.
        * 
@@ -536,6 +610,47 @@ final class BCFile {
       }
     }
 
+    /**
+     * Input stream over a cached, decompressed block.
+     */
+    static private final class CachedBlockInputStream extends InputStream {
+      private final ByteBuffer block;
+
+      CachedBlockInputStream(ByteBuffer block) {
+        this.block = block;
+      }
+
+      @Override
+      public int read() {
+        return block.hasRemaining() ? block.get() & 0xff : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+          return 0;
+        }
+        if (!block.hasRemaining()) {
+          return -1;
+        }
+        len = Math.min(len, block.remaining());
+        block.get(b, off, len);
+        return len;
+      }
+
+      @Override
+      public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, block.remaining()));
+        block.position(block.position() + skipped);
+        return skipped;
+      }
+
+      @Override
+      public int available() {
+        return block.remaining();
+      }
+    }
+
     /**
      * Access point to read a block.
      */
@@ -613,8 +728,32 @@ final class BCFile {
      */
     public Reader(FSDataInputStream fin, long fileLength, Configuration conf)
         throws IOException {
+      this(fin, fileLength, conf, null, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param fin
+     *          FS input stream.
+     * @param fileLength
+     *          Length of the corresponding file
+     * @param cache
+     *          Cache of decompressed data blocks, or null for none.
+     * @param cacheName
+     *          The name of the file in the cache, which must tell it apart from
+     *          the other files cached.
+     * @throws IOException
+     */
+    public Reader(FSDataInputStream fin, long fileLength, Configuration conf,
+        BlockCache cache, String cacheName) throws IOException {
+      if (cache != null && cacheName == null) {
+        throw new IllegalArgumentException("Cached file must have a name");
+      }
       this.in = fin;
       this.conf = conf;
+      this.cache = cache;
+      this.cacheName = cacheName;
 
       // move the cursor to the beginning of the tail, containing: offset to the
       // meta block index, version and magic
@@ -720,7 +859,24 @@ final class BCFile {
       }
 
       BlockRegion region = dataIndex.getBlockRegionList().get(blockIndex);
-      return createReader(dataIndex.getDefaultCompressionAlgorithm(), region);
+      Algorithm compressAlgo = dataIndex.getDefaultCompressionAlgorithm();
+      if (cache == null || region.getRawSize() > cache.getCapacity()) {
+        return createReader(compressAlgo, region);
+      }
+
+      ByteBuffer block = cache.get(cacheName, blockIndex);
+      if (block == null) {
+        byte[] data = new byte[(int) region.getRawSize()];
+        BlockReader blockR = createReader(compressAlgo, region);
+        try {
+          blockR.readFully(data);
+        } finally {
+          blockR.close();
+        }
+        cache.put(cacheName, blockIndex, data);
+        block = ByteBuffer.wrap(data);
+      }
+      return new BlockReader(new RBlockState(compressAlgo, region, block));
     }
 
     private BlockReader createReader(Algorithm compressAlgo, BlockRegion region)
@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.hadoop.io.file.tfile;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * A cache of decompressed TFile data blocks, which may be shared by any
+ * number of {@link TFile.Reader}s. Blocks are identified by a name the
+ * readers are given for their file together with the index of the block,
+ * and the least recently used blocks are evicted once the blocks take more
+ * than the capacity of the cache. The blocks may be kept off the Java heap.
+ *
+ * <p>Readers that miss the same block at the same time each decompress it;
+ * the cache only avoids decompressing blocks again later.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class BlockCache {
+  private final long capacity;
+  private final boolean offHeap;
+
+  // access ordered, so the first block is the least recently used
+  private final LinkedHashMap<BlockKey, ByteBuffer> blocks =
+      new LinkedHashMap<BlockKey, ByteBuffer>(16, 0.75f, true);
+  private long size = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * Identity of a block.
+   */
+  private static final class BlockKey {
+    private final String file;
+    private final int blockIndex;
+
+    BlockKey(String file, int blockIndex) {
+      this.file = file;
+      this.blockIndex = blockIndex;
+    }
+
+    @Override
+    public int hashCode() {
+      return file.hashCode() * 31 + blockIndex;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof BlockKey)) return false;
+      BlockKey other = (BlockKey) obj;
+      return blockIndex == other.blockIndex && file.equals(other.file);
+    }
+  }
+
+  /**
+   * Constructor, for a cache on the Java heap.
+   *
+   * @param capacity
+   *          The most bytes of decompressed blocks to keep.
+   */
+  public BlockCache(long capacity) {
+    this(capacity, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param capacity
+   *          The most bytes of decompressed blocks to keep.
+   * @param offHeap
+   *          Whether to keep the blocks in direct buffers, outside of the Java
+   *          heap.
+   */
+  public BlockCache(long capacity, boolean offHeap) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Negative capacity " + capacity);
+    }
+    this.capacity = capacity;
+    this.offHeap = offHeap;
+  }
+
+  /**
+   * Look up a block.
+   *
+   * @return a read only buffer of the block, positioned at its start, or null
+   *         if it is not cached.
+   */
+  ByteBuffer get(String file, int blockIndex) {
+    ByteBuffer block;
+    synchronized (this) {
+      block = blocks.get(new BlockKey(file, blockIndex));
+      if (block == null) {
+        ++misses;
+        return null;
+      }
+      ++hits;
+    }
+    return block.duplicate();
+  }
+
+  /**
+   * Cache a block, evicting the least recently used blocks to make room.
+   * Blocks larger than the whole cache are not cached.
+   *
+   * @param data
+   *          the decompressed block, which the cache keeps if it is on heap.
+   */
+  void put(String file, int blockIndex, byte[] data) {
+    if (data.length > capacity) {
+      return;
+    }
+    ByteBuffer block;
+    if (offHeap) {
+      block = ByteBuffer.allocateDirect(data.length);
+      block.put(data);
+      block.flip();
+    } else {
+      block = ByteBuffer.wrap(data);
+    }
+    block = block.asReadOnlyBuffer();
+    synchronized (this) {
+      ByteBuffer old = blocks.put(new BlockKey(file, blockIndex), block);
+      if (old != null) {
+        size -= old.capacity();
+      }
+      size += data.length;
+      Iterator<ByteBuffer> it = blocks.values().iterator();
+      while (size > capacity) {
+        size -= it.next().capacity();
+        it.remove();
+        ++evictions;
+      }
+    }
+  }
+
+  /**
+   * Drop all blocks of a file, for instance after it was deleted.
+   *
+   * @param file
+   *          The name the readers of the file were given for it.
+   */
+  public synchronized void invalidate(String file) {
+    Iterator<Map.Entry<BlockKey, ByteBuffer>> it = blocks.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<BlockKey, ByteBuffer> entry = it.next();
+      if (entry.getKey().file.equals(file)) {
+        size -= entry.getValue().capacity();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop all blocks.
+   */
+  public synchronized void clear() {
+    blocks.clear();
+    size = 0;
+  }
+
+  /**
+   * Get the most bytes of decompressed blocks the cache keeps.
+   *
+   * @return the capacity of the cache.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Get the bytes of decompressed blocks the cache keeps now.
+   *
+   * @return the size of the cached blocks.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * Get the number of blocks the cache keeps now.
+   *
+   * @return the number of cached blocks.
+   */
+  public synchronized int getBlockCount() {
+    return blocks.size();
+  }
+
+  /**
+   * Get the number of lookups that found their block.
+   *
+   * @return the number of cache hits.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Get the number of lookups that did not find their block.
+   *
+   * @return the number of cache misses.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Get the number of blocks evicted to make room for others.
+   *
+   * @return the number of evictions.
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+}
@@ -26,7 +26,9 @@ import org.apache.hadoop.fs.FSDataInputStream;
  * BoundedRangeFIleInputStream abstracts a contiguous region of a Hadoop
  * FSDataInputStream as a regular input stream. One can create multiple
  * BoundedRangeFileInputStream on top of the same FSDataInputStream and they
- * would not interfere with each other.
+ * would not interfere with each other. Reads are positional reads, which leave
+ * the position of the FSDataInputStream alone, so the streams may also be read
+ * from different threads at once.
  */
 class BoundedRangeFileInputStream extends InputStream {
 
@@ -64,12 +66,9 @@ class BoundedRangeFileInputStream extends InputStream {
 
   @Override
   public int available() throws IOException {
-    int avail = in.available();
-    if (pos + avail > end) {
-      avail = (int) (end - pos);
-    }
-
-    return avail;
+    // the position of the underlying stream is not ours, so its estimate
+    // would not be either
+    return (int) Math.min(Integer.MAX_VALUE, end - pos);
   }
 
   @Override
@@ -92,11 +91,7 @@ class BoundedRangeFileInputStream extends InputStream {
 
     int n = (int) Math.min(Integer.MAX_VALUE, Math.min(len, (end - pos)));
     if (n == 0) return -1;
-    int ret = 0;
-    synchronized (in) {
-      in.seek(pos);
-      ret = in.read(b, off, n);
-    }
+    int ret = in.read(pos, b, off, n);
     if (ret < 0) {
       end = pos;
       return -1;
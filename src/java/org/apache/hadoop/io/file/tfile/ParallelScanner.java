@@ -0,0 +1,334 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Location;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+/**
+ * Scans a whole TFile with several scanners at once, each on a thread of its
+ * own and over its own range of data blocks, which are read with positioned
+ * reads. The entries are either handed to an {@link EntryHandler} as they are
+ * read, from all of the threads at once, or returned one after the other by
+ * {@link #next(BytesWritable, BytesWritable)} in the order of the TFile, which
+ * is the key order if it is sorted.
+ * <p>
+ * The TFile is split into a few ranges per thread, so threads that finish
+ * their ranges early take over the remaining ones. For ordered scans, every
+ * range being scanned buffers a few batches of entries ahead of the caller.
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class ParallelScanner implements Closeable {
+  // ranges of data blocks to split the TFile into per thread.
+  private static final int RANGES_PER_THREAD = 4;
+  // bytes of entries in a batch of an ordered scan.
+  private static final int BATCH_SIZE = 256 * 1024;
+  // batches a range of an ordered scan buffers ahead of the caller.
+  private static final int BATCHES_PER_RANGE = 4;
+
+  /**
+   * Handler of the entries of an unordered scan.
+   */
+  public interface EntryHandler {
+    /**
+     * Handle an entry. It is called from all of the scanning threads at once,
+     * and the entry is only valid until it returns.
+     *
+     * @param entry
+     *          The entry.
+     * @throws IOException
+     *           to stop the scan, which then throws it.
+     */
+    void handle(Scanner.Entry entry) throws IOException;
+  }
+
+  /**
+   * A batch of entries of an ordered scan, or the end or failure of a range.
+   */
+  private static final class Batch {
+    final DataOutputBuffer data;
+    final IOException error;
+
+    Batch(DataOutputBuffer data, IOException error) {
+      this.data = data;
+      this.error = error;
+    }
+  }
+
+  private static final Batch END_OF_RANGE = new Batch(null, null);
+
+  private final Reader reader;
+  // the ranges, as the indexes of their first data blocks and the end.
+  private final int[] rangeStarts;
+  private final ExecutorService pool;
+
+  // ordered scan: the batches of each range, and the current batch.
+  private List<BlockingQueue<Batch>> rangeBatches = null;
+  private int currentRange = 0;
+  private final DataInputBuffer currentBatch = new DataInputBuffer();
+
+  /**
+   * Constructor
+   *
+   * @param reader
+   *          The TFile reader, which must stay open until the parallel scanner
+   *          is closed.
+   * @param threads
+   *          The number of threads to scan with.
+   * @throws IOException
+   */
+  public ParallelScanner(Reader reader, int threads) throws IOException {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Bad number of threads " + threads);
+    }
+    this.reader = reader;
+    // ensure the TFile index is loaded throughout the life of the scanners.
+    reader.checkTFileDataIndex();
+    int blocks = reader.end().getBlockIndex();
+    int ranges = (int) Math.min(blocks, (long) threads * RANGES_PER_THREAD);
+    rangeStarts = new int[ranges + 1];
+    for (int i = 1; i <= ranges; ++i) {
+      rangeStarts[i] = (int) ((long) blocks * i / ranges);
+    }
+
+    final String name = "TFile parallel scanner";
+    pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Get the number of ranges of data blocks the TFile is split into.
+   *
+   * @return the number of ranges.
+   */
+  public int getRangeCount() {
+    return rangeStarts.length - 1;
+  }
+
+  private Scanner createRangeScanner(int range) throws IOException {
+    return new Scanner(reader, new Location(rangeStarts[range], 0),
+        new Location(rangeStarts[range + 1], 0));
+  }
+
+  /**
+   * Scan the whole TFile, handing each entry to the handler from whichever
+   * thread read it. It may be called any number of times, but not once an
+   * ordered scan has started.
+   *
+   * @param handler
+   *          The handler of the entries.
+   * @return the number of entries handled.
+   * @throws IOException
+   *           the first exception of the scanners or the handler, once all of
+   *           the threads stopped scanning.
+   */
+  public long scan(final EntryHandler handler) throws IOException {
+    if (rangeBatches != null) {
+      throw new IllegalStateException("Ordered scan in progress");
+    }
+    List<Future<Long>> counts = new ArrayList<Future<Long>>();
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    for (int i = 0; i < getRangeCount(); ++i) {
+      final int range = i;
+      counts.add(pool.submit(new Callable<Long>() {
+        public Long call() throws IOException {
+          Scanner scanner = createRangeScanner(range);
+          long count = 0;
+          try {
+            while (!scanner.atEnd() && !failed.get()) {
+              handler.handle(scanner.entry());
+              ++count;
+              scanner.advance();
+            }
+          } catch (IOException e) {
+            failed.set(true);
+            throw e;
+          } catch (RuntimeException e) {
+            failed.set(true);
+            throw e;
+          } finally {
+            scanner.close();
+          }
+          return count;
+        }
+      }));
+    }
+
+    long total = 0;
+    IOException error = null;
+    for (Future<Long> count : counts) {
+      try {
+        total += count.get();
+      } catch (InterruptedException ie) {
+        failed.set(true);
+        if (error == null) {
+          error = (IOException) new InterruptedIOException(
+              "Interrupted while scanning").initCause(ie);
+        }
+      } catch (ExecutionException ee) {
+        if (error == null) {
+          if (ee.getCause() instanceof IOException) {
+            error = (IOException) ee.getCause();
+          } else {
+            error = new IOException("Failed to scan", ee.getCause());
+          }
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+    return total;
+  }
+
+  /**
+   * Start an ordered scan: every range copies its entries into batches, which
+   * are queued until the caller gets to them.
+   */
+  private void startOrderedScan() {
+    rangeBatches = new ArrayList<BlockingQueue<Batch>>();
+    // the pool runs the ranges in order, so the range the caller waits for
+    // is always being scanned.
+    for (int i = 0; i < getRangeCount(); ++i) {
+      final int range = i;
+      final BlockingQueue<Batch> batches =
+          new ArrayBlockingQueue<Batch>(BATCHES_PER_RANGE);
+      rangeBatches.add(batches);
+      pool.submit(new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          try {
+            scanRange(range, batches);
+            batches.put(END_OF_RANGE);
+          } catch (IOException e) {
+            batches.put(new Batch(null, e));
+          } catch (RuntimeException e) {
+            batches.put(new Batch(null, new IOException("Failed to scan", e)));
+          }
+          return null;
+        }
+      });
+    }
+  }
+
+  private void scanRange(int range, BlockingQueue<Batch> batches)
+      throws IOException, InterruptedException {
+    Scanner scanner = createRangeScanner(range);
+    try {
+      BytesWritable key = new BytesWritable();
+      BytesWritable value = new BytesWritable();
+      DataOutputBuffer batch = new DataOutputBuffer(BATCH_SIZE);
+      while (!scanner.atEnd()) {
+        scanner.entry().get(key, value);
+        WritableUtils.writeVInt(batch, key.getLength());
+        batch.write(key.getBytes(), 0, key.getLength());
+        WritableUtils.writeVInt(batch, value.getLength());
+        batch.write(value.getBytes(), 0, value.getLength());
+        if (batch.getLength() >= BATCH_SIZE) {
+          batches.put(new Batch(batch, null));
+          batch = new DataOutputBuffer(BATCH_SIZE);
+        }
+        scanner.advance();
+      }
+      if (batch.getLength() > 0) {
+        batches.put(new Batch(batch, null));
+      }
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * Get the next entry of an ordered scan of the whole TFile, which starts
+   * with the first call. The entries are returned in the order of the TFile.
+   *
+   * @param key
+   *          BytesWritable to hold the key.
+   * @param value
+   *          BytesWritable to hold the value.
+   * @return true if an entry was read; false at the end of the TFile.
+   * @throws IOException
+   */
+  public boolean next(BytesWritable key, BytesWritable value)
+      throws IOException {
+    if (rangeBatches == null) {
+      startOrderedScan();
+    }
+    while (currentBatch.getPosition() >= currentBatch.getLength()) {
+      if (currentRange >= getRangeCount()) {
+        return false;
+      }
+      Batch batch;
+      try {
+        batch = rangeBatches.get(currentRange).take();
+      } catch (InterruptedException ie) {
+        throw (IOException) new InterruptedIOException(
+            "Interrupted while scanning").initCause(ie);
+      }
+      if (batch.error != null) {
+        throw batch.error;
+      }
+      if (batch == END_OF_RANGE) {
+        ++currentRange;
+      } else {
+        currentBatch.reset(batch.data.getData(), batch.data.getLength());
+      }
+    }
+    int keyLength = WritableUtils.readVInt(currentBatch);
+    key.setSize(keyLength);
+    currentBatch.readFully(key.getBytes(), 0, keyLength);
+    int valueLength = WritableUtils.readVInt(currentBatch);
+    value.setSize(valueLength);
+    currentBatch.readFully(value.getBytes(), 0, valueLength);
+    return true;
+  }
+
+  /**
+   * Stop the scanning threads. The TFile reader is not closed.
+   */
+  public void close() {
+    pool.shutdownNow();
+  }
+}
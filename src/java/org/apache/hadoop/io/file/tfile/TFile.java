@@ -25,9 +25,17 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -51,6 +59,9 @@ import org.apache.hadoop.io.file.tfile.CompareUtils.BytesComparator;
 import org.apache.hadoop.io.file.tfile.CompareUtils.MemcmpRawComparator;
 import org.apache.hadoop.io.file.tfile.Utils.Version;
 import org.apache.hadoop.io.serializer.JavaSerializationComparator;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
 
 /**
  * A TFile is a container of key-value pairs. Both keys and values are type-less
@@ -94,6 +105,21 @@ import org.apache.hadoop.io.serializer.JavaSerializationComparator;
  * FSDataOutputStream. Integer (in bytes). Default to 256KB.
  * <li><b>tfile.fs.input.buffer.size</b>: Buffer size used for
  * FSDataInputStream. Integer (in bytes). Default to 256KB.
+ * <li><b>tfile.data.block.restart.interval</b>: Number of keys between restart
+ * points in data blocks. Integer. If positive, each key is stored as the
+ * length of the prefix it shares with the previous key followed by the rest of
+ * it, except for every so many keys of a block, which are stored in full and
+ * indexed at the end of the block, so a scanner binary searches them when it
+ * seeks within the block. Such TFiles cannot be read by releases that predate
+ * the encoding. Default to 0, which stores all keys in full.
+ * <li><b>tfile.bloom.error.rate</b>: False positive rate of bloom filters of
+ * the keys of each data block. Float. If positive, TFile.Writer adds the bloom
+ * filters in a meta block, and {@link TFile.Reader#probablyHasKey(byte[])} and
+ * {@link TFile.Reader.Scanner#seekToExact(byte[])} consult them before reading
+ * any data block. Default to 0, which adds no bloom filters.
+ * <li><b>tfile.bulk.compression.threads</b>: Number of threads compressing the
+ * data blocks of {@link TFile.Writer#appendBatch}. Integer. Default to the
+ * number of processors.
  * </ul>
  * <p>
  * Suggestions on performance optimization.
@@ -107,12 +133,16 @@ import org.apache.hadoop.io.serializer.JavaSerializationComparator;
  * conclusion of each data block, which leads to an FS I/O flush). Further, due
  * to the internal caching in Compression codec, the smallest possible block
  * size would be around 20KB-30KB.
- * <li>The current implementation does not offer true multi-threading for
- * reading. The implementation uses FSDataInputStream seek()+read(), which is
- * shown to be much faster than positioned-read call in single thread mode.
- * However, it also means that if multiple threads attempt to access the same
- * TFile (using multiple scanners) simultaneously, the actual I/O is carried out
- * sequentially even if they access different DFS blocks.
+ * <li>Multi-threaded reading. Data blocks are read with positioned reads, so
+ * scanners of the same TFile on different threads carry out their I/O
+ * concurrently. {@link ParallelScanner} scans a whole TFile that way, with a
+ * scanner per range of data blocks.
+ * <li>Prefix compressed keys. Sorted keys that share long prefixes (such as
+ * URLs or row keys) take much less space with a restart interval of 16 or so,
+ * and seeking within a block then compares a handful of keys instead of every
+ * key before the target. Scanners of such TFiles hold the data block they are
+ * in as a whole in memory, so values should not be much larger than the
+ * minimum block size.
  * <li>Compression codec. Use "none" if the data is not very compressable (by
  * compressable, I mean a compression ratio at least 2:1). Generally, use "lzo"
  * as the starting point for experimenting. "gz" overs slightly better
@@ -138,6 +168,11 @@ public class TFile {
       "tfile.fs.input.buffer.size";
   private static final String FS_OUTPUT_BUF_SIZE_ATTR =
       "tfile.fs.output.buffer.size";
+  private static final String RESTART_INTERVAL_ATTR =
+      "tfile.data.block.restart.interval";
+  private static final String BLOOM_ERROR_RATE_ATTR = "tfile.bloom.error.rate";
+  private static final String BULK_COMPRESSION_THREADS_ATTR =
+      "tfile.bulk.compression.threads";
 
   static int getChunkBufferSize(Configuration conf) {
     int ret = conf.getInt(CHUNK_BUF_SIZE_ATTR, 1024 * 1024);
@@ -152,8 +187,27 @@ public class TFile {
     return conf.getInt(FS_OUTPUT_BUF_SIZE_ATTR, 256 * 1024);
   }
 
+  static int getRestartInterval(Configuration conf) {
+    int ret = conf.getInt(RESTART_INTERVAL_ATTR, 0);
+    return (ret > 0) ? ret : 0;
+  }
+
+  static float getBloomErrorRate(Configuration conf) {
+    float ret = conf.getFloat(BLOOM_ERROR_RATE_ATTR, 0);
+    return (ret > 0 && ret < 1) ? ret : 0;
+  }
+
+  static int getBulkCompressionThreads(Configuration conf) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int ret = conf.getInt(BULK_COMPRESSION_THREADS_ATTR, processors);
+    return (ret > 0) ? ret : processors;
+  }
+
   private static final int MAX_KEY_SIZE = 64 * 1024; // 64KB
-  static final Version API_VERSION = new Version((short) 1, (short) 0);
+  // TFiles with prefix compressed keys in their data blocks.
+  static final Version API_VERSION = new Version((short) 2, (short) 0);
+  // TFiles with all keys stored in full, still written by default.
+  static final Version API_VERSION_1 = new Version((short) 1, (short) 0);
 
   /** compression: gzip */
   public static final String COMPRESSION_GZ = "gz";
@@ -225,6 +279,41 @@ public class TFile {
     // buffer used by chunk codec
     private byte[] valueBuffer;
 
+    // number of keys between restart points, 0 if keys are stored in full.
+    private final int restartInterval;
+    // offsets of the restart points in the current data block.
+    private final ArrayList<Integer> restarts = new ArrayList<Integer>();
+
+    // false positive rate of the bloom filters, 0 if there are none.
+    private final float bloomErrorRate;
+    // keys of the current data block, and the bloom filters of the others.
+    private final ArrayList<byte[]> bloomKeys = new ArrayList<byte[]>();
+    private final DataOutputBuffer bloomFilters = new DataOutputBuffer();
+
+    // bulk loading: the data block being built, the blocks being compressed,
+    // in order, and the threads compressing them.
+    private DataOutputBuffer bulkBlock = null;
+    private final LinkedList<Future<CompressedBlock>> bulkBlocks =
+        new LinkedList<Future<CompressedBlock>>();
+    private ExecutorService bulkPool = null;
+    private int bulkThreads;
+    // raw and compressed bytes of the bulk loaded blocks written so far.
+    private long bulkRawBytes = 0;
+    private long bulkCompressedBytes = 0;
+
+    /**
+     * A data block compressed for bulk loading.
+     */
+    private static final class CompressedBlock {
+      final DataOutputBuffer data;
+      final int rawSize;
+
+      CompressedBlock(DataOutputBuffer data, int rawSize) {
+        this.data = data;
+        this.rawSize = rawSize;
+      }
+    }
+
     /**
      * Writer states. The state always transits in circles: READY -> IN_KEY ->
      * END_KEY -> IN_VALUE -> READY.
@@ -282,7 +371,9 @@ public class TFile {
         String compressName, String comparator, Configuration conf)
         throws IOException {
       sizeMinBlock = minBlockSize;
-      tfileMeta = new TFileMeta(comparator);
+      restartInterval = getRestartInterval(conf);
+      bloomErrorRate = getBloomErrorRate(conf);
+      tfileMeta = new TFileMeta(comparator, restartInterval);
       tfileIndex = new TFileIndex(tfileMeta.getComparator());
 
       writerBCF = new BCFile.Writer(fsdos, compressName, conf);
@@ -331,9 +422,25 @@ public class TFile {
             outIndex.close();
           }
 
+          // last, write out data:TFile.bloom if asked for
+          if (bloomErrorRate > 0) {
+            BlockAppender outBloom =
+                writerBCF.prepareMetaBlock(BLOOM_BLOCK_NAME, COMPRESSION_NONE);
+            try {
+              Utils.writeVInt(outBloom, tfileIndex.getEntryCount());
+              outBloom.write(bloomFilters.getData(), 0, bloomFilters
+                  .getLength());
+            } finally {
+              outBloom.close();
+            }
+          }
+
           writerBCF.close();
         }
       } finally {
+        if (bulkPool != null) {
+          bulkPool.shutdownNow();
+        }
         IOUtils.cleanup(LOG, blkAppender, writerBCF);
         blkAppender = null;
         writerBCF = null;
@@ -411,6 +518,212 @@ public class TFile {
       }
     }
 
+    /**
+     * Add a batch of key-value pairs to the TFile in bulk. Synonymous to
+     * appending each of the pairs, but the data blocks are built without the
+     * key and value streams, and compressed by a pool of threads (see
+     * tfile.bulk.compression.threads) while the next ones are built. The
+     * blocks are written to the TFile in order, and since their compressed
+     * size is not known while they are built, they are cut at the raw size
+     * that the compression ratio of the blocks written so far suggests.
+     * 
+     * @param keys
+     *          buffer of the keys.
+     * @param keyOffsets
+     *          offsets of the keys in their buffer, followed by the offset
+     *          where the last key ends, so count + 1 offsets.
+     * @param values
+     *          buffer of the values.
+     * @param valueOffsets
+     *          offsets of the values in their buffer, followed by the offset
+     *          where the last value ends, so count + 1 offsets.
+     * @param count
+     *          the number of key-value pairs.
+     * @throws IOException
+     *           Upon IO errors.
+     *           <p>
+     *           If an exception is thrown, the TFile will be in an inconsistent
+     *           state. The only legitimate call after that would be close
+     */
+    public void appendBatch(byte[] keys, int[] keyOffsets, byte[] values,
+        int[] valueOffsets, int count) throws IOException {
+      if (state != State.READY) {
+        throw new IllegalStateException("Incorrect state to append a batch: "
+            + state.name());
+      }
+      if (count < 0 || keyOffsets.length <= count
+          || valueOffsets.length <= count) {
+        throw new IndexOutOfBoundsException("Bad batch count " + count);
+      }
+      if (count == 0) {
+        return;
+      }
+
+      ++errorCount;
+      if (blkAppender != null) {
+        finishDataBlock(true);
+      }
+      if (bulkBlock == null) {
+        bulkBlock = new DataOutputBuffer(sizeMinBlock);
+      }
+      if (bulkPool == null) {
+        bulkThreads = getBulkCompressionThreads(conf);
+        bulkPool =
+            Executors.newFixedThreadPool(bulkThreads, new ThreadFactory() {
+              public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TFile bulk compression");
+                t.setDaemon(true);
+                return t;
+              }
+            });
+      }
+
+      byte[] lastKey = lastKeyBufferOS.getBuffer();
+      int lastOffset = 0;
+      int lastLen = lastKeyBufferOS.size();
+      for (int i = 0; i < count; ++i) {
+        int koff = keyOffsets[i];
+        int klen = keyOffsets[i + 1] - koff;
+        int voff = valueOffsets[i];
+        int vlen = valueOffsets[i + 1] - voff;
+        if ((koff | klen | (keys.length - (koff + klen))) < 0) {
+          throw new IndexOutOfBoundsException(
+              "Bad key buffer offset-length combination.");
+        }
+        if ((voff | vlen | (values.length - (voff + vlen))) < 0) {
+          throw new IndexOutOfBoundsException(
+              "Bad value buffer offset-length combination.");
+        }
+        if (klen > MAX_KEY_SIZE) {
+          throw new IOException("Key of " + klen
+              + " bytes is longer than the limit of " + MAX_KEY_SIZE);
+        }
+
+        if (tfileMeta.isSorted() && tfileMeta.getRecordCount() > 0) {
+          if (tfileMeta.getComparator().compare(keys, koff, klen, lastKey,
+              lastOffset, lastLen) < 0) {
+            throw new IOException("Keys are not added in sorted order");
+          }
+        }
+        if (tfileIndex.getFirstKey() == null) {
+          tfileIndex.setFirstKey(keys, koff, klen);
+        }
+        if (restartInterval > 0) {
+          writePrefixCompressedKey(bulkBlock, bulkBlock.getLength(), keys,
+              koff, klen, lastKey, lastOffset, lastLen);
+        } else {
+          Utils.writeVInt(bulkBlock, klen);
+          bulkBlock.write(keys, koff, klen);
+        }
+        // a value in a single chunk.
+        Utils.writeVInt(bulkBlock, vlen);
+        bulkBlock.write(values, voff, vlen);
+        if (bloomErrorRate > 0 && klen > 0) {
+          byte[] bloomKey = new byte[klen];
+          System.arraycopy(keys, koff, bloomKey, 0, klen);
+          bloomKeys.add(bloomKey);
+        }
+        blkRecordCount++;
+        tfileMeta.incRecordCount();
+
+        lastKey = keys;
+        lastOffset = koff;
+        lastLen = klen;
+        if (bulkBlock.getLength() >= getBulkBlockSize()) {
+          finishBulkBlock(lastKey, lastOffset, lastLen);
+        }
+      }
+
+      lastKeyBufferOS.reset();
+      lastKeyBufferOS.write(lastKey, lastOffset, lastLen);
+      --errorCount;
+    }
+
+    /**
+     * Get the raw size to cut bulk loaded blocks at, so that they are about
+     * the minimum block size compressed.
+     */
+    private int getBulkBlockSize() {
+      if (bulkCompressedBytes == 0) {
+        return sizeMinBlock;
+      }
+      return (int) Math.min(Integer.MAX_VALUE / 2, (double) sizeMinBlock
+          * bulkRawBytes / bulkCompressedBytes);
+    }
+
+    /**
+     * Hand the bulk loaded block being built to the compression threads, and
+     * write out the compressed blocks that are ahead of what the threads can
+     * work on.
+     */
+    private void finishBulkBlock(byte[] lastKey, int lastOffset, int lastLen)
+        throws IOException {
+      if (blkRecordCount == 0) {
+        return;
+      }
+      tfileIndex.addEntry(new TFileIndexEntry(lastKey, lastOffset, lastLen,
+          blkRecordCount));
+      if (restartInterval > 0) {
+        writeRestarts(bulkBlock);
+      }
+      if (bloomErrorRate > 0) {
+        addBloomFilter();
+      }
+      final DataOutputBuffer raw = bulkBlock;
+      bulkBlock = new DataOutputBuffer(raw.getLength());
+      blkRecordCount = 0;
+
+      bulkBlocks.add(bulkPool.submit(new Callable<CompressedBlock>() {
+        public CompressedBlock call() throws IOException {
+          DataOutputBuffer compressed = new DataOutputBuffer(raw.getLength());
+          writerBCF.compressDataBlock(raw.getData(), raw.getLength(),
+              compressed);
+          return new CompressedBlock(compressed, raw.getLength());
+        }
+      }));
+      // the first block tells the compression ratio to size the others by.
+      writeBulkBlocks(bulkCompressedBytes == 0 ? 0 : 2 * bulkThreads);
+    }
+
+    /**
+     * Write out compressed bulk loaded blocks, in order, until no more than
+     * the given number are left.
+     */
+    private void writeBulkBlocks(int pending) throws IOException {
+      while (bulkBlocks.size() > pending) {
+        CompressedBlock block;
+        try {
+          block = bulkBlocks.removeFirst().get();
+        } catch (InterruptedException ie) {
+          throw (IOException) new InterruptedIOException(
+              "Interrupted while compressing a data block").initCause(ie);
+        } catch (ExecutionException ee) {
+          if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
+          }
+          throw new IOException("Failed to compress a data block", ee
+              .getCause());
+        }
+        writerBCF.appendCompressedDataBlock(block.data.getData(), block.data
+            .getLength(), block.rawSize);
+        bulkRawBytes += block.rawSize;
+        bulkCompressedBytes += block.data.getLength();
+      }
+    }
+
+    /**
+     * Finish the bulk loaded blocks and write them all out, before any other
+     * block is written.
+     */
+    private void finishBulkBlocks() throws IOException {
+      if (bulkBlock == null) {
+        return;
+      }
+      finishBulkBlock(lastKeyBufferOS.getBuffer(), 0, lastKeyBufferOS.size());
+      bulkBlock = null;
+      writeBulkBlocks(0);
+    }
+
     /**
      * Helper class to register key after close call on key append stream.
      */
@@ -446,11 +759,23 @@ public class TFile {
                 + expectedLength + " actual=" + len);
           }
 
-          Utils.writeVInt(blkAppender, len);
-          blkAppender.write(key, 0, len);
+          if (restartInterval > 0) {
+            writePrefixCompressedKey(blkAppender, blkAppender.getRawSize(),
+                key, 0, len, lastKeyBufferOS.getBuffer(), 0, lastKeyBufferOS
+                    .size());
+          } else {
+            Utils.writeVInt(blkAppender, len);
+            blkAppender.write(key, 0, len);
+          }
           if (tfileIndex.getFirstKey() == null) {
             tfileIndex.setFirstKey(key, 0, len);
           }
+          // bloom filters cannot hash empty keys.
+          if (bloomErrorRate > 0 && len > 0) {
+            byte[] bloomKey = new byte[len];
+            System.arraycopy(key, 0, bloomKey, 0, len);
+            bloomKeys.add(bloomKey);
+          }
 
           if (tfileMeta.isSorted() && tfileMeta.getRecordCount()>0) {
             byte[] lastKey = lastKeyBufferOS.getBuffer();
@@ -472,6 +797,63 @@ public class TFile {
       }
     }
 
+    /**
+     * Add the bloom filter of the keys of the current data block, sized for
+     * their number the way BloomMapFile sizes its filters.
+     */
+    private void addBloomFilter() throws IOException {
+      int vectorSize =
+          (int) Math.ceil((double) (-BLOOM_HASH_COUNT * bloomKeys.size())
+              / Math.log(1.0 - Math.pow(bloomErrorRate,
+                  1.0 / BLOOM_HASH_COUNT)));
+      BloomFilter filter =
+          new BloomFilter(Math.max(vectorSize, 1), BLOOM_HASH_COUNT,
+              Hash.MURMUR_HASH);
+      Key bloomKey = new Key();
+      for (byte[] key : bloomKeys) {
+        bloomKey.set(key, 1.0);
+        filter.add(bloomKey);
+      }
+      filter.write(bloomFilters);
+      bloomKeys.clear();
+    }
+
+    /**
+     * Write a key as the length of the prefix it shares with the previous key
+     * in the block, followed by the length and bytes of the rest of it. The
+     * keys at the restart points share nothing, and their offsets are kept for
+     * the end of the block.
+     */
+    private void writePrefixCompressedKey(DataOutputStream out,
+        long blockOffset, byte[] key, int offset, int len, byte[] lastKey,
+        int lastOffset, int lastLen) throws IOException {
+      int shared = 0;
+      if (blkRecordCount % restartInterval == 0) {
+        restarts.add((int) blockOffset);
+      } else {
+        int maxShared = Math.min(len, lastLen);
+        while (shared < maxShared
+            && key[offset + shared] == lastKey[lastOffset + shared]) {
+          ++shared;
+        }
+      }
+      Utils.writeVInt(out, shared);
+      Utils.writeVInt(out, len - shared);
+      out.write(key, offset + shared, len - shared);
+    }
+
+    /**
+     * Write the offsets of the restart points of the data block, followed by
+     * their count.
+     */
+    private void writeRestarts(DataOutputStream out) throws IOException {
+      for (int offset : restarts) {
+        out.writeInt(offset);
+      }
+      out.writeInt(restarts.size());
+      restarts.clear();
+    }
+
     /**
      * Helper class to register value after close call on value append stream.
      */
@@ -636,6 +1018,7 @@ public class TFile {
      * @throws IOException
      */
     private void initDataBlock() throws IOException {
+      finishBulkBlocks();
       // for each new block, get a new appender
       if (blkAppender == null) {
         blkAppender = writerBCF.prepareDataBlock();
@@ -650,6 +1033,9 @@ public class TFile {
      * @throws IOException
      */
     void finishDataBlock(boolean bForceFinish) throws IOException {
+      if (bForceFinish) {
+        finishBulkBlocks();
+      }
       if (blkAppender == null) {
         return;
       }
@@ -662,6 +1048,12 @@ public class TFile {
             new TFileIndexEntry(lastKeyBufferOS.getBuffer(), 0, lastKeyBufferOS
                 .size(), blkRecordCount);
         tfileIndex.addEntry(keyLast);
+        if (restartInterval > 0) {
+          writeRestarts(blkAppender);
+        }
+        if (bloomErrorRate > 0) {
+          addBloomFilter();
+        }
         // close the appender
         blkAppender.close();
         blkAppender = null;
@@ -686,6 +1078,9 @@ public class TFile {
 
     // TFile index, it is loaded lazily.
     TFileIndex tfileIndex = null;
+    // bloom filters of the data blocks, loaded lazily; null if there are none.
+    private BloomFilter[] bloomFilters = null;
+    private boolean bloomFiltersChecked = false;
     final TFileMeta tfileMeta;
     final BytesComparator comparator;
 
@@ -800,7 +1195,29 @@ public class TFile {
      */
     public Reader(FSDataInputStream fsdis, long fileLength, Configuration conf)
         throws IOException {
-      readerBCF = new BCFile.Reader(fsdis, fileLength, conf);
+      this(fsdis, fileLength, conf, null, null);
+    }
+
+    /**
+     * Constructor, for a reader sharing a cache of decompressed data blocks
+     * with other readers.
+     * 
+     * @param fsdis
+     *          FS input stream of the TFile.
+     * @param fileLength
+     *          The length of TFile.
+     * @param conf
+     * @param cache
+     *          The cache of decompressed data blocks, or null for none.
+     * @param cacheName
+     *          The name of the TFile in the cache, which must tell it apart
+     *          from the other TFiles cached, for instance its path and
+     *          modification time.
+     * @throws IOException
+     */
+    public Reader(FSDataInputStream fsdis, long fileLength, Configuration conf,
+        BlockCache cache, String cacheName) throws IOException {
+      readerBCF = new BCFile.Reader(fsdis, fileLength, conf, cache, cacheName);
 
       // first, read TFile meta
       BlockReader brMeta = readerBCF.getMetaBlock(TFileMeta.BLOCK_NAME);
@@ -872,6 +1289,15 @@ public class TFile {
       return tfileMeta.getRecordCount();
     }
 
+    /**
+     * Get the number of keys between the restart points of the data blocks.
+     * 
+     * @return the restart interval; or 0 if the keys are stored in full.
+     */
+    public int getRestartInterval() {
+      return tfileMeta.getRestartInterval();
+    }
+
     /**
      * Lazily loading the TFile index.
      * 
@@ -890,6 +1316,101 @@ public class TFile {
       }
     }
 
+    /**
+     * Lazily loading the bloom filters of the data blocks.
+     * 
+     * @return the bloom filters, or null if the TFile has none.
+     * @throws IOException
+     */
+    synchronized BloomFilter[] checkBloomFilters() throws IOException {
+      if (!bloomFiltersChecked) {
+        BlockReader brBloom;
+        try {
+          brBloom = readerBCF.getMetaBlock(BLOOM_BLOCK_NAME);
+        } catch (MetaBlockDoesNotExist e) {
+          brBloom = null;
+        }
+        if (brBloom != null) {
+          try {
+            int count = Utils.readVInt(brBloom);
+            if (count != readerBCF.getBlockCount()) {
+              throw new IOException("Bloom filters of " + count
+                  + " data blocks, instead of " + readerBCF.getBlockCount());
+            }
+            BloomFilter[] filters = new BloomFilter[count];
+            for (int i = 0; i < count; ++i) {
+              filters[i] = new BloomFilter();
+              filters[i].readFields(brBloom);
+            }
+            bloomFilters = filters;
+          } finally {
+            brBloom.close();
+          }
+        }
+        bloomFiltersChecked = true;
+      }
+      return bloomFilters;
+    }
+
+    /**
+     * Does the TFile have bloom filters of the keys of its data blocks?
+     * 
+     * @return true if the TFile has bloom filters.
+     * @throws IOException
+     */
+    public boolean hasBloomFilters() throws IOException {
+      return checkBloomFilters() != null;
+    }
+
+    /**
+     * Check whether the TFile may have an entry with the key, without reading
+     * any data blocks. Synonymous to probablyHasKey(key, 0, key.length).
+     * 
+     * @param key
+     *          The input key
+     * @return false if the TFile has no entry with the key; true if it
+     *         probably has one.
+     * @throws IOException
+     */
+    public boolean probablyHasKey(byte[] key) throws IOException {
+      return probablyHasKey(key, 0, key.length);
+    }
+
+    /**
+     * Check whether the TFile may have an entry with the key, without reading
+     * any data blocks. The key is looked up in the index, and then in the
+     * bloom filter of the data block it would be in, if the TFile has bloom
+     * filters.
+     * 
+     * @param key
+     *          The input key
+     * @param keyOffset
+     *          offset in the key buffer.
+     * @param keyLen
+     *          key buffer length.
+     * @return false if the TFile has no entry with the key; true if it
+     *         probably has one.
+     * @throws IOException
+     */
+    public boolean probablyHasKey(byte[] key, int keyOffset, int keyLen)
+        throws IOException {
+      Location l =
+          getBlockContainsKey(new ByteArray(key, keyOffset, keyLen), false);
+      if (l.compareTo(end) >= 0) {
+        return false;
+      }
+      BloomFilter[] filters = checkBloomFilters();
+      if (filters == null || keyLen == 0) {
+        return true;
+      }
+      byte[] bloomKey = key;
+      if (keyOffset != 0 || keyLen != key.length) {
+        bloomKey = new byte[keyLen];
+        System.arraycopy(key, keyOffset, bloomKey, 0, keyLen);
+      }
+      return filters[l.getBlockIndex()].membershipTest(new Key(bloomKey));
+    }
+
     /**
      * Get the first key in the TFile.
      * 
@@ -1223,6 +1744,22 @@ public class TFile {
       final Reader reader;
       // current block (null if reaching end)
       private BlockReader blkReader;
+      // input of the current block: the block reader, or the buffer holding a
+      // block with prefix compressed keys.
+      private DataInputStream blkIn;
+
+      // number of keys between restart points, 0 if keys are stored in full.
+      private final int restartInterval;
+      // the current block with prefix compressed keys, and its restart points.
+      private byte[] blkBuffer;
+      private DataInputBuffer blkBufferIn;
+      private DataInputBuffer restartKeyIn;
+      private int[] restarts;
+      private int numRestarts;
+      // the index of the block in blkBuffer, -1 if none.
+      private int loadedBlock = -1;
+      // where the entries of the block end and its restart points start.
+      private int restartsOffset;
 
       Location beginLocation;
       Location endLocation;
@@ -1291,6 +1828,12 @@ public class TFile {
         valueBufferInputStream = new ChunkDecoder();
         valueDataInputStream = new DataInputStream(valueBufferInputStream);
 
+        restartInterval = reader.getRestartInterval();
+        if (restartInterval > 0) {
+          blkBufferIn = new DataInputBuffer();
+          restartKeyIn = new DataInputBuffer();
+        }
+
         if (beginLocation.compareTo(endLocation) >= 0) {
           currentLocation = new Location(endLocation);
         } else {
@@ -1361,6 +1904,48 @@ public class TFile {
         return seekTo(new ByteArray(key, keyOffset, keyLen), false);
       }
 
+      /**
+       * Move the cursor to the entry whose key is equal to the input key, if
+       * there is one. Synonymous to seekToExact(key, 0, key.length).
+       * 
+       * @param key
+       *          The input key
+       * @return true if we find an equal key.
+       * @throws IOException
+       */
+      public boolean seekToExact(byte[] key) throws IOException {
+        return seekToExact(key, 0, key.length);
+      }
+
+      /**
+       * Move the cursor to the entry whose key is equal to the input key, if
+       * there is one. Unlike {@link #seekTo(byte[], int, int)}, the cursor does
+       * not move if there is no such entry, so keys that the bloom filters of
+       * the TFile rule out are looked up without reading any data block. The
+       * entry returned by the previous entry() call will be invalid.
+       * 
+       * @param key
+       *          The input key
+       * @param keyOffset
+       *          offset in the key buffer.
+       * @param keyLen
+       *          key buffer length.
+       * @return true if we find an equal key; false otherwise.
+       * @throws IOException
+       */
+      public boolean seekToExact(byte[] key, int keyOffset, int keyLen)
+          throws IOException {
+        if (!reader.probablyHasKey(key, keyOffset, keyLen)) {
+          return false;
+        }
+        Location saved = new Location(currentLocation);
+        if (seekTo(key, keyOffset, keyLen)) {
+          return true;
+        }
+        seekTo(saved);
+        return false;
+      }
+
       private boolean seekTo(RawComparable key, boolean beyond)
           throws IOException {
         Location l = reader.getBlockContainsKey(key, beyond);
@@ -1411,13 +1996,19 @@ public class TFile {
           // going to a totally different block
           initBlock(l.getBlockIndex());
         } else {
-          if (valueChecked) {
+          if (valueChecked && blkIn != null) {
             // may temporarily go beyond the last record in the block (in which
-            // case the next if loop will always be true).
+            // case the next if loop will always be true). Parked at the end,
+            // there is no entry to skip.
             inBlockAdvance(1);
           }
           if (l.getRecordIndex() < currentLocation.getRecordIndex()) {
-            initBlock(l.getBlockIndex());
+            if (blkIn != null && loadedBlock == l.getBlockIndex()) {
+              // the block is still in memory.
+              seekToRestart(0);
+            } else {
+              initBlock(l.getBlockIndex());
+            }
           }
         }
 
@@ -1545,6 +2136,8 @@ public class TFile {
        */
       private void initBlock(int blockIndex) throws IOException {
         klen = -1;
+        blkIn = null;
+        loadedBlock = -1;
         if (blkReader != null) {
           try {
             blkReader.close();
@@ -1553,11 +2146,84 @@ public class TFile {
           }
         }
         blkReader = reader.getBlockReader(blockIndex);
+        if (restartInterval > 0) {
+          loadBlock();
+          loadedBlock = blockIndex;
+        } else {
+          blkIn = blkReader;
+        }
         currentLocation.set(blockIndex, 0);
       }
 
+      /**
+       * Read a block with prefix compressed keys into memory, for its restart
+       * points at its end.
+       * 
+       * @throws IOException
+       */
+      private void loadBlock() throws IOException {
+        try {
+          long rawSize = blkReader.getRawSize();
+          if (rawSize < 4 || rawSize > Integer.MAX_VALUE) {
+            throw new IOException("Bad data block size " + rawSize);
+          }
+          int size = (int) rawSize;
+          if (blkBuffer == null || blkBuffer.length < size) {
+            blkBuffer = new byte[size];
+          }
+          blkReader.readFully(blkBuffer, 0, size);
+          numRestarts = WritableComparator.readInt(blkBuffer, size - 4);
+          restartsOffset = size - 4 - 4 * numRestarts;
+          if (numRestarts < 0 || restartsOffset < 0) {
+            throw new IOException("Bad restart point count " + numRestarts
+                + " in data block of " + size + " bytes");
+          }
+        } finally {
+          blkReader.close();
+          blkReader = null;
+        }
+        if (restarts == null || restarts.length < numRestarts) {
+          restarts = new int[numRestarts];
+        }
+        for (int i = 0; i < numRestarts; ++i) {
+          restarts[i] =
+              WritableComparator.readInt(blkBuffer, restartsOffset + 4 * i);
+        }
+        blkBufferIn.reset(blkBuffer, 0, restartsOffset);
+        blkIn = blkBufferIn;
+      }
+
+      /**
+       * Move the cursor to a restart point of the current block.
+       * 
+       * @param restart
+       *          index of the restart point.
+       */
+      private void seekToRestart(int restart) {
+        int offset = restarts[restart];
+        blkBufferIn.reset(blkBuffer, offset, restartsOffset - offset);
+        klen = -1;
+        currentLocation.set(currentLocation.getBlockIndex(), (long) restart
+            * restartInterval);
+      }
+
+      /**
+       * Compare the key at a restart point of the current block, which is
+       * stored in full, to user-specified key.
+       */
+      private int compareRestartKeyTo(int restart, RawComparable other)
+          throws IOException {
+        int offset = restarts[restart];
+        restartKeyIn.reset(blkBuffer, offset, restartsOffset - offset);
+        Utils.readVInt(restartKeyIn); // shared length, always 0
+        int len = Utils.readVInt(restartKeyIn);
+        return reader.compareKeys(blkBuffer, restartKeyIn.getPosition(), len,
+            other.buffer(), other.offset(), other.size());
+      }
+
       private void parkCursorAtEnd() throws IOException {
         klen = -1;
+        blkIn = null;
         currentLocation.set(endLocation);
         if (blkReader != null) {
           try {
@@ -1599,9 +2265,17 @@ public class TFile {
         vlen = -1;
         valueChecked = false;
 
-        klen = Utils.readVInt(blkReader);
-        blkReader.readFully(keyBuffer, 0, klen);
-        valueBufferInputStream.reset(blkReader);
+        if (restartInterval > 0) {
+          // the key buffer still holds the previous key of the block.
+          int shared = Utils.readVInt(blkIn);
+          int unshared = Utils.readVInt(blkIn);
+          blkIn.readFully(keyBuffer, shared, unshared);
+          klen = shared + unshared;
+        } else {
+          klen = Utils.readVInt(blkIn);
+          blkIn.readFully(keyBuffer, 0, klen);
+        }
+        valueBufferInputStream.reset(blkIn);
         if (valueBufferInputStream.isLastChunk()) {
           vlen = valueBufferInputStream.getRemain();
         }
@@ -1976,6 +2650,15 @@ public class TFile {
        * @throws IOException
        */
       private void inBlockAdvance(long n) throws IOException {
+        if (restartInterval > 0 && n > 0) {
+          // jump to the last restart point before the target.
+          long current = currentLocation.getRecordIndex();
+          long restart = (current + n) / restartInterval;
+          if (restart < numRestarts && restart * restartInterval > current) {
+            seekToRestart((int) restart);
+            n = current + n - currentLocation.getRecordIndex();
+          }
+        }
         for (long i = 0; i < n; ++i) {
           checkKey();
           if (!valueBufferInputStream.isClosed()) {
@@ -2005,6 +2688,10 @@ public class TFile {
           entryInBlock = endLocation.getRecordIndex();
         }
 
+        if (restartInterval > 0) {
+          skipToRestart(key, greater, entryInBlock);
+        }
+
         while (currentLocation.getRecordIndex() < entryInBlock) {
           int cmp = compareCursorKeyTo(key);
           if (cmp > 0) return false;
@@ -2018,6 +2705,41 @@ public class TFile {
 
         throw new RuntimeException("Cannot find matching key in block.");
       }
+
+      /**
+       * Binary search the restart points of the current block ahead of the
+       * cursor, and move the cursor to the last of them whose key is less than
+       * the input key (or not greater than it), if any.
+       * 
+       * @param key
+       *          Key to compare.
+       * @param greater
+       *          search for the last key not greater than the input key.
+       * @param entryInBlock
+       *          the number of entries in the block the cursor may move to.
+       * @throws IOException
+       */
+      private void skipToRestart(RawComparable key, boolean greater,
+          long entryInBlock) throws IOException {
+        int low = (int) (currentLocation.getRecordIndex() / restartInterval) + 1;
+        int high =
+            (int) Math.min(numRestarts, (entryInBlock + restartInterval - 1)
+                / restartInterval);
+        int found = -1;
+        while (low < high) {
+          int mid = (low + high) >>> 1;
+          int cmp = compareRestartKeyTo(mid, key);
+          if (cmp < 0 || (greater && cmp == 0)) {
+            found = mid;
+            low = mid + 1;
+          } else {
+            high = mid;
+          }
+        }
+        if (found >= 0) {
+          seekToRestart(found);
+        }
+      }
     }
 
     long getBlockEntryCount(int curBid) {
@@ -2029,6 +2751,10 @@ public class TFile {
     }
   }
 
+  // meta block of the bloom filters of the data blocks.
+  static final String BLOOM_BLOCK_NAME = "TFile.bloom";
+  static final int BLOOM_HASH_COUNT = 5;
+
   /**
    * Data structure representing "TFile.meta" meta block.
    */
@@ -2038,25 +2764,36 @@ public class TFile {
     private long recordCount;
     private final String strComparator;
     private final BytesComparator comparator;
+    private final int restartInterval;
 
     // ctor for writes
-    public TFileMeta(String comparator) {
-      // set fileVersion to API version when we create it.
-      version = TFile.API_VERSION;
+    public TFileMeta(String comparator, int restartInterval) {
+      // keys stored in full keep the TFile readable by older releases.
+      version = (restartInterval > 0) ? TFile.API_VERSION : TFile.API_VERSION_1;
       recordCount = 0;
       strComparator = (comparator == null) ? "" : comparator;
       this.comparator = makeComparator(strComparator);
+      this.restartInterval = restartInterval;
     }
 
     // ctor for reads
     public TFileMeta(DataInput in) throws IOException {
       version = new Version(in);
-      if (!version.compatibleWith(TFile.API_VERSION)) {
+      if (!version.compatibleWith(TFile.API_VERSION)
+          && !version.compatibleWith(TFile.API_VERSION_1)) {
         throw new RuntimeException("Incompatible TFile fileVersion.");
       }
       recordCount = Utils.readVLong(in);
       strComparator = Utils.readString(in);
       comparator = makeComparator(strComparator);
+      if (version.compatibleWith(TFile.API_VERSION)) {
+        restartInterval = Utils.readVInt(in);
+        if (restartInterval <= 0) {
+          throw new IOException("Bad restart interval " + restartInterval);
+        }
+      } else {
+        restartInterval = 0;
+      }
     }
 
     @SuppressWarnings("unchecked")
@@ -2088,9 +2825,12 @@ public class TFile {
     }
 
     public void write(DataOutput out) throws IOException {
-      TFile.API_VERSION.write(out);
+      version.write(out);
       Utils.writeVLong(out, recordCount);
       Utils.writeString(out, strComparator);
+      if (version.compatibleWith(TFile.API_VERSION)) {
+        Utils.writeVInt(out, restartInterval);
+      }
     }
 
     public long getRecordCount() {
@@ -2116,6 +2856,10 @@ public class TFile {
     public Version getVersion() {
       return version;
     }
+
+    public int getRestartInterval() {
+      return restartInterval;
+    }
   } // END: class MetaTFileMeta
 
   /**
@@ -2261,6 +3005,10 @@ public class TFile {
       return index.get(bid);
     }
 
+    public int getEntryCount() {
+      return index.size();
+    }
+
     public void write(DataOutput out) throws IOException {
       if (firstKey == null) {
         Utils.writeVInt(out, 0);
@@ -115,6 +115,10 @@ class TFileDumper {
       if (reader.isSorted()) {
         properties.put("Comparator", reader.getComparatorName());
       }
+      if (reader.getRestartInterval() > 0) {
+        properties.put("Key Restart Interval", Integer.toString(reader
+            .getRestartInterval()));
+      }
       properties.put("Data Block Count", Integer.toString(blockCnt));
       long dataSize = 0, dataSizeUncompressed = 0;
       if (blockCnt > 0) {
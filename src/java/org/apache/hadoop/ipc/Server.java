@@ -32,7 +32,6 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
-import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
@@ -1199,9 +1198,10 @@ public abstract class Server {
     }
 
     /// Reads the connection header following version
-    private void processHeader(byte[] buf) throws IOException {
+    private void processHeader(byte[] buf, int offset, int length)
+        throws IOException {
       DataInputStream in =
-        new DataInputStream(new ByteArrayInputStream(buf));
+        new DataInputStream(new ByteArrayInputStream(buf, offset, length));
       header.readFields(in);
       try {
         String protocolClassName = header.getProtocol();
@@ -1247,14 +1247,17 @@ public abstract class Server {
     
     private void processUnwrappedData(byte[] inBuf) throws IOException,
         InterruptedException {
-      ReadableByteChannel ch = Channels.newChannel(new ByteArrayInputStream(
-          inBuf));
-      // Read all RPCs contained in the inBuf, even partial ones
-      while (true) {
-        int count = -1;
+      int pos = 0;
+      // Process all RPCs contained in the inBuf, even partial ones. RPCs that
+      // lie entirely within inBuf are processed in place, only RPCs split
+      // across wrapped tokens are staged in unwrappedData.
+      while (pos < inBuf.length) {
         if (unwrappedDataLengthBuffer.remaining() > 0) {
-          count = channelRead(ch, unwrappedDataLengthBuffer);
-          if (count <= 0 || unwrappedDataLengthBuffer.remaining() > 0)
+          int count = Math.min(unwrappedDataLengthBuffer.remaining(),
+                               inBuf.length - pos);
+          unwrappedDataLengthBuffer.put(inBuf, pos, count);
+          pos += count;
+          if (unwrappedDataLengthBuffer.remaining() > 0)
             return;
         }
 
@@ -1268,16 +1271,21 @@ public abstract class Server {
             unwrappedDataLengthBuffer.clear();
             continue; // ping message
           }
+          if (unwrappedDataLength <= inBuf.length - pos) {
+            unwrappedDataLengthBuffer.clear();
+            processOneRpc(inBuf, pos, unwrappedDataLength);
+            pos += unwrappedDataLength;
+            continue;
+          }
           unwrappedData = ByteBuffer.allocate(unwrappedDataLength);
         }
 
-        count = channelRead(ch, unwrappedData);
-        if (count <= 0 || unwrappedData.remaining() > 0)
-          return;
+        int count = Math.min(unwrappedData.remaining(), inBuf.length - pos);
+        unwrappedData.put(inBuf, pos, count);
+        pos += count;
 
         if (unwrappedData.remaining() == 0) {
           unwrappedDataLengthBuffer.clear();
-          unwrappedData.flip();
           processOneRpc(unwrappedData.array());
           unwrappedData = null;
         }
@@ -1286,10 +1294,15 @@ public abstract class Server {
     
     private void processOneRpc(byte[] buf) throws IOException,
         InterruptedException {
+      processOneRpc(buf, 0, buf.length);
+    }
+
+    private void processOneRpc(byte[] buf, int offset, int length)
+        throws IOException, InterruptedException {
       if (headerRead) {
-        processData(buf);
+        processData(buf, offset, length);
       } else {
-        processHeader(buf);
+        processHeader(buf, offset, length);
         headerRead = true;
         if (!authorizeConnection()) {
           throw new AccessControlException("Connection from " + this
@@ -1299,9 +1312,10 @@ public abstract class Server {
       }
     }
     
-    private void processData(byte[] buf) throws  IOException, InterruptedException {
+    private void processData(byte[] buf, int offset, int length)
+        throws IOException, InterruptedException {
       DataInputStream dis =
-        new DataInputStream(new ByteArrayInputStream(buf));
+        new DataInputStream(new ByteArrayInputStream(buf, offset, length));
       int id = dis.readInt();                    // try to read an id
         
       if (LOG.isDebugEnabled())
@@ -18,14 +18,20 @@
 
 package org.apache.hadoop.security;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Map;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.util.NativeCodeLoader;
@@ -40,11 +46,14 @@ import org.apache.hadoop.security.NetgroupCache;
 @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
 @InterfaceStability.Evolving
 public class JniBasedUnixGroupsNetgroupMapping
-  extends JniBasedUnixGroupsMapping {
+  extends JniBasedUnixGroupsMapping implements Configurable {
   
   private static final Log LOG = LogFactory.getLog(
     JniBasedUnixGroupsNetgroupMapping.class);
 
+  private Configuration conf;
+  private File snapshotFile;
+
   native String[] getUsersForNetgroupJNI(String group);
 
   static {
@@ -71,14 +80,29 @@ public class JniBasedUnixGroupsNetgroupMapping
     return groups;
   }
 
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    snapshotFile = NetgroupCache.loadSnapshot(conf);
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
   /**
-   * Refresh the netgroup cache
+   * Refresh the netgroup cache, all cached netgroups are resolved
+   * again and swapped into the cache at once
    */
   @Override
   public void cacheGroupsRefresh() throws IOException {
-    List<String> groups = NetgroupCache.getNetgroupNames();
-    NetgroupCache.clear();
-    cacheGroupsAdd(groups);
+    Map<String, List<String>> netgroups = new HashMap<String, List<String>>();
+    for(String group: NetgroupCache.getNetgroupNames()) {
+      netgroups.put(group, getUsersForNetgroup(group));
+    }
+    NetgroupCache.replace(netgroups);
+    NetgroupCache.saveSnapshot(snapshotFile);
   }
 
   /**
@@ -88,17 +112,22 @@ public class JniBasedUnixGroupsNetgroupMapping
    */
   @Override
   public void cacheGroupsAdd(List<String> groups) throws IOException {
+    Map<String, List<String>> netgroups = new HashMap<String, List<String>>();
     for(String group: groups) {
       if(group.length() == 0) {
         // better safe than sorry (should never happen)
       } else if(group.charAt(0) == '@') {
-        if(!NetgroupCache.isCached(group)) {
-          NetgroupCache.add(group, getUsersForNetgroup(group));
+        if(!NetgroupCache.isCached(group) && !netgroups.containsKey(group)) {
+          netgroups.put(group, getUsersForNetgroup(group));
         }
       } else {
         // unix group, not caching
       }
     }
+    if(!netgroups.isEmpty()) {
+      NetgroupCache.addAll(netgroups);
+      NetgroupCache.saveSnapshot(snapshotFile);
+    }
   }
 
   /**
@@ -21,12 +21,15 @@ package org.apache.hadoop.security;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 
 import sun.security.krb5.Config;
 import sun.security.krb5.KrbException;
@@ -47,12 +50,6 @@ public class KerberosName {
   /** The realm of the name. */
   private final String realm;
 
-  /**
-   * A pattern that matches a Kerberos name with at most 2 components.
-   */
-  private static final Pattern nameParser = 
-    Pattern.compile("([^/@]*)(/([^/@]*))?@([^/@]*)");
-
   /** 
    * A pattern that matches a string with out '$' and then a single
    * parameter with $n.
@@ -73,9 +70,11 @@ public class KerberosName {
   private static final Pattern nonSimplePattern = Pattern.compile("[/@]");
   
   /**
-   * The list of translation rules.
+   * The translation rules and the short names they have produced so far.
+   * Replaced as a unit whenever the rules are reconfigured, so a cached
+   * result always comes from the rules that are in effect.
    */
-  private static List<Rule> rules;
+  private static volatile RuleSet ruleSet;
 
   private static String defaultRealm;
   private static Config kerbConf;
@@ -97,20 +96,28 @@ public class KerberosName {
    * @param name
    */
   public KerberosName(String name) {
-    Matcher match = nameParser.matcher(name);
-    if (!match.matches()) {
-      if (name.contains("@")) {
-        throw new IllegalArgumentException("Malformed Kerberos name: " + name);
-      } else {
-        serviceName = name;
-        hostName = null;
-        realm = null;
-      }
+    // a name is "service[/host]@realm" with no further '/' or '@', or a
+    // simple name without any realm
+    int at = name.indexOf('@');
+    if (at < 0) {
+      serviceName = name;
+      hostName = null;
+      realm = null;
+      return;
+    }
+    int slash = name.indexOf('/');
+    if (name.indexOf('@', at + 1) >= 0 || name.indexOf('/', at + 1) >= 0 ||
+        (slash >= 0 && name.indexOf('/', slash + 1) >= 0)) {
+      throw new IllegalArgumentException("Malformed Kerberos name: " + name);
+    }
+    if (slash < 0) {
+      serviceName = name.substring(0, at);
+      hostName = null;
     } else {
-      serviceName = match.group(1);
-      hostName = match.group(3);
-      realm = match.group(4);
+      serviceName = name.substring(0, slash);
+      hostName = name.substring(slash + 1, at);
     }
+    realm = name.substring(at + 1);
   }
 
   /**
@@ -170,6 +177,12 @@ public class KerberosName {
     private final boolean isDefault;
     private final int numOfComponents;
     private final String format;
+    /** The literal text of the format, split around its $n references */
+    private final String[] formatLiterals;
+    /** The parameter referenced after each literal, or -1 for none */
+    private final int[] formatParams;
+    /** Why the format can't be expanded, or null if it is well formed */
+    private final String formatError;
     private final Pattern match;
     private final Pattern fromPattern;
     private final String toPattern;
@@ -179,6 +192,9 @@ public class KerberosName {
       isDefault = true;
       numOfComponents = 0;
       format = null;
+      formatLiterals = null;
+      formatParams = null;
+      formatError = null;
       match = null;
       fromPattern = null;
       toPattern = null;
@@ -190,6 +206,39 @@ public class KerberosName {
       isDefault = false;
       this.numOfComponents = numOfComponents;
       this.format = format;
+      // split the format up front so applying the rule doesn't have to
+      // run the parameter pattern over it again
+      List<String> literals = new ArrayList<String>();
+      List<Integer> params = new ArrayList<Integer>();
+      String error = null;
+      Matcher paramMatch = parameterPattern.matcher(format);
+      int start = 0;
+      while (start < format.length() && paramMatch.find(start)) {
+        literals.add(paramMatch.group(1));
+        String paramNum = paramMatch.group(3);
+        int num = -1;
+        if (paramNum != null) {
+          try {
+            num = Integer.parseInt(paramNum);
+            if (num > numOfComponents && error == null) {
+              error = "index " + num + " from " + format +
+                      " is outside of the valid range 0 to " + numOfComponents;
+            }
+          } catch (NumberFormatException nfe) {
+            if (error == null) {
+              error = "bad format in username mapping in " + paramNum;
+            }
+          }
+        }
+        params.add(num);
+        start = paramMatch.end();
+      }
+      this.formatLiterals = literals.toArray(new String[literals.size()]);
+      this.formatParams = new int[params.size()];
+      for (int i = 0; i < formatParams.length; i++) {
+        formatParams[i] = params.get(i);
+      }
+      this.formatError = error;
       this.match = match == null ? null : Pattern.compile(match);
       this.fromPattern = 
         fromPattern == null ? null : Pattern.compile(fromPattern);
@@ -228,38 +277,23 @@ public class KerberosName {
     }
     
     /**
-     * Replace the numbered parameters of the form $n where n is from 1 to 
-     * the length of params. Normal text is copied directly and $n is replaced
-     * by the corresponding parameter.
-     * @param format the string to replace parameters again
+     * Replace the numbered parameters of the form $n in the format, where n
+     * is from 0 to the number of components, by the corresponding parameter.
+     * Normal text is copied directly.
      * @param params the list of parameters
      * @return the generated string with the parameter references replaced.
      * @throws BadFormatString
      */
-    static String replaceParameters(String format, 
-                                    String[] params) throws BadFormatString {
-      Matcher match = parameterPattern.matcher(format);
-      int start = 0;
+    String replaceParameters(String[] params) throws BadFormatString {
+      if (formatError != null) {
+        throw new BadFormatString(formatError);
+      }
       StringBuilder result = new StringBuilder();
-      while (start < format.length() && match.find(start)) {
-        result.append(match.group(1));
-        String paramNum = match.group(3);
-        if (paramNum != null) {
-          try {
-            int num = Integer.parseInt(paramNum);
-            if (num < 0 || num > params.length) {
-              throw new BadFormatString("index " + num + " from " + format +
-                                        " is outside of the valid range 0 to " +
-                                        (params.length - 1));
-            }
-            result.append(params[num]);
-          } catch (NumberFormatException nfe) {
-            throw new BadFormatString("bad format in username mapping in " + 
-                                      paramNum, nfe);
-          }
-          
+      for (int i = 0; i < formatLiterals.length; i++) {
+        result.append(formatLiterals[i]);
+        if (formatParams[i] >= 0) {
+          result.append(params[formatParams[i]]);
         }
-        start = match.end();
       }
       return result.toString();
     }
@@ -298,7 +332,7 @@ public class KerberosName {
           result = params[1];
         }
       } else if (params.length - 1 == numOfComponents) {
-        String base = replaceParameters(format, params);
+        String base = replaceParameters(params);
         if (match == null || match.matcher(base).matches()) {
           if (fromPattern == null) {
             result = base;
@@ -338,6 +372,45 @@ public class KerberosName {
     return result;
   }
 
+  /**
+   * The parsed translation rules together with a bounded cache of the short
+   * names they have produced, keyed by the full principal name.
+   */
+  private static class RuleSet {
+    private final List<Rule> rules;
+    private final ConcurrentMap<String, String> shortNames =
+      new ConcurrentHashMap<String, String>();
+    private final int cacheSize;
+
+    RuleSet(List<Rule> rules, int cacheSize) {
+      this.rules = rules;
+      this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Apply the rules to a principal that isn't cached yet and remember the
+     * result.
+     * @return the short name, or null if no rule applies
+     */
+    String translate(String principal, String[] params) throws IOException {
+      for(Rule r: rules) {
+        String result = r.apply(params);
+        if (result != null) {
+          if (cacheSize > 0) {
+            // the principals seen by a process are normally a small,
+            // stable set, so start over rather than track recency
+            if (shortNames.size() >= cacheSize) {
+              shortNames.clear();
+            }
+            shortNames.put(principal, result);
+          }
+          return result;
+        }
+      }
+      return null;
+    }
+  }
+
   /**
    * Set the static configuration to get the rules.
    * @param conf the new configuration
@@ -345,7 +418,10 @@ public class KerberosName {
    */
   public static void setConfiguration(Configuration conf) throws IOException {
     String ruleString = conf.get("hadoop.security.auth_to_local", "DEFAULT");
-    rules = parseRules(ruleString);
+    int cacheSize = conf.getInt(
+        CommonConfigurationKeys.HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_KEY,
+        CommonConfigurationKeys.HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_DEFAULT);
+    ruleSet = new RuleSet(parseRules(ruleString), cacheSize);
   }
 
   @SuppressWarnings("serial")
@@ -372,28 +448,32 @@ public class KerberosName {
    * @throws IOException
    */
   public String getShortName() throws IOException {
+    // if it is already simple, just return it
+    if (hostName == null && realm == null) {
+      return serviceName;
+    }
+    RuleSet current = ruleSet;
+    String principal = toString();
+    String result = current.shortNames.get(principal);
+    if (result != null) {
+      return result;
+    }
     String[] params;
     if (hostName == null) {
-      // if it is already simple, just return it
-      if (realm == null) {
-        return serviceName;
-      }
       params = new String[]{realm, serviceName};
     } else {
       params = new String[]{realm, serviceName, hostName};
     }
-    for(Rule r: rules) {
-      String result = r.apply(params);
-      if (result != null) {
-        return result;
-      }
+    result = current.translate(principal, params);
+    if (result != null) {
+      return result;
     }
-    throw new NoMatchingRule("No rules applied to " + toString());
+    throw new NoMatchingRule("No rules applied to " + principal);
   }
 
   static void printRules() throws IOException {
     int i = 0;
-    for(Rule r: rules) {
+    for(Rule r: ruleSet.rules) {
       System.out.println(++i + " " + r);
     }
   }
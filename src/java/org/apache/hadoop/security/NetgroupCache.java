@@ -17,15 +17,30 @@
  */
 package org.apache.hadoop.security;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.HashSet;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,6 +50,12 @@ import org.apache.commons.logging.LogFactory;
  * to user-to-group map, primarily intented for use with
  * netgroups (as returned by getent netgrgoup) which only returns
  * group to user mapping.
+ *
+ * The cache is held as an immutable index that is rebuilt off to the side
+ * and swapped in atomically, so lookups never take a lock and never see a
+ * partially refreshed cache. The index can optionally be written to and
+ * read from a local snapshot file so that a restarted daemon does not have
+ * to resolve every netgroup again before it can authorize requests.
  */
 @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
 @InterfaceStability.Unstable
@@ -42,13 +63,47 @@ public class NetgroupCache {
 
   private static final Log LOG = LogFactory.getLog(NetgroupCache.class);
 
-  private static boolean netgroupToUsersMapUpdated = true;
-  private static Map<String, Set<String>> netgroupToUsersMap =
-    new ConcurrentHashMap<String, Set<String>>();
+  /** Version of the on-disk snapshot format */
+  private static final int SNAPSHOT_VERSION = 1;
 
-  private static Map<String, Set<String>> userToNetgroupsMap =
-    new ConcurrentHashMap<String, Set<String>>();
+  private static volatile Index index = Index.EMPTY;
 
+  /** Orders the writes of snapshots, which do not block lookups or updates */
+  private static final Object snapshotLock = new Object();
+
+  /**
+   * Immutable netgroup membership index, netgroup to users and the
+   * inverted user to netgroups map.
+   */
+  private static class Index {
+    static final Index EMPTY = new Index(new HashMap<String, Set<String>>());
+
+    final Map<String, Set<String>> netgroupToUsers;
+    final Map<String, String[]> userToNetgroups;
+
+    Index(Map<String, Set<String>> netgroupToUsers) {
+      this.netgroupToUsers = Collections.unmodifiableMap(netgroupToUsers);
+      Map<String, List<String>> inverted = new HashMap<String, List<String>>();
+      for (Map.Entry<String, Set<String>> e : netgroupToUsers.entrySet()) {
+        for (String user : e.getValue()) {
+          List<String> netgroups = inverted.get(user);
+          if (netgroups == null) {
+            netgroups = new LinkedList<String>();
+            inverted.put(user, netgroups);
+          }
+          netgroups.add(e.getKey());
+        }
+      }
+      Map<String, String[]> userToNetgroups =
+        new HashMap<String, String[]>(inverted.size() * 4 / 3 + 1);
+      for (Map.Entry<String, List<String>> e : inverted.entrySet()) {
+        List<String> netgroups = e.getValue();
+        userToNetgroups.put(e.getKey(),
+          netgroups.toArray(new String[netgroups.size()]));
+      }
+      this.userToNetgroups = userToNetgroups;
+    }
+  }
 
   /**
    * Get netgroups for a given user
@@ -58,21 +113,9 @@ public class NetgroupCache {
    */
   public static void getNetgroups(final String user,
       List<String> groups) {
-    if(netgroupToUsersMapUpdated) {
-      netgroupToUsersMapUpdated = false; // at the beginning to avoid race
-      //update userToNetgroupsMap
-      for(String netgroup : netgroupToUsersMap.keySet()) {
-        for(String netuser : netgroupToUsersMap.get(netgroup)) {
-          // add to userToNetgroupsMap
-          if(!userToNetgroupsMap.containsKey(netuser)) {
-            userToNetgroupsMap.put(netuser, new HashSet<String>());
-          }
-          userToNetgroupsMap.get(netuser).add(netgroup);
-        }
-      }
-    }
-    if(userToNetgroupsMap.containsKey(user)) {
-      for(String netgroup : userToNetgroupsMap.get(user)) {
+    String[] netgroups = index.userToNetgroups.get(user);
+    if(netgroups != null) {
+      for(String netgroup : netgroups) {
         groups.add(netgroup);
       }
     }
@@ -84,7 +127,7 @@ public class NetgroupCache {
    * @return list of cached groups
    */
   public static List<String> getNetgroupNames() {
-    return new LinkedList<String>(netgroupToUsersMap.keySet());
+    return new LinkedList<String>(index.netgroupToUsers.keySet());
   }
 
   /**
@@ -94,14 +137,14 @@ public class NetgroupCache {
    * @return true if group is cached, false otherwise
    */
   public static boolean isCached(String group) {
-    return netgroupToUsersMap.containsKey(group);
+    return index.netgroupToUsers.containsKey(group);
   }
 
   /**
    * Clear the cache
    */
-  public static void clear() {
-    netgroupToUsersMap.clear();
+  public static synchronized void clear() {
+    index = Index.EMPTY;
   }
 
   /**
@@ -111,12 +154,181 @@ public class NetgroupCache {
    * @param users list of users for a given group
    */
   public static void add(String group, List<String> users) {
-    if(!isCached(group)) {
-      netgroupToUsersMap.put(group, new HashSet<String>());
-      for(String user: users) {
-        netgroupToUsersMap.get(group).add(user);
+    addAll(Collections.singletonMap(group, users));
+  }
+
+  /**
+   * Add several groups to the cache with a single index rebuild. Groups
+   * that are already cached are left untouched.
+   *
+   * @param groupsToUsers map of group names to their users
+   */
+  public static synchronized void addAll(
+      Map<String, ? extends Collection<String>> groupsToUsers) {
+    Map<String, Set<String>> netgroupToUsers =
+      new HashMap<String, Set<String>>(index.netgroupToUsers);
+    boolean changed = false;
+    for (Map.Entry<String, ? extends Collection<String>> e :
+         groupsToUsers.entrySet()) {
+      if (!netgroupToUsers.containsKey(e.getKey())) {
+        netgroupToUsers.put(e.getKey(), toSet(e.getValue()));
+        changed = true;
+      }
+    }
+    if (changed) {
+      index = new Index(netgroupToUsers);
+    }
+  }
+
+  /**
+   * Replace the whole cache with the given netgroup memberships. Lookups
+   * see either the old or the new memberships, never an empty or partial
+   * cache.
+   *
+   * @param groupsToUsers map of group names to their users
+   */
+  public static synchronized void replace(
+      Map<String, ? extends Collection<String>> groupsToUsers) {
+    Map<String, Set<String>> netgroupToUsers =
+      new HashMap<String, Set<String>>(groupsToUsers.size() * 4 / 3 + 1);
+    for (Map.Entry<String, ? extends Collection<String>> e :
+         groupsToUsers.entrySet()) {
+      netgroupToUsers.put(e.getKey(), toSet(e.getValue()));
+    }
+    index = new Index(netgroupToUsers);
+  }
+
+  /**
+   * Load the snapshot configured with
+   * <code>hadoop.security.netgroup.snapshot.file</code>, unless netgroups
+   * are already cached. Failing to read it is logged, not thrown.
+   *
+   * @param conf configuration of the snapshot file
+   * @return the snapshot file, or null if none is configured
+   */
+  public static File loadSnapshot(Configuration conf) {
+    String snapshot = conf.get(
+      CommonConfigurationKeys.HADOOP_SECURITY_NETGROUP_SNAPSHOT_FILE_KEY,
+      CommonConfigurationKeys.HADOOP_SECURITY_NETGROUP_SNAPSHOT_FILE_DEFAULT);
+    File file = snapshot.length() == 0 ? null : new File(snapshot);
+    if (file != null && file.exists() && getNetgroupNames().isEmpty()) {
+      try {
+        readSnapshot(file);
+      } catch (IOException e) {
+        LOG.warn("error loading netgroup snapshot " + file, e);
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Persist the netgroup cache if a snapshot file is configured. Failing to
+   * write it is logged, not thrown.
+   *
+   * @param file snapshot file, null if none is configured
+   */
+  public static void saveSnapshot(File file) {
+    if (file != null) {
+      try {
+        writeSnapshot(file);
+      } catch (IOException e) {
+        LOG.warn("error writing netgroup snapshot " + file, e);
       }
     }
-    netgroupToUsersMapUpdated = true; // at the end to avoid race
+  }
+
+  /**
+   * Write the cached netgroup memberships to a local file. The snapshot is
+   * written to a temporary file of its own first and renamed into place, so
+   * readers never see a partially written snapshot; concurrent writes are
+   * done one at a time, each writing the cache as it is then.
+   *
+   * @param file snapshot file
+   * @throws IOException
+   */
+  public static void writeSnapshot(File file) throws IOException {
+    synchronized (snapshotLock) {
+      writeSnapshot(file, index.netgroupToUsers);
+    }
+  }
+
+  private static void writeSnapshot(File file,
+      Map<String, Set<String>> netgroupToUsers) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+    DataOutputStream out = null;
+    boolean written = false;
+    try {
+      out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(SNAPSHOT_VERSION);
+      WritableUtils.writeVInt(out, netgroupToUsers.size());
+      for (Map.Entry<String, Set<String>> e : netgroupToUsers.entrySet()) {
+        Text.writeString(out, e.getKey());
+        WritableUtils.writeVInt(out, e.getValue().size());
+        for (String user : e.getValue()) {
+          Text.writeString(out, user);
+        }
+      }
+      out.close();
+      out = null;
+      written = true;
+    } finally {
+      IOUtils.closeStream(out);
+      if (!written) {
+        tmp.delete();
+      }
+    }
+    if (!tmp.renameTo(file)) {
+      // rename does not replace an existing file on all platforms
+      if (!file.delete() || !tmp.renameTo(file)) {
+        tmp.delete();
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Wrote " + netgroupToUsers.size() +
+        " netgroups to snapshot " + file);
+    }
+  }
+
+  /**
+   * Replace the cache with the netgroup memberships stored in a snapshot
+   * written by {@link #writeSnapshot(File)}.
+   *
+   * @param file snapshot file
+   * @throws IOException
+   */
+  public static void readSnapshot(File file) throws IOException {
+    Map<String, List<String>> groupsToUsers =
+      new HashMap<String, List<String>>();
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int version = in.readInt();
+      if (version != SNAPSHOT_VERSION) {
+        throw new IOException("Unsupported netgroup snapshot version " +
+          version + " in " + file);
+      }
+      int numGroups = WritableUtils.readVInt(in);
+      for (int i = 0; i < numGroups; i++) {
+        String group = Text.readString(in);
+        int numUsers = WritableUtils.readVInt(in);
+        List<String> users = new LinkedList<String>();
+        for (int j = 0; j < numUsers; j++) {
+          users.add(Text.readString(in));
+        }
+        groupsToUsers.put(group, users);
+      }
+    } finally {
+      in.close();
+    }
+    replace(groupsToUsers);
+    LOG.info("Loaded " + groupsToUsers.size() +
+      " netgroups from snapshot " + file);
+  }
+
+  private static Set<String> toSet(Collection<String> users) {
+    return Collections.unmodifiableSet(new HashSet<String>(users));
   }
 }
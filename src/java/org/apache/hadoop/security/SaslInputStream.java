@@ -50,7 +50,8 @@ public class SaslInputStream extends InputStream {
   private final boolean useWrap;
   
   /*
-   * data read from the underlying input stream before being processed by SASL
+   * data read from the underlying input stream before being processed by SASL,
+   * reused across frames and grown as needed
    */
   private byte[] saslToken;
   private final SaslClient saslClient;
@@ -88,21 +89,24 @@ public class SaslInputStream extends InputStream {
    * but could have more later), or -1 (absolutely no more data)
    */
   private int readMoreData() throws IOException {
+    int length;
     try {
       inStream.readFully(lengthBuf);
-      int length = unsignedBytesToInt(lengthBuf);
+      length = unsignedBytesToInt(lengthBuf);
       if (LOG.isDebugEnabled())
         LOG.debug("Actual length is " + length);
-      saslToken = new byte[length];
-      inStream.readFully(saslToken);
+      if (saslToken == null || saslToken.length < length) {
+        saslToken = new byte[length];
+      }
+      inStream.readFully(saslToken, 0, length);
     } catch (EOFException e) {
       return -1;
     }
     try {
       if (saslServer != null) { // using saslServer
-        obuffer = saslServer.unwrap(saslToken, 0, saslToken.length);
+        obuffer = saslServer.unwrap(saslToken, 0, length);
       } else { // using saslClient
-        obuffer = saslClient.unwrap(saslToken, 0, saslToken.length);
+        obuffer = saslClient.unwrap(saslToken, 0, length);
       }
     } catch (SaslException se) {
       try {
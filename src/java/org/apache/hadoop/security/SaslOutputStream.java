@@ -19,10 +19,6 @@
 package org.apache.hadoop.security;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -39,14 +35,30 @@ import org.apache.hadoop.classification.InterfaceStability;
  * SaslClient) so that write() methods first process the data before writing
  * them out to the underlying OutputStream. The SaslServer (or SaslClient)
  * object must be fully initialized before being used by a SaslOutputStream.
+ * <p>
+ * When the negotiated QOP requires wrapping, written data is collected in a
+ * buffer that is reused across frames and wrapped in chunks of the raw send
+ * size negotiated with the peer, independent of the size of the individual
+ * writes. Buffered data is wrapped and sent on {@link #flush()}.
  */
 @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
 @InterfaceStability.Evolving
 public class SaslOutputStream extends OutputStream {
 
+  /** Raw send size used when the mechanism does not negotiate one */
+  static final int DEFAULT_RAW_SEND_SIZE = 64*1024;
+
   private final OutputStream outStream;
   // processed data ready to be written out
   private byte[] saslToken;
+  // data waiting to be wrapped, at most rawSendSize bytes
+  private final byte[] obuffer;
+  // number of bytes in obuffer
+  private int ocount = 0;
+  // largest chunk of data handed to a single wrap call
+  private final int rawSendSize;
+  // buffer holding the length of a wrapped token
+  private final byte[] lengthBuf = new byte[4];
 
   private final SaslClient saslClient;
   private final SaslServer saslServer;
@@ -69,10 +81,14 @@ public class SaslOutputStream extends OutputStream {
     this.saslClient = null;
     String qop = (String) saslServer.getNegotiatedProperty(Sasl.QOP);
     this.useWrap = qop != null && !"auth".equalsIgnoreCase(qop);
+    this.rawSendSize = getRawSendSize(
+        saslServer.getNegotiatedProperty(Sasl.RAW_SEND_SIZE));
     if (useWrap) {
       this.outStream = new BufferedOutputStream(outStream, 64*1024);
+      this.obuffer = new byte[rawSendSize];
     } else {
       this.outStream = outStream;
+      this.obuffer = null;
     }
   }
 
@@ -91,11 +107,32 @@ public class SaslOutputStream extends OutputStream {
     this.saslClient = saslClient;
     String qop = (String) saslClient.getNegotiatedProperty(Sasl.QOP);
     this.useWrap = qop != null && !"auth".equalsIgnoreCase(qop);
+    this.rawSendSize = getRawSendSize(
+        saslClient.getNegotiatedProperty(Sasl.RAW_SEND_SIZE));
     if (useWrap) {
       this.outStream = new BufferedOutputStream(outStream, 64*1024);
+      this.obuffer = new byte[rawSendSize];
     } else {
       this.outStream = outStream;
+      this.obuffer = null;
+    }
+  }
+
+  /**
+   * Parse the negotiated raw send size, falling back to
+   * {@link #DEFAULT_RAW_SEND_SIZE} if the mechanism did not negotiate one.
+   */
+  private static int getRawSendSize(Object negotiated) {
+    if (negotiated != null) {
+      try {
+        int size = Integer.parseInt(negotiated.toString());
+        if (size > 0) {
+          return size;
+        }
+      } catch (NumberFormatException ignored) {
+      }
     }
+    return DEFAULT_RAW_SEND_SIZE;
   }
 
   /**
@@ -168,6 +205,41 @@ public class SaslOutputStream extends OutputStream {
       outStream.write(inBuf, off, len);
       return;
     }
+    while (len > 0) {
+      if (ocount == 0 && len >= rawSendSize) {
+        // a whole chunk, wrap it without copying
+        wrapAndWrite(inBuf, off, rawSendSize);
+        off += rawSendSize;
+        len -= rawSendSize;
+      } else {
+        int n = Math.min(len, rawSendSize - ocount);
+        System.arraycopy(inBuf, off, obuffer, ocount, n);
+        ocount += n;
+        off += n;
+        len -= n;
+        if (ocount == rawSendSize) {
+          flushBuffer();
+        }
+      }
+    }
+  }
+
+  /**
+   * Wrap and write out the data collected in the buffer.
+   */
+  private void flushBuffer() throws IOException {
+    if (ocount > 0) {
+      int count = ocount;
+      ocount = 0;
+      wrapAndWrite(obuffer, 0, count);
+    }
+  }
+
+  /**
+   * Wrap the given data and write it out as one length prefixed token.
+   */
+  private void wrapAndWrite(byte[] inBuf, int off, int len)
+      throws IOException {
     try {
       if (saslServer != null) { // using saslServer
         saslToken = saslServer.wrap(inBuf, off, len);
@@ -182,11 +254,13 @@ public class SaslOutputStream extends OutputStream {
       throw se;
     }
     if (saslToken != null) {
-      ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-      DataOutputStream dout = new DataOutputStream(byteOut);
-      dout.writeInt(saslToken.length);
-      outStream.write(byteOut.toByteArray());
-      outStream.write(saslToken, 0, saslToken.length);
+      int length = saslToken.length;
+      lengthBuf[0] = (byte) (length >>> 24);
+      lengthBuf[1] = (byte) (length >>> 16);
+      lengthBuf[2] = (byte) (length >>> 8);
+      lengthBuf[3] = (byte) length;
+      outStream.write(lengthBuf, 0, 4);
+      outStream.write(saslToken, 0, length);
       saslToken = null;
     }
   }
@@ -198,6 +272,9 @@ public class SaslOutputStream extends OutputStream {
    *              if an I/O error occurs.
    */
   public void flush() throws IOException {
+    if (useWrap) {
+      flushBuffer();
+    }
     outStream.flush();
   }
 
@@ -209,7 +286,13 @@ public class SaslOutputStream extends OutputStream {
    *              if an I/O error occurs.
    */
   public void close() throws IOException {
-    disposeSasl();
-    outStream.close();
+    try {
+      if (useWrap) {
+        flushBuffer();
+      }
+    } finally {
+      disposeSasl();
+      outStream.close();
+    }
   }
 }
\ No newline at end of file
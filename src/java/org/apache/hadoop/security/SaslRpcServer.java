@@ -41,6 +41,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
 import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.security.UserGroupInformation.AuthenticationMethod;
 import org.apache.hadoop.security.token.SecretManager;
@@ -90,6 +91,10 @@ public class SaslRpcServer {
     
     SASL_PROPS.put(Sasl.QOP, saslQOP.getSaslQop());
     SASL_PROPS.put(Sasl.SERVER_AUTH, "true");
+    // the largest wrapped token we accept, the peer wraps at most this much
+    SASL_PROPS.put(Sasl.MAX_BUFFER, Integer.toString(conf.getInt(
+        CommonConfigurationKeysPublic.HADOOP_RPC_SASL_MAX_BUFFER_KEY,
+        CommonConfigurationKeysPublic.HADOOP_RPC_SASL_MAX_BUFFER_DEFAULT)));
   }
   
   static String encodeIdentifier(byte[] identifier) {
@@ -182,11 +182,11 @@ public class UserGroupInformation {
   /** Metrics to track UGI activity */
   static UgiMetrics metrics = new UgiMetrics();
   /** Are the static variables that depend on configuration initialized? */
-  private static boolean isInitialized = false;
+  private static volatile boolean isInitialized = false;
   /** Should we use Kerberos configuration? */
-  private static boolean useKerberos;
+  private static volatile boolean useKerberos;
   /** Server-side groups fetching service */
-  private static Groups groups;
+  private static volatile Groups groups;
   /** The configuration to use */
   private static Configuration conf;
 
@@ -202,9 +202,13 @@ public class UserGroupInformation {
    * A method to initialize the fields that depend on a configuration.
    * Must be called before useKerberos or groups is used.
    */
-  private static synchronized void ensureInitialized() {
+  private static void ensureInitialized() {
     if (!isInitialized) {
-      initialize(new Configuration());
+      synchronized (UserGroupInformation.class) {
+        if (!isInitialized) {
+          initialize(new Configuration());
+        }
+      }
     }
   }
 
@@ -221,6 +225,8 @@ public class UserGroupInformation {
       throw new RuntimeException("Problem with Kerberos auth_to_local name " +
           "configuration", ioe);
     }
+    // last, as ensureInitialized reads it without locking
+    isInitialized = true;
   }
   
   /**
@@ -262,7 +268,6 @@ public class UserGroupInformation {
         new HadoopConfiguration(existingConfig));
     }
 
-    isInitialized = true;
     UserGroupInformation.conf = conf;
   }
 
@@ -290,7 +295,7 @@ public class UserGroupInformation {
   /**
    * Information about the logged in user.
    */
-  private static UserGroupInformation loginUser = null;
+  private static volatile UserGroupInformation loginUser = null;
   private static String keytabPrincipal = null;
   private static String keytabFile = null;
 
@@ -299,6 +304,15 @@ public class UserGroupInformation {
   private final User user;
   private final boolean isKeytab;
   private final boolean isKrbTkt;
+
+  /**
+   * The user of the innermost {@link #doAs} running on this thread. It is
+   * set on doAs entry and restored on exit, so that getCurrentUser does not
+   * have to look up the Subject of the access control context and wrap it
+   * in a new UserGroupInformation on every call.
+   */
+  private static final ThreadLocal<UserGroupInformation> doAsUser =
+    new ThreadLocal<UserGroupInformation>();
   
   private static final String OS_LOGIN_MODULE_NAME;
   private static final Class<? extends Principal> OS_PRINCIPAL_CLASS;
@@ -462,10 +476,16 @@ public class UserGroupInformation {
 
   /**
    * Return the current user, including any doAs in the current stack.
+   * Inside {@link #doAs} the user running the action is returned directly;
+   * otherwise the Subject of the current access control context is used.
    * @return the current user
    * @throws IOException if login fails
    */
   public static UserGroupInformation getCurrentUser() throws IOException {
+    UserGroupInformation current = doAsUser.get();
+    if (current != null) {
+      return current;
+    }
     AccessControlContext context = AccessController.getContext();
     Subject subject = Subject.getSubject(context);
     if (subject == null || subject.getPrincipals(User.class).isEmpty()) {
@@ -480,8 +500,21 @@ public class UserGroupInformation {
    * @return the logged in user
    * @throws IOException if login fails
    */
-  public synchronized 
-  static UserGroupInformation getLoginUser() throws IOException {
+  public static UserGroupInformation getLoginUser() throws IOException {
+    UserGroupInformation login = loginUser;
+    if (login == null) {
+      login = loginOrGetLoginUser();
+    }
+    return login;
+  }
+
+  /**
+   * Log in the current OS (or Kerberos) user unless another thread has
+   * already done so. The login user is only published once it is fully set
+   * up, since {@link #getLoginUser()} reads it without locking.
+   */
+  private synchronized
+  static UserGroupInformation loginOrGetLoginUser() throws IOException {
     if (loginUser == null) {
       try {
         Subject subject = new Subject();
@@ -494,12 +527,12 @@ public class UserGroupInformation {
               subject);
         }
         login.login();
-        loginUser = new UserGroupInformation(subject);
-        loginUser.setLogin(login);
-        loginUser.setAuthenticationMethod(isSecurityEnabled() ?
-                                          AuthenticationMethod.KERBEROS :
-                                          AuthenticationMethod.SIMPLE);
-        loginUser = new UserGroupInformation(login.getSubject());
+        UserGroupInformation newLoginUser = new UserGroupInformation(subject);
+        newLoginUser.setLogin(login);
+        newLoginUser.setAuthenticationMethod(isSecurityEnabled() ?
+                                             AuthenticationMethod.KERBEROS :
+                                             AuthenticationMethod.SIMPLE);
+        newLoginUser = new UserGroupInformation(login.getSubject());
         String fileLocation = System.getenv(HADOOP_TOKEN_FILE_LOCATION);
         if (fileLocation != null && isSecurityEnabled()) {
           // load the token storage file and put all of the tokens into the
@@ -507,10 +540,11 @@ public class UserGroupInformation {
           Credentials cred = Credentials.readTokenStorageFile(
               new Path("file:///" + fileLocation), conf);
           for (Token<?> token: cred.getAllTokens()) {
-            loginUser.addToken(token);
+            newLoginUser.addToken(token);
           }
         }
-        loginUser.spawnAutoRenewalThreadForUserCreds();
+        newLoginUser.spawnAutoRenewalThreadForUserCreds();
+        loginUser = newLoginUser;
       } catch (LoginException le) {
         throw new IOException("failure to login", le);
       }
@@ -631,9 +665,10 @@ public class UserGroupInformation {
       start = System.currentTimeMillis();
       login.login();
       metrics.loginSuccess.inc(System.currentTimeMillis() - start);
-      loginUser = new UserGroupInformation(subject);
-      loginUser.setLogin(login);
-      loginUser.setAuthenticationMethod(AuthenticationMethod.KERBEROS);
+      UserGroupInformation newLoginUser = new UserGroupInformation(subject);
+      newLoginUser.setLogin(login);
+      newLoginUser.setAuthenticationMethod(AuthenticationMethod.KERBEROS);
+      loginUser = newLoginUser;
     } catch (LoginException le) {
       if (start > 0) {
         metrics.loginFailure.inc(System.currentTimeMillis() - start);
@@ -1027,7 +1062,7 @@ public class UserGroupInformation {
    * @return the list of users with the primary group first. If the command
    *    fails, it returns an empty list.
    */
-  public synchronized String[] getGroupNames() {
+  public String[] getGroupNames() {
     ensureInitialized();
     try {
       List<String> result = groups.getGroups(getShortUserName());
@@ -1122,7 +1157,13 @@ public class UserGroupInformation {
    * @return the value from the run method
    */
   public <T> T doAs(PrivilegedAction<T> action) {
-    return Subject.doAs(subject, action);
+    UserGroupInformation previous = doAsUser.get();
+    doAsUser.set(this);
+    try {
+      return Subject.doAs(subject, action);
+    } finally {
+      restoreDoAsUser(previous);
+    }
   }
   
   /**
@@ -1138,6 +1179,8 @@ public class UserGroupInformation {
    */
   public <T> T doAs(PrivilegedExceptionAction<T> action
                     ) throws IOException, InterruptedException {
+    UserGroupInformation previous = doAsUser.get();
+    doAsUser.set(this);
     try {
       return Subject.doAs(subject, action);
     } catch (PrivilegedActionException pae) {
@@ -1153,6 +1196,16 @@ public class UserGroupInformation {
       } else {
         throw new UndeclaredThrowableException(pae,"Unknown exception in doAs");
       }
+    } finally {
+      restoreDoAsUser(previous);
+    }
+  }
+
+  private static void restoreDoAsUser(UserGroupInformation previous) {
+    if (previous == null) {
+      doAsUser.remove();
+    } else {
+      doAsUser.set(previous);
     }
   }
 
@@ -29,6 +29,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
 
 import javax.crypto.SecretKey;
 
@@ -50,12 +53,30 @@ extends AbstractDelegationTokenIdentifier>
   private static final Log LOG = LogFactory
       .getLog(AbstractDelegationTokenSecretManager.class);
 
+  /** The cache of tokens, with the atomic updates of a ConcurrentMap. */
+  private final ConcurrentMap<TokenIdent, DelegationTokenInformation> tokens
+      = new ConcurrentHashMap<TokenIdent, DelegationTokenInformation>();
+
   /** 
    * Cache of currently valid tokens, mapping from DelegationTokenIdentifier 
-   * to DelegationTokenInformation. Protected by this object lock.
+   * to DelegationTokenInformation. Thread safe, tokens are looked up without
+   * taking this object lock. Tokens should be added with
+   * {@link #addToken(AbstractDelegationTokenIdentifier,
+   * DelegationTokenInformation)}, which tracks them for expiry; tokens put
+   * in directly are only expired by the full scan done with every master
+   * key update.
    */
   protected final Map<TokenIdent, DelegationTokenInformation> currentTokens 
-      = new HashMap<TokenIdent, DelegationTokenInformation>();
+      = tokens;
+
+  /**
+   * Renew dates of the tokens in currentTokens, earliest first, so that
+   * expired tokens are found without scanning all tokens. Renewing a token
+   * adds a new entry; the old one is skipped when it reaches the head since
+   * it no longer refers to the token's current information.
+   */
+  private final PriorityBlockingQueue<TokenExpiry<TokenIdent>> tokenExpiries
+      = new PriorityBlockingQueue<TokenExpiry<TokenIdent>>();
   
   /**
    * Sequence number to create DelegationTokenIdentifier.
@@ -124,6 +145,71 @@ extends AbstractDelegationTokenIdentifier>
   protected void logUpdateMasterKey(DelegationKey key) throws IOException {
     return;
   }
+
+  /**
+   * Persist a newly issued token. Called outside the lock on 'this' before
+   * the token becomes valid.
+   */
+  protected void logNewToken(TokenIdent identifier, long renewDate)
+      throws IOException {
+    return;
+  }
+
+  /**
+   * Persist the renewal of a token. Called outside the lock on 'this' once
+   * the new renew date has taken effect.
+   */
+  protected void logRenewToken(TokenIdent identifier, long renewDate)
+      throws IOException {
+    return;
+  }
+
+  /**
+   * Persist the cancellation of a token. Called outside the lock on 'this'
+   * after the token has been removed from the cache.
+   */
+  protected void logCancelToken(TokenIdent identifier) throws IOException {
+    return;
+  }
+
+  /**
+   * Add a previously issued token to the cache (when the server restarts),
+   * should be called before startThreads().
+   * @param identifier identifier of the token
+   * @param renewDate the renew date of the token
+   * @throws IOException if the token is already cached or the secret manager
+   *         is running
+   */
+  public synchronized void addPersistedDelegationToken(TokenIdent identifier,
+      long renewDate) throws IOException {
+    if (running) // a safety check
+      throw new IOException(
+          "Can't add persisted delegation token to a running SecretManager.");
+    DelegationKey key = allKeys.get(identifier.getMasterKeyId());
+    if (key == null) {
+      LOG.warn("No key found for persisted identifier " + identifier);
+      return;
+    }
+    byte[] password = createPassword(identifier.getBytes(), key.getKey());
+    if (identifier.getSequenceNumber() > delegationTokenSequenceNumber) {
+      delegationTokenSequenceNumber = identifier.getSequenceNumber();
+    }
+    if (currentTokens.containsKey(identifier)) {
+      throw new IOException("Same delegation token being added twice.");
+    }
+    addToken(identifier, new DelegationTokenInformation(renewDate, password));
+  }
+
+  /**
+   * Add a token to the cache, or replace it, and track its renew date.
+   * @param identifier identifier of the token
+   * @param info the renew date and password of the token
+   */
+  protected void addToken(TokenIdent identifier,
+      DelegationTokenInformation info) {
+    tokens.put(identifier, info);
+    tokenExpiries.add(new TokenExpiry<TokenIdent>(identifier, info));
+  }
   
   /** 
    * Update the current master key 
@@ -180,23 +266,31 @@ extends AbstractDelegationTokenIdentifier>
   }
   
   @Override
-  protected synchronized byte[] createPassword(TokenIdent identifier) {
+  protected byte[] createPassword(TokenIdent identifier) {
     LOG.info("Creating password for identifier: "+identifier);
-    int sequenceNum;
+    DelegationKey key;
     long now = System.currentTimeMillis();
-    sequenceNum = ++delegationTokenSequenceNumber;
-    identifier.setIssueDate(now);
-    identifier.setMaxDate(now + tokenMaxLifetime);
-    identifier.setMasterKeyId(currentId);
-    identifier.setSequenceNumber(sequenceNum);
-    byte[] password = createPassword(identifier.getBytes(), currentKey.getKey());
-    currentTokens.put(identifier, new DelegationTokenInformation(now
-        + tokenRenewInterval, password));
+    synchronized (this) {
+      int sequenceNum = ++delegationTokenSequenceNumber;
+      identifier.setIssueDate(now);
+      identifier.setMaxDate(now + tokenMaxLifetime);
+      identifier.setMasterKeyId(currentId);
+      identifier.setSequenceNumber(sequenceNum);
+      key = currentKey;
+    }
+    byte[] password = createPassword(identifier.getBytes(), key.getKey());
+    long renewDate = now + tokenRenewInterval;
+    try {
+      logNewToken(identifier, renewDate);
+    } catch (IOException e) {
+      throw new RuntimeException("Could not store token " + identifier, e);
+    }
+    addToken(identifier, new DelegationTokenInformation(renewDate, password));
     return password;
   }
 
   @Override
-  public synchronized byte[] retrievePassword(TokenIdent identifier)
+  public byte[] retrievePassword(TokenIdent identifier)
       throws InvalidToken {
     DelegationTokenInformation info = currentTokens.get(identifier);
     if (info == null) {
@@ -218,7 +312,7 @@ extends AbstractDelegationTokenIdentifier>
    * @throws InvalidToken if the token is invalid
    * @throws AccessControlException if the user can't renew token
    */
-  public synchronized long renewToken(Token<TokenIdent> token,
+  public long renewToken(Token<TokenIdent> token,
                          String renewer) throws InvalidToken, IOException {
     long now = System.currentTimeMillis();
     ByteArrayInputStream buf = new ByteArrayInputStream(token.getIdentifier());
@@ -242,7 +336,10 @@ extends AbstractDelegationTokenIdentifier>
                                        "renewer specified as " + 
                                        id.getRenewer());
     }
-    DelegationKey key = allKeys.get(id.getMasterKeyId());
+    DelegationKey key;
+    synchronized (this) {
+      key = allKeys.get(id.getMasterKeyId());
+    }
     if (key == null) {
       throw new InvalidToken("Unable to find master key for keyId="
           + id.getMasterKeyId()
@@ -258,10 +355,11 @@ extends AbstractDelegationTokenIdentifier>
     DelegationTokenInformation info = new DelegationTokenInformation(renewTime,
         password);
 
-    if (currentTokens.get(id) == null) {
+    if (tokens.replace(id, info) == null) {
       throw new InvalidToken("Renewal request for unknown token");
     }
-    currentTokens.put(id, info);
+    tokenExpiries.add(new TokenExpiry<TokenIdent>(id, info));
+    logRenewToken(id, renewTime);
     return renewTime;
   }
   
@@ -271,7 +369,7 @@ extends AbstractDelegationTokenIdentifier>
    * @throws InvalidToken for invalid token
    * @throws AccessControlException if the user isn't allowed to cancel
    */
-  public synchronized TokenIdent cancelToken(Token<TokenIdent> token,
+  public TokenIdent cancelToken(Token<TokenIdent> token,
       String canceller) throws IOException {
     ByteArrayInputStream buf = new ByteArrayInputStream(token.getIdentifier());
     DataInputStream in = new DataInputStream(buf);
@@ -293,10 +391,11 @@ extends AbstractDelegationTokenIdentifier>
           + " is not authorized to cancel the token");
     }
     DelegationTokenInformation info = null;
-    info = currentTokens.remove(id);
+    info = tokens.remove(id);
     if (info == null) {
       throw new InvalidToken("Token not found");
     }
+    logCancelToken(id);
     return id;
   }
   
@@ -328,14 +427,51 @@ extends AbstractDelegationTokenIdentifier>
     }
   }
   
+  /** Renew date of a token, ordered by renew date */
+  private static class TokenExpiry<TokenIdent>
+      implements Comparable<TokenExpiry<TokenIdent>> {
+    final TokenIdent identifier;
+    final DelegationTokenInformation info;
+
+    TokenExpiry(TokenIdent identifier, DelegationTokenInformation info) {
+      this.identifier = identifier;
+      this.info = info;
+    }
+
+    public int compareTo(TokenExpiry<TokenIdent> other) {
+      long thisDate = info.getRenewDate();
+      long otherDate = other.info.getRenewDate();
+      return thisDate < otherDate ? -1 : (thisDate == otherDate ? 0 : 1);
+    }
+  }
+
   /** Remove expired delegation tokens from cache */
-  private synchronized void removeExpiredToken() {
+  void removeExpiredToken() {
+    long now = System.currentTimeMillis();
+    TokenExpiry<TokenIdent> expiry;
+    while ((expiry = tokenExpiries.poll()) != null) {
+      if (now <= expiry.info.getRenewDate()) {
+        // not expired, neither is anything after it
+        tokenExpiries.add(expiry);
+        break;
+      }
+      // only remove the token if it has not been renewed since
+      tokens.remove(expiry.identifier, expiry.info);
+    }
+  }
+
+  /**
+   * Remove the expired delegation tokens from cache by looking at all of
+   * them, including the ones put in currentTokens without being tracked for
+   * expiry.
+   */
+  void removeAllExpiredTokens() {
+    removeExpiredToken();
     long now = System.currentTimeMillis();
-    Iterator<DelegationTokenInformation> i = currentTokens.values().iterator();
-    while (i.hasNext()) {
-      long renewDate = i.next().getRenewDate();
-      if (now > renewDate) {
-        i.remove();
+    for (Map.Entry<TokenIdent, DelegationTokenInformation> e :
+        tokens.entrySet()) {
+      if (e.getValue().getRenewDate() < now) {
+        tokens.remove(e.getKey(), e.getValue());
       }
     }
   }
@@ -376,6 +512,9 @@ extends AbstractDelegationTokenIdentifier>
               LOG.error("Master key updating failed. "
                   + StringUtils.stringifyException(e));
             }
+            // the tokens subclasses put in currentTokens directly
+            removeAllExpiredTokens();
+            lastTokenCacheCleanup = now;
           }
           if (lastTokenCacheCleanup + tokenRemoverScanInterval < now) {
             removeExpiredToken();
@@ -0,0 +1,409 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.util.bloom;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.util.hash.Hash;
+
+/**
+ * Implements a <i>blocked Bloom filter</i>: a Bloom filter split into blocks
+ * of the size of a cache line, where all of the bits of a key are set in one
+ * block, so that a membership test touches a single cache line rather than
+ * one per hash function.
+ * <p>
+ * A key is hashed once, with the 128-bit MurmurHash3, whatever the number of
+ * hash functions: one half of the hash picks the block, and the bits in the
+ * block are derived from both halves by double hashing.  The hash type of
+ * {@link Filter} is not used.
+ * <p>
+ * Keys spread less evenly over the blocks than over the bits of a whole
+ * vector, so a blocked Bloom filter needs a few more bits per key for the
+ * same false positive rate; {@link #create(int, double)} sizes a filter for
+ * that.
+ * <p>
+ * Besides its {@link org.apache.hadoop.io.Writable} form, a filter can be
+ * written in a <i>mapped form</i>, with {@link #writeMapped(DataOutput)}: a
+ * header, then the bits as little-endian longs.  {@link #map(ByteBuffer)}
+ * probes a filter in that form where it lies, without copying or decoding
+ * it, so a filter in a memory mapped file opens at once and its pages are
+ * shared by all of the processes mapping the file.
+ *
+ * @see Filter The general behavior of a filter
+ *
+ * @see <a href="http://algo2.iti.kit.edu/singler/publications/cacheefficientbloomfilters-wea2007.pdf">Cache-, Hash- and Space-Efficient Bloom Filters</a>
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class BlockedBloomFilter extends Filter {
+  /** The number of bits of a block: 64 bytes, a cache line. */
+  public static final int BLOCK_BITS = 512;
+  private static final int LONGS_PER_BLOCK = BLOCK_BITS / 64;
+
+  /** The first bytes of the mapped form. */
+  private static final byte[] MAPPED_MAGIC =
+    { 'B', 'L', 'O', 'O', 'M', 'B', 'L', 'K' };
+  /**
+   * The length of the header of the mapped form: the magic, the number of
+   * hash functions and the vector size, which keeps the bits 8-byte aligned.
+   */
+  public static final int MAPPED_HEADER_LENGTH = MAPPED_MAGIC.length + 8;
+
+  /**
+   * The bits, a block after the other: an array of the heap, or the bits of
+   * a mapped filter.
+   */
+  private LongBuffer bits;
+  private int blocks;
+
+  /** Default constructor - use with readFields */
+  public BlockedBloomFilter() {
+    super();
+  }
+
+  /**
+   * Constructor
+   * @param vectorSize The vector size of <i>this</i> filter, rounded up to a
+   * whole number of blocks.
+   * @param nbHash The number of bits to set per key.
+   */
+  public BlockedBloomFilter(int vectorSize, int nbHash) {
+    super(roundToBlocks(vectorSize), nbHash, Hash.MURMUR_HASH);
+    allocate();
+  }
+
+  /**
+   * Create a filter for a number of keys and a false positive rate.
+   * @param keys The number of keys the filter is expected to hold.
+   * @param errorRate The false positive rate wanted at that many keys.
+   * @return a new, empty, filter.
+   */
+  public static BlockedBloomFilter create(int keys, double errorRate) {
+    // the optimal number of bits and hash functions of a plain Bloom filter,
+    // with a few more bits to make up for the uneven load of the blocks.
+    double bitsPerKey = -Math.log(errorRate) / (Math.log(2) * Math.log(2));
+    int nbHash = (int) Math.max(1, Math.min(16, Math.round(bitsPerKey
+        * Math.log(2))));
+    long vectorSize = (long) Math.ceil(Math.max(1, keys) * bitsPerKey * 1.1);
+    return new BlockedBloomFilter((int) Math.min(vectorSize,
+        Integer.MAX_VALUE - BLOCK_BITS), nbHash);
+  }
+
+  private static int roundToBlocks(int vectorSize) {
+    int blocks = Math.max(1, (vectorSize + BLOCK_BITS - 1) / BLOCK_BITS);
+    return blocks * BLOCK_BITS;
+  }
+
+  private BlockedBloomFilter(int vectorSize, int nbHash, LongBuffer bits) {
+    super(vectorSize, nbHash, Hash.MURMUR_HASH);
+    this.blocks = vectorSize / BLOCK_BITS;
+    this.bits = bits;
+  }
+
+  private void allocate() {
+    blocks = vectorSize / BLOCK_BITS;
+    bits = LongBuffer.wrap(new long[blocks * LONGS_PER_BLOCK]);
+  }
+
+  /**
+   * Probe a filter in its mapped form, without copying it.  The filter is
+   * read-only when the buffer is, as the buffer of a read-only mapping is,
+   * and is only valid as long as the content of the buffer is unchanged.
+   * @param buffer The filter in the mapped form, from the position of the
+   * buffer to its limit.  The position of the buffer is unchanged.
+   * @return the filter
+   * @throws IOException if the buffer does not hold a filter in the mapped
+   * form.
+   */
+  public static BlockedBloomFilter map(ByteBuffer buffer) throws IOException {
+    ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    if (in.remaining() < MAPPED_HEADER_LENGTH) {
+      throw new IOException("Truncated blocked Bloom filter: "
+          + in.remaining() + " bytes");
+    }
+    for (int i = 0; i < MAPPED_MAGIC.length; i++) {
+      if (in.get(i) != MAPPED_MAGIC[i]) {
+        throw new IOException("Not a mapped blocked Bloom filter");
+      }
+    }
+    int nbHash = in.getInt(MAPPED_MAGIC.length);
+    int vectorSize = in.getInt(MAPPED_MAGIC.length + 4);
+    if (nbHash <= 0 || vectorSize <= 0 || vectorSize % BLOCK_BITS != 0) {
+      throw new IOException("Bad blocked Bloom filter: " + nbHash
+          + " hash functions, vector size " + vectorSize);
+    }
+    int length = MAPPED_HEADER_LENGTH + vectorSize / 8;
+    if (in.remaining() < length) {
+      throw new IOException("Truncated blocked Bloom filter: "
+          + in.remaining() + " bytes instead of " + length);
+    }
+    in.position(MAPPED_HEADER_LENGTH);
+    in.limit(length);
+    LongBuffer bits = in.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    return new BlockedBloomFilter(vectorSize, nbHash, bits);
+  }
+
+  /**
+   * Write <i>this</i> filter in the mapped form, to be probed with
+   * {@link #map(ByteBuffer)}.
+   * @param out The output, which should be at a multiple of 8 bytes in its
+   * file for the bits to be aligned when mapped.
+   * @throws IOException
+   */
+  public void writeMapped(DataOutput out) throws IOException {
+    out.write(MAPPED_MAGIC);
+    out.writeInt(Integer.reverseBytes(nbHash));
+    out.writeInt(Integer.reverseBytes(vectorSize));
+    for (int i = 0; i < bits.limit(); i++) {
+      out.writeLong(Long.reverseBytes(bits.get(i)));
+    }
+  }
+
+  /**
+   * @return the length of <i>this</i> filter in the mapped form.
+   */
+  public int getMappedLength() {
+    return MAPPED_HEADER_LENGTH + vectorSize / 8;
+  }
+
+  @Override
+  public void add(Key key) {
+    if(key == null) {
+      throw new NullPointerException("key cannot be null");
+    }
+    byte[] b = key.getBytes();
+    add(b, 0, b.length);
+  }
+
+  /**
+   * Adds a key to <i>this</i> filter, without wrapping it in a {@link Key}.
+   * @param key The buffer of the key.
+   * @param offset The offset of the key in the buffer.
+   * @param length The length of the key.
+   */
+  public void add(byte[] key, int offset, int length) {
+    long[] h = new long[2];
+    murmur3(key, offset, length, h);
+    int block = blockOf(h[0]);
+    for (int i = 0; i < nbHash; i++) {
+      int bit = bitOf(h[0], h[1], i);
+      int word = block + (bit >>> 6);
+      bits.put(word, bits.get(word) | 1L << bit);
+    }
+  }
+
+  @Override
+  public boolean membershipTest(Key key) {
+    if(key == null) {
+      throw new NullPointerException("key cannot be null");
+    }
+    byte[] b = key.getBytes();
+    return membershipTest(b, 0, b.length);
+  }
+
+  /**
+   * Determines whether a key belongs to <i>this</i> filter, without wrapping
+   * it in a {@link Key}.
+   * @param key The buffer of the key.
+   * @param offset The offset of the key in the buffer.
+   * @param length The length of the key.
+   * @return false iff the key is not in the filter.
+   */
+  public boolean membershipTest(byte[] key, int offset, int length) {
+    long[] h = new long[2];
+    murmur3(key, offset, length, h);
+    int block = blockOf(h[0]);
+    for (int i = 0; i < nbHash; i++) {
+      int bit = bitOf(h[0], h[1], i);
+      if ((bits.get(block + (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The first long of the block of a key. */
+  private int blockOf(long h1) {
+    // the high bits of h1, scaled to the number of blocks
+    return (int) (((h1 >>> 32) * blocks) >>> 32) * LONGS_PER_BLOCK;
+  }
+
+  /** The i-th bit of a key in its block. */
+  private static int bitOf(long h1, long h2, int i) {
+    // the high bits of h1 pick the block, so step by the low ones
+    return (int) ((h2 + i * (Long.rotateLeft(h1, 32) | 1)) >>> 55);
+  }
+
+  private void checkFilter(Filter filter, String operation) {
+    if(filter == null
+        || !(filter instanceof BlockedBloomFilter)
+        || filter.vectorSize != this.vectorSize
+        || filter.nbHash != this.nbHash) {
+      throw new IllegalArgumentException("filters cannot be " + operation);
+    }
+  }
+
+  @Override
+  public void and(Filter filter) {
+    checkFilter(filter, "and-ed");
+    LongBuffer other = ((BlockedBloomFilter) filter).bits;
+    for (int i = 0; i < bits.limit(); i++) {
+      bits.put(i, bits.get(i) & other.get(i));
+    }
+  }
+
+  @Override
+  public void or(Filter filter) {
+    checkFilter(filter, "or-ed");
+    LongBuffer other = ((BlockedBloomFilter) filter).bits;
+    for (int i = 0; i < bits.limit(); i++) {
+      bits.put(i, bits.get(i) | other.get(i));
+    }
+  }
+
+  @Override
+  public void xor(Filter filter) {
+    checkFilter(filter, "xor-ed");
+    LongBuffer other = ((BlockedBloomFilter) filter).bits;
+    for (int i = 0; i < bits.limit(); i++) {
+      bits.put(i, bits.get(i) ^ other.get(i));
+    }
+  }
+
+  @Override
+  public void not() {
+    for (int i = 0; i < bits.limit(); i++) {
+      bits.put(i, ~bits.get(i));
+    }
+  }
+
+  /**
+   * @return size of the the bloomfilter
+   */
+  public int getVectorSize() {
+    return this.vectorSize;
+  }
+
+  // Writable
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    for (int i = 0; i < bits.limit(); i++) {
+      out.writeLong(bits.get(i));
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    if (vectorSize <= 0 || vectorSize % BLOCK_BITS != 0) {
+      throw new IOException("Bad vector size of a blocked Bloom filter: "
+          + vectorSize);
+    }
+    allocate();
+    for (int i = 0; i < bits.limit(); i++) {
+      bits.put(i, in.readLong());
+    }
+  }
+
+  // MurmurHash3, x64 128-bit variant, by Austin Appleby, public domain.
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  /** Hash a key into the two longs of <code>h</code>. */
+  @SuppressWarnings("fallthrough")
+  static void murmur3(byte[] key, int offset, int length, long[] h) {
+    long h1 = 0;
+    long h2 = 0;
+    int blocks = length >>> 4;
+    for (int i = 0; i < blocks; i++) {
+      int p = offset + (i << 4);
+      long k1 = getLong(key, p);
+      long k2 = getLong(key, p + 8);
+
+      k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+      h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+      h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    // the tail
+    int tail = offset + (blocks << 4);
+    long k1 = 0;
+    long k2 = 0;
+    // each case mixes in its byte and falls through to the lower ones
+    switch (length & 15) {
+    case 15: k2 ^= (key[tail + 14] & 0xffL) << 48;
+    case 14: k2 ^= (key[tail + 13] & 0xffL) << 40;
+    case 13: k2 ^= (key[tail + 12] & 0xffL) << 32;
+    case 12: k2 ^= (key[tail + 11] & 0xffL) << 24;
+    case 11: k2 ^= (key[tail + 10] & 0xffL) << 16;
+    case 10: k2 ^= (key[tail + 9] & 0xffL) << 8;
+    case 9:  k2 ^= (key[tail + 8] & 0xffL);
+      k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+    case 8:  k1 ^= (key[tail + 7] & 0xffL) << 56;
+    case 7:  k1 ^= (key[tail + 6] & 0xffL) << 48;
+    case 6:  k1 ^= (key[tail + 5] & 0xffL) << 40;
+    case 5:  k1 ^= (key[tail + 4] & 0xffL) << 32;
+    case 4:  k1 ^= (key[tail + 3] & 0xffL) << 24;
+    case 3:  k1 ^= (key[tail + 2] & 0xffL) << 16;
+    case 2:  k1 ^= (key[tail + 1] & 0xffL) << 8;
+    case 1:  k1 ^= (key[tail] & 0xffL);
+      k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+    }
+
+    // finalization
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+    h[0] = h1;
+    h[1] = h2;
+  }
+
+  private static long getLong(byte[] b, int p) {
+    return (b[p] & 0xffL) | (b[p + 1] & 0xffL) << 8
+        | (b[p + 2] & 0xffL) << 16 | (b[p + 3] & 0xffL) << 24
+        | (b[p + 4] & 0xffL) << 32 | (b[p + 5] & 0xffL) << 40
+        | (b[p + 6] & 0xffL) << 48 | (b[p + 7] & 0xffL) << 56;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
@@ -18,7 +18,10 @@
 
 package org.apache.hadoop.fs;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -157,4 +160,96 @@ public class TestChecksumFileSystem extends TestCase {
     }
 
   }
+
+  /** A raw local file system counting the streams it opens and closes */
+  private static class CountingRawFileSystem extends RawLocalFileSystem {
+    final AtomicInteger opened = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+
+    public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+      FSDataInputStream in = super.open(f, bufferSize);
+      opened.incrementAndGet();
+      return new FSDataInputStream(in) {
+        public void close() throws IOException {
+          closed.incrementAndGet();
+          super.close();
+        }
+      };
+    }
+  }
+
+  private static void checkPread(FSDataInputStream in, byte[] data,
+      int position, int length) throws IOException {
+    byte[] buf = new byte[length];
+    in.readFully(position, buf);
+    assertTrue("data at " + position, Arrays.equals(
+      Arrays.copyOfRange(data, position, position + length), buf));
+  }
+
+  /**
+   * Test that positional reads reuse the checkers of earlier ones, and
+   * that closing the stream closes them, including those of reads done
+   * after it is closed.
+   */
+  public void testPositionalReadCheckers() throws Exception {
+    Configuration conf = new Configuration();
+    CountingRawFileSystem rawFs = new CountingRawFileSystem();
+    LocalFileSystem localFs = new LocalFileSystem(rawFs);
+    localFs.initialize(URI.create("file:///"), conf);
+    Path testPath = new Path(TEST_ROOT_DIR, "testPositionalReadCheckers");
+    final byte[] data = new byte[100000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7 + i / 511);
+    }
+    FSDataOutputStream fout = localFs.create(testPath);
+    fout.write(data);
+    fout.close();
+
+    // the stream opens the file and its checksums
+    final FSDataInputStream in = localFs.open(testPath);
+    assertEquals(2, rawFs.opened.get());
+
+    // sequential positional reads share one checker
+    for (int i = 0; i < 20; i++) {
+      checkPread(in, data, i * 4999, 3000);
+    }
+    assertEquals(4, rawFs.opened.get());
+    assertEquals(0, rawFs.closed.get());
+
+    // concurrent positional reads see the right data
+    final Throwable[] failures = new Throwable[8];
+    Thread[] readers = new Thread[failures.length];
+    for (int i = 0; i < readers.length; i++) {
+      final int t = i;
+      readers[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 50; j++) {
+              checkPread(in, data, (t * 50 + j) * 193 % 90000, 9000);
+            }
+          } catch (Throwable e) {
+            failures[t] = e;
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    for (Throwable failure : failures) {
+      if (failure != null) {
+        throw new AssertionError(failure);
+      }
+    }
+
+    // closing the stream closes the checkers it keeps
+    in.close();
+    assertEquals(rawFs.opened.get(), rawFs.closed.get());
+
+    // a positional read after close does not leave its checker open
+    checkPread(in, data, 12345, 5000);
+    assertEquals(rawFs.opened.get(), rawFs.closed.get());
+    localFs.delete(testPath, true);
+  }
 }
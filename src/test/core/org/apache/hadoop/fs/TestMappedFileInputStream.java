@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.fs;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import junit.framework.TestCase;
+
+public class TestMappedFileInputStream extends TestCase {
+  static final String TEST_ROOT_DIR
+    = System.getProperty("test.build.data","build/test/data/work-dir/localfs");
+
+  private Configuration conf = new Configuration();
+  private LocalFileSystem localFs;
+  private Path testPath = new Path(TEST_ROOT_DIR, "testMapped");
+  private byte[] data;
+
+  protected void setUp() throws Exception {
+    localFs = FileSystem.getLocal(conf);
+    data = new byte[200000];
+    new Random(1).nextBytes(data);
+    FSDataOutputStream out = localFs.create(testPath, true);
+    out.write(data);
+    out.close();
+  }
+
+  protected void tearDown() throws Exception {
+    localFs.delete(testPath, true);
+  }
+
+  public void testRead() throws Exception {
+    MappedFileInputStream in =
+      MappedFileInputStream.open(localFs, testPath, 1000, 100);
+    try {
+      assertEquals(data.length, in.getLength());
+      byte[] read = new byte[data.length];
+      int n = 0;
+      // odd sized reads, so that they straddle the windows
+      while (n < read.length) {
+        int count = in.read(read, n, Math.min(333, read.length - n));
+        assertTrue(count > 0);
+        n += count;
+      }
+      assertEquals(-1, in.read());
+      assertTrue(java.util.Arrays.equals(data, read));
+
+      in.seek(4321);
+      assertEquals(data[4321] & 0xff, in.read());
+      assertEquals(4322, in.getPos());
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testSkipMapped() throws Exception {
+    MappedFileInputStream in =
+      MappedFileInputStream.open(localFs, testPath, 1000, 100);
+    try {
+      // inside the first window
+      in.seek(10);
+      int offset = in.skipMapped(50);
+      assertEquals(10, offset);
+      assertBytes(in.getWindow(), offset, 10, 50);
+      // reaching into the overlap of the first window
+      in.seek(980);
+      offset = in.skipMapped(100);
+      assertEquals(980, offset);
+      assertBytes(in.getWindow(), offset, 980, 100);
+      assertEquals(1080, in.getPos());
+      // past the overlap, so not in one window
+      in.seek(980);
+      assertEquals(-1, in.skipMapped(200));
+      assertEquals(980, in.getPos());
+      // a slice of an earlier window stays readable
+      in.seek(5010);
+      offset = in.skipMapped(20);
+      ByteBuffer window = in.getWindow();
+      assertEquals(10, offset);
+      in.seek(20);
+      in.read();
+      assertBytes(window, offset, 5010, 20);
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testNotLocal() throws Exception {
+    FileSystem filtered = new FilterFileSystem(localFs.getRawFileSystem());
+    assertNull(MappedFileInputStream.open(filtered, testPath));
+  }
+
+  public void testChecksumError() throws Exception {
+    File file = ((RawLocalFileSystem) localFs.getRawFileSystem())
+      .pathToFile(testPath);
+    RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    try {
+      raw.seek(150000);
+      raw.write(data[150000] ^ 1);
+    } finally {
+      raw.close();
+    }
+    MappedFileInputStream in =
+      MappedFileInputStream.open(localFs, testPath, 1000, 100);
+    try {
+      // checksums are verified in runs of chunks, so the start is fine
+      byte[] read = new byte[100];
+      assertEquals(100, in.read(read, 0, 100));
+      in.seek(149990);
+      try {
+        in.read(read, 0, 100);
+        fail("corrupted data was read");
+      } catch (ChecksumException e) {
+        assertTrue(e.getPos() <= 150000);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void assertBytes(ByteBuffer window, int offset, int pos, int n) {
+    for (int i = 0; i < n; i++) {
+      assertEquals(data[pos + i], window.get(offset + i));
+    }
+  }
+}
@@ -18,6 +18,7 @@
 
 package org.apache.hadoop.io;
 
+import java.nio.ReadOnlyBufferException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -25,6 +26,9 @@ import java.util.List;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.bloom.BlockedBloomFilter;
+import org.apache.hadoop.util.bloom.DynamicBloomFilter;
+import org.apache.hadoop.util.bloom.Key;
 
 import junit.framework.TestCase;
 
@@ -63,6 +67,16 @@ public class TestBloomMapFile extends TestCase {
         if (exists) falsePos++;
       }
     }
+    // and look the keys up
+    for (int i = 0; i < 2000; i++) {
+      key.set(i);
+      Writable found = reader.lookup(key, value);
+      if (i % 2 == 0) {
+        assertEquals(new Text("00" + i), found);
+      } else {
+        assertNull(found);
+      }
+    }
     reader.close();
     fs.delete(qualifiedDirName, true);
     System.out.println("False negatives: " + falseNeg);
@@ -108,4 +122,106 @@ public class TestBloomMapFile extends TestCase {
     checkMembershipVaryingSizedKeys(getName(), list);
   }
 
+  private void writeMap(Configuration conf, Path dir, String type)
+    throws Exception {
+    conf.set("io.mapfile.bloom.type", type);
+    BloomMapFile.Writer writer = new BloomMapFile.Writer(conf, dir,
+      MapFile.Writer.keyClass(IntWritable.class),
+      SequenceFile.Writer.valueClass(Text.class));
+    for (int i = 0; i < 2000; i += 2) {
+      writer.append(new IntWritable(i), new Text("00" + i));
+    }
+    writer.close();
+  }
+
+  public void testBlockedBloomFilter() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.mapfile.bloom.size", 2048);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dirName = fs.makeQualified(new Path(
+      System.getProperty("test.build.data",".") + getName() +
+      ".bloommapfile"));
+    writeMap(conf, dirName, "blocked");
+    BloomMapFile.Reader reader = new BloomMapFile.Reader(dirName, conf);
+    try {
+      assertTrue(reader.getBloomFilter() instanceof BlockedBloomFilter);
+      IntWritable key = new IntWritable();
+      Text value = new Text();
+      int falsePos = 0;
+      for (int i = 0; i < 2000; i++) {
+        key.set(i);
+        boolean exists = reader.probablyHasKey(key);
+        if (i % 2 == 0) {
+          assertTrue(exists);
+          assertEquals(new Text("00" + i), reader.get(key, value));
+          assertEquals(new Text("00" + i), reader.lookup(key, value));
+        } else if (exists) {
+          falsePos++;
+        }
+      }
+      System.out.println("False positives: " + falsePos);
+      assertTrue(falsePos < 10);
+    } finally {
+      reader.close();
+    }
+
+    // readers configured for the other kind still find the filter
+    Configuration otherConf = new Configuration(conf);
+    otherConf.set("io.mapfile.bloom.type", "dynamic");
+    reader = new BloomMapFile.Reader(dirName, otherConf);
+    try {
+      assertTrue(reader.getBloomFilter() instanceof BlockedBloomFilter);
+      assertTrue(reader.probablyHasKey(new IntWritable(100)));
+    } finally {
+      reader.close();
+    }
+
+    // rewritten with a dynamic filter, which replaces the blocked one
+    writeMap(conf, dirName, "dynamic");
+    assertFalse(fs.exists(
+      new Path(dirName, BloomMapFile.BLOCKED_BLOOM_FILE_NAME)));
+    otherConf.set("io.mapfile.bloom.type", "blocked");
+    reader = new BloomMapFile.Reader(dirName, otherConf);
+    try {
+      assertTrue(reader.getBloomFilter() instanceof DynamicBloomFilter);
+      assertTrue(reader.probablyHasKey(new IntWritable(100)));
+    } finally {
+      reader.close();
+      fs.delete(dirName, true);
+    }
+  }
+  public void testMappedBloomFilter() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.mapfile.bloom.size", 2048);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dirName = fs.makeQualified(new Path(
+      System.getProperty("test.build.data",".") + getName() +
+      ".bloommapfile"));
+    writeMap(conf, dirName, "blocked");
+    BloomMapFile.Reader mapped = new BloomMapFile.Reader(dirName, conf);
+    conf.setBoolean("io.mapfile.bloom.mmap", false);
+    BloomMapFile.Reader read = new BloomMapFile.Reader(dirName, conf);
+    try {
+      // the filter is probed in the read-only mapping of its file
+      try {
+        mapped.getBloomFilter().add(new Key("key".getBytes()));
+        fail("added a key to a mapped filter");
+      } catch (ReadOnlyBufferException e) {
+        // expected
+      }
+      IntWritable key = new IntWritable();
+      for (int i = 0; i < 2000; i++) {
+        key.set(i);
+        assertEquals(read.probablyHasKey(key), mapped.probablyHasKey(key));
+        if (i % 2 == 0) {
+          assertTrue(mapped.probablyHasKey(key));
+        }
+      }
+    } finally {
+      mapped.close();
+      read.close();
+      fs.delete(dirName, true);
+    }
+  }
+
 }
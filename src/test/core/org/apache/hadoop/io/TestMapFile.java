@@ -17,6 +17,10 @@
  */
 package org.apache.hadoop.io;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -121,4 +125,282 @@ public class TestMapFile extends TestCase {
       conf);
     assertEquals(null, reader.midKey());
   }
+
+  private Path writeIntMapFile(String name, int count) throws Exception {
+    Path dirName = new Path(System.getProperty("test.build.data",".") +
+      name + ".mapfile");
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path qualifiedDirName = fs.makeQualified(dirName);
+    MapFile.Writer writer = new MapFile.Writer(conf, fs,
+      qualifiedDirName.toString(), IntWritable.class, IntWritable.class);
+    writer.setIndexInterval(4);
+    // the even keys, from 0
+    for (int i = 0; i < count; i++) {
+      writer.append(new IntWritable(2 * i), new IntWritable(i));
+    }
+    writer.close();
+    return qualifiedDirName;
+  }
+
+  private void checkLookups(MapFile.Reader reader, int count)
+    throws Exception {
+    IntWritable value = new IntWritable();
+    for (int i = 0; i < count; i++) {
+      assertNotNull(reader.get(new IntWritable(2 * i), value));
+      assertEquals(i, value.get());
+      IntWritable closest =
+        (IntWritable)reader.getClosest(new IntWritable(2 * i + 1), value);
+      if (i + 1 < count) {
+        assertEquals(2 * i + 2, closest.get());
+        assertEquals(i + 1, value.get());
+      } else {
+        assertNull(closest);
+      }
+    }
+    // and backwards
+    for (int i = count - 1; i >= 0; i -= 7) {
+      assertNotNull(reader.get(new IntWritable(2 * i), value));
+      assertEquals(i, value.get());
+    }
+    assertNull(reader.get(new IntWritable(-1), value));
+  }
+
+  public void testIndexLookups() throws Exception {
+    final int COUNT = 5000;
+    Path dirName = writeIntMapFile(getName(), COUNT);
+    Configuration skipConf = new Configuration(conf);
+    for (int skip = 0; skip < 3; skip++) {
+      skipConf.setInt("io.map.index.skip", skip);
+      MapFile.Reader reader = new MapFile.Reader(dirName, skipConf);
+      try {
+        assertEquals(COUNT / 4 / (skip + 1),
+          reader.getIndex().count);
+        checkLookups(reader, COUNT);
+        IntWritable last = new IntWritable();
+        reader.finalKey(last);
+        assertEquals(2 * (COUNT - 1), last.get());
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  public void testSharedIndex() throws Exception {
+    final int COUNT = 1000;
+    Path dirName = writeIntMapFile(getName(), COUNT);
+    Configuration sharedConf = new Configuration(conf);
+    sharedConf.setBoolean("io.map.index.shared", true);
+    MapFile.Reader reader1 = new MapFile.Reader(dirName, sharedConf);
+    MapFile.Reader reader2 = new MapFile.Reader(dirName, sharedConf);
+    MapFile.Reader reader3 = new MapFile.Reader(dirName, conf);
+    try {
+      assertSame(reader1.getIndex(), reader2.getIndex());
+      assertNotSame(reader1.getIndex(), reader3.getIndex());
+      checkLookups(reader1, COUNT);
+      checkLookups(reader2, COUNT);
+      assertEquals(new IntWritable(2 * ((reader1.getIndex().count - 1) / 2 * 4)),
+        reader2.midKey());
+
+      // a rewritten map has an index of its own
+      Thread.sleep(1000);
+      writeIntMapFile(getName(), COUNT / 2);
+      MapFile.Reader reader4 = new MapFile.Reader(dirName, sharedConf);
+      try {
+        assertNotSame(reader1.getIndex(), reader4.getIndex());
+        checkLookups(reader4, COUNT / 2);
+      } finally {
+        reader4.close();
+      }
+    } finally {
+      reader1.close();
+      reader2.close();
+      reader3.close();
+    }
+  }
+
+  /** A key without a raw comparator, compared by the generic one. */
+  public static class PlainKey implements WritableComparable<PlainKey> {
+    private int value;
+
+    public PlainKey() {
+    }
+
+    public PlainKey(int value) {
+      this.value = value;
+    }
+
+    public void write(DataOutput out) throws IOException {
+      out.writeInt(value);
+    }
+
+    public void readFields(DataInput in) throws IOException {
+      value = in.readInt();
+    }
+
+    public int compareTo(PlainKey other) {
+      return value < other.value ? -1 : (value == other.value ? 0 : 1);
+    }
+  }
+
+  private Path writePlainMapFile(String name, int count) throws Exception {
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dirName = fs.makeQualified(new Path(
+      System.getProperty("test.build.data",".") + name + ".mapfile"));
+    MapFile.Writer writer = new MapFile.Writer(conf, dirName,
+      MapFile.Writer.keyClass(PlainKey.class),
+      SequenceFile.Writer.valueClass(IntWritable.class));
+    writer.setIndexInterval(4);
+    // the even keys, from 0
+    for (int i = 0; i < count; i++) {
+      writer.append(new PlainKey(2 * i), new IntWritable(i));
+    }
+    writer.close();
+    return dirName;
+  }
+
+  public void testReaderPerThread() throws Exception {
+    final int COUNT = 2000;
+    final Path dirName = writePlainMapFile(getName(), COUNT);
+
+    // the readers of the threads all compare keys of the same class
+    final Exception[] failures = new Exception[4];
+    Thread[] threads = new Thread[failures.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            MapFile.Reader reader = new MapFile.Reader(dirName, conf);
+            try {
+              IntWritable value = new IntWritable();
+              for (int n = 0; n < 5; n++) {
+                for (int i = thread; i < COUNT; i += 3) {
+                  assertSame(value, reader.get(new PlainKey(2 * i), value));
+                  assertEquals(i, value.get());
+                  assertNull(reader.get(new PlainKey(2 * i + 1), value));
+                }
+              }
+            } finally {
+              reader.close();
+            }
+          } catch (Throwable e) {
+            failures[thread] = new Exception(e);
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    for (Exception e : failures) {
+      if (e != null) {
+        throw e;
+      }
+    }
+  }
+
+  public void testConcurrentLookups() throws Exception {
+    final int COUNT = 2000;
+    Path dirName = writeIntMapFile(getName(), COUNT);
+    final MapFile.Reader reader = new MapFile.Reader(dirName, conf);
+    final Exception[] failures = new Exception[4];
+    Thread[] threads = new Thread[failures.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            IntWritable value = new IntWritable();
+            for (int i = thread; i < COUNT; i += 3) {
+              assertSame(value, reader.lookup(new IntWritable(2 * i), value));
+              assertEquals(i, value.get());
+              assertNull(reader.lookup(new IntWritable(2 * i + 1), value));
+            }
+          } catch (Throwable e) {
+            failures[thread] = new Exception(e);
+          }
+        }
+      };
+    }
+    try {
+      IntWritable key = new IntWritable();
+      IntWritable value = new IntWritable();
+      assertTrue(reader.next(key, value));
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      for (Exception e : failures) {
+        if (e != null) {
+          throw e;
+        }
+      }
+      // the lookups did not move the reader
+      assertTrue(reader.next(key, value));
+      assertEquals(2, key.get());
+      assertNull(reader.lookup(new IntWritable(-1), value));
+      assertNull(reader.lookup(new IntWritable(2 * COUNT), value));
+    } finally {
+      reader.close();
+    }
+    try {
+      reader.lookup(new IntWritable(0), new IntWritable());
+      fail("looked up a key of a closed reader");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testConcurrentPlainKeyLookups() throws Exception {
+    final int COUNT = 2000;
+    Path dirName = writePlainMapFile(getName(), COUNT);
+    final MapFile.Reader reader = new MapFile.Reader(dirName, conf);
+    final Exception[] failures = new Exception[4];
+    Thread[] threads = new Thread[failures.length];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            IntWritable value = new IntWritable();
+            for (int n = 0; n < 5; n++) {
+              for (int i = thread; i < COUNT; i += 3) {
+                assertSame(value, reader.lookup(new PlainKey(2 * i), value));
+                assertEquals(i, value.get());
+                assertNull(reader.lookup(new PlainKey(2 * i + 1), value));
+              }
+            }
+          } catch (Throwable e) {
+            failures[thread] = new Exception(e);
+          }
+        }
+      };
+    }
+    try {
+      for (Thread t : threads) {
+        t.start();
+      }
+      // and seeks of the reader itself, at the same time
+      IntWritable value = new IntWritable();
+      for (int i = 0; i < COUNT; i += 5) {
+        assertSame(value, reader.get(new PlainKey(2 * i), value));
+        assertEquals(i, value.get());
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      for (Exception e : failures) {
+        if (e != null) {
+          throw e;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
 }
@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import junit.framework.TestCase;
+
+public class TestMapFileReaderCache extends TestCase {
+  private static Configuration conf = new Configuration();
+  private static final int COUNT = 100;
+
+  private Path[] writeMapFiles(int maps) throws IOException {
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path[] dirs = new Path[maps];
+    for (int m = 0; m < maps; m++) {
+      dirs[m] = fs.makeQualified(new Path(System.getProperty(
+        "test.build.data", ".") + getName() + m + ".mapfile"));
+      MapFile.Writer writer = new MapFile.Writer(conf, fs,
+        dirs[m].toString(), IntWritable.class, IntWritable.class);
+      for (int i = 0; i < COUNT; i++) {
+        writer.append(new IntWritable(i), new IntWritable(m));
+      }
+      writer.close();
+    }
+    return dirs;
+  }
+
+  private void checkReader(MapFile.Reader reader, int m) throws IOException {
+    IntWritable value = new IntWritable();
+    assertNotNull(reader.lookup(new IntWritable(COUNT / 2), value));
+    assertEquals(m, value.get());
+  }
+
+  public void testReferenceCounting() throws Exception {
+    Path[] dirs = writeMapFiles(2);
+    MapFileReaderCache cache = new MapFileReaderCache(conf, 10, 60 * 1000);
+    try {
+      MapFile.Reader reader1 = cache.open(dirs[0]);
+      MapFile.Reader reader2 = cache.open(dirs[0]);
+      assertSame(reader1, reader2);
+      MapFile.Reader other = cache.open(dirs[1]);
+      assertNotSame(reader1, other);
+      assertEquals(2, cache.size());
+      checkReader(reader1, 0);
+      checkReader(other, 1);
+      cache.release(reader1);
+      cache.release(reader2);
+      cache.release(other);
+      try {
+        cache.release(other);
+        fail("released a reader nobody held");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      // still open, until idle for long enough
+      assertEquals(2, cache.size());
+      assertSame(reader1, cache.open(dirs[0]));
+      cache.release(reader1);
+    } finally {
+      cache.close();
+    }
+    assertEquals(0, cache.size());
+    try {
+      cache.open(dirs[0]);
+      fail("opened a reader from a closed cache");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testCapacity() throws Exception {
+    Path[] dirs = writeMapFiles(5);
+    MapFileReaderCache cache = new MapFileReaderCache(conf, 2, 60 * 1000);
+    try {
+      MapFile.Reader[] readers = new MapFile.Reader[dirs.length];
+      for (int m = 0; m < dirs.length; m++) {
+        readers[m] = cache.open(dirs[m]);
+      }
+      // held readers stay open over the capacity
+      assertEquals(5, cache.size());
+      for (int m = 0; m < dirs.length; m++) {
+        checkReader(readers[m], m);
+        cache.release(readers[m]);
+      }
+      assertEquals(2, cache.size());
+      // the least recently used were closed
+      assertSame(readers[4], cache.open(dirs[4]));
+      assertSame(readers[3], cache.open(dirs[3]));
+      MapFile.Reader reopened = cache.open(dirs[0]);
+      assertNotSame(readers[0], reopened);
+      checkReader(reopened, 0);
+      cache.release(reopened);
+      cache.release(readers[3]);
+      cache.release(readers[4]);
+      assertEquals(2, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  public void testIdleEviction() throws Exception {
+    Path[] dirs = writeMapFiles(2);
+    MapFileReaderCache cache = new MapFileReaderCache(conf, 10, 200);
+    try {
+      MapFile.Reader reader0 = cache.open(dirs[0]);
+      MapFile.Reader reader1 = cache.open(dirs[1]);
+      cache.release(reader0);
+      Thread.sleep(500);
+      cache.evictIdle();
+      // the held reader stays open
+      assertEquals(1, cache.size());
+      checkReader(reader1, 1);
+      cache.release(reader1);
+      Thread.sleep(500);
+      cache.evictIdle();
+      assertEquals(0, cache.size());
+
+      // and without being asked to, once the cache goes quiet
+      cache.release(cache.open(dirs[0]));
+      assertEquals(1, cache.size());
+      Thread.sleep(1000);
+      assertEquals(0, cache.size());
+    } finally {
+      cache.close();
+    }
+  }
+
+  public void testMissingMap() throws Exception {
+    MapFileReaderCache cache = new MapFileReaderCache(conf, 10, 60 * 1000);
+    try {
+      cache.open(new Path(System.getProperty("test.build.data", ".") +
+        getName() + ".missing"));
+      fail("opened a missing map");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      cache.close();
+    }
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Unit tests for the prefixes of NormalizedKeyComparators. */
+public class TestNormalizedKeyComparator extends TestCase {
+  private static final int NUM_KEYS = 200;
+
+  private static final Random RANDOM = new Random(1);
+
+  /** A comparator that reverses Text, but doesn't know about prefixes. */
+  public static class ReverseTextComparator extends Text.Comparator {
+    public int compare(byte[] b1, int s1, int l1,
+                       byte[] b2, int s2, int l2) {
+      return -super.compare(b1, s1, l1, b2, s2, l2);
+    }
+  }
+
+  private static byte[] serialize(Writable w) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    w.write(out);
+    byte[] result = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, result, 0, result.length);
+    return result;
+  }
+
+  /**
+   * Check the prefixes of each pair of keys agree with the comparator
+   * where they differ, and that they settle most of the comparisons.
+   */
+  private static void checkPrefixes(RawComparator comparator,
+                                    Writable[] keys) throws IOException {
+    NormalizedKeyComparator prefixes =
+      WritableComparator.getNormalizedKeyComparator(comparator);
+    assertNotNull(prefixes);
+    byte[][] bytes = new byte[keys.length][];
+    long[] prefix = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      bytes[i] = serialize(keys[i]);
+      prefix[i] = prefixes.getNormalizedKeyPrefix(bytes[i], 0,
+                                                  bytes[i].length);
+    }
+    int decided = 0;
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = 0; j < keys.length; j++) {
+        int cmp = comparator.compare(bytes[i], 0, bytes[i].length,
+                                     bytes[j], 0, bytes[j].length);
+        if (prefix[i] < prefix[j]) {
+          assertTrue(keys[i] + " < " + keys[j], cmp < 0);
+          decided++;
+        } else if (prefix[i] > prefix[j]) {
+          assertTrue(keys[i] + " > " + keys[j], cmp > 0);
+          decided++;
+        }
+      }
+    }
+    assertTrue(decided > keys.length * (keys.length - 1) / 2);
+  }
+
+  private static byte[] randomBytes(int maxLength) {
+    byte[] b = new byte[RANDOM.nextInt(maxLength + 1)];
+    RANDOM.nextBytes(b);
+    // share prefixes now and then
+    if (b.length > 8 && RANDOM.nextBoolean()) {
+      for (int i = 0; i < 8; i++) {
+        b[i] = (byte) (0x80 + i);
+      }
+    }
+    return b;
+  }
+
+  public void testText() throws Exception {
+    Text[] keys = new Text[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = RANDOM.nextInt(12);
+      for (int c = 0; c < length; c++) {
+        // mostly ASCII, some multi-byte characters
+        sb.append((char) (RANDOM.nextInt(10) == 0 ?
+                          0x80 + RANDOM.nextInt(0xd000) :
+                          'a' + RANDOM.nextInt(4)));
+      }
+      keys[i] = new Text(sb.toString());
+    }
+    checkPrefixes(WritableComparator.get(Text.class), keys);
+  }
+
+  public void testBytesWritable() throws Exception {
+    BytesWritable[] keys = new BytesWritable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new BytesWritable(randomBytes(16));
+    }
+    checkPrefixes(WritableComparator.get(BytesWritable.class), keys);
+  }
+
+  public void testIntWritable() throws Exception {
+    IntWritable[] keys = new IntWritable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new IntWritable(i < 4 ?
+        new int[] { Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE }[i] :
+        RANDOM.nextInt());
+    }
+    checkPrefixes(WritableComparator.get(IntWritable.class), keys);
+  }
+
+  public void testLongWritable() throws Exception {
+    LongWritable[] keys = new LongWritable[NUM_KEYS];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new LongWritable(i < 4 ?
+        new long[] { Long.MIN_VALUE, -1, 0, Long.MAX_VALUE }[i] :
+        RANDOM.nextLong());
+    }
+    checkPrefixes(WritableComparator.get(LongWritable.class), keys);
+    checkPrefixes(new LongWritable.DecreasingComparator(), keys);
+  }
+
+  public void testOverriddenOrder() throws Exception {
+    assertNull(WritableComparator.getNormalizedKeyComparator(
+      new ReverseTextComparator()));
+    assertNull(WritableComparator.getNormalizedKeyComparator(
+      WritableComparator.get(BooleanWritable.class)));
+  }
+}
@@ -304,6 +304,143 @@ public class TestSequenceFile extends TestCase {
     return sorter;
   }
 
+  /**
+   * Test that sorting each buffer on several threads gives the same output
+   * as sorting on one, with the generic and a raw comparator.
+   */
+  public void testParallelSort() throws Exception {
+    int count = 20000;
+    int seed = 11;
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = new Path(System.getProperty("test.build.data","."),
+                         "test.psort.seq");
+    writeTest(fs, count, seed, file, CompressionType.NONE, null);
+    for (boolean fast : new boolean[] { false, true }) {
+      Path[] sorted = new Path[2];
+      int[] threads = new int[] { 1, 4 };
+      for (int i = 0; i < threads.length; i++) {
+        sorted[i] = file.suffix(".sorted." + threads[i]);
+        fs.delete(sorted[i], true);
+        SequenceFile.Sorter sorter = newSorter(fs, fast, 64, 10);
+        sorter.setSortThreads(threads[i]);
+        sorter.sort(file, sorted[i]);
+      }
+      SequenceFile.Reader single = new SequenceFile.Reader(fs, sorted[0], conf);
+      SequenceFile.Reader parallel =
+        new SequenceFile.Reader(fs, sorted[1], conf);
+      RandomDatum k1 = new RandomDatum();
+      RandomDatum v1 = new RandomDatum();
+      RandomDatum k2 = new RandomDatum();
+      RandomDatum v2 = new RandomDatum();
+      RandomDatum last = null;
+      int records = 0;
+      while (single.next(k1, v1)) {
+        assertTrue(parallel.next(k2, v2));
+        assertEquals(k1, k2);
+        assertEquals(v1, v2);
+        if (last != null) {
+          assertTrue(last.compareTo(k2) <= 0);
+        }
+        last = WritableUtils.clone(k2, conf);
+        records++;
+      }
+      assertFalse(parallel.next(k2, v2));
+      assertEquals(count, records);
+      single.close();
+      parallel.close();
+    }
+  }
+
+  /** Wait for the merge threads to be gone. */
+  private static void assertMergeThreadsStopped() throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      boolean running = false;
+      for (Thread t : Thread.getAllStackTraces().keySet()) {
+        if (t.getName().startsWith("SequenceFile merge")) {
+          running = true;
+        }
+      }
+      if (!running) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    fail("the merge threads were not shut down");
+  }
+
+  /**
+   * Test that merges with several threads, which prefetch the segments and
+   * run intermediate merges at the same time, sort like a single thread,
+   * with the generic and a raw comparator, and shut their threads down.
+   */
+  public void testParallelMerge() throws Exception {
+    int count = 10000;
+    int seed = 13;
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = new Path(System.getProperty("test.build.data","."),
+                         "test.pmerge.seq");
+    for (CompressionType type :
+           new CompressionType[] { CompressionType.NONE,
+                                   CompressionType.BLOCK }) {
+      writeTest(fs, count, seed, file, type, new DefaultCodec());
+      for (boolean fast : new boolean[] { false, true }) {
+        for (int threads : new int[] { 1, 3 }) {
+          fs.delete(file.suffix(".sorted"), true);
+          // small buffers and fan-in, for many segments and merge passes
+          SequenceFile.Sorter sorter = newSorter(fs, fast, 1, 3);
+          sorter.setMemory(64 * 1024);
+          sorter.setMergeThreads(threads);
+          assertEquals(threads, sorter.getMergeThreads());
+          sorter.sort(file, file.suffix(".sorted"));
+          checkSort(fs, count, seed, file);
+          assertMergeThreadsStopped();
+        }
+      }
+    }
+  }
+
+  /**
+   * Test sorting and merging keys whose comparator has normalized key
+   * prefixes, including keys that only differ after the prefix.
+   */
+  public void testSortNormalizedKeys() throws Exception {
+    int count = 20000;
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = new Path(System.getProperty("test.build.data","."),
+                         "test.nkey.seq");
+    Path sorted = file.suffix(".sorted");
+    fs.delete(sorted, true);
+    Random random = new Random(17);
+    List<String> expected = new ArrayList<String>();
+    SequenceFile.Writer writer =
+      SequenceFile.createWriter(fs, conf, file, Text.class,
+                                IntWritable.class);
+    for (int i = 0; i < count; i++) {
+      String key = (random.nextBoolean() ? "shared prefix " : "") +
+        Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+      expected.add(key);
+      writer.append(new Text(key), new IntWritable(i));
+    }
+    writer.close();
+    Collections.sort(expected);
+
+    SequenceFile.Sorter sorter =
+      new SequenceFile.Sorter(fs, Text.class, IntWritable.class, conf);
+    sorter.setMemory(64 * 1024);
+    sorter.setFactor(3);
+    sorter.sort(file, sorted);
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(fs, sorted, conf);
+    Text key = new Text();
+    IntWritable value = new IntWritable();
+    for (String k : expected) {
+      assertTrue(reader.next(key, value));
+      assertEquals(k, key.toString());
+    }
+    assertFalse(reader.next(key, value));
+    reader.close();
+  }
+
   /** Unit tests for SequenceFile metadata. */
   public void testSequenceFileMetadata() throws Exception {
     LOG.info("Testing SequenceFile with metadata");
@@ -458,6 +595,525 @@ public class TestSequenceFile extends TestCase {
     assertFalse(reader2.next(text));
   }
 
+  /**
+   * Test that a reader leaving the values unread returns the values asked
+   * for, for every kind of file and with blocks read ahead.
+   */
+  public void testKeysOnly() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = 
+      new Path(System.getProperty("test.build.data",".")+"/test.keys.seq");
+    int count = 2000;
+    for (CompressionType type : CompressionType.values()) {
+      RandomDatum.Generator generator = new RandomDatum.Generator(7);
+      SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file,
+          RandomDatum.class, RandomDatum.class, type, new DefaultCodec());
+      for (int i = 0; i < count; i++) {
+        generator.next();
+        writer.append(generator.getKey(), generator.getValue());
+      }
+      writer.close();
+
+      for (int readAhead : new int[] { 0, 2 }) {
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+            SequenceFile.Reader.file(file),
+            SequenceFile.Reader.readAhead(readAhead),
+            SequenceFile.Reader.keysOnly(true));
+        generator = new RandomDatum.Generator(7);
+        RandomDatum k = new RandomDatum();
+        RandomDatum v = new RandomDatum();
+        for (int i = 0; i < count; i++) {
+          generator.next();
+          assertTrue(reader.next(k));
+          assertEquals(type + " key " + i, generator.getKey(), k);
+          // a few values, some several in a row
+          if (i % 50 == 0 || i % 50 == 7 || i % 50 == 8) {
+            reader.getCurrentValue(v);
+            assertEquals(type + " value " + i, generator.getValue(), v);
+          }
+        }
+        assertFalse(reader.next(k));
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Test that records appended by several threads at once are all written,
+   * with the records of each thread in order.
+   */
+  public void testConcurrentAppend() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = 
+      new Path(System.getProperty("test.build.data",".")+"/test.concurrent.seq");
+    final int threads = 4;
+    final int count = 5000;
+    for (CompressionType type : CompressionType.values()) {
+      final SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+          SequenceFile.Writer.file(file),
+          SequenceFile.Writer.keyClass(IntWritable.class),
+          SequenceFile.Writer.valueClass(Text.class),
+          SequenceFile.Writer.compression(type, new DefaultCodec()),
+          SequenceFile.Writer.concurrentAppend(true));
+      final IOException[] failures = new IOException[threads];
+      Thread[] appenders = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        appenders[t] = new Thread() {
+          public void run() {
+            try {
+              IntWritable key = new IntWritable();
+              Text value = new Text();
+              for (int i = 0; i < count; i++) {
+                key.set(thread * count + i);
+                value.set("value " + key.get());
+                writer.append(key, value);
+              }
+            } catch (IOException e) {
+              failures[thread] = e;
+            }
+          }
+        };
+        appenders[t].start();
+      }
+      for (int t = 0; t < threads; t++) {
+        appenders[t].join();
+        if (failures[t] != null) {
+          throw failures[t];
+        }
+      }
+      writer.commitAppends();
+      writer.append(new IntWritable(threads * count), new Text("last"));
+      writer.close();
+
+      SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.file(file));
+      IntWritable key = new IntWritable();
+      Text value = new Text();
+      int[] next = new int[threads];
+      for (int i = 0; i < threads * count; i++) {
+        assertTrue(type + " record " + i, reader.next(key, value));
+        int thread = key.get() / count;
+        assertEquals(type + " record " + i, thread * count + next[thread]++,
+                     key.get());
+        assertEquals("value " + key.get(), value.toString());
+      }
+      assertTrue(reader.next(key, value));
+      assertEquals(threads * count, key.get());
+      assertEquals("last", value.toString());
+      assertFalse(reader.next(key, value));
+      reader.close();
+    }
+  }
+
+  /**
+   * Test that batches hold the same keys and uncompressed values as raw
+   * records read one at a time.
+   */
+  public void testBatch() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = 
+      new Path(System.getProperty("test.build.data",".")+"/test.batch.seq");
+    int count = 1000;
+    for (CompressionType type : CompressionType.values()) {
+      RandomDatum.Generator generator = new RandomDatum.Generator(5);
+      SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file,
+          RandomDatum.class, RandomDatum.class, type, new DefaultCodec());
+      for (int i = 0; i < count; i++) {
+        generator.next();
+        writer.append(generator.getKey(), generator.getValue());
+      }
+      writer.close();
+
+      for (int capacity : new int[] { 1, 7, 5000 }) {
+        SequenceFile.Reader expected = new SequenceFile.Reader(conf,
+            SequenceFile.Reader.file(file));
+        SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+            SequenceFile.Reader.file(file));
+        SequenceFile.RecordBatch batch =
+          new SequenceFile.RecordBatch(capacity);
+        DataOutputBuffer key = new DataOutputBuffer();
+        DataOutputBuffer value = new DataOutputBuffer();
+        SequenceFile.ValueBytes raw = expected.createValueBytes();
+        int records = 0;
+        int n;
+        while ((n = reader.nextBatch(batch)) != -1) {
+          assertEquals(batch.size(), n);
+          assertTrue(n <= capacity);
+          for (int i = 0; i < n; i++) {
+            key.reset();
+            value.reset();
+            assertTrue(expected.nextRaw(key, raw) >= 0);
+            raw.writeUncompressedBytes(value);
+            String record = type + " record " + (records + i);
+            assertBytes(record, key, batch.getKeyData(),
+                        batch.getKeyOffsets()[i], batch.getKeyLength(i));
+            assertBytes(record, value, batch.getValueData(),
+                        batch.getValueOffsets()[i], batch.getValueLength(i));
+          }
+          records += n;
+        }
+        assertEquals(count, records);
+        assertEquals(-1, expected.nextRaw(key, raw));
+        expected.close();
+        reader.close();
+      }
+    }
+  }
+
+  private static void assertBytes(String message, DataOutputBuffer expected,
+                                  byte[] data, int offset, int length) {
+    assertEquals(message, expected.getLength(), length);
+    assertEquals(message, 0, WritableComparator.compareBytes(
+        expected.getData(), 0, expected.getLength(), data, offset, length));
+  }
+
+  /**
+   * Test that a reader mapping an uncompressed file returns the same
+   * records and raw values as one reading it through a stream.
+   */
+  public void testMmap() throws Exception {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = 
+      new Path(System.getProperty("test.build.data",".")+"/test.mmap.seq");
+    int count = 2000;
+    RandomDatum.Generator generator = new RandomDatum.Generator(11);
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file,
+        RandomDatum.class, RandomDatum.class, CompressionType.NONE);
+    for (int i = 0; i < count; i++) {
+      generator.next();
+      writer.append(generator.getKey(), generator.getValue());
+    }
+    writer.close();
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(file), SequenceFile.Reader.mmap(true));
+    generator = new RandomDatum.Generator(11);
+    RandomDatum k = new RandomDatum();
+    RandomDatum v = new RandomDatum();
+    for (int i = 0; i < count / 2; i++) {
+      generator.next();
+      assertTrue(reader.next(k, v));
+      assertEquals("key " + i, generator.getKey(), k);
+      assertEquals("value " + i, generator.getValue(), v);
+    }
+    reader.close();
+
+    SequenceFile.Reader expected = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(file));
+    reader = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(file), SequenceFile.Reader.mmap(true));
+    DataOutputBuffer expectedKey = new DataOutputBuffer();
+    DataOutputBuffer key = new DataOutputBuffer();
+    DataOutputBuffer expectedValue = new DataOutputBuffer();
+    DataOutputBuffer value = new DataOutputBuffer();
+    SequenceFile.ValueBytes expectedRaw = expected.createValueBytes();
+    SequenceFile.ValueBytes raw = reader.createValueBytes();
+    for (int i = 0; i < count; i++) {
+      expectedKey.reset();
+      key.reset();
+      expectedValue.reset();
+      value.reset();
+      if (i % 2 == 0) {
+        assertEquals(expected.nextRaw(expectedKey, expectedRaw),
+                     reader.nextRaw(key, raw));
+      } else {
+        assertEquals(expected.nextRawKey(expectedKey),
+                     reader.nextRawKey(key));
+        assertEquals(expected.nextRawValue(expectedRaw),
+                     reader.nextRawValue(raw));
+      }
+      assertEquals(expected.getPosition(), reader.getPosition());
+      expectedRaw.writeUncompressedBytes(expectedValue);
+      raw.writeUncompressedBytes(value);
+      // twice, as a merge may write a value after comparing it
+      value.reset();
+      raw.writeUncompressedBytes(value);
+      assertEquals(expectedRaw.getSize(), raw.getSize());
+      assertEquals(new BytesWritable(Arrays.copyOf(expectedKey.getData(),
+                                                   expectedKey.getLength())),
+                   new BytesWritable(Arrays.copyOf(key.getData(),
+                                                   key.getLength())));
+      assertEquals(new BytesWritable(Arrays.copyOf(expectedValue.getData(),
+                                                   expectedValue.getLength())),
+                   new BytesWritable(Arrays.copyOf(value.getData(),
+                                                   value.getLength())));
+    }
+    assertEquals(-1, reader.nextRaw(key, raw));
+    expected.close();
+    reader.close();
+  }
+
+  /**
+   * Test that a reader decompressing blocks ahead of the caller returns the
+   * same records, positions and sync marks as one decompressing on demand.
+   */
+  public void testReadAhead() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path file = 
+      new Path(System.getProperty("test.build.data",".")+"/test.ra.seq");
+    int count = 2000;
+    RandomDatum.Generator generator = new RandomDatum.Generator(42);
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file,
+        RandomDatum.class, RandomDatum.class, CompressionType.BLOCK,
+        new DefaultCodec());
+    for (int i = 0; i < count; i++) {
+      generator.next();
+      writer.append(generator.getKey(), generator.getValue());
+    }
+    writer.close();
+
+    SequenceFile.Reader plain = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(file));
+    SequenceFile.Reader ahead = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(file), SequenceFile.Reader.readAhead(4));
+    try {
+      RandomDatum k1 = new RandomDatum();
+      RandomDatum v1 = new RandomDatum();
+      RandomDatum k2 = new RandomDatum();
+      RandomDatum v2 = new RandomDatum();
+      DataOutputBuffer rawKey1 = new DataOutputBuffer();
+      DataOutputBuffer rawKey2 = new DataOutputBuffer();
+      SequenceFile.ValueBytes rawValue1 = plain.createValueBytes();
+      SequenceFile.ValueBytes rawValue2 = ahead.createValueBytes();
+      int blocks = 0;
+      for (int i = 0; i < count; i++) {
+        // the blocks read ahead start at the position the reader reports,
+        // while the plain reader may not have skipped the last values yet
+        long position = ahead.getPosition();
+        assertTrue("position at " + i, plain.getPosition() <= position);
+        assertTrue("position at " + i,
+                   position <= plain.getPosition() + 4096);
+        if (i % 3 == 0) {
+          // skip the value entirely
+          assertTrue(plain.next(k1));
+          assertTrue(ahead.next(k2));
+        } else if (i % 3 == 1) {
+          rawKey1.reset();
+          rawKey2.reset();
+          assertEquals(plain.nextRaw(rawKey1, rawValue1),
+                       ahead.nextRaw(rawKey2, rawValue2));
+          assertEquals(rawValue1.getSize(), rawValue2.getSize());
+          assertEquals(0, WritableComparator.compareBytes(
+              rawKey1.getData(), 0, rawKey1.getLength(),
+              rawKey2.getData(), 0, rawKey2.getLength()));
+          continue;
+        } else {
+          assertTrue(plain.next(k1, v1));
+          assertTrue(ahead.next(k2, v2));
+          assertEquals("value at " + i, v1, v2);
+        }
+        assertEquals("key at " + i, k1, k2);
+        assertEquals(plain.syncSeen(), ahead.syncSeen());
+        if (ahead.syncSeen()) {
+          blocks++;
+        }
+      }
+      assertTrue("only " + blocks + " blocks", blocks > 10);
+      assertFalse(ahead.next(k2));
+
+      // go back and check that moving the reader drops the blocks read ahead
+      long middle = fs.getFileStatus(file).getLen() / 2;
+      plain.sync(middle);
+      ahead.sync(middle);
+      assertEquals(plain.getPosition(), ahead.getPosition());
+      while (plain.next(k1, v1)) {
+        assertTrue(ahead.next(k2, v2));
+        assertEquals(k1, k2);
+        assertEquals(v1, v2);
+      }
+      assertFalse(ahead.next(k2, v2));
+      ahead.sync(0);
+      generator = new RandomDatum.Generator(42);
+      generator.next();
+      assertTrue(ahead.next(k2, v2));
+      assertEquals(generator.getKey(), k2);
+      assertEquals(generator.getValue(), v2);
+    } finally {
+      plain.close();
+      ahead.close();
+    }
+  }
+
+  /**
+   * Test that a writer compressing blocks in the background writes the
+   * same blocks, in the same order, as one compressing them inline.
+   */
+  public void testPipelinedCompression() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    String dir = System.getProperty("test.build.data",".");
+    Path inline = new Path(dir, "test.inline.seq");
+    Path pipelined = new Path(dir, "test.pipelined.seq");
+    int count = 2000;
+    for (Path file : new Path[] { inline, pipelined }) {
+      SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+          SequenceFile.Writer.file(file),
+          SequenceFile.Writer.keyClass(RandomDatum.class),
+          SequenceFile.Writer.valueClass(RandomDatum.class),
+          SequenceFile.Writer.compression(CompressionType.BLOCK,
+                                          new DefaultCodec()),
+          SequenceFile.Writer.pipelineBlocks(file == inline ? 0 : 3));
+      RandomDatum.Generator generator = new RandomDatum.Generator(17);
+      long lastLength = 0;
+      for (int i = 0; i < count; i++) {
+        generator.next();
+        writer.append(generator.getKey(), generator.getValue());
+        long length = writer.getLength();
+        assertTrue(length >= lastLength);
+        lastLength = length;
+      }
+      writer.close();
+    }
+    // only the sync markers differ
+    assertEquals(fs.getFileStatus(inline).getLen(),
+                 fs.getFileStatus(pipelined).getLen());
+    readTest(fs, count, 17, pipelined);
+  }
+
+  /**
+   * Test that sync() on a pipelined writer writes out the blocks still
+   * being compressed as well as the current one before it returns.
+   */
+  public void testPipelinedSync() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    String dir = System.getProperty("test.build.data",".");
+    SequenceFile.Writer[] writers = new SequenceFile.Writer[2];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = SequenceFile.createWriter(conf,
+          SequenceFile.Writer.file(new Path(dir, "test.sync." + i + ".seq")),
+          SequenceFile.Writer.keyClass(RandomDatum.class),
+          SequenceFile.Writer.valueClass(RandomDatum.class),
+          SequenceFile.Writer.compression(CompressionType.BLOCK,
+                                          new DefaultCodec()),
+          SequenceFile.Writer.pipelineBlocks(i == 0 ? 0 : 3));
+    }
+    SequenceFile.Writer inline = writers[0];
+    SequenceFile.Writer pipelined = writers[1];
+    RandomDatum.Generator generator = new RandomDatum.Generator(23);
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 150; i++) {
+        generator.next();
+        inline.append(generator.getKey(), generator.getValue());
+        pipelined.append(generator.getKey(), generator.getValue());
+      }
+      inline.sync();
+      pipelined.sync();
+      assertEquals(inline.getLength(), pipelined.getLength());
+    }
+    inline.close();
+    pipelined.close();
+    readTest(fs, 750, 23, new Path(dir, "test.sync.1.seq"));
+  }
+
+  /**
+   * Test that the sync index saved with a file lists its sync marks and
+   * lets the reader find records by their ordinal.
+   */
+  public void testSyncIndex() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt("io.seqfile.compress.blocksize", 4096);
+    FileSystem fs = FileSystem.getLocal(conf);
+    int count = 5000;
+    for (CompressionType type : new CompressionType[] {
+           CompressionType.NONE, CompressionType.BLOCK }) {
+      Path file = new Path(System.getProperty("test.build.data","."),
+                           "test.syncidx." + type + ".seq");
+      List<RandomDatum> keys = new ArrayList<RandomDatum>();
+      RandomDatum.Generator generator = new RandomDatum.Generator(7);
+      SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+          SequenceFile.Writer.file(file),
+          SequenceFile.Writer.keyClass(RandomDatum.class),
+          SequenceFile.Writer.valueClass(RandomDatum.class),
+          SequenceFile.Writer.compression(type, new DefaultCodec()),
+          SequenceFile.Writer.syncIndex(true));
+      for (int i = 0; i < count; i++) {
+        generator.next();
+        keys.add(generator.getKey());
+        writer.append(generator.getKey(), generator.getValue());
+      }
+      writer.close();
+
+      SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.file(file));
+      assertNotNull(
+        reader.getMetadata().get(SequenceFile.SyncIndex.METADATA_KEY));
+      SequenceFile.SyncIndex index = reader.getSyncIndex();
+      assertNotNull(index);
+      assertEquals(count, index.getRecordCount());
+      assertEquals(fs.getFileStatus(file).getLen(), index.getFileLength());
+      assertEquals(type == CompressionType.BLOCK, index.isComplete());
+      assertTrue(index.size() > 1);
+
+      // every indexed position is a sync mark followed by its record
+      RandomDatum key = new RandomDatum();
+      for (int i = 0; i < index.size(); i++) {
+        reader.seek(index.getPosition(i));
+        assertTrue(reader.next(key));
+        assertTrue(reader.syncSeen());
+        assertEquals(keys.get((int) index.getRecord(i)), key);
+      }
+
+      Random random = new Random();
+      for (int i = 0; i < 100; i++) {
+        int record = random.nextInt(count);
+        assertTrue(reader.seekToRecord(record));
+        assertTrue(reader.next(key));
+        assertEquals("record " + record, keys.get(record), key);
+      }
+      assertTrue(reader.seekToRecord(count - 1));
+      assertTrue(reader.next(key));
+      assertFalse(reader.next(key));
+      assertFalse(reader.seekToRecord(count + 1));
+
+      // syncing with and without the index lands on the same marks
+      SequenceFile.Reader scanner = new SequenceFile.Reader(conf,
+          SequenceFile.Reader.stream(fs.open(file)));
+      assertNull(scanner.getSyncIndex());
+      long length = fs.getFileStatus(file).getLen();
+      for (int i = 0; i < 50; i++) {
+        long position = (long) (random.nextDouble() * length);
+        reader.sync(position);
+        scanner.sync(position);
+        assertEquals("sync " + position, scanner.getPosition(),
+                     reader.getPosition());
+        assertEquals(scanner.next(key), reader.next(new RandomDatum()));
+      }
+      scanner.close();
+      reader.close();
+
+      // an index left behind by an earlier version of the file is ignored
+      writer = SequenceFile.createWriter(conf,
+          SequenceFile.Writer.file(file),
+          SequenceFile.Writer.keyClass(RandomDatum.class),
+          SequenceFile.Writer.valueClass(RandomDatum.class),
+          SequenceFile.Writer.compression(type, new DefaultCodec()));
+      writer.append(keys.get(0), keys.get(1));
+      writer.close();
+      reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+      assertNull(
+        reader.getMetadata().get(SequenceFile.SyncIndex.METADATA_KEY));
+      assertNull(reader.getSyncIndex());
+      assertTrue(reader.seekToRecord(0));
+      assertTrue(reader.next(key));
+      assertEquals(keys.get(0), key);
+      reader.close();
+      fs.delete(SequenceFile.SyncIndex.getIndexPath(file), false);
+    }
+  }
+
   /**
    * Test that makes sure the FileSystem passed to createWriter
    * @throws Exception
@@ -0,0 +1,158 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+public class TestTFileBlockCache extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private final static int BLOCK_SIZE = 1024;
+  private final static int COUNT = 50000;
+
+  private FileSystem fs;
+  private Configuration conf;
+  private Path path;
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    path = new Path(ROOT, "TestTFileBlockCache");
+    fs = path.getFileSystem(conf);
+    FSDataOutputStream out = fs.create(path);
+    Writer writer =
+        new Writer(out, BLOCK_SIZE, TFile.COMPRESSION_GZ, "memcmp", conf);
+    for (int i = 0; i < COUNT; i++) {
+      writer.append(key(i), ("value" + i).getBytes());
+    }
+    writer.close();
+    out.close();
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  private static byte[] key(int i) {
+    return String.format("key%08d", i).getBytes();
+  }
+
+  private Reader openReader(BlockCache cache) throws IOException {
+    return new Reader(fs.open(path), fs.getFileStatus(path).getLen(), conf,
+        cache, path.toString());
+  }
+
+  private void lookUp(Reader reader, Random random, int lookups)
+      throws IOException {
+    Scanner scanner = reader.createScanner();
+    BytesWritable value = new BytesWritable();
+    try {
+      for (int n = 0; n < lookups; n++) {
+        int i = random.nextInt(COUNT);
+        assertTrue(scanner.seekTo(key(i)));
+        scanner.entry().getValue(value);
+        assertEquals("value" + i,
+            new String(value.getBytes(), 0, value.getLength()));
+      }
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private void testSharedCache(boolean offHeap) throws IOException {
+    BlockCache cache = new BlockCache(64 * 1024 * 1024, offHeap);
+    Reader reader1 = openReader(cache);
+    Reader reader2 = openReader(cache);
+    try {
+      Random random = new Random(1);
+      lookUp(reader1, random, 1000);
+      int blocks = cache.getBlockCount();
+      assertTrue(blocks > 1);
+      assertEquals(blocks, cache.getMissCount());
+      // the second reader finds all of the blocks it looks for
+      long hits = cache.getHitCount();
+      lookUp(reader2, new Random(1), 1000);
+      assertEquals(blocks, cache.getMissCount());
+      assertTrue(cache.getHitCount() > hits);
+
+      // a whole scan reads every block, once
+      Scanner scanner = reader2.createScanner();
+      int count = 0;
+      BytesWritable key = new BytesWritable();
+      while (!scanner.atEnd()) {
+        scanner.entry().getKey(key);
+        assertEquals(new BytesWritable(key(count)), key);
+        ++count;
+        scanner.advance();
+      }
+      scanner.close();
+      assertEquals(COUNT, count);
+      assertEquals(0, cache.getEvictionCount());
+
+      cache.invalidate(path.toString());
+      assertEquals(0, cache.getBlockCount());
+      assertEquals(0, cache.getSize());
+    } finally {
+      reader1.close();
+      reader2.close();
+    }
+  }
+
+  public void testSharedCache() throws IOException {
+    testSharedCache(false);
+  }
+
+  public void testSharedCacheOffHeap() throws IOException {
+    testSharedCache(true);
+  }
+
+  public void testEviction() throws IOException {
+    // the block size limits the compressed size of the blocks, so measure
+    // how large one is decompressed
+    BlockCache cache = new BlockCache(64 * 1024 * 1024);
+    Reader reader = openReader(cache);
+    try {
+      lookUp(reader, new Random(2), 1);
+    } finally {
+      reader.close();
+    }
+    cache = new BlockCache(2 * cache.getSize());
+    reader = openReader(cache);
+    try {
+      lookUp(reader, new Random(2), 1000);
+      assertTrue(cache.getEvictionCount() > 0);
+      assertTrue(cache.getSize() <= cache.getCapacity());
+      assertTrue(cache.getBlockCount() > 0);
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+public class TestTFileBloomFilter extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private final static int BLOCK_SIZE = 1024;
+  private final static int COUNT = 20000;
+
+  private FileSystem fs;
+  private Configuration conf;
+  private Path path;
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    path = new Path(ROOT, "TestTFileBloomFilter");
+    fs = path.getFileSystem(conf);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  // the even keys are in the TFile, the odd ones are not.
+  private static byte[] key(int i) {
+    return String.format("key%08d", i).getBytes();
+  }
+
+  private void writeTFile(float errorRate) throws IOException {
+    conf.setFloat("tfile.bloom.error.rate", errorRate);
+    FSDataOutputStream out = fs.create(path);
+    Writer writer =
+        new Writer(out, BLOCK_SIZE, TFile.COMPRESSION_GZ, "memcmp", conf);
+    try {
+      for (int i = 0; i < COUNT; i += 2) {
+        writer.append(key(i), ("value" + i).getBytes());
+      }
+    } finally {
+      writer.close();
+      out.close();
+    }
+  }
+
+  private Reader openReader(BlockCache cache) throws IOException {
+    return new Reader(fs.open(path), fs.getFileStatus(path).getLen(), conf,
+        cache, path.toString());
+  }
+
+  public void testLookUps() throws IOException {
+    writeTFile(0.01f);
+    BlockCache cache = new BlockCache(64 * 1024 * 1024);
+    Reader reader = openReader(cache);
+    try {
+      assertTrue(reader.hasBloomFilters());
+      int falsePositives = 0;
+      for (int i = 1; i < COUNT; i += 2) {
+        if (reader.probablyHasKey(key(i))) {
+          ++falsePositives;
+        }
+      }
+      assertTrue("false positives: " + falsePositives,
+          falsePositives < COUNT / 2 / 20);
+      // no data block was read for any of them
+      assertEquals(0, cache.getMissCount() + cache.getHitCount());
+
+      Scanner scanner = reader.createScanner();
+      BytesWritable value = new BytesWritable();
+      try {
+        for (int i = 0; i < COUNT; i += 2) {
+          assertTrue(reader.probablyHasKey(key(i)));
+          assertTrue(scanner.seekToExact(key(i)));
+          scanner.entry().getValue(value);
+          assertEquals("value" + i,
+              new String(value.getBytes(), 0, value.getLength()));
+          // misses leave the cursor where it was
+          assertFalse(scanner.seekToExact(key(i + 1)));
+          assertEquals(i / 2, scanner.getRecordNum());
+        }
+        // keys past either end of the TFile
+        assertFalse(reader.probablyHasKey("a".getBytes()));
+        assertFalse(reader.probablyHasKey("z".getBytes()));
+        assertFalse(scanner.seekToExact("z".getBytes()));
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testNoBloomFilters() throws IOException {
+    writeTFile(0);
+    BlockCache cache = new BlockCache(64 * 1024 * 1024);
+    Reader reader = openReader(cache);
+    try {
+      assertFalse(reader.hasBloomFilters());
+      assertTrue(reader.probablyHasKey(key(1)));
+      Scanner scanner = reader.createScanner();
+      try {
+        assertTrue(scanner.seekToExact(key(100)));
+        assertFalse(scanner.seekToExact(key(101)));
+        assertEquals(50, scanner.getRecordNum());
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,340 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.file.tfile.RandomDistribution.DiscreteRNG;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+/**
+ * Test bulk loading TFiles with batches of key-value pairs, and measure the
+ * write throughput against appending the pairs one by one.
+ */
+public class TestTFileBulkLoad extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private final static int BLOCK_SIZE = 4096;
+  private final static int BATCH_SIZE = 1000;
+
+  private FileSystem fs;
+  private Configuration conf;
+  private Path path;
+
+  /**
+   * Sorted key-value pairs, laid out as batches of them are.
+   */
+  private static class Records {
+    final DataOutputBuffer keys = new DataOutputBuffer();
+    final DataOutputBuffer values = new DataOutputBuffer();
+    final int[] keyOffsets;
+    final int[] valueOffsets;
+    final int count;
+
+    Records(long seed, int count) throws IOException {
+      Random rng = new Random(seed);
+      DiscreteRNG keyLenGen =
+          new RandomDistribution.Zipf(new Random(rng.nextLong()), 10, 50, 1.2);
+      DiscreteRNG valLenGen =
+          new RandomDistribution.Flat(new Random(rng.nextLong()), 100, 200);
+      DiscreteRNG wordLenGen =
+          new RandomDistribution.Flat(new Random(rng.nextLong()), 5, 20);
+      KVGenerator kvGen =
+          new KVGenerator(rng, true, keyLenGen, valLenGen, wordLenGen, 1000);
+      BytesWritable key = new BytesWritable();
+      BytesWritable value = new BytesWritable();
+      this.count = count;
+      keyOffsets = new int[count + 1];
+      valueOffsets = new int[count + 1];
+      for (int i = 0; i < count; i++) {
+        kvGen.next(key, value, false);
+        keyOffsets[i] = keys.getLength();
+        valueOffsets[i] = values.getLength();
+        keys.write(key.getBytes(), 0, key.getLength());
+        values.write(value.getBytes(), 0, value.getLength());
+      }
+      keyOffsets[count] = keys.getLength();
+      valueOffsets[count] = values.getLength();
+    }
+
+    byte[] key(int i) {
+      return Arrays.copyOfRange(keys.getData(), keyOffsets[i],
+          keyOffsets[i + 1]);
+    }
+
+    byte[] value(int i) {
+      return Arrays.copyOfRange(values.getData(), valueOffsets[i],
+          valueOffsets[i + 1]);
+    }
+
+    long getRawSize() {
+      return keys.getLength() + values.getLength();
+    }
+
+    void append(Writer writer, int begin, int end) throws IOException {
+      for (int i = begin; i < end; i++) {
+        writer.append(keys.getData(), keyOffsets[i], keyOffsets[i + 1]
+            - keyOffsets[i], values.getData(), valueOffsets[i],
+            valueOffsets[i + 1] - valueOffsets[i]);
+      }
+    }
+
+    void appendBatches(Writer writer, int begin, int end, int batchSize)
+        throws IOException {
+      for (int i = begin; i < end; i += batchSize) {
+        int n = Math.min(batchSize, end - i);
+        writer.appendBatch(keys.getData(), Arrays.copyOfRange(keyOffsets, i,
+            i + n + 1), values.getData(), Arrays.copyOfRange(valueOffsets, i,
+            i + n + 1), n);
+      }
+    }
+  }
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    conf.setInt("tfile.bulk.compression.threads", 4);
+    path = new Path(ROOT, "TestTFileBulkLoad");
+    fs = path.getFileSystem(conf);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  private Writer createWriter(FSDataOutputStream out, int blockSize,
+      String compress) throws IOException {
+    return new Writer(out, blockSize, compress, "memcmp", conf);
+  }
+
+  private Reader openReader() throws IOException {
+    return new Reader(fs.open(path), fs.getFileStatus(path).getLen(), conf);
+  }
+
+  private void checkTFile(Records records) throws IOException {
+    Reader reader = openReader();
+    try {
+      assertEquals(records.count, reader.getEntryCount());
+      Scanner scanner = reader.createScanner();
+      BytesWritable key = new BytesWritable();
+      BytesWritable value = new BytesWritable();
+      try {
+        for (int i = 0; i < records.count; i++) {
+          assertFalse(scanner.atEnd());
+          scanner.entry().get(key, value);
+          assertEquals(new BytesWritable(records.key(i)), key);
+          assertEquals(new BytesWritable(records.value(i)), value);
+          scanner.advance();
+        }
+        assertTrue(scanner.atEnd());
+
+        Random random = new Random(1);
+        for (int n = 0; n < 1000; n++) {
+          int i = random.nextInt(records.count);
+          assertTrue(scanner.seekTo(records.key(i)));
+          scanner.entry().getValue(value);
+          assertEquals(new BytesWritable(records.value(i)), value);
+        }
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void bulkLoad(Records records, String compress) throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    Writer writer = createWriter(out, BLOCK_SIZE, compress);
+    try {
+      records.appendBatches(writer, 0, records.count, BATCH_SIZE);
+    } finally {
+      writer.close();
+      out.close();
+    }
+  }
+
+  public void testBulkLoadGz() throws IOException {
+    Records records = new Records(1, 20000);
+    bulkLoad(records, TFile.COMPRESSION_GZ);
+    checkTFile(records);
+    Reader reader = openReader();
+    try {
+      // the blocks are cut about the minimum block size compressed.
+      long averageBlock =
+          fs.getFileStatus(path).getLen() / reader.readerBCF.getBlockCount();
+      assertTrue("average block: " + averageBlock, averageBlock > BLOCK_SIZE
+          && averageBlock < 4 * BLOCK_SIZE);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testBulkLoadNone() throws IOException {
+    Records records = new Records(2, 20000);
+    bulkLoad(records, TFile.COMPRESSION_NONE);
+    checkTFile(records);
+  }
+
+  public void testPrefixCompressionAndBloomFilters() throws IOException {
+    conf.setInt("tfile.data.block.restart.interval", 16);
+    conf.setFloat("tfile.bloom.error.rate", 0.01f);
+    Records records = new Records(3, 20000);
+    bulkLoad(records, TFile.COMPRESSION_GZ);
+    checkTFile(records);
+    Reader reader = openReader();
+    try {
+      assertEquals(16, reader.getRestartInterval());
+      assertTrue(reader.hasBloomFilters());
+      Scanner scanner = reader.createScanner();
+      try {
+        for (int i = 0; i < records.count; i += 7) {
+          assertTrue(reader.probablyHasKey(records.key(i)));
+          assertTrue(scanner.seekToExact(records.key(i)));
+        }
+      } finally {
+        scanner.close();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testMixedAppends() throws IOException {
+    Records records = new Records(4, 10000);
+    FSDataOutputStream out = fs.create(path);
+    Writer writer = createWriter(out, BLOCK_SIZE, TFile.COMPRESSION_GZ);
+    try {
+      records.appendBatches(writer, 0, 3000, 500);
+      records.append(writer, 3000, 3500);
+      records.appendBatches(writer, 3500, 9000, 777);
+      records.append(writer, 9000, 10000);
+      DataOutputStream meta = writer.prepareMetaBlock("bulk");
+      meta.write("meta".getBytes());
+      meta.close();
+    } finally {
+      writer.close();
+      out.close();
+    }
+    checkTFile(records);
+  }
+
+  public void testUnsortedBatch() throws IOException {
+    Records records = new Records(5, 1000);
+    FSDataOutputStream out = fs.create(path);
+    Writer writer = createWriter(out, BLOCK_SIZE, TFile.COMPRESSION_GZ);
+    try {
+      records.appendBatches(writer, 500, 1000, 100);
+      try {
+        // keys smaller than the ones already in the TFile
+        records.appendBatches(writer, 0, 500, 100);
+        fail("unsorted keys were added");
+      } catch (IOException e) {
+        // noop, expecting exceptions
+      }
+    } finally {
+      writer.close();
+      out.close();
+    }
+  }
+
+  public void testEmptyBatch() throws IOException {
+    Records records = new Records(6, 100);
+    FSDataOutputStream out = fs.create(path);
+    Writer writer = createWriter(out, BLOCK_SIZE, TFile.COMPRESSION_GZ);
+    try {
+      writer.appendBatch(new byte[0], new int[1], new byte[0], new int[1], 0);
+      records.appendBatches(writer, 0, 100, 30);
+      writer.appendBatch(new byte[0], new int[1], new byte[0], new int[1], 0);
+    } finally {
+      writer.close();
+      out.close();
+    }
+    checkTFile(records);
+  }
+
+  /**
+   * Write the records one by one, then in batches, and print the throughput
+   * of both.
+   */
+  private void measure(Records records, int blockSize, String compress)
+      throws IOException {
+    NanoTimer timer = new NanoTimer(false);
+    for (boolean bulk : new boolean[] { false, true }) {
+      FSDataOutputStream out = fs.create(path);
+      Writer writer = createWriter(out, blockSize, compress);
+      timer.reset();
+      timer.start();
+      try {
+        if (bulk) {
+          records.appendBatches(writer, 0, records.count, 10 * BATCH_SIZE);
+        } else {
+          records.append(writer, 0, records.count);
+        }
+      } finally {
+        writer.close();
+        out.close();
+      }
+      timer.stop();
+      double duration = (double) timer.read() / 1000; // in us.
+      long fsize = fs.getFileStatus(path).getLen();
+      System.out.printf(
+          "%s: time: %s...file size: %.2fMB...raw thrpt: %.2fMB/s\n",
+          bulk ? "appendBatch" : "append", timer.toString(),
+          (double) fsize / 1024 / 1024, records.getRawSize() / duration);
+    }
+  }
+
+  public void testThroughput() throws IOException {
+    measure(new Records(7, 50000), 64 * 1024, TFile.COMPRESSION_GZ);
+  }
+
+  /**
+   * Benchmark with more records: [records] [compression threads] [compression]
+   */
+  public static void main(String[] args) throws IOException {
+    TestTFileBulkLoad testCase = new TestTFileBulkLoad();
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    testCase.setUp();
+    if (args.length > 1) {
+      testCase.conf.setInt("tfile.bulk.compression.threads", Integer
+          .parseInt(args[1]));
+    }
+    String compress = args.length > 2 ? args[2] : TFile.COMPRESSION_GZ;
+    try {
+      testCase.measure(new Records(System.nanoTime(), count), 64 * 1024,
+          compress);
+    } finally {
+      testCase.tearDown();
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+/**
+ * Test scanners reading one TFile from several threads at once, check that
+ * each reads its own records, and measure how the scan throughput grows
+ * with the number of scanners.
+ */
+public class TestTFileConcurrentScan extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private Configuration conf;
+  private Path path;
+  private FileSystem fs;
+  private int records;
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    path = new Path(ROOT, "TestTFileConcurrentScan");
+    fs = path.getFileSystem(conf);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  private static byte[] getKey(long i) {
+    return String.format("key%010d", i).getBytes();
+  }
+
+  /** A value of its own for each record, which still compresses well */
+  private static byte[] getValue(long i) {
+    byte[] value = new byte[100];
+    Arrays.fill(value, (byte) i);
+    value[(int) (i % value.length)] = (byte) (i >> 8);
+    return value;
+  }
+
+  private void createTFile(int count, String compress) throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    try {
+      Writer writer = new Writer(out, 64 * 1024, compress, "memcmp", conf);
+      try {
+        for (int i = 0; i < count; i++) {
+          writer.append(getKey(i), getValue(i));
+        }
+      } finally {
+        writer.close();
+      }
+    } finally {
+      out.close();
+    }
+    records = count;
+  }
+
+  /**
+   * Scan the whole file with the given number of scanners of one reader,
+   * each reading its share of the records on a thread of its own.
+   *
+   * @return the time taken, in ns.
+   */
+  private long scan(Reader reader, int scanners) throws Exception {
+    final Scanner[] split = new Scanner[scanners];
+    final long[] first = new long[scanners];
+    final long[] counts = new long[scanners];
+    final Throwable[] failures = new Throwable[scanners];
+    long total = reader.getEntryCount();
+    for (int i = 0; i < scanners; i++) {
+      first[i] = total * i / scanners;
+      split[i] = reader.createScannerByRecordNum(first[i],
+          total * (i + 1) / scanners);
+    }
+    Thread[] threads = new Thread[scanners];
+    for (int i = 0; i < scanners; i++) {
+      final int s = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            BytesWritable key = new BytesWritable();
+            BytesWritable value = new BytesWritable();
+            Scanner scanner = split[s];
+            while (!scanner.atEnd()) {
+              scanner.entry().get(key, value);
+              long record = first[s] + counts[s];
+              assertTrue("key of record " + record, Arrays.equals(
+                  getKey(record), Arrays.copyOf(key.get(), key.getSize())));
+              assertTrue("value of record " + record,
+                  Arrays.equals(getValue(record),
+                      Arrays.copyOf(value.get(), value.getSize())));
+              ++counts[s];
+              scanner.advance();
+            }
+            scanner.close();
+          } catch (Throwable e) {
+            failures[s] = e;
+          }
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    long time = System.nanoTime() - start;
+    long count = 0;
+    for (int i = 0; i < scanners; i++) {
+      if (failures[i] instanceof Error) {
+        throw (Error) failures[i];
+      } else if (failures[i] != null) {
+        throw (Exception) failures[i];
+      }
+      count += counts[i];
+    }
+    assertEquals(records, count);
+    return time;
+  }
+
+  private void measure(int maxScanners) throws Exception {
+    long length = fs.getFileStatus(path).getLen();
+    FSDataInputStream in = fs.open(path);
+    Reader reader = new Reader(in, length, conf);
+    try {
+      // warm up
+      scan(reader, 1);
+      for (int scanners = 1; scanners <= maxScanners; scanners *= 2) {
+        long time = scan(reader, scanners);
+        System.out.printf("scanners: %d...time: %.2fms...thrpt: %.2fMB/s\n",
+            scanners, time / 1e6, length * 1e3 / time);
+      }
+    } finally {
+      reader.close();
+      in.close();
+    }
+  }
+
+  public void testConcurrentScans() throws Exception {
+    createTFile(100000, TFile.COMPRESSION_GZ);
+    measure(8);
+  }
+
+  public void testConcurrentScansNone() throws Exception {
+    createTFile(100000, TFile.COMPRESSION_NONE);
+    measure(8);
+  }
+
+  /**
+   * Benchmark with a larger file: [records] [max scanners] [compression]
+   */
+  public static void main(String[] args) throws Exception {
+    TestTFileConcurrentScan testCase = new TestTFileConcurrentScan();
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int maxScanners = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    String compress = args.length > 2 ? args[2] : TFile.COMPRESSION_GZ;
+    testCase.setUp();
+    try {
+      testCase.createTFile(count, compress);
+      testCase.measure(maxScanners);
+    } finally {
+      testCase.tearDown();
+    }
+  }
+}
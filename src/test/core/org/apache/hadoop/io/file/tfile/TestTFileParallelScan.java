@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+public class TestTFileParallelScan extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private final static int BLOCK_SIZE = 1024;
+
+  private FileSystem fs;
+  private Configuration conf;
+  private Path path;
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    path = new Path(ROOT, "TestTFileParallelScan");
+    fs = path.getFileSystem(conf);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  private static String key(int i) {
+    return String.format("key%08d", i);
+  }
+
+  private static String value(int i) {
+    return "value" + i;
+  }
+
+  private void writeTFile(int count) throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    Writer writer =
+        new Writer(out, BLOCK_SIZE, TFile.COMPRESSION_GZ, "memcmp", conf);
+    try {
+      for (int i = 0; i < count; i++) {
+        writer.append(key(i).getBytes(), value(i).getBytes());
+      }
+    } finally {
+      writer.close();
+      out.close();
+    }
+  }
+
+  private Reader openReader() throws IOException {
+    return new Reader(fs.open(path), fs.getFileStatus(path).getLen(), conf);
+  }
+
+  private static String toString(BytesWritable bytes) {
+    return new String(bytes.getBytes(), 0, bytes.getLength());
+  }
+
+  public void testUnorderedScan() throws IOException {
+    final int count = 50000;
+    writeTFile(count);
+    Reader reader = openReader();
+    ParallelScanner scanner = new ParallelScanner(reader, 4);
+    try {
+      int blocks = reader.readerBCF.getBlockCount();
+      assertTrue(blocks > 1);
+      assertEquals(Math.min(16, blocks), scanner.getRangeCount());
+      final BitSet seen = new BitSet(count);
+      ParallelScanner.EntryHandler handler =
+          new ParallelScanner.EntryHandler() {
+            public void handle(Scanner.Entry entry) throws IOException {
+              BytesWritable key = new BytesWritable();
+              BytesWritable value = new BytesWritable();
+              entry.get(key, value);
+              int i = Integer.parseInt(TestTFileParallelScan.toString(key)
+                  .substring(3));
+              assertEquals(value(i), TestTFileParallelScan.toString(value));
+              synchronized (seen) {
+                assertFalse(seen.get(i));
+                seen.set(i);
+              }
+            }
+          };
+      assertEquals(count, scanner.scan(handler));
+      assertEquals(count, seen.cardinality());
+      // and again
+      seen.clear();
+      assertEquals(count, scanner.scan(handler));
+      assertEquals(count, seen.cardinality());
+    } finally {
+      scanner.close();
+      reader.close();
+    }
+  }
+
+  public void testHandlerFailure() throws IOException {
+    writeTFile(20000);
+    Reader reader = openReader();
+    ParallelScanner scanner = new ParallelScanner(reader, 3);
+    try {
+      try {
+        scanner.scan(new ParallelScanner.EntryHandler() {
+          public void handle(Scanner.Entry entry) throws IOException {
+            if (entry.compareTo(key(12345).getBytes()) == 0) {
+              throw new IOException("injected");
+            }
+          }
+        });
+        fail("the failure of the handler was lost");
+      } catch (IOException e) {
+        assertEquals("injected", e.getMessage());
+      }
+    } finally {
+      scanner.close();
+      reader.close();
+    }
+  }
+
+  public void testOrderedScan() throws IOException {
+    final int count = 50000;
+    writeTFile(count);
+    Reader reader = openReader();
+    ParallelScanner scanner = new ParallelScanner(reader, 4);
+    try {
+      BytesWritable key = new BytesWritable();
+      BytesWritable value = new BytesWritable();
+      for (int i = 0; i < count; i++) {
+        assertTrue(scanner.next(key, value));
+        assertEquals(key(i), toString(key));
+        assertEquals(value(i), toString(value));
+      }
+      assertFalse(scanner.next(key, value));
+      assertFalse(scanner.next(key, value));
+    } finally {
+      scanner.close();
+      reader.close();
+    }
+  }
+
+  public void testEmpty() throws IOException {
+    writeTFile(0);
+    Reader reader = openReader();
+    ParallelScanner scanner = new ParallelScanner(reader, 4);
+    try {
+      assertEquals(0, scanner.getRangeCount());
+      assertEquals(0, scanner.scan(new ParallelScanner.EntryHandler() {
+        public void handle(Scanner.Entry entry) {
+          fail("no entries expected");
+        }
+      }));
+      assertFalse(scanner.next(new BytesWritable(), new BytesWritable()));
+    } finally {
+      scanner.close();
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,269 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.file.tfile.TFile.Reader;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+import org.apache.hadoop.io.file.tfile.TFile.Reader.Scanner;
+
+/**
+ * Test TFiles with prefix compressed keys and restart points in their data
+ * blocks, next to TFiles with the keys stored in full.
+ */
+public class TestTFilePrefixCompression extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private final static int BLOCK_SIZE = 4096;
+  private final static int COUNT = 10000;
+
+  private FileSystem fs;
+  private Configuration conf;
+  private Path path;
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    path = new Path(ROOT, "TestTFilePrefixCompression");
+    fs = path.getFileSystem(conf);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  // keys sharing long prefixes, every other one left out to seek to.
+  private static byte[] key(int i) {
+    return String.format("http://www.example.com/path/%08d", 2 * i).getBytes();
+  }
+
+  private static byte[] missingKey(int i) {
+    return String.format("http://www.example.com/path/%08d", 2 * i + 1)
+        .getBytes();
+  }
+
+  private static byte[] value(int i) {
+    return ("value" + i).getBytes();
+  }
+
+  private long writeTFile(int restartInterval, String compress,
+      String comparator) throws IOException {
+    conf.setInt("tfile.data.block.restart.interval", restartInterval);
+    FSDataOutputStream out = fs.create(path);
+    Writer writer = new Writer(out, BLOCK_SIZE, compress, comparator, conf);
+    try {
+      for (int i = 0; i < COUNT; i++) {
+        writer.append(key(i), value(i));
+      }
+    } finally {
+      writer.close();
+      out.close();
+    }
+    return fs.getFileStatus(path).getLen();
+  }
+
+  private Reader openReader() throws IOException {
+    return new Reader(fs.open(path), fs.getFileStatus(path).getLen(), conf);
+  }
+
+  private void checkEntry(Scanner scanner, int i) throws IOException {
+    BytesWritable key = new BytesWritable();
+    BytesWritable value = new BytesWritable();
+    scanner.entry().get(key, value);
+    assertEquals(new BytesWritable(key(i)), key);
+    assertEquals(new BytesWritable(value(i)), value);
+  }
+
+  private void checkScan(Reader reader) throws IOException {
+    Scanner scanner = reader.createScanner();
+    try {
+      for (int i = 0; i < COUNT; i++) {
+        assertFalse(scanner.atEnd());
+        checkEntry(scanner, i);
+        scanner.advance();
+      }
+      assertTrue(scanner.atEnd());
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private void checkSeek(Reader reader) throws IOException {
+    Random random = new Random(1);
+    Scanner scanner = reader.createScanner();
+    try {
+      for (int n = 0; n < 2000; n++) {
+        int i = random.nextInt(COUNT);
+        assertTrue(scanner.seekTo(key(i)));
+        checkEntry(scanner, i);
+        scanner.upperBound(key(i));
+        if (i + 1 < COUNT) {
+          checkEntry(scanner, i + 1);
+        } else {
+          assertTrue(scanner.atEnd());
+        }
+        assertFalse(scanner.seekTo(missingKey(i)));
+        if (i + 1 < COUNT) {
+          checkEntry(scanner, i + 1);
+        } else {
+          assertTrue(scanner.atEnd());
+        }
+      }
+      // and a few backwards, within one block
+      for (int i = 20; i >= 0; i--) {
+        assertTrue(scanner.seekTo(key(i)));
+        checkEntry(scanner, i);
+      }
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private void checkRecordNums(Reader reader) throws IOException {
+    Random random = new Random(2);
+    for (int n = 0; n < 100; n++) {
+      int begin = random.nextInt(COUNT);
+      int end = Math.min(COUNT, begin + random.nextInt(100));
+      Scanner scanner = reader.createScannerByRecordNum(begin, end);
+      try {
+        for (int i = begin; i < end; i++) {
+          assertEquals(i, scanner.getRecordNum());
+          checkEntry(scanner, i);
+          scanner.advance();
+        }
+        assertTrue(scanner.atEnd());
+      } finally {
+        scanner.close();
+      }
+    }
+  }
+
+  private void checkKeyRange(Reader reader) throws IOException {
+    Scanner scanner =
+        reader.createScannerByKey(missingKey(100), missingKey(5000));
+    try {
+      for (int i = 101; i <= 5000; i++) {
+        checkEntry(scanner, i);
+        scanner.advance();
+      }
+      assertTrue(scanner.atEnd());
+
+      // back from the end, parked past the range, into the block of the end
+      for (int i = 5000; i > 4900; i -= 7) {
+        assertFalse(scanner.seekTo(key(9000)));
+        assertTrue(scanner.atEnd());
+        assertTrue(scanner.seekTo(key(i)));
+        checkEntry(scanner, i);
+      }
+    } finally {
+      scanner.close();
+    }
+  }
+
+  private void checkTFile(int restartInterval, String compress)
+      throws IOException {
+    writeTFile(restartInterval, compress, "memcmp");
+    Reader reader = openReader();
+    try {
+      assertEquals(restartInterval, reader.getRestartInterval());
+      assertEquals(COUNT, reader.getEntryCount());
+      checkScan(reader);
+      checkSeek(reader);
+      checkRecordNums(reader);
+      checkKeyRange(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testPrefixCompressedGz() throws IOException {
+    checkTFile(16, TFile.COMPRESSION_GZ);
+  }
+
+  public void testPrefixCompressedNone() throws IOException {
+    checkTFile(16, TFile.COMPRESSION_NONE);
+  }
+
+  public void testRestartEveryKey() throws IOException {
+    checkTFile(1, TFile.COMPRESSION_NONE);
+  }
+
+  public void testLargeRestartInterval() throws IOException {
+    checkTFile(1000, TFile.COMPRESSION_NONE);
+  }
+
+  public void testKeysInFull() throws IOException {
+    checkTFile(0, TFile.COMPRESSION_NONE);
+    Reader reader = openReader();
+    try {
+      // still in the format older releases read
+      assertEquals(TFile.API_VERSION_1, reader.tfileMeta.getVersion());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testSeekBackFromEnd() throws IOException {
+    for (int restartInterval : new int[] { 0, 4 }) {
+      writeTFile(restartInterval, TFile.COMPRESSION_NONE, "memcmp");
+      Reader reader = openReader();
+      try {
+        Scanner scanner = reader.createScannerByKey(key(0), key(505));
+        try {
+          // past the range, then back into the block of its end
+          assertFalse(scanner.seekTo(key(900)));
+          assertTrue(scanner.atEnd());
+          assertTrue(scanner.seekTo(key(500)));
+          checkEntry(scanner, 500);
+        } finally {
+          scanner.close();
+        }
+      } finally {
+        reader.close();
+      }
+    }
+  }
+
+  public void testUnsorted() throws IOException {
+    writeTFile(16, TFile.COMPRESSION_NONE, null);
+    Reader reader = openReader();
+    try {
+      assertFalse(reader.isSorted());
+      checkScan(reader);
+      checkRecordNums(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testSmallerFile() throws IOException {
+    long full = writeTFile(0, TFile.COMPRESSION_NONE, "memcmp");
+    long prefixCompressed = writeTFile(16, TFile.COMPRESSION_NONE, "memcmp");
+    assertTrue(prefixCompressed < full * 2 / 3);
+  }
+}
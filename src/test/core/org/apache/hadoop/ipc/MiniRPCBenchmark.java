@@ -31,9 +31,11 @@ import junit.framework.Assert;
 import org.apache.commons.logging.impl.Log4JLogger;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.KerberosInfo;
+import org.apache.hadoop.security.SaslRpcServer.QualityOfProtection;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.authorize.ProxyUsers;
 import org.apache.hadoop.security.token.Token;
@@ -74,6 +76,10 @@ import org.apache.log4j.LogManager;
  * <li>useToken - should be specified for delegation token authentication</li>
  * <li>logLevel - logging level, see {@link Level}</li>
  * </ul>
+ * With the <tt>-qop</tt> option the benchmark instead measures the time to
+ * make numIterations calls carrying <tt>payloadSize</tt> bytes each way
+ * over a delegation token authenticated connection, once for each quality
+ * of protection (auth, auth-int and auth-conf).
  */
 public class MiniRPCBenchmark {
   private static final String KEYTAB_FILE_KEY = "test.keytab.file";
@@ -112,6 +118,11 @@ public class MiniRPCBenchmark {
      */
     public Token<TestDelegationTokenIdentifier> getDelegationToken(Text renewer) 
         throws IOException;
+
+    /**
+     * Return the data sent.
+     */
+    public BytesWritable echo(BytesWritable data) throws IOException;
   }
 
   /**
@@ -154,11 +165,18 @@ public class MiniRPCBenchmark {
       return new Token<TestDelegationTokenIdentifier>(tokenId, secretManager);
     }
 
+    @Override // MiniProtocol
+    public BytesWritable echo(BytesWritable data) throws IOException {
+      return data;
+    }
+
     /** Start RPC server */
     MiniServer(Configuration conf, String user, String keytabFile)
     throws IOException {
       UserGroupInformation.setConfiguration(conf);
-      UserGroupInformation.loginUserFromKeytab(user, keytabFile);
+      if (keytabFile != null) {
+        UserGroupInformation.loginUserFromKeytab(user, keytabFile);
+      }
       secretManager = 
         new TestDelegationTokenSecretManager(24*60*60*1000,
             7*24*60*60*1000,24*60*60*1000,3600000);
@@ -172,6 +190,7 @@ public class MiniRPCBenchmark {
     void stop() {
       if(rpcServer != null) rpcServer.stop();
       rpcServer = null;
+      secretManager.stopThreads();
     }
 
     /** Get RPC server address */
@@ -342,10 +361,88 @@ public class MiniRPCBenchmark {
     }
   }
 
+  /**
+   * Run MiniBenchmark measuring call throughput with the given quality of
+   * protection. The client authenticates with a delegation token issued
+   * directly by the server's secret manager, so no Kerberos login is needed,
+   * and every call is wrapped and unwrapped according to the QOP.
+   * 
+   * @param conf - configuration
+   * @param qop - quality of protection to negotiate
+   * @param count - make this many calls
+   * @param payloadSize - bytes sent and returned by each call
+   * @return time taken to make the calls
+   * @throws IOException
+   */
+  long runMiniBenchmarkWithQop(Configuration conf,
+                               QualityOfProtection qop,
+                               int count,
+                               int payloadSize) throws IOException {
+    conf = new Configuration(conf);
+    conf.set(CommonConfigurationKeys.HADOOP_SECURITY_AUTHENTICATION,
+             "kerberos");
+    conf.set("hadoop.rpc.protection", qop.name().toLowerCase());
+    // measure the calls, not the delayed acks
+    conf.setBoolean("ipc.client.tcpnodelay", true);
+    conf.setBoolean("ipc.server.tcpnodelay", true);
+    MiniServer miniServer = null;
+    try {
+      // start the server
+      miniServer = new MiniServer(conf, null, null);
+      final InetSocketAddress addr = miniServer.getAddress();
+
+      TestDelegationTokenIdentifier tokenId = 
+        new TestDelegationTokenIdentifier(
+            new Text(MINI_USER), new Text(RENEWER), null);
+      Token<TestDelegationTokenIdentifier> token = 
+        new Token<TestDelegationTokenIdentifier>(
+            tokenId, miniServer.secretManager);
+      token.setService(new Text(addr.getAddress().getHostAddress() 
+          + ":" + addr.getPort()));
+      UserGroupInformation ugi = 
+        UserGroupInformation.createUserForTesting(MINI_USER, GROUP_NAMES);
+      ugi.addToken(token);
+
+      final Configuration clientConf = conf;
+      final byte[] payload = new byte[payloadSize];
+      for(int idx = 0; idx < payloadSize; idx ++) {
+        payload[idx] = (byte) idx;
+      }
+      setLoggingLevel(logLevel);
+      final int calls = count;
+      try {
+        return ugi.doAs(new PrivilegedExceptionAction<Long>() {
+          public Long run() throws IOException {
+            MiniProtocol client = null;
+            try {
+              client = (MiniProtocol) RPC.getProxy(MiniProtocol.class,
+                  MiniProtocol.versionID, addr, clientConf);
+              BytesWritable data = new BytesWritable(payload);
+              // establish the connection before timing
+              Assert.assertEquals(data, client.echo(data));
+              long start = System.currentTimeMillis();
+              for(int idx = 0; idx < calls; idx ++) {
+                Assert.assertEquals(data, client.echo(data));
+              }
+              return System.currentTimeMillis() - start;
+            } finally {
+              RPC.stopProxy(client);
+            }
+          }
+        });
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    } finally {
+      if(miniServer != null) miniServer.stop();
+    }
+  }
+
   static void printUsage() {
     System.err.println(
         "Usage: MiniRPCBenchmark <numIterations> [<keytabFile> [<userName> " +
-        "[useToken|useKerberos [<logLevel>]]]]");
+        "[useToken|useKerberos [<logLevel>]]]]\n" +
+        "       MiniRPCBenchmark <numIterations> -qop [<payloadSize>]");
     System.exit(-1);
   }
 
@@ -356,6 +453,23 @@ public class MiniRPCBenchmark {
 
     Configuration conf = new Configuration();
     int count = Integer.parseInt(args[0]);
+    if(args.length > 1 && args[1].equals("-qop")) {
+      int payloadSize = 64*1024;
+      if(args.length > 2)
+        payloadSize = Integer.parseInt(args[2]);
+      System.out.println("Benchmark: RPC throughput with " + payloadSize
+          + " byte payloads.");
+      MiniRPCBenchmark mb = new MiniRPCBenchmark(Level.ERROR);
+      for(QualityOfProtection qop : QualityOfProtection.values()) {
+        long elapsedTime = mb.runMiniBenchmarkWithQop(
+                                conf, qop, count, payloadSize);
+        System.out.println(qop.getSaslQop() + ": " + count + " calls in "
+            + elapsedTime + " ms, "
+            + ((double)payloadSize * 2 * count / 1024 / 1024)
+              / Math.max(elapsedTime, 1) * 1000 + " MB/s");
+      }
+      return;
+    }
     if(args.length > 1)
       conf.set(KEYTAB_FILE_KEY, args[1]);
     if(args.length > 2)
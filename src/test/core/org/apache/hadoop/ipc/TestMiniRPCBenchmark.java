@@ -18,6 +18,7 @@
 package org.apache.hadoop.ipc;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.SaslRpcServer.QualityOfProtection;
 import org.apache.log4j.Level;
 import org.junit.Test;
 
@@ -32,4 +33,16 @@ public class TestMiniRPCBenchmark {
     MiniRPCBenchmark mb = new MiniRPCBenchmark(Level.DEBUG);
     mb.runMiniBenchmark(conf, 10, null, null);
   }
+
+  @Test
+  public void testQop() throws Exception {
+    Configuration conf = new Configuration();
+    MiniRPCBenchmark mb = new MiniRPCBenchmark(Level.DEBUG);
+    // larger than the client's raw send size, so requests span several
+    // tokens; the server wraps each response in one
+    int payloadSize = 200*1024;
+    for(QualityOfProtection qop : QualityOfProtection.values()) {
+      mb.runMiniBenchmarkWithQop(conf, qop, 10, payloadSize);
+    }
+  }
 }
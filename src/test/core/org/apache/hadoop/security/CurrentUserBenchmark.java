@@ -0,0 +1,130 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security;
+
+import java.io.IOException;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+
+import javax.security.auth.Subject;
+
+/**
+ * CurrentUserBenchmark measures the cost of
+ * {@link UserGroupInformation#getCurrentUser()} inside a doAs, which is
+ * what every RPC handler and FileSystem call running on behalf of a remote
+ * user pays, and compares it to looking up the Subject of the access control
+ * context and wrapping it in a new UserGroupInformation on every call.
+ * Input arguments:
+ * <ul>
+ * <li>numIterations - number of calls to time in each mode</li>
+ * <li>numThreads - number of threads making calls concurrently</li>
+ * </ul>
+ */
+public class CurrentUserBenchmark {
+  private static volatile Object sink;
+
+  private interface Lookup {
+    Object lookup() throws IOException;
+  }
+
+  private static final Lookup CURRENT_USER = new Lookup() {
+    public Object lookup() throws IOException {
+      return UserGroupInformation.getCurrentUser();
+    }
+  };
+
+  private static final Lookup SUBJECT_LOOKUP = new Lookup() {
+    public Object lookup() throws IOException {
+      AccessControlContext context = AccessController.getContext();
+      Subject subject = Subject.getSubject(context);
+      return new UserGroupInformation(subject);
+    }
+  };
+
+  /**
+   * Time numIterations lookups on each of numThreads threads, all running
+   * as the given user.
+   * @return average time per lookup in nanoseconds
+   */
+  static double time(final UserGroupInformation ugi, final Lookup lookup,
+                     final int numIterations, int numThreads)
+      throws Exception {
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            ugi.doAs(new PrivilegedExceptionAction<Object>() {
+              public Object run() throws IOException {
+                for (int j = 0; j < numIterations; j++) {
+                  sink = lookup.lookup();
+                }
+                return null;
+              }
+            });
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+    }
+    long start = System.nanoTime();
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    return (System.nanoTime() - start) / (double) numIterations;
+  }
+
+  /**
+   * Run both modes and report the average time per lookup.
+   * @return average nanoseconds per lookup, getCurrentUser first
+   */
+  static double[] runBenchmark(int numIterations, int numThreads)
+      throws Exception {
+    UserGroupInformation ugi = UserGroupInformation.createUserForTesting(
+        "benchmarkUser", new String[] {"benchmarkGroup"});
+    // warm up both paths
+    time(ugi, CURRENT_USER, numIterations, numThreads);
+    time(ugi, SUBJECT_LOOKUP, numIterations, numThreads);
+
+    double currentUser = time(ugi, CURRENT_USER, numIterations, numThreads);
+    double subjectLookup = time(ugi, SUBJECT_LOOKUP, numIterations, numThreads);
+    return new double[] {currentUser, subjectLookup};
+  }
+
+  static void printUsage() {
+    System.err.println(
+        "Usage: CurrentUserBenchmark <numIterations> [<numThreads>]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 2) {
+      printUsage();
+    }
+    int numIterations = Integer.parseInt(args[0]);
+    int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    double[] times = runBenchmark(numIterations, numThreads);
+    System.out.println("getCurrentUser:          " + times[0] + " ns/op");
+    System.out.println("Subject lookup and wrap: " + times[1] + " ns/op");
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+
+/**
+ * KerberosNameBenchmark measures the cost of translating Kerberos principals
+ * to short names with {@link KerberosName#getShortName()} against an
+ * auth_to_local rule set the size of a multi-realm cluster, once with the
+ * translation cache enabled and once with it disabled.
+ * Input arguments:
+ * <ul>
+ * <li>numIterations - number of translations to time in each mode</li>
+ * <li>numRealms - number of trusted realms, each adding a few rules</li>
+ * <li>numPrincipals - number of distinct principals translated</li>
+ * </ul>
+ */
+public class KerberosNameBenchmark {
+  private static volatile String sink;
+
+  /**
+   * Build a rule set with a user rule, a host rule and an admin rule for
+   * each realm, followed by the default rule, so that principals of the
+   * last realm have to be checked against every other rule first.
+   */
+  static String buildRules(int numRealms) {
+    StringBuilder rules = new StringBuilder();
+    for (int i = 0; i < numRealms; i++) {
+      String realm = "REALM" + i + "\\.EXAMPLE\\.COM";
+      rules.append("RULE:[1:$1@$0](.*@" + realm + ")s/@.*//\n");
+      rules.append("RULE:[2:$1;$2@$0](.*;admin@" + realm +
+                   ")s/;admin@.*//\n");
+      rules.append("RULE:[2:$1@$0](hdfs@" + realm + "|mapred@" + realm +
+                   ")s/@.*//\n");
+    }
+    rules.append("DEFAULT");
+    return rules.toString();
+  }
+
+  static String[] buildPrincipals(int numRealms, int numPrincipals) {
+    String[] principals = new String[numPrincipals];
+    for (int i = 0; i < numPrincipals; i++) {
+      String realm =
+        "REALM" + (numRealms - 1 - i % numRealms) + ".EXAMPLE.COM";
+      if (i % 2 == 0) {
+        principals[i] = "user" + i + "@" + realm;
+      } else {
+        principals[i] = (i % 4 == 1 ? "hdfs" : "mapred") + "/host" + i +
+                        ".example.com@" + realm;
+      }
+    }
+    return principals;
+  }
+
+  /**
+   * Time numIterations translations cycling through the principals.
+   * @return average time per translation in nanoseconds
+   */
+  static double time(String[] principals, int numIterations)
+      throws Exception {
+    long start = System.nanoTime();
+    for (int i = 0; i < numIterations; i++) {
+      sink = new KerberosName(principals[i % principals.length]).getShortName();
+    }
+    return (System.nanoTime() - start) / (double) numIterations;
+  }
+
+  static double time(Configuration conf, int cacheSize, String[] principals,
+                     int numIterations) throws Exception {
+    conf.setInt(
+        CommonConfigurationKeys.HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_KEY,
+        cacheSize);
+    KerberosName.setConfiguration(conf);
+    // warm up
+    time(principals, numIterations);
+    return time(principals, numIterations);
+  }
+
+  /**
+   * Run with and without the cache and report the average time per
+   * translation.
+   * @return average nanoseconds per translation, cached first
+   */
+  static double[] runBenchmark(int numIterations, int numRealms,
+                               int numPrincipals) throws Exception {
+    Configuration conf = new Configuration();
+    conf.set("hadoop.security.auth_to_local", buildRules(numRealms));
+    String[] principals = buildPrincipals(numRealms, numPrincipals);
+    try {
+      double cached = time(conf,
+          CommonConfigurationKeys.HADOOP_SECURITY_AUTH_TO_LOCAL_CACHE_SIZE_DEFAULT,
+          principals, numIterations);
+      double uncached = time(conf, 0, principals, numIterations);
+      System.out.println("Rules: " + (3 * numRealms + 1) +
+                         ", principals: " + numPrincipals);
+      System.out.println("cached:   " + cached + " ns/op");
+      System.out.println("uncached: " + uncached + " ns/op");
+      return new double[] {cached, uncached};
+    } finally {
+      KerberosName.setConfiguration(new Configuration());
+    }
+  }
+
+  static void printUsage() {
+    System.err.println("Usage: KerberosNameBenchmark <numIterations> " +
+                       "[<numRealms> [<numPrincipals>]]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length > 3) {
+      printUsage();
+    }
+    int numIterations = Integer.parseInt(args[0]);
+    int numRealms = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int numPrincipals = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    runBenchmark(numIterations, numRealms, numPrincipals);
+  }
+}
@@ -87,4 +87,48 @@ public class TestKerberosName {
     checkBadTranslation("foo@ACME.COM");
     checkBadTranslation("root/joe@FOO.COM");
   }
+
+  @Test
+  public void testParse() throws Exception {
+    KerberosName name = new KerberosName("hdfs/host.foo.com@FOO.COM");
+    assertEquals("hdfs", name.getServiceName());
+    assertEquals("host.foo.com", name.getHostName());
+    assertEquals("FOO.COM", name.getRealm());
+    name = new KerberosName("omalley@FOO.COM");
+    assertEquals("omalley", name.getServiceName());
+    assertNull(name.getHostName());
+    assertEquals("FOO.COM", name.getRealm());
+    name = new KerberosName("owen/owen");
+    assertEquals("owen/owen", name.getServiceName());
+    assertNull(name.getRealm());
+    assertEquals("owen/owen", name.toString());
+    checkBadName("owen@FOO.COM@BAR.COM");
+    checkBadName("owen/@/FOO.COM");
+  }
+
+  @Test
+  public void testBadFormat() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set("hadoop.security.auth_to_local", "RULE:[1:$2]\n" + "DEFAULT");
+    KerberosName.setConfiguration(conf);
+    checkBadTranslation("omalley@APACHE.ORG");
+  }
+
+  @Test
+  public void testCacheReset() throws Exception {
+    checkTranslation("joe/admin@FOO.COM", "joe");
+    checkTranslation("joe/admin@FOO.COM", "joe");
+    // the cached translation must not survive a change of rules
+    Configuration conf = new Configuration();
+    conf.set("hadoop.security.auth_to_local",
+             "RULE:[2:$2](admin)\n" + "DEFAULT");
+    KerberosName.setConfiguration(conf);
+    checkTranslation("joe/admin@FOO.COM", "admin");
+  }
+
+  /** Run the translation benchmark for a few iterations */
+  @Test
+  public void testBenchmark() throws Exception {
+    KerberosNameBenchmark.runBenchmark(10000, 10, 100);
+  }
 }
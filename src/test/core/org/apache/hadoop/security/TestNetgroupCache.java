@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestNetgroupCache {
+  private static final File tmpDir =
+    new File(System.getProperty("test.build.data", "/tmp"), "netgroups");
+
+  @Before
+  public void setUp() {
+    tmpDir.mkdirs();
+    NetgroupCache.clear();
+  }
+
+  @After
+  public void tearDown() {
+    NetgroupCache.clear();
+  }
+
+  private static List<String> getNetgroups(String user) {
+    List<String> groups = new ArrayList<String>();
+    NetgroupCache.getNetgroups(user, groups);
+    Collections.sort(groups);
+    return groups;
+  }
+
+  @Test
+  public void testAddAndLookup() {
+    NetgroupCache.add("@lasVegas", Arrays.asList("elvis"));
+    NetgroupCache.add("@memphis", Arrays.asList("elvis", "jerryLeeLewis"));
+
+    assertTrue(NetgroupCache.isCached("@lasVegas"));
+    assertFalse(NetgroupCache.isCached("@nashville"));
+    assertEquals(Arrays.asList("@lasVegas", "@memphis"), getNetgroups("elvis"));
+    assertEquals(Arrays.asList("@memphis"), getNetgroups("jerryLeeLewis"));
+    assertTrue(getNetgroups("sinatra").isEmpty());
+
+    // adding an already cached group does not change it
+    NetgroupCache.add("@memphis", Arrays.asList("sinatra"));
+    assertTrue(getNetgroups("sinatra").isEmpty());
+
+    NetgroupCache.clear();
+    assertTrue(getNetgroups("elvis").isEmpty());
+    assertTrue(NetgroupCache.getNetgroupNames().isEmpty());
+  }
+
+  @Test
+  public void testReplace() {
+    NetgroupCache.add("@lasVegas", Arrays.asList("elvis"));
+
+    Map<String, List<String>> netgroups = new HashMap<String, List<String>>();
+    netgroups.put("@memphis", Arrays.asList("jerryLeeLewis"));
+    NetgroupCache.replace(netgroups);
+
+    assertFalse(NetgroupCache.isCached("@lasVegas"));
+    assertTrue(getNetgroups("elvis").isEmpty());
+    assertEquals(Arrays.asList("@memphis"), getNetgroups("jerryLeeLewis"));
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    File snapshot = new File(tmpDir, "netgroups.snapshot");
+    snapshot.delete();
+
+    NetgroupCache.add("@lasVegas", Arrays.asList("elvis"));
+    NetgroupCache.add("@memphis", Arrays.asList("elvis", "jerryLeeLewis"));
+    NetgroupCache.writeSnapshot(snapshot);
+    NetgroupCache.clear();
+
+    NetgroupCache.readSnapshot(snapshot);
+    assertEquals(Arrays.asList("@lasVegas", "@memphis"), getNetgroups("elvis"));
+    assertEquals(Arrays.asList("@memphis"), getNetgroups("jerryLeeLewis"));
+
+    // a mapping configured with the snapshot loads it into an empty cache
+    NetgroupCache.clear();
+    Configuration conf = new Configuration();
+    conf.set(CommonConfigurationKeys.HADOOP_SECURITY_NETGROUP_SNAPSHOT_FILE_KEY,
+      snapshot.getPath());
+    new ShellBasedUnixGroupsNetgroupMapping().setConf(conf);
+    assertEquals(Arrays.asList("@memphis"), getNetgroups("jerryLeeLewis"));
+    snapshot.delete();
+  }
+
+  @Test
+  public void testConcurrentSnapshots() throws Exception {
+    final File dir = new File(tmpDir, "concurrent");
+    final File snapshot = new File(dir, "netgroups.snapshot");
+    dir.mkdirs();
+    snapshot.delete();
+    NetgroupCache.add("@memphis", Arrays.asList("elvis", "jerryLeeLewis"));
+
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] writers = new Thread[4];
+    for (int i = 0; i < writers.length; i++) {
+      final String group = "@group" + i;
+      writers[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 50; j++) {
+              NetgroupCache.add(group + "-" + j, Arrays.asList("elvis"));
+              NetgroupCache.writeSnapshot(snapshot);
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertNull(error.get());
+
+    // every write left a complete snapshot and no temporary files behind
+    assertEquals(Arrays.asList(snapshot.getName()),
+      Arrays.asList(dir.list()));
+    NetgroupCache.clear();
+    NetgroupCache.readSnapshot(snapshot);
+    assertEquals(Arrays.asList("@memphis"), getNetgroups("jerryLeeLewis"));
+    snapshot.delete();
+  }
+}
@@ -128,6 +128,34 @@ public class TestUserGroupInformation {
     assertFalse(curUGI.equals(UserGroupInformation.getLoginUser()));
   }
 
+  /** Test that the current user follows nested doAs calls */
+  @Test
+  public void testNestedDoAs() throws Exception {
+    final UserGroupInformation login = UserGroupInformation.getCurrentUser();
+    final UserGroupInformation outer = 
+      UserGroupInformation.createRemoteUser("outer");
+    final UserGroupInformation inner = 
+      UserGroupInformation.createRemoteUser("inner");
+    outer.doAs(new PrivilegedExceptionAction<Object>() {
+      public Object run() throws Exception {
+        assertEquals(outer, UserGroupInformation.getCurrentUser());
+        try {
+          inner.doAs(new PrivilegedExceptionAction<Object>() {
+            public Object run() throws IOException {
+              assertEquals(inner, UserGroupInformation.getCurrentUser());
+              throw new IOException("leaving inner doAs");
+            }});
+          fail("IOException expected");
+        } catch (IOException ioe) {
+          // expected
+        }
+        // the outer user is current again, even after an exception
+        assertEquals(outer, UserGroupInformation.getCurrentUser());
+        return null;
+      }});
+    assertEquals(login, UserGroupInformation.getCurrentUser());
+  }
+
   /** test constructor */
   @Test
   public void testConstructor() throws Exception {
@@ -247,6 +247,122 @@ public class TestDelegationToken {
     }
   }
 
+  @Test
+  public void testRemoveExpiredToken() throws Exception {
+    TestDelegationTokenSecretManager dtSecretManager = 
+      new TestDelegationTokenSecretManager(24*60*60*1000,
+        10*1000,2*1000,3600000);
+    try {
+      dtSecretManager.startThreads();
+      Token<TestDelegationTokenIdentifier> expiring = generateDelegationToken(
+          dtSecretManager, "SomeUser", "JobTracker");
+      Token<TestDelegationTokenIdentifier> renewed = generateDelegationToken(
+          dtSecretManager, "OtherUser", "JobTracker");
+      Token<TestDelegationTokenIdentifier> cancelled = generateDelegationToken(
+          dtSecretManager, "ThirdUser", "JobTracker");
+      dtSecretManager.cancelToken(cancelled, "JobTracker");
+      Thread.sleep(1000);
+      dtSecretManager.renewToken(renewed, "JobTracker");
+      Thread.sleep(1500);
+
+      // the first token expired, the renewed one did not
+      dtSecretManager.removeExpiredToken();
+      Map<TestDelegationTokenIdentifier, DelegationTokenInformation> tokens =
+        dtSecretManager.getAllTokens();
+      assertEquals(1, tokens.size());
+      TestDelegationTokenIdentifier identifier = 
+        dtSecretManager.createIdentifier();
+      identifier.readFields(new DataInputStream(
+          new ByteArrayInputStream(renewed.getIdentifier())));
+      assertTrue(tokens.containsKey(identifier));
+      identifier.readFields(new DataInputStream(
+          new ByteArrayInputStream(expiring.getIdentifier())));
+      assertFalse(tokens.containsKey(identifier));
+
+      // a token a subclass put in the cache directly expires with the scan
+      // of all of the tokens
+      tokens.put(identifier, new DelegationTokenInformation(
+          System.currentTimeMillis() - 1, new byte[0]));
+      dtSecretManager.removeExpiredToken();
+      assertTrue(tokens.containsKey(identifier));
+      dtSecretManager.removeAllExpiredTokens();
+      assertFalse(tokens.containsKey(identifier));
+      assertEquals(1, tokens.size());
+    } finally {
+      dtSecretManager.stopThreads();
+    }
+  }
+
+  @Test
+  public void testPersistedTokens() throws Exception {
+    final List<String> log = new ArrayList<String>();
+    TestDelegationTokenSecretManager dtSecretManager = 
+      new TestDelegationTokenSecretManager(24*60*60*1000,
+        10*1000,1*1000,3600000) {
+      @Override
+      protected void logNewToken(TestDelegationTokenIdentifier id,
+                                 long renewDate) {
+        log.add("new " + id.getSequenceNumber());
+      }
+      @Override
+      protected void logRenewToken(TestDelegationTokenIdentifier id,
+                                   long renewDate) {
+        log.add("renew " + id.getSequenceNumber());
+      }
+      @Override
+      protected void logCancelToken(TestDelegationTokenIdentifier id) {
+        log.add("cancel " + id.getSequenceNumber());
+      }
+    };
+    Token<TestDelegationTokenIdentifier> token;
+    DelegationKey[] keys;
+    try {
+      dtSecretManager.startThreads();
+      token = generateDelegationToken(dtSecretManager, "SomeUser",
+                                      "JobTracker");
+      dtSecretManager.renewToken(token, "JobTracker");
+      Token<TestDelegationTokenIdentifier> cancelled = generateDelegationToken(
+          dtSecretManager, "OtherUser", "JobTracker");
+      dtSecretManager.cancelToken(cancelled, "JobTracker");
+      try {
+        dtSecretManager.renewToken(cancelled, "JobTracker");
+        fail("renewed a cancelled token");
+      } catch (InvalidToken e) {
+        // expected, and not logged
+      }
+      keys = dtSecretManager.getAllKeys();
+    } finally {
+      dtSecretManager.stopThreads();
+    }
+    assertEquals(Arrays.asList("new 1", "renew 1", "new 2", "cancel 2"), log);
+
+    // a restarted secret manager accepts the persisted token
+    TestDelegationTokenSecretManager restarted = 
+      new TestDelegationTokenSecretManager(24*60*60*1000,
+        10*1000,1*1000,3600000);
+    for (DelegationKey key : keys) {
+      restarted.addKey(key);
+    }
+    TestDelegationTokenIdentifier identifier = restarted.createIdentifier();
+    identifier.readFields(new DataInputStream(
+        new ByteArrayInputStream(token.getIdentifier())));
+    restarted.addPersistedDelegationToken(identifier,
+        System.currentTimeMillis() + 1000);
+    try {
+      restarted.startThreads();
+      assertTrue(Arrays.equals(token.getPassword(),
+                               restarted.retrievePassword(identifier)));
+      // new tokens continue the sequence
+      Token<TestDelegationTokenIdentifier> next = generateDelegationToken(
+          restarted, "OtherUser", "JobTracker");
+      identifier.readFields(new DataInputStream(
+          new ByteArrayInputStream(next.getIdentifier())));
+      assertEquals(2, identifier.getSequenceNumber());
+    } finally {
+      restarted.stopThreads();
+    }
+  }
+
   @Test
   public void testRollMasterKey() throws Exception {
     TestDelegationTokenSecretManager dtSecretManager = 
@@ -26,6 +26,7 @@ import junit.framework.TestCase;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NormalizedKeyComparator;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparator;
 
@@ -115,10 +116,17 @@ public class TestIndexedSort extends TestCase {
   }
 
   public void sortWritable(IndexedSorter sorter) throws Exception {
+    sortWritable(sorter, false);
+    sortWritable(sorter, true);
+  }
+
+  public void sortWritable(IndexedSorter sorter, boolean prefixes)
+      throws Exception {
     final int SAMPLE = 1000;
-    WritableSortable s = new WritableSortable(SAMPLE);
+    WritableSortable s = new WritableSortable(SAMPLE, prefixes);
     long seed = s.getSeed();
     System.out.println("sortWritable seed: " + seed +
+        (prefixes ? " with prefixes" : "") +
         "(" + sorter.getClass().getName() + ")");
     String[] values = s.getValues();
     Arrays.sort(values);
@@ -283,6 +291,7 @@ public class TestIndexedSort extends TestCase {
     private final int[] offsets;
     private final byte[] bytes;
     private final WritableComparator comparator;
+    private final long[] prefixes;
     private final String[] check;
     private final long seed;
 
@@ -291,6 +300,14 @@ public class TestIndexedSort extends TestCase {
     }
 
     public WritableSortable(int j) throws IOException {
+      this(j, false);
+    }
+
+    /**
+     * @param usePrefixes whether to compare the prefixes of the normalized
+     *        keys before the keys
+     */
+    public WritableSortable(int j, boolean usePrefixes) throws IOException {
       seed = r.nextLong();
       r.setSeed(seed);
       Text t = new Text();
@@ -309,6 +326,17 @@ public class TestIndexedSort extends TestCase {
       eob = dob.getLength();
       bytes = dob.getData();
       comparator = WritableComparator.get(Text.class);
+      NormalizedKeyComparator prefixComparator = usePrefixes
+        ? WritableComparator.getNormalizedKeyComparator(comparator) : null;
+      if (prefixComparator != null) {
+        prefixes = new long[j];
+        for (int i = 0; i < j; ++i) {
+          prefixes[i] = prefixComparator.getNormalizedKeyPrefix(bytes,
+              offsets[i], ((i + 1 == j) ? eob : offsets[i + 1]) - offsets[i]);
+        }
+      } else {
+        prefixes = null;
+      }
     }
 
     public long getSeed() {
@@ -326,6 +354,9 @@ public class TestIndexedSort extends TestCase {
     public int compare(int i, int j) {
       final int ii = indices[i];
       final int ij = indices[j];
+      if (prefixes != null && prefixes[ii] != prefixes[ij]) {
+        return prefixes[ii] < prefixes[ij] ? -1 : 1;
+      }
       return comparator.compare(bytes, offsets[ii],
         ((ii + 1 == indices.length) ? eob : offsets[ii + 1]) - offsets[ii],
         bytes, offsets[ij],
@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.util.bloom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.util.hash.Hash;
+
+/**
+ * Test the blocked Bloom filter, and compare its membership tests with the
+ * ones of the other Bloom filters.
+ */
+public class TestBlockedBloomFilter extends TestCase {
+  private static final int KEYS = 100000;
+  private static final double ERROR_RATE = 0.005;
+
+  private static Key key(int i) {
+    return new Key(("key" + i).getBytes());
+  }
+
+  public void testMurmur3() {
+    long[] h = new long[2];
+    BlockedBloomFilter.murmur3(new byte[0], 0, 0, h);
+    assertEquals(0L, h[0]);
+    assertEquals(0L, h[1]);
+    // the reference implementation, with a seed of 0
+    byte[] hello = "xxhello".getBytes();
+    BlockedBloomFilter.murmur3(hello, 2, 5, h);
+    assertEquals(0xcbd8a7b341bd9b02L, h[0]);
+    assertEquals(0x5b1e906a48ae1d19L, h[1]);
+    byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes();
+    BlockedBloomFilter.murmur3(fox, 0, fox.length, h);
+    assertEquals(0xe34bbc7bbc071b6cL, h[0]);
+    assertEquals(0x7a433ca9c49a9347L, h[1]);
+  }
+
+  public void testMembership() {
+    BlockedBloomFilter filter = BlockedBloomFilter.create(KEYS, ERROR_RATE);
+    assertEquals(0, filter.getVectorSize() % BlockedBloomFilter.BLOCK_BITS);
+    for (int i = 0; i < KEYS; i++) {
+      filter.add(key(i));
+    }
+    for (int i = 0; i < KEYS; i++) {
+      assertTrue(filter.membershipTest(key(i)));
+    }
+    int falsePositives = 0;
+    for (int i = KEYS; i < 2 * KEYS; i++) {
+      if (filter.membershipTest(key(i))) {
+        falsePositives++;
+      }
+    }
+    assertTrue("false positives: " + falsePositives,
+        falsePositives < 2 * ERROR_RATE * KEYS);
+
+    // keys within larger buffers
+    byte[] buffer = "..key42..".getBytes();
+    assertTrue(filter.membershipTest(buffer, 2, 5));
+    BlockedBloomFilter other = new BlockedBloomFilter(1000, 3);
+    other.add(buffer, 2, 5);
+    assertTrue(other.membershipTest(key(42)));
+  }
+
+  public void testSerialization() throws IOException {
+    BlockedBloomFilter filter = BlockedBloomFilter.create(1000, ERROR_RATE);
+    for (int i = 0; i < 1000; i++) {
+      filter.add(key(i));
+    }
+    DataOutputBuffer out = new DataOutputBuffer();
+    filter.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    BlockedBloomFilter read = new BlockedBloomFilter();
+    read.readFields(in);
+    assertEquals(filter.getVectorSize(), read.getVectorSize());
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(filter.membershipTest(key(i)), read.membershipTest(key(i)));
+    }
+  }
+
+  public void testMappedForm() throws IOException {
+    BlockedBloomFilter filter = BlockedBloomFilter.create(1000, ERROR_RATE);
+    for (int i = 0; i < 1000; i++) {
+      filter.add(key(i));
+    }
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeLong(-1L);
+    filter.writeMapped(out);
+    assertEquals(8 + BlockedBloomFilter.MAPPED_HEADER_LENGTH
+        + filter.getVectorSize() / 8, out.getLength());
+    assertEquals(out.getLength() - 8, filter.getMappedLength());
+    byte[] bytes = out.getData();
+
+    ByteBuffer heap = ByteBuffer.wrap(bytes, 8, out.getLength() - 8);
+    ByteBuffer direct = ByteBuffer.allocateDirect(out.getLength() - 8);
+    direct.put(bytes, 8, out.getLength() - 8).flip();
+    BlockedBloomFilter mapped = BlockedBloomFilter.map(heap);
+    BlockedBloomFilter readOnly =
+        BlockedBloomFilter.map(direct.asReadOnlyBuffer());
+    assertEquals(8, heap.position());
+    assertEquals(filter.getVectorSize(), mapped.getVectorSize());
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(filter.membershipTest(key(i)), mapped.membershipTest(key(i)));
+      assertEquals(filter.membershipTest(key(i)),
+          readOnly.membershipTest(key(i)));
+    }
+
+    // keys added to a writable buffer are in the buffer
+    mapped.add(key(5000));
+    assertTrue(BlockedBloomFilter.map(heap).membershipTest(key(5000)));
+    try {
+      readOnly.add(key(5000));
+      fail("added a key to a read-only filter");
+    } catch (ReadOnlyBufferException e) {
+      // expected
+    }
+
+    // and the mapped form reads back as the Writable one
+    DataOutputBuffer written = new DataOutputBuffer();
+    mapped.write(written);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(written.getData(), written.getLength());
+    BlockedBloomFilter read = new BlockedBloomFilter();
+    read.readFields(in);
+    assertTrue(read.membershipTest(key(5000)));
+
+    try {
+      BlockedBloomFilter.map(ByteBuffer.wrap(bytes, 8, out.getLength() - 16));
+      fail("mapped a truncated filter");
+    } catch (IOException e) {
+      // expected
+    }
+    try {
+      BlockedBloomFilter.map(ByteBuffer.wrap(bytes, 0, out.getLength()));
+      fail("mapped a filter without its header");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testOperations() {
+    BlockedBloomFilter even = new BlockedBloomFilter(10000, 4);
+    BlockedBloomFilter odd = new BlockedBloomFilter(10000, 4);
+    for (int i = 0; i < 100; i++) {
+      (i % 2 == 0 ? even : odd).add(key(i));
+    }
+    odd.or(even);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(odd.membershipTest(key(i)));
+    }
+    odd.xor(even);
+    odd.and(even);
+    for (int i = 0; i < 100; i += 2) {
+      assertFalse(odd.membershipTest(key(i)));
+    }
+    odd.not();
+    for (int i = 0; i < 100; i++) {
+      assertTrue(odd.membershipTest(key(i)));
+    }
+    try {
+      even.or(new BlockedBloomFilter(20000, 4));
+      fail("or-ed filters of different sizes");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Measure the membership tests of a filter: half of the keys tested were
+   * added, half were not.
+   */
+  private static void measure(String name, Filter filter, Key[] keys,
+      int rounds) {
+    for (int i = 0; i < keys.length / 2; i++) {
+      filter.add(keys[i]);
+    }
+    int falsePositives = 0;
+    for (int i = keys.length / 2; i < keys.length; i++) {
+      if (filter.membershipTest(keys[i])) {
+        falsePositives++;
+      }
+    }
+    int found = 0;
+    long start = System.nanoTime();
+    for (int r = 0; r < rounds; r++) {
+      for (Key key : keys) {
+        if (filter.membershipTest(key)) {
+          found++;
+        }
+      }
+    }
+    long time = System.nanoTime() - start;
+    System.out.printf("%s: %.1fns per test...false positives: %.3f%%...%d\n",
+        name, (double) time / rounds / keys.length,
+        100.0 * falsePositives / (keys.length / 2), found);
+  }
+
+  /**
+   * Benchmark the membership tests of the Bloom filters with as many keys
+   * as a BloomMapFile puts in a filter by default: [keys] [rounds]
+   */
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1024 * 1024;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    // sized as BloomMapFile sizes them, with four filters in the dynamic one
+    int hashCount = 5;
+    int vectorSize = (int) Math.ceil((double) (-hashCount * count)
+        / Math.log(1.0 - Math.pow(ERROR_RATE, 1.0 / hashCount)));
+    int rowVectorSize = (int) Math.ceil((double) (-hashCount * count / 4)
+        / Math.log(1.0 - Math.pow(ERROR_RATE, 1.0 / hashCount)));
+    Key[] keys = new Key[2 * count];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = key(i);
+    }
+    for (int pass = 0; pass < 2; pass++) {
+      // the first pass warms up
+      measure("BloomFilter", new BloomFilter(vectorSize, hashCount,
+          Hash.MURMUR_HASH), keys, rounds);
+      measure("DynamicBloomFilter", new DynamicBloomFilter(rowVectorSize,
+          hashCount, Hash.MURMUR_HASH, count / 4), keys, rounds);
+      measure("BlockedBloomFilter", BlockedBloomFilter.create(count,
+          ERROR_RATE), keys, rounds);
+    }
+  }
+}